@@ -114,6 +114,8 @@ public final class Constants {
         public static final String PASSPHRASE_CACHE_TTLS = "passphraseCacheTtls";
         public static final String PASSPHRASE_CACHE_DEFAULT = "passphraseCacheDefault";
         public static final String PASSPHRASE_CACHE_SUBS = "passphraseCacheSubs";
+        public static final String PASSPHRASE_CACHE_UNLOCKED_KEYS = "passphraseCacheUnlockedKeys";
+        public static final String PASSPHRASE_CACHE_SESSION_KEYS = "passphraseCacheSessionKeys";
         public static final String LANGUAGE = "language";
         public static final String KEY_SERVERS = "keyServers";
         public static final String PREF_VERSION = "keyServersDefaultVersion";
@@ -19,7 +19,6 @@
 package org.sufficientlysecure.keychain.operations;
 
 
-import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,6 +28,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -44,6 +44,7 @@ import org.sufficientlysecure.keychain.operations.results.ExportResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.BlockArmoredOutputStream;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
@@ -62,6 +63,7 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.CountingOutputStream;
 import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.IoBufferPool;
 import org.sufficientlysecure.keychain.util.Log;
 
 
@@ -128,9 +130,16 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
                 }
             }
 
-            CountingOutputStream outStream = new CountingOutputStream(new BufferedOutputStream(plainOut));
-            boolean backupSuccess = exportKeysToStream(
-                    log, backupInput.getMasterKeyIds(), backupInput.getExportSecret(), outStream);
+            IoBufferPool.Lease bufferLease = IoBufferPool.lease();
+            CountingOutputStream outStream = new CountingOutputStream(bufferLease.bufferedOutputStream(plainOut));
+            boolean backupSuccess;
+            try {
+                backupSuccess = exportKeysToStream(
+                        log, backupInput.getMasterKeyIds(), backupInput.getExportSecret(), outStream);
+            } finally {
+                // the stream is closed at this point
+                bufferLease.release();
+            }
 
             if (!backupSuccess) {
                 // if there was an error, it will be in the log so we just have to return
@@ -174,6 +183,8 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         builder.setSymmetricPassphrase(cryptoInput.getPassphrase());
         builder.setEnableAsciiArmorOutput(backupInput.getEnableAsciiArmorOutput());
         builder.setAddBackupHeader(true);
+        // backups may contain many keys, favor speed over ratio
+        builder.setCompressionLevel(Deflater.BEST_SPEED);
         PgpSignEncryptData pgpSignEncryptData = builder.build();
 
         InputStream inStream = mContext.getContentResolver().openInputStream(plainUri);
@@ -272,7 +283,7 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         ArmoredOutputStream arOutStream = null;
 
         try {
-            arOutStream = new ArmoredOutputStream(outStream);
+            arOutStream = new BlockArmoredOutputStream(outStream);
             byte[] data = mKeyRepository.loadPublicKeyRingData(masterKeyId);
             UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
             CanonicalizedPublicKeyRing ring = (CanonicalizedPublicKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
@@ -292,7 +303,7 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         ArmoredOutputStream arOutStream = null;
 
         try {
-            arOutStream = new ArmoredOutputStream(outStream);
+            arOutStream = new BlockArmoredOutputStream(outStream);
             byte[] data = mKeyRepository.loadSecretKeyRingData(masterKeyId);
             UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
             CanonicalizedSecretKeyRing ring = (CanonicalizedSecretKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
@@ -322,13 +333,13 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
                     Collections.nCopies(masterKeyIds.length, "?"));
 
             // put together selection string
-            selection = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+            selection = Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID
                     + " IN (" + placeholders + ")";
         }
 
         return mKeyRepository.getContentResolver().query(
                 KeyRings.buildUnifiedKeyRingsUri(), PROJECTION, selection, selectionArgs,
-                Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+                Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID
         );
     }
 
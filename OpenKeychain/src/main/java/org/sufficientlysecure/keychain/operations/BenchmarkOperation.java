@@ -20,6 +20,7 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.OutputStream;
 import java.util.Random;
 
 import android.content.Context;
@@ -96,7 +97,16 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
         long encryptionTime = totalTime / numRepeats;
         totalTime = 0;
 
-        // decrypt
+        // decrypt, streaming the plaintext nowhere, so only the decryption itself is measured
+        OutputStream discardingStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) {
+            }
+        };
         i = 0;
         do {
             DecryptVerifyResult decryptResult;
@@ -106,7 +116,8 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
             PgpDecryptVerifyInputParcel.Builder builder = PgpDecryptVerifyInputParcel.builder()
                     .setInputBytes(encryptResult.getResultBytes())
                     .setAllowSymmetricDecryption(true);
-            decryptResult = op.execute(builder.build(), CryptoInputParcel.createCryptoInputParcel(passphrase));
+            decryptResult = op.execute(builder.build(), CryptoInputParcel.createCryptoInputParcel(passphrase),
+                    discardingStream);
             log.add(decryptResult, 1);
             log.add(LogType.MSG_BENCH_DEC_TIME, 2, String.format("%.2f", decryptResult.mOperationTime / 1000.0));
             totalTime += decryptResult.mOperationTime;
@@ -21,7 +21,9 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -30,8 +32,10 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
@@ -54,6 +58,7 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.KeyRingBatchWriter;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
@@ -85,11 +90,27 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel> {
 
     private static final int MAX_THREADS = 10;
+    // number of keyrings written per database transaction
+    private static final int KEYRINGS_PER_TRANSACTION = 100;
+    // must be a power of two
+    private static final int MASTER_KEY_ID_LOCK_COUNT = 64;
+    // new certificates by unknown keys taken per keyring and import, more are deferred to later imports
+    private static final int MAX_NEW_THIRD_PARTY_CERTS = 1000;
 
     public static final String CACHE_FILE_NAME = "key_import.pcl";
     private FacebookKeyserver facebookServer;
     private KeybaseKeyserver keybaseServer;
 
+    // while saving, secret keys are exclusive since they change how all other keys are verified,
+    // public keys are only exclusive with other saves of the same master key id
+    private final ReentrantReadWriteLock mSaveLock = new ReentrantReadWriteLock();
+    private final Object[] mMasterKeyIdLocks = new Object[MASTER_KEY_ID_LOCK_COUNT];
+    {
+        for (int i = 0; i < mMasterKeyIdLocks.length; i++) {
+            mMasterKeyIdLocks[i] = new Object();
+        }
+    }
+
     public ImportOperation(Context context, KeyWritableRepository databaseInteractor, Progressable progressable) {
         super(context, databaseInteractor, progressable);
     }
@@ -141,6 +162,22 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
                                                 ParcelableHkpKeyserver hkpKeyserver, Progressable progressable,
                                                 @NonNull ParcelableProxy proxy, boolean skipSave) {
+        return serialKeyRingImport(entries, numTotalKeys, hkpKeyserver, progressable, proxy, skipSave,
+                mKeyWritableRepository, null);
+    }
+
+    /**
+     * @param keyWritableRepository repository used for saving, each thread must use its own
+     * @param sharedBatchWriter     batch writer shared by all threads of a multi-threaded import,
+     *                              which is finished by the caller. If null, a batch writer is
+     *                              created and finished for this import alone.
+     */
+    @NonNull
+    private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
+                                                ParcelableHkpKeyserver hkpKeyserver, Progressable progressable,
+                                                @NonNull ParcelableProxy proxy, boolean skipSave,
+                                                KeyWritableRepository keyWritableRepository,
+                                                KeyRingBatchWriter sharedBatchWriter) {
         if (progressable != null) {
             progressable.setProgress(R.string.progress_importing, 0, 100);
         }
@@ -155,105 +192,132 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
         int newKeys = 0, updatedKeys = 0, missingKeys = 0, badKeys = 0, secret = 0;
         ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        HashSet<Long> updatedMasterKeyIds = new HashSet<>();
 
         ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
 
         boolean cancelled = false;
         int keyImportsFinished = 0;
 
+        long startTime = SystemClock.elapsedRealtime();
+        keyWritableRepository.setMaxNewThirdPartyCertifications(MAX_NEW_THIRD_PARTY_CERTS);
+        KeyRingBatchWriter batchWriter = sharedBatchWriter;
+        if (batchWriter == null && !skipSave) {
+            batchWriter = keyWritableRepository.createBatchWriter(KEYRINGS_PER_TRANSACTION);
+        }
+        List<Long> failedMasterKeyIds = null;
+
         // iterate over all entries
-        while (entries.hasNext()) {
-            ParcelableKeyRing entry = entries.next();
+        try {
+            while (entries.hasNext()) {
+                ParcelableKeyRing entry = entries.next();
 
-            // Has this action been cancelled? If so, don't proceed any further
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
-            }
+                // Has this action been cancelled? If so, don't proceed any further
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
+                }
 
-            boolean keyWasDownloaded = false;
+                boolean keyWasDownloaded = false;
 
-            try {
+                try {
 
-                UncachedKeyRing key = null;
+                    UncachedKeyRing key = null;
 
-                // If there is already byte data, use that
-                if (entry.getBytes() != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.getBytes());
-                } else {
-                    try {
-                        key = fetchKeyFromInternet(hkpKeyserver, proxy, log, entry, key);
-                    } catch (QueryNotFoundException e) {
-                        // note that this does NOT fire on network errors! those will be logged inline and return in null
-                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_NOT_FOUND, 2);
-                        missingKeys += 1;
+                    // If there is already byte data, use that
+                    if (entry.getBytes() != null) {
+                        key = UncachedKeyRing.decodeFromData(entry.getBytes());
+                    } else {
+                        try {
+                            key = fetchKeyFromInternet(hkpKeyserver, proxy, log, entry, key);
+                        } catch (QueryNotFoundException e) {
+                            // note that this does NOT fire on network errors! those will be logged inline and return in null
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_NOT_FOUND, 2);
+                            missingKeys += 1;
 
-                        continue;
-                    }
+                            continue;
+                        }
 
-                    if (key != null) {
-                        keyWasDownloaded = true;
+                        if (key != null) {
+                            keyWasDownloaded = true;
 
-                        if (key.isSecret()) {
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
-                            badKeys += 1;
-                            continue;
+                            if (key.isSecret()) {
+                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
+                                badKeys += 1;
+                                continue;
+                            }
                         }
                     }
-                }
-
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
-                    badKeys += 1;
-                    continue;
-                }
 
-                SaveKeyringResult result;
-                // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
-                // and https://github.com/open-keychain/open-keychain/issues/1480
-                synchronized (mKeyRepository) {
-                    mKeyRepository.clearLog();
-                    if (key.isSecret()) {
-                        result = mKeyWritableRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
-                    } else {
-                        result = mKeyWritableRepository.savePublicKeyRing(key, entry.getExpectedFingerprint(), canKeyRings, skipSave);
+                    if (key == null) {
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                        badKeys += 1;
+                        continue;
                     }
-                }
-                if (!result.success()) {
-                    badKeys += 1;
-                } else {
-                    if (result.updated()) {
-                        updatedKeys += 1;
-                        importedMasterKeyIds.add(key.getMasterKeyId());
+
+                    SaveKeyringResult result = saveKeyRing(keyWritableRepository, batchWriter, key,
+                            entry.getExpectedFingerprint(), canKeyRings, skipSave);
+                    if (!result.success()) {
+                        badKeys += 1;
                     } else {
-                        newKeys += 1;
-                        if (key.isSecret()) {
-                            secret += 1;
+                        if (result.updated()) {
+                            updatedKeys += 1;
+                            importedMasterKeyIds.add(key.getMasterKeyId());
+                            updatedMasterKeyIds.add(key.getMasterKeyId());
+                        } else {
+                            newKeys += 1;
+                            if (key.isSecret()) {
+                                secret += 1;
+                            }
+                            importedMasterKeyIds.add(key.getMasterKeyId());
                         }
-                        importedMasterKeyIds.add(key.getMasterKeyId());
-                    }
 
-                    if (!skipSave) {
-                        mKeyWritableRepository.renewKeyLastUpdatedTime(key.getMasterKeyId());
+                        if (batchWriter != null) {
+                            // must be written after the keyring itself
+                            keyWritableRepository.renewKeyLastUpdatedTime(key.getMasterKeyId(), batchWriter);
+                        }
                     }
+
+                    log.add(result, 2);
+                } catch (IOException | PgpGeneralException e) {
+                    Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                    ++badKeys;
                 }
 
-                log.add(result, 2);
-            } catch (IOException | PgpGeneralException e) {
-                Log.e(Constants.TAG, "Encountered bad key on import!", e);
-                ++badKeys;
+                // update progress
+                keyImportsFinished += 1;
+                progressable.setProgress(keyImportsFinished, numTotalKeys);
+            }
+        } finally {
+            if (batchWriter != null && sharedBatchWriter == null) {
+                failedMasterKeyIds = batchWriter.finish();
             }
+        }
 
-            // update progress
-            keyImportsFinished += 1;
-            progressable.setProgress(keyImportsFinished, numTotalKeys);
+        if (failedMasterKeyIds != null) {
+            for (Long masterKeyId : failedMasterKeyIds) {
+                // only public keyrings are batched, so this was counted as either new or updated
+                if (importedMasterKeyIds.remove(masterKeyId)) {
+                    if (updatedMasterKeyIds.contains(masterKeyId)) {
+                        updatedKeys -= 1;
+                    } else {
+                        newKeys -= 1;
+                    }
+                    badKeys += 1;
+                }
+            }
+            if (!failedMasterKeyIds.isEmpty()) {
+                log.add(LogType.MSG_IMPORT_ERROR_WRITE, 1, failedMasterKeyIds.size());
+            }
+            logThroughput(log, newKeys + updatedKeys, startTime);
         }
 
         // Special: consolidate on secret key import (cannot be cancelled!)
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
-        // and re-inserts keys, which could conflict with a parallel db key update
-        if (!skipSave && (secret > 0)) {
+        // and re-inserts keys, which could conflict with a parallel db key update.
+        // for multi-threaded imports, this is done once after all keys are written.
+        if (!skipSave && (secret > 0) && sharedBatchWriter == null) {
             setPreventCancel();
             ConsolidateResult result;
             synchronized (mKeyRepository) {
@@ -319,6 +383,52 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         return result;
     }
 
+    private SaveKeyringResult saveKeyRing(KeyWritableRepository keyWritableRepository,
+            KeyRingBatchWriter batchWriter, UncachedKeyRing key, byte[] expectedFingerprint,
+            ArrayList<CanonicalizedKeyRing> canKeyRings, boolean skipSave) {
+        if (batchWriter == null) {
+            // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+            // and https://github.com/open-keychain/open-keychain/issues/1480
+            synchronized (mKeyRepository) {
+                keyWritableRepository.clearLog();
+                if (key.isSecret()) {
+                    return keyWritableRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
+                } else {
+                    return keyWritableRepository.savePublicKeyRing(key, expectedFingerprint, canKeyRings, skipSave);
+                }
+            }
+        }
+
+        if (key.isSecret()) {
+            mSaveLock.writeLock().lock();
+            try {
+                // a secret key may change the verification status of queued keyrings
+                batchWriter.flush();
+                keyWritableRepository.clearLog();
+                return keyWritableRepository.saveSecretKeyRing(key, canKeyRings, false);
+            } finally {
+                mSaveLock.writeLock().unlock();
+            }
+        }
+
+        mSaveLock.readLock().lock();
+        try {
+            long masterKeyId = key.getMasterKeyId();
+            synchronized (mMasterKeyIdLocks[(int) (masterKeyId ^ (masterKeyId >>> 32)) & (MASTER_KEY_ID_LOCK_COUNT - 1)]) {
+                keyWritableRepository.clearLog();
+                return keyWritableRepository.savePublicKeyRing(key, expectedFingerprint, canKeyRings, batchWriter);
+            }
+        } finally {
+            mSaveLock.readLock().unlock();
+        }
+    }
+
+    private static void logThroughput(OperationLog log, int numKeys, long startTime) {
+        long elapsedMillis = SystemClock.elapsedRealtime() - startTime;
+        long keysPerSecond = numKeys * 1000L / Math.max(elapsedMillis, 1);
+        log.add(LogType.MSG_IMPORT_THROUGHPUT, 1, numKeys, (int) elapsedMillis, (int) keysPerSecond);
+    }
+
     private UncachedKeyRing fetchKeyFromInternet(ParcelableHkpKeyserver hkpKeyserver, @NonNull ParcelableProxy proxy,
             OperationLog log, ParcelableKeyRing entry, UncachedKeyRing key)
             throws PgpGeneralException, IOException, QueryNotFoundException {
@@ -515,6 +625,10 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         ExecutorCompletionService<ImportKeyResult> importCompletionService =
                 new ExecutorCompletionService<>(importExecutor);
 
+        long startTime = SystemClock.elapsedRealtime();
+        final KeyRingBatchWriter batchWriter =
+                skipSave ? null : mKeyWritableRepository.createBatchWriter(KEYRINGS_PER_TRANSACTION);
+
         while (keyListIterator.hasNext()) { // submit all key rings to be imported
 
             final ParcelableKeyRing pkRing = keyListIterator.next();
@@ -531,9 +645,12 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                     ArrayList<ParcelableKeyRing> list = new ArrayList<>();
                     list.add(pkRing);
                     ProgressScaler ignoreProgressable = new ProgressScaler();
+                    // repositories keep a log, so they can't be shared between threads
+                    KeyWritableRepository keyWritableRepository =
+                            KeyWritableRepository.createDatabaseReadWriteInteractor(mContext);
 
                     return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
-                            proxy, skipSave);
+                            proxy, skipSave, keyWritableRepository, batchWriter);
                 }
             };
 
@@ -541,20 +658,42 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         }
 
         KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
-        while (!accumulator.isImportFinished()) { // accumulate the results of each import
-            try {
-                accumulator.accumulateKeyImport(importCompletionService.take().get());
-            } catch (InterruptedException | ExecutionException e) {
-                Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
-                        "import", e);
-                // do nothing?
-                if (e instanceof ExecutionException) {
-                    // Since serialKeyRingImport does not throw any exceptions, this is what
-                    // would have happened if
-                    // we were importing the key on this thread
-                    throw new RuntimeException(e);
+        List<Long> failedMasterKeyIds = null;
+        try {
+            while (!accumulator.isImportFinished()) { // accumulate the results of each import
+                try {
+                    accumulator.accumulateKeyImport(importCompletionService.take().get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
+                            "import", e);
+                    // do nothing?
+                    if (e instanceof ExecutionException) {
+                        // Since serialKeyRingImport does not throw any exceptions, this is what
+                        // would have happened if
+                        // we were importing the key on this thread
+                        throw new RuntimeException(e);
+                    }
                 }
             }
+        } finally {
+            if (batchWriter != null) {
+                failedMasterKeyIds = batchWriter.finish();
+            }
+        }
+
+        if (failedMasterKeyIds != null) {
+            accumulator.removeFailedKeys(failedMasterKeyIds);
+            accumulator.logThroughput(startTime);
+
+            // Special: consolidate on secret key import, once all keys are written
+            if (accumulator.mSecret > 0) {
+                setPreventCancel();
+                ConsolidateResult result;
+                synchronized (mKeyRepository) {
+                    result = mKeyWritableRepository.consolidateDatabaseStep1(mProgressable);
+                }
+                accumulator.mImportLog.add(result, 1);
+            }
         }
         return accumulator.getConsolidatedResult();
     }
@@ -568,6 +707,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         private int mTotalKeys;
         private int mImportedKeys = 0;
         private ArrayList<Long> mImportedMasterKeyIds = new ArrayList<>();
+        private HashSet<Long> mUpdatedMasterKeyIds = new HashSet<>();
         private int mBadKeys = 0;
         private int mNewKeys = 0;
         private int mUpdatedKeys = 0;
@@ -624,6 +764,10 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             long[] masterKeyIds = result.getImportedMasterKeyIds();
             for (long masterKeyId : masterKeyIds) {
                 mImportedMasterKeyIds.add(masterKeyId);
+                // only distinguishable for results of a single key
+                if (result.mUpdatedKeys > 0 && result.mNewKeys == 0) {
+                    mUpdatedMasterKeyIds.add(masterKeyId);
+                }
             }
 
             mCanonicalizedKeyRings.addAll(result.mCanonicalizedKeyRings);
@@ -633,6 +777,30 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             mResultType |= result.getResult() & ImportKeyResult.RESULT_CANCELLED;
         }
 
+        /**
+         * Counts keys which were accumulated as imported, but could not be written to the
+         * database afterwards, as bad keys.
+         */
+        void removeFailedKeys(List<Long> failedMasterKeyIds) {
+            for (Long masterKeyId : failedMasterKeyIds) {
+                if (mImportedMasterKeyIds.remove(masterKeyId)) {
+                    if (mUpdatedMasterKeyIds.contains(masterKeyId)) {
+                        mUpdatedKeys -= 1;
+                    } else {
+                        mNewKeys -= 1;
+                    }
+                    mBadKeys += 1;
+                }
+            }
+            if (!failedMasterKeyIds.isEmpty()) {
+                mImportLog.add(LogType.MSG_IMPORT_ERROR_WRITE, 1, failedMasterKeyIds.size());
+            }
+        }
+
+        void logThroughput(long startTime) {
+            ImportOperation.logThroughput(mImportLog, mNewKeys + mUpdatedKeys, startTime);
+        }
+
         /**
          * returns accumulated result of all imports so far
          */
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import org.sufficientlysecure.keychain.operations.results.InputDataBatchResult;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.provider.KeyRepository;
+import org.sufficientlysecure.keychain.service.InputDataBatchParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.SecurityTokenDecryptOperationsBuilder;
+import org.sufficientlysecure.keychain.util.FutureUtil;
+import org.sufficientlysecure.keychain.util.ProgressAggregator;
+
+
+/**
+ * Processes multiple inputs as with an InputDataOperation, concurrently on a bounded pool.
+ * <p/>
+ * The first input is processed on its own, so a required passphrase is asked for only once
+ * and then available from the cache for all remaining inputs. Inputs that need a security
+ * token are collected, so all of their session keys can be decrypted in a single security
+ * token operation. Every finished input is reported to the ResultListener as soon as it is
+ * done. The final result contains none of them, and if it is pending, only the inputs which
+ * weren't reported need to be submitted again.
+ * <p/>
+ * Unlike SignEncryptOperation, this operation is not fail-fast: inputs are independent of
+ * each other, and a failed input does not affect any others.
+ */
+public class InputDataBatchOperation extends BaseOperation<InputDataBatchParcel> {
+
+    // upper bound on inputs processed concurrently, mostly bounded by i/o and memory
+    private static final int MAX_PARALLEL_INPUTS = 4;
+
+    public interface ResultListener {
+        /** Called for every finished input, possibly from a worker thread. */
+        void onInputDataResult(Uri inputUri, InputDataResult result);
+    }
+
+    private ResultListener mResultListener;
+
+    public InputDataBatchOperation(Context context, KeyRepository keyRepository,
+            Progressable progressable, AtomicBoolean cancelled) {
+        super(context, keyRepository, progressable, cancelled);
+    }
+
+    public void setResultListener(ResultListener resultListener) {
+        mResultListener = resultListener;
+    }
+
+    @NonNull
+    @Override
+    public InputDataBatchResult execute(InputDataBatchParcel input, CryptoInputParcel cryptoInput) {
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_DATA_BATCH, 0, input.getInputUris().size());
+
+        int numInputs = input.getInputUris().size();
+        ProgressAggregator progress = new ProgressAggregator(mProgressable, numInputs, 0, 100, 100);
+        InputDataResult[] results = new InputDataResult[numInputs];
+
+        results[0] = processInput(input, 0, cryptoInput, progress);
+        boolean needsPassphrase = results[0] != null && results[0].isPending()
+                && results[0].getRequiredInputParcel().mType != RequiredInputType.SECURITY_TOKEN_DECRYPT;
+        if (numInputs > 1 && !needsPassphrase) {
+            processInputsParallel(input, cryptoInput, progress, results);
+        }
+
+        RequiredInputParcel requiredInput = null;
+        SecurityTokenDecryptOperationsBuilder securityTokenBuilder = null;
+        boolean cancelled = false;
+        int numFailed = 0;
+
+        for (int i = 0; i < numInputs; i++) {
+            InputDataResult result = results[i];
+            if (result == null) {
+                cancelled = true;
+                continue;
+            }
+
+            if (result.isPending()) {
+                RequiredInputParcel pendingInput = result.getRequiredInputParcel();
+                // only the first required input is asked for, but security token
+                // operations for the same key are combined into one
+                if (requiredInput == null) {
+                    requiredInput = pendingInput;
+                    if (pendingInput.mType == RequiredInputType.SECURITY_TOKEN_DECRYPT) {
+                        securityTokenBuilder = new SecurityTokenDecryptOperationsBuilder(
+                                pendingInput.getMasterKeyId(), pendingInput.getSubKeyId());
+                        securityTokenBuilder.addAll(pendingInput);
+                    }
+                } else if (securityTokenBuilder != null && securityTokenBuilder.canAdd(pendingInput)) {
+                    securityTokenBuilder.addAll(pendingInput);
+                }
+                continue;
+            }
+
+            if (!result.success()) {
+                numFailed += 1;
+            }
+        }
+
+        if (requiredInput != null) {
+            if (securityTokenBuilder != null) {
+                requiredInput = securityTokenBuilder.build();
+            }
+            return new InputDataBatchResult(log, requiredInput, cryptoInput);
+        }
+
+        if (cancelled) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new InputDataBatchResult(InputDataBatchResult.RESULT_CANCELLED, log);
+        }
+
+        if (numFailed == numInputs) {
+            log.add(LogType.MSG_DATA_BATCH_ERROR, 0);
+            return new InputDataBatchResult(InputDataBatchResult.RESULT_ERROR, log);
+        }
+
+        if (numFailed > 0) {
+            log.add(LogType.MSG_DATA_BATCH_PARTIAL, 0, numFailed);
+            return new InputDataBatchResult(InputDataBatchResult.RESULT_OK | InputDataBatchResult.RESULT_WARNINGS, log);
+        }
+
+        log.add(LogType.MSG_DATA_BATCH_OK, 0);
+        return new InputDataBatchResult(InputDataBatchResult.RESULT_OK, log);
+    }
+
+    /**
+     * Processes all but the first input on a bounded pool of workers. Each result is stored at
+     * the index of its input, or left null if the input was skipped.
+     */
+    private void processInputsParallel(final InputDataBatchParcel input, final CryptoInputParcel cryptoInput,
+            final ProgressAggregator progress, InputDataResult[] results) {
+        List<Uri> inputUris = input.getInputUris();
+        int numWorkers = Math.min(inputUris.size() - 1,
+                Math.min(MAX_PARALLEL_INPUTS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            ArrayList<Future<InputDataResult>> futures = new ArrayList<>();
+            for (int i = 1; i < inputUris.size(); i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<InputDataResult>() {
+                    @Override
+                    public InputDataResult call() {
+                        return processInput(input, index, cryptoInput, progress);
+                    }
+                }));
+            }
+            for (int i = 1; i < inputUris.size(); i++) {
+                results[i] = FutureUtil.getUninterruptibly(futures.get(i - 1));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Processes a single input, or returns null without doing anything if the operation was
+     * cancelled. InputDataOperation keeps state while processing, so each input gets its own.
+     */
+    private InputDataResult processInput(InputDataBatchParcel input, int index,
+            CryptoInputParcel cryptoInput, ProgressAggregator progress) {
+        if (checkCancelled()) {
+            return null;
+        }
+
+        InputDataOperation op = new InputDataOperation(mContext, mKeyRepository, progress.getPart(index));
+        InputDataResult result = op.execute(input.getInputDataParcel(index), cryptoInput);
+
+        if (!result.isPending() && mResultListener != null) {
+            mResultListener.onInputDataResult(input.getInputUris().get(index), result);
+        }
+        return result;
+    }
+
+}
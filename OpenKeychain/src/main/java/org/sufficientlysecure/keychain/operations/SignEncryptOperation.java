@@ -20,6 +20,10 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -40,7 +44,8 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.SecurityTokenSignOperationsBuilder;
-import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.FutureUtil;
+import org.sufficientlysecure.keychain.util.ProgressAggregator;
 
 
 /**
@@ -48,10 +53,14 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  * operations, using URIs or byte arrays as input and output.
  * <p/>
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
- * a pending result, it will terminate.
+ * a pending result, it will terminate. Multiple input files are processed concurrently,
+ * but results are still reported in input order.
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    // upper bound on files processed concurrently, mostly bounded by i/o and memory
+    private static final int MAX_PARALLEL_FILES = 4;
+
     public SignEncryptOperation(Context context, KeyRepository keyRepository,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, keyRepository, progressable, cancelled);
@@ -68,37 +77,55 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         ArrayDeque<Uri> outputUris = new ArrayDeque<>(input.getOutputUris());
         byte[] inputBytes = input.getBytes();
 
-        int total = inputBytes != null ? 1 : inputUris.size(), count = 0;
-        ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
-
-        SecurityTokenSignOperationsBuilder pendingInputBuilder = null;
-
+        ArrayList<PgpSignEncryptInputParcel> inputParcels = new ArrayList<>();
         do {
-            if (checkCancelled()) {
-                log.add(LogType.MSG_OPERATION_CANCELLED, 0);
-                return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
-            }
-
-            PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mKeyRepository,
-                    new ProgressScaler(mProgressable, 100 * count / total, 100 * ++count / total, 100), mCancelled);
-            PgpSignEncryptInputParcel inputParcel;
             if (inputBytes != null) {
-                inputParcel = PgpSignEncryptInputParcel.createForBytes(
-                        input.getSignEncryptData(), outputUris.pollFirst(), inputBytes);
+                inputParcels.add(PgpSignEncryptInputParcel.createForBytes(
+                        input.getSignEncryptData(), outputUris.pollFirst(), inputBytes));
             } else {
-                inputParcel = PgpSignEncryptInputParcel.createForInputUri(
-                        input.getSignEncryptData(), outputUris.pollFirst(), inputUris.removeFirst());
+                inputParcels.add(PgpSignEncryptInputParcel.createForInputUri(
+                        input.getSignEncryptData(), outputUris.pollFirst(), inputUris.removeFirst()));
+            }
+        } while (!inputUris.isEmpty());
+
+        ProgressAggregator progress = new ProgressAggregator(mProgressable, inputParcels.size(), 0, 100, 100);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        PgpSignEncryptResult[] results = new PgpSignEncryptResult[inputParcels.size()];
+
+        // the first file is processed on its own. this way, a missing passphrase is reported
+        // before any other work starts, and the passphrase's cached s2k result can be reused
+        // for all remaining files.
+        results[0] = signEncrypt(inputParcels.get(0), cryptoInput, progress.getPart(0), failed);
+        if (inputParcels.size() > 1 && !failed.get()) {
+            signEncryptParallel(inputParcels, cryptoInput, progress, failed, results);
+        }
+
+        ArrayList<PgpSignEncryptResult> resultList = new ArrayList<>();
+        SecurityTokenSignOperationsBuilder pendingInputBuilder = null;
+
+        // results are evaluated in input order, as if processed one by one
+        for (PgpSignEncryptResult result : results) {
+            if (result == null) {
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, resultList);
+                }
+                // this file was skipped because a later one failed while it was waiting, report
+                // that failure in its place
+                result = findFailedResult(results);
+                if (result == null) {
+                    throw new AssertionError("File skipped without failure. This is a programming error, please report!");
+                }
             }
 
-            PgpSignEncryptResult result = op.execute(inputParcel, cryptoInput);
-            results.add(result);
+            resultList.add(result);
             log.add(result, 2);
 
             if (result.isPending()) {
                 RequiredInputParcel requiredInput = result.getRequiredInputParcel();
                 // Passphrase returns immediately, nfc are aggregated
                 if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
-                    return new SignEncryptResult(log, requiredInput, results, cryptoInput);
+                    return new SignEncryptResult(log, requiredInput, resultList, cryptoInput);
                 }
                 if (pendingInputBuilder == null) {
                     pendingInputBuilder = new SecurityTokenSignOperationsBuilder(requiredInput.mSignatureTime,
@@ -106,12 +133,12 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                 }
                 pendingInputBuilder.addAll(requiredInput);
             } else if (!result.success()) {
-                return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, resultList);
             }
-        } while (!inputUris.isEmpty());
+        }
 
         if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
-            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+            return new SignEncryptResult(log, pendingInputBuilder.build(), resultList, cryptoInput);
         }
 
         if (!outputUris.isEmpty()) {
@@ -119,8 +146,74 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         }
 
         log.add(LogType.MSG_SE_SUCCESS, 1);
-        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results,
-                results.get(results.size() - 1).getOutputBytes());
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, resultList,
+                resultList.get(resultList.size() - 1).getOutputBytes());
+    }
+
+    /**
+     * Processes all but the first file on a bounded pool of workers. Each result is stored at
+     * the index of its input, or left null if the file was skipped.
+     */
+    private void signEncryptParallel(final ArrayList<PgpSignEncryptInputParcel> inputParcels,
+            final CryptoInputParcel cryptoInput, final ProgressAggregator progress, final AtomicBoolean failed,
+            PgpSignEncryptResult[] results) {
+        int numWorkers = Math.min(inputParcels.size() - 1,
+                Math.min(MAX_PARALLEL_FILES, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            ArrayList<Future<PgpSignEncryptResult>> futures = new ArrayList<>();
+            for (int i = 1; i < inputParcels.size(); i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<PgpSignEncryptResult>() {
+                    @Override
+                    public PgpSignEncryptResult call() {
+                        return signEncrypt(inputParcels.get(index), cryptoInput, progress.getPart(index), failed);
+                    }
+                }));
+            }
+            for (int i = 1; i < inputParcels.size(); i++) {
+                results[i] = FutureUtil.getUninterruptibly(futures.get(i - 1));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Processes a single file, or returns null without doing anything if the operation was
+     * cancelled or another file failed.
+     */
+    private PgpSignEncryptResult signEncrypt(PgpSignEncryptInputParcel inputParcel,
+            CryptoInputParcel cryptoInput, Progressable progressable, AtomicBoolean failed) {
+        if (checkCancelled() || failed.get()) {
+            return null;
+        }
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mKeyRepository,
+                progressable, mCancelled);
+        PgpSignEncryptResult result = op.execute(inputParcel, cryptoInput);
+
+        if (isFailed(result)) {
+            failed.set(true);
+        }
+        return result;
+    }
+
+    /** Returns the first result which made the remaining files be skipped, or null. */
+    private static PgpSignEncryptResult findFailedResult(PgpSignEncryptResult[] results) {
+        for (PgpSignEncryptResult result : results) {
+            if (result != null && isFailed(result)) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isFailed(PgpSignEncryptResult result) {
+        // this operation is fail-fast, security token input is the only thing we wait for
+        boolean isSecurityTokenPending = result.isPending()
+                && result.getRequiredInputParcel().mType != RequiredInputType.PASSPHRASE;
+        return !result.success() && !isSecurityTokenPending;
     }
 
 }
@@ -32,6 +32,7 @@ import org.sufficientlysecure.keychain.keyimport.ParcelableHkpKeyserver;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.UploadResult;
+import org.sufficientlysecure.keychain.pgp.BlockArmoredOutputStream;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
@@ -146,7 +147,7 @@ public class UploadOperation extends BaseOperation<UploadKeyringParcel> {
         ArmoredOutputStream aos = null;
 
         try {
-            aos = new ArmoredOutputStream(bos);
+            aos = new BlockArmoredOutputStream(bos);
             keyring.encode(aos);
             aos.close();
 
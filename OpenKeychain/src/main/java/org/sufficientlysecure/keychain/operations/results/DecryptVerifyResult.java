@@ -19,6 +19,9 @@
 package org.sufficientlysecure.keychain.operations.results;
 
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.os.Parcel;
 
 import org.openintents.openpgp.OpenPgpDecryptionResult;
@@ -34,6 +37,7 @@ public class DecryptVerifyResult extends InputPendingResult {
     public static final int RESULT_KEY_DISALLOWED = RESULT_ERROR + 32;
 
     OpenPgpSignatureResult mSignatureResult;
+    ArrayList<OpenPgpSignatureResult> mSignatureResults;
     OpenPgpDecryptionResult mDecryptionResult;
     OpenPgpMetadata mDecryptionMetadata;
     DecryptVerifySecurityProblem mSecurityProblem;
@@ -64,6 +68,7 @@ public class DecryptVerifyResult extends InputPendingResult {
     public DecryptVerifyResult(Parcel source) {
         super(source);
         mSignatureResult = source.readParcelable(OpenPgpSignatureResult.class.getClassLoader());
+        mSignatureResults = source.createTypedArrayList(OpenPgpSignatureResult.CREATOR);
         mDecryptionResult = source.readParcelable(OpenPgpDecryptionResult.class.getClassLoader());
         mDecryptionMetadata = source.readParcelable(OpenPgpMetadata.class.getClassLoader());
         mCachedCryptoInputParcel = source.readParcelable(CryptoInputParcel.class.getClassLoader());
@@ -85,6 +90,15 @@ public class DecryptVerifyResult extends InputPendingResult {
         mSignatureResult = signatureResult;
     }
 
+    /** Results of all signatures of the message, if they were all verified. */
+    public List<OpenPgpSignatureResult> getSignatureResults() {
+        return mSignatureResults;
+    }
+
+    public void setSignatureResults(List<OpenPgpSignatureResult> signatureResults) {
+        mSignatureResults = new ArrayList<>(signatureResults);
+    }
+
     public OpenPgpDecryptionResult getDecryptionResult() {
         return mDecryptionResult;
     }
@@ -128,6 +142,7 @@ public class DecryptVerifyResult extends InputPendingResult {
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
         dest.writeParcelable(mSignatureResult, flags);
+        dest.writeTypedList(mSignatureResults);
         dest.writeParcelable(mDecryptionResult, flags);
         dest.writeParcelable(mDecryptionMetadata, flags);
         dest.writeParcelable(mCachedCryptoInputParcel, flags);
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import android.os.Parcel;
+
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+
+
+/**
+ * Result of an InputDataBatchOperation.
+ * <p/>
+ * The results of single inputs are not part of this, they are passed on one by one as they
+ * finish, so a large batch doesn't exceed the size limit of a binder transaction. If this
+ * result is pending, inputs which weren't passed on yet must be submitted again once the
+ * required input is available.
+ */
+public class InputDataBatchResult extends InputPendingResult {
+
+    public InputDataBatchResult(OperationLog log, RequiredInputParcel requiredInput,
+            CryptoInputParcel cryptoInputParcel) {
+        super(log, requiredInput, cryptoInputParcel);
+    }
+
+    public InputDataBatchResult(int result, OperationLog log) {
+        super(result, log);
+    }
+
+    protected InputDataBatchResult(Parcel in) {
+        super(in);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+    }
+
+    public static final Creator<InputDataBatchResult> CREATOR = new Creator<InputDataBatchResult>() {
+        @Override
+        public InputDataBatchResult createFromParcel(Parcel in) {
+            return new InputDataBatchResult(in);
+        }
+
+        @Override
+        public InputDataBatchResult[] newArray(int size) {
+            return new InputDataBatchResult[size];
+        }
+    };
+}
@@ -336,6 +336,12 @@ public abstract class OperationResult implements Parcelable {
         // import public
         MSG_IP(LogLevel.START, R.string.msg_ip),
         MSG_IP_APPLY_BATCH (LogLevel.DEBUG, R.string.msg_ip_apply_batch),
+        MSG_IP_QUEUE_BATCH (LogLevel.DEBUG, R.string.msg_ip_queue_batch),
+        MSG_IP_DIFF_CERTS (LogLevel.DEBUG, R.string.msg_ip_diff_certs),
+        MSG_IP_DIFF_KEYS (LogLevel.DEBUG, R.string.msg_ip_diff_keys),
+        MSG_IP_DIFF_NEW (LogLevel.DEBUG, R.string.msg_ip_diff_new),
+        MSG_IP_DIFF_UNCHANGED (LogLevel.DEBUG, R.string.msg_ip_diff_unchanged),
+        MSG_IP_DIFF_USER_PACKETS (LogLevel.DEBUG, R.string.msg_ip_diff_user_packets),
         MSG_IP_BAD_TYPE_SECRET (LogLevel.WARN, R.string.msg_ip_bad_type_secret),
         MSG_IP_DELETE_OLD_FAIL (LogLevel.DEBUG, R.string.msg_ip_delete_old_fail),
         MSG_IP_DELETE_OLD_OK (LogLevel.DEBUG, R.string.msg_ip_delete_old_ok),
@@ -518,6 +524,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_MG_NEW_SUBKEY (LogLevel.DEBUG, R.string.msg_mg_new_subkey),
         MSG_MG_FOUND_NEW (LogLevel.OK, R.string.msg_mg_found_new),
         MSG_MG_UNCHANGED (LogLevel.OK, R.string.msg_mg_unchanged),
+        MSG_MG_FOREIGN_DEFERRED (LogLevel.WARN, R.string.msg_mg_foreign_deferred),
 
         // secret key create
         MSG_CR (LogLevel.START, R.string.msg_cr),
@@ -656,6 +663,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_BACKUP_VERSION (LogLevel.DEBUG, R.string.msg_dc_backup_version),
         MSG_DC_CLEAR_DATA (LogLevel.DEBUG, R.string.msg_dc_clear_data),
         MSG_DC_CLEAR_DECOMPRESS (LogLevel.DEBUG, R.string.msg_dc_clear_decompress),
+        MSG_DC_CLEAR_META_BYTES_READ (LogLevel.DEBUG, R.string.msg_dc_clear_meta_bytes_read),
         MSG_DC_CLEAR_META_FILE (LogLevel.DEBUG, R.string.msg_dc_clear_meta_file),
         MSG_DC_CLEAR_META_MIME (LogLevel.DEBUG, R.string.msg_dc_clear_meta_mime),
         MSG_DC_CLEAR_META_SIZE (LogLevel.DEBUG, R.string.msg_dc_clear_meta_size),
@@ -692,6 +700,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_TRAIL_SYM (LogLevel.DEBUG, R.string.msg_dc_trail_sym),
         MSG_DC_TRAIL_UNKNOWN (LogLevel.DEBUG, R.string.msg_dc_trail_unknown),
         MSG_DC_UNLOCKING (LogLevel.INFO, R.string.msg_dc_unlocking),
+        MSG_DC_SESSION_KEY_CACHED (LogLevel.INFO, R.string.msg_dc_session_key_cached),
         MSG_DC_INSECURE_ENCRYPTION_KEY (LogLevel.WARN, R.string.msg_dc_insecure_encryption_key),
         MSG_DC_INSECURE_SYMMETRIC_ENCRYPTION_ALGO(LogLevel.WARN, R.string.msg_dc_insecure_symmetric_encryption_algo),
         MSG_DC_INSECURE_HASH_ALGO(LogLevel.ERROR, R.string.msg_dc_insecure_hash_algo),
@@ -721,6 +730,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_ERROR_OUTPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_output_uri_not_found),
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
+        MSG_PSE_COMPRESSION_KEPT (LogLevel.DEBUG, R.string.msg_pse_compression_kept),
+        MSG_PSE_COMPRESSION_SKIPPED (LogLevel.INFO, R.string.msg_pse_compression_skipped),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
         MSG_PSE_ERROR_IO (LogLevel.ERROR, R.string.msg_pse_error_io),
@@ -780,6 +791,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
         MSG_IMPORT_ERROR (LogLevel.ERROR, R.string.msg_import_error),
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
+        MSG_IMPORT_ERROR_WRITE (LogLevel.ERROR, R.string.msg_import_error_write),
+        MSG_IMPORT_THROUGHPUT (LogLevel.INFO, R.string.msg_import_throughput),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
 
@@ -874,6 +887,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_DATA_OK (LogLevel.OK, R.string.msg_data_ok),
         MSG_DATA_SKIP_MIME (LogLevel.DEBUG, R.string.msg_data_skip_mime),
 
+        MSG_DATA_BATCH (LogLevel.START, R.string.msg_data_batch),
+        MSG_DATA_BATCH_ERROR (LogLevel.ERROR, R.string.msg_data_batch_error),
+        MSG_DATA_BATCH_OK (LogLevel.OK, R.string.msg_data_batch_ok),
+        MSG_DATA_BATCH_PARTIAL (LogLevel.WARN, R.string.msg_data_batch_partial),
+
         MSG_LV (LogLevel.START, R.string.msg_lv),
         MSG_LV_MATCH (LogLevel.DEBUG, R.string.msg_lv_match),
         MSG_LV_MATCH_ERROR (LogLevel.ERROR, R.string.msg_lv_match_error),
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.openpgp.PGPUtil;
+
+
+/**
+ * An ArmoredInputStream which decodes whole buffers at once.
+ * <p/>
+ * BouncyCastle's ArmoredInputStream reads and decodes its input one character at a time. This
+ * lets ArmoredInputStream parse the armor headers, and then decodes the armored data a buffer
+ * at a time, with a table-driven checksum. Cleartext signatures are left to ArmoredInputStream
+ * entirely.
+ * <p/>
+ * Unlike ArmoredInputStream, this doesn't go on to the next armored block after the end of
+ * the first one, and leaves the underlying stream just after the armor tail. The underlying
+ * stream must support mark and reset for this, use getDecoderStream to wrap it if necessary.
+ */
+public class BlockArmoredInputStream extends ArmoredInputStream {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // same as PGPUtil.getDecoderStream
+    private static final int READ_AHEAD = 60;
+
+    private static final byte[] DECODING_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODING_TABLE, (byte) -1);
+        for (int i = 'A'; i <= 'Z'; i++) {
+            DECODING_TABLE[i] = (byte) (i - 'A');
+        }
+        for (int i = 'a'; i <= 'z'; i++) {
+            DECODING_TABLE[i] = (byte) (i - 'a' + 26);
+        }
+        for (int i = '0'; i <= '9'; i++) {
+            DECODING_TABLE[i] = (byte) (i - '0' + 52);
+        }
+        DECODING_TABLE['+'] = 62;
+        DECODING_TABLE['/'] = 63;
+    }
+
+    private static final int STATE_DATA = 0;
+    private static final int STATE_CHECKSUM = 1;
+    private static final int STATE_AFTER_CHECKSUM = 2;
+    private static final int STATE_TAIL = 3;
+    private static final int STATE_END = 4;
+
+    private final InputStream mIn;
+    // armor we can't handle is left to ArmoredInputStream
+    private final boolean mDelegate;
+
+    private final byte[] mInBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mOutBuffer = new byte[BUFFER_SIZE / 4 * 3];
+    private int mOutPos, mOutLength;
+
+    private int mState = STATE_DATA;
+    private boolean mLineStart = true;
+    private int mGroup;
+    private int mGroupLength;
+    private int mPaddingLength;
+    private final Crc24 mCrc = new Crc24();
+
+    private final byte[] mSingleByte = new byte[1];
+
+    /**
+     * Returns a stream which decodes the given stream if it is armored, like
+     * PGPUtil.getDecoderStream, but with a BlockArmoredInputStream for armored data.
+     */
+    public static InputStream getDecoderStream(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+
+        in.mark(READ_AHEAD);
+        int ch = in.read();
+        if (ch < 0 || (ch & 0x80) != 0) {
+            // binary data
+            in.reset();
+            return in;
+        }
+
+        // armor without headers is left to PGPUtil
+        boolean possiblyBase64 = true;
+        for (int i = 1; i < READ_AHEAD && ch >= 0 && possiblyBase64; i++) {
+            possiblyBase64 = isPossiblyBase64(ch);
+            ch = in.read();
+        }
+        in.reset();
+
+        if (possiblyBase64) {
+            return PGPUtil.getDecoderStream(in);
+        }
+        return new BlockArmoredInputStream(in);
+    }
+
+    private static boolean isPossiblyBase64(int ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9')
+                || ch == '+' || ch == '/' || ch == '\r' || ch == '\n';
+    }
+
+    /** The given stream must support mark and reset. */
+    public BlockArmoredInputStream(InputStream in) throws IOException {
+        super(in);
+        if (!in.markSupported()) {
+            throw new IllegalArgumentException("input stream must support mark and reset");
+        }
+        mIn = in;
+        mDelegate = getArmorHeaderLine() == null || isClearText();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mDelegate) {
+            return super.read();
+        }
+        int read = read(mSingleByte, 0, 1);
+        return read < 0 ? -1 : mSingleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mDelegate) {
+            return super.read(b, off, len);
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        while (mOutPos == mOutLength) {
+            if (mState == STATE_END) {
+                return -1;
+            }
+            decodeBuffer();
+        }
+
+        int read = Math.min(len, mOutLength - mOutPos);
+        System.arraycopy(mOutBuffer, mOutPos, b, off, read);
+        mOutPos += read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (mDelegate) {
+            return super.available();
+        }
+        return mOutLength - mOutPos;
+    }
+
+    @Override
+    public boolean isEndOfStream() {
+        if (mDelegate) {
+            return super.isEndOfStream();
+        }
+        return mState == STATE_END && mOutPos == mOutLength;
+    }
+
+    /**
+     * Reads and decodes one buffer of armored data. If the armor ends within the buffer, the
+     * underlying stream is reset to just after the armor tail.
+     */
+    private void decodeBuffer() throws IOException {
+        mOutPos = 0;
+        mOutLength = 0;
+
+        mIn.mark(mInBuffer.length);
+        int inLength = mIn.read(mInBuffer);
+        if (inLength < 0) {
+            // truncated armor, leave it to the packet parser to complain
+            mState = STATE_END;
+            return;
+        }
+
+        for (int i = 0; i < inLength; i++) {
+            int c = mInBuffer[i] & 0xff;
+
+            if (mState == STATE_TAIL) {
+                if (c == '\r' || c == '\n') {
+                    // like ArmoredInputStream, stop right before the line break
+                    mIn.reset();
+                    skipFully(i);
+                    mState = STATE_END;
+                    break;
+                }
+                continue;
+            }
+
+            if (c == '\r' || c == '\n') {
+                mLineStart = true;
+                continue;
+            }
+            if (c == ' ' || c == '\t') {
+                continue;
+            }
+
+            if (mLineStart && mGroupLength == 0 && c == '-' && mState != STATE_CHECKSUM) {
+                mState = STATE_TAIL;
+                continue;
+            }
+            if (mLineStart && mGroupLength == 0 && c == '=' && mState == STATE_DATA) {
+                mLineStart = false;
+                mState = STATE_CHECKSUM;
+                continue;
+            }
+            mLineStart = false;
+
+            if (mState == STATE_AFTER_CHECKSUM) {
+                throw new IOException("invalid armor");
+            }
+
+            int value;
+            if (c == '=' && mState == STATE_DATA && mGroupLength >= 2) {
+                mPaddingLength += 1;
+                value = 0;
+            } else if (c < 128 && DECODING_TABLE[c] >= 0 && mPaddingLength == 0) {
+                value = DECODING_TABLE[c];
+            } else {
+                throw new IOException("invalid armor");
+            }
+
+            mGroup = (mGroup << 6) | value;
+            if (++mGroupLength < 4) {
+                continue;
+            }
+
+            if (mState == STATE_CHECKSUM) {
+                mCrc.update(mOutBuffer, 0, mOutLength);
+                if (mGroup != mCrc.getValue()) {
+                    throw new IOException("crc check failed in armored message.");
+                }
+                mState = STATE_AFTER_CHECKSUM;
+            } else {
+                mOutBuffer[mOutLength++] = (byte) (mGroup >> 16);
+                if (mPaddingLength < 2) {
+                    mOutBuffer[mOutLength++] = (byte) (mGroup >> 8);
+                }
+                if (mPaddingLength < 1) {
+                    mOutBuffer[mOutLength++] = (byte) mGroup;
+                }
+            }
+            mGroup = 0;
+            mGroupLength = 0;
+            mPaddingLength = 0;
+        }
+
+        if (mState == STATE_DATA || mState == STATE_CHECKSUM) {
+            mCrc.update(mOutBuffer, 0, mOutLength);
+        }
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = mIn.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("failed to skip in armored stream");
+            }
+            n -= skipped;
+        }
+    }
+
+}
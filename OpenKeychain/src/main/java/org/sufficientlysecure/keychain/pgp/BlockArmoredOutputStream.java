@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.util.Strings;
+
+
+/**
+ * An ArmoredOutputStream which encodes whole buffers at once.
+ * <p/>
+ * BouncyCastle's ArmoredOutputStream encodes and checksums its input one byte per call, and
+ * writes its output to the underlying stream one character per call. This encodes everything
+ * passed in a single write, and writes the result in blocks. Its output is the same as that
+ * of ArmoredOutputStream, byte for byte. Cleartext signatures are rarely large, and are left to
+ * ArmoredOutputStream between beginClearText and endClearText.
+ */
+public class BlockArmoredOutputStream extends ArmoredOutputStream {
+
+    private static final byte[] ENCODING_TABLE =
+            Strings.toByteArray("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+    // 64 characters per line
+    private static final int GROUPS_PER_LINE = 16;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final OutputStream mOut;
+    private final byte[] mNewLine = Strings.toByteArray(Strings.lineSeparator());
+    // calls to setHeader and resetHeaders, null for the latter. no initializer, this is already
+    // set up by the calls from the super constructor, which sets the default headers
+    private ArrayList<String[]> mHeaderCalls;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferLength;
+    private final byte[] mSingleByte = new byte[1];
+
+    // the last one to three bytes written are only encoded once it's clear whether more follow
+    private final byte[] mPending = new byte[3];
+    private int mPendingLength;
+    private int mGroupCount;
+    private final Crc24 mCrc = new Crc24();
+
+    private String mType;
+    private boolean mClearText;
+
+    public BlockArmoredOutputStream(OutputStream out) {
+        super(out);
+        mOut = out;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        super.setHeader(name, value);
+        getHeaderCalls().add(new String[] { name, value });
+    }
+
+    @Override
+    public void resetHeaders() {
+        super.resetHeaders();
+        getHeaderCalls().add(null);
+    }
+
+    private ArrayList<String[]> getHeaderCalls() {
+        if (mHeaderCalls == null) {
+            mHeaderCalls = new ArrayList<>();
+        }
+        return mHeaderCalls;
+    }
+
+    @Override
+    public void beginClearText(int hashAlgorithm) throws IOException {
+        writeBuffer();
+        mClearText = true;
+        super.beginClearText(hashAlgorithm);
+    }
+
+    @Override
+    public void endClearText() {
+        super.endClearText();
+        mClearText = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mClearText) {
+            super.write(b);
+            return;
+        }
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClearText) {
+            for (int i = off; i < off + len; i++) {
+                super.write(b[i]);
+            }
+            return;
+        }
+        if (len <= 0) {
+            return;
+        }
+
+        if (mType == null) {
+            writeHeader(b[off]);
+        }
+        mCrc.update(b, off, len);
+
+        int end = off + len;
+        while (mPendingLength < 3 && off < end) {
+            mPending[mPendingLength++] = b[off++];
+        }
+        if (off == end) {
+            return;
+        }
+
+        encodeGroup(mPending, 0);
+        while (end - off > 3) {
+            encodeGroup(b, off);
+            off += 3;
+        }
+        mPendingLength = end - off;
+        System.arraycopy(b, off, mPending, 0, mPendingLength);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mClearText) {
+            super.flush();
+            return;
+        }
+        writeBuffer();
+        mOut.flush();
+    }
+
+    /** Writes the checksum and armor tail. Like ArmoredOutputStream, this does not close the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        if (mType == null) {
+            return;
+        }
+
+        ensureBufferSpace();
+        encodeFinalGroup(mPending, mPendingLength);
+        appendNewLine();
+
+        int crc = mCrc.getValue();
+        mPending[0] = (byte) (crc >> 16);
+        mPending[1] = (byte) (crc >> 8);
+        mPending[2] = (byte) crc;
+        ensureBufferSpace();
+        mBuffer[mBufferLength++] = '=';
+        encodeFinalGroup(mPending, 3);
+        appendNewLine();
+
+        appendAscii("-----END PGP ");
+        appendAscii(mType);
+        appendAscii("-----");
+        appendNewLine();
+
+        writeBuffer();
+        mOut.flush();
+
+        Arrays.fill(mBuffer, (byte) 0);
+        Arrays.fill(mPending, (byte) 0);
+        mPendingLength = 0;
+        mGroupCount = 0;
+        mCrc.reset();
+        mType = null;
+    }
+
+    private void writeHeader(int firstByte) throws IOException {
+        int tag;
+        if ((firstByte & 0x40) != 0) {
+            tag = firstByte & 0x3f;
+        } else {
+            tag = (firstByte & 0x3f) >> 2;
+        }
+
+        switch (tag) {
+            case PacketTags.PUBLIC_KEY:
+                mType = "PUBLIC KEY BLOCK";
+                break;
+            case PacketTags.SECRET_KEY:
+                mType = "PRIVATE KEY BLOCK";
+                break;
+            case PacketTags.SIGNATURE:
+                mType = "SIGNATURE";
+                break;
+            default:
+                mType = "MESSAGE";
+        }
+
+        // the defaults, order, and format of the header lines are up to ArmoredOutputStream, so
+        // it renders them itself. it writes the header on the first byte, and buffers that byte.
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        ArmoredOutputStream headerOut = new ArmoredOutputStream(header);
+        for (String[] call : getHeaderCalls()) {
+            if (call == null) {
+                headerOut.resetHeaders();
+            } else {
+                headerOut.setHeader(call[0], call[1]);
+            }
+        }
+        headerOut.write(firstByte);
+
+        writeBuffer();
+        header.writeTo(mOut);
+    }
+
+    private void encodeGroup(byte[] b, int off) throws IOException {
+        ensureBufferSpace();
+
+        int d1 = b[off] & 0xff;
+        int d2 = b[off + 1] & 0xff;
+        int d3 = b[off + 2] & 0xff;
+        mBuffer[mBufferLength] = ENCODING_TABLE[d1 >>> 2];
+        mBuffer[mBufferLength + 1] = ENCODING_TABLE[((d1 << 4) | (d2 >>> 4)) & 0x3f];
+        mBuffer[mBufferLength + 2] = ENCODING_TABLE[((d2 << 2) | (d3 >>> 6)) & 0x3f];
+        mBuffer[mBufferLength + 3] = ENCODING_TABLE[d3 & 0x3f];
+        mBufferLength += 4;
+
+        if (++mGroupCount % GROUPS_PER_LINE == 0) {
+            System.arraycopy(mNewLine, 0, mBuffer, mBufferLength, mNewLine.length);
+            mBufferLength += mNewLine.length;
+        }
+    }
+
+    /** Encodes the last group of the armor, which may be padded. Does not count towards line length. */
+    private void encodeFinalGroup(byte[] b, int len) {
+        int d1 = b[0] & 0xff;
+        int d2 = len > 1 ? b[1] & 0xff : 0;
+        int d3 = len > 2 ? b[2] & 0xff : 0;
+        switch (len) {
+            case 1:
+                mBuffer[mBufferLength++] = ENCODING_TABLE[d1 >>> 2];
+                mBuffer[mBufferLength++] = ENCODING_TABLE[(d1 << 4) & 0x3f];
+                mBuffer[mBufferLength++] = '=';
+                mBuffer[mBufferLength++] = '=';
+                break;
+            case 2:
+                mBuffer[mBufferLength++] = ENCODING_TABLE[d1 >>> 2];
+                mBuffer[mBufferLength++] = ENCODING_TABLE[((d1 << 4) | (d2 >>> 4)) & 0x3f];
+                mBuffer[mBufferLength++] = ENCODING_TABLE[(d2 << 2) & 0x3f];
+                mBuffer[mBufferLength++] = '=';
+                break;
+            case 3:
+                mBuffer[mBufferLength++] = ENCODING_TABLE[d1 >>> 2];
+                mBuffer[mBufferLength++] = ENCODING_TABLE[((d1 << 4) | (d2 >>> 4)) & 0x3f];
+                mBuffer[mBufferLength++] = ENCODING_TABLE[((d2 << 2) | (d3 >>> 6)) & 0x3f];
+                mBuffer[mBufferLength++] = ENCODING_TABLE[d3 & 0x3f];
+                break;
+        }
+    }
+
+    /** Appends a string, one byte per char like ArmoredOutputStream does. */
+    private void appendAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            if (mBufferLength == mBuffer.length) {
+                writeBuffer();
+            }
+            mBuffer[mBufferLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void appendNewLine() throws IOException {
+        ensureBufferSpace();
+        System.arraycopy(mNewLine, 0, mBuffer, mBufferLength, mNewLine.length);
+        mBufferLength += mNewLine.length;
+    }
+
+    /** Makes room for at least one group of four characters and a line break. */
+    private void ensureBufferSpace() throws IOException {
+        if (mBufferLength + 4 + mNewLine.length > mBuffer.length) {
+            writeBuffer();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (mBufferLength > 0) {
+            mOut.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+    }
+
+}
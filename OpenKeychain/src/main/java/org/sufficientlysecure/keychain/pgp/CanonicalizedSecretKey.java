@@ -299,16 +299,20 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             throw new PrivateKeyNotUnlockedException();
         }
 
+        CachingDataDecryptorFactory decryptorFactory;
         if (mPrivateKeyState == PRIVATE_KEY_STATE_DIVERT_TO_CARD) {
-            return new CachingDataDecryptorFactory(
+            decryptorFactory = new CachingDataDecryptorFactory(
                     Constants.BOUNCY_CASTLE_PROVIDER_NAME,
                     cryptoInput.getCryptoData());
         } else {
-            return new CachingDataDecryptorFactory(
+            decryptorFactory = new CachingDataDecryptorFactory(
                     new JcePublicKeyDataDecryptorFactoryBuilder()
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mPrivateKey),
                     cryptoInput.getCryptoData());
         }
+        // the session key is decrypted with BouncyCastle, the bulk data possibly not
+        decryptorFactory.setDataDecryptorProviderSelector(JcaProviderSelector.DATA_DECRYPTOR_PROVIDER_SELECTOR);
+        return decryptorFactory;
     }
 
     // For use only in card export; returns the secret key in Chinese Remainder Theorem format.
@@ -354,6 +358,17 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         return (ECPrivateKey) retVal;
     }
 
+    /** Private key of an unlocked key, or null if locked or diverted to card. */
+    PGPPrivateKey getUnlockedPrivateKey() {
+        return mPrivateKeyState == PRIVATE_KEY_STATE_UNLOCKED ? mPrivateKey : null;
+    }
+
+    /** Unlocks this key with a private key previously extracted from it, see UnlockedKeyCache. */
+    void setUnlockedPrivateKey(PGPPrivateKey privateKey) {
+        mPrivateKey = privateKey;
+        mPrivateKeyState = PRIVATE_KEY_STATE_UNLOCKED;
+    }
+
     public byte[] getIv() {
         return mSecretKey.getIV();
     }
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Reads the text of a cleartext signed message line by line, writing it to the output as it
+ * goes and keeping the canonicalized form needed for verification, as described in RFC 4880,
+ * section 7.1.
+ * <p/>
+ * The signature follows the signed text, so the canonical text must be kept until the
+ * signature is available. It is kept in memory only up to MAX_BUFFERED_SIGNED_DATA bytes,
+ * and spilled to a temporary file beyond that. The file is encrypted with a key which is only
+ * ever held in memory, so the signed text can't be recovered from it, even if deleting it
+ * fails or leaves traces on flash storage. Call close() to remove the file.
+ */
+class CleartextSignatureProcessor {
+
+    static final int MAX_BUFFERED_SIGNED_DATA = 1024 * 1024;
+    private static final byte[] CANONICAL_LINE_SEPARATOR = new byte[] { '\r', '\n' };
+    private static final String SPILL_CIPHER = "AES/CTR/NoPadding";
+
+    private final File mSpillDir;
+    private final byte[] mLineSeparator;
+
+    private byte[] mLine = new byte[256];
+    private int mLineLength;
+
+    private ByteArrayOutputStream mBufferedSignedData = new ByteArrayOutputStream();
+    private File mSpillFile;
+    private SecretKey mSpillKey;
+    private byte[] mSpillIv;
+    private OutputStream mSpillStream;
+
+    private long mOutputSize;
+
+    /** @param spillDir directory for canonical text that doesn't fit in memory, or null to keep it all in memory */
+    CleartextSignatureProcessor(@Nullable File spillDir) {
+        mSpillDir = spillDir;
+        mLineSeparator = System.getProperty("line.separator").getBytes();
+    }
+
+    /**
+     * Reads the signed text from the armored stream, up to the beginning of the signature.
+     * The text is written to out with the local line separator, if out is not null.
+     *
+     * @return number of bytes written to the output
+     */
+    long process(ArmoredInputStream aIn, @Nullable OutputStream out) throws IOException {
+        boolean isFirstLine = true;
+
+        int ch = aIn.read();
+        while (ch >= 0) {
+            // read a line, including its line ending
+            mLineLength = 0;
+            while (true) {
+                appendToLine(ch);
+                if (ch == '\r' || ch == '\n') {
+                    int lookAhead = aIn.read();
+                    if (ch == '\r' && lookAhead == '\n') {
+                        appendToLine(lookAhead);
+                        lookAhead = aIn.read();
+                    }
+                    ch = lookAhead;
+                    break;
+                }
+                ch = aIn.read();
+                if (ch < 0) {
+                    break;
+                }
+            }
+
+            processLine(isFirstLine, out);
+            isFirstLine = false;
+
+            // the dash of the signature's armor header has been consumed at this point
+            if (!aIn.isClearText()) {
+                break;
+            }
+        }
+
+        if (mSpillStream != null) {
+            mSpillStream.close();
+        }
+
+        return mOutputSize;
+    }
+
+    private void appendToLine(int ch) {
+        if (mLineLength == mLine.length) {
+            byte[] line = new byte[mLine.length * 2];
+            System.arraycopy(mLine, 0, line, 0, mLineLength);
+            mLine = line;
+        }
+        mLine[mLineLength++] = (byte) ch;
+    }
+
+    private void processLine(boolean isFirstLine, @Nullable OutputStream out) throws IOException {
+        int contentLength = mLineLength;
+        while (contentLength > 0 && isLineEnding(mLine[contentLength - 1])) {
+            contentLength--;
+        }
+
+        if (out != null) {
+            out.write(mLine, 0, contentLength);
+            out.write(mLineSeparator);
+        }
+        mOutputSize += contentLength + mLineSeparator.length;
+
+        // trailing whitespace is not part of the signed text, and lines are separated by <CR><LF>
+        int signedLength = contentLength;
+        while (signedLength > 0 && isWhiteSpace(mLine[signedLength - 1])) {
+            signedLength--;
+        }
+        if (!isFirstLine) {
+            appendSignedData(CANONICAL_LINE_SEPARATOR, CANONICAL_LINE_SEPARATOR.length);
+        }
+        appendSignedData(mLine, signedLength);
+    }
+
+    private void appendSignedData(byte[] data, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (mSpillStream != null) {
+            mSpillStream.write(data, 0, length);
+            return;
+        }
+
+        mBufferedSignedData.write(data, 0, length);
+        if (mSpillDir != null && mBufferedSignedData.size() > MAX_BUFFERED_SIGNED_DATA) {
+            mSpillFile = File.createTempFile("cleartext", null, mSpillDir);
+            mSpillStream = new CipherOutputStream(new BufferedOutputStream(new FileOutputStream(mSpillFile)),
+                    createSpillCipher(Cipher.ENCRYPT_MODE));
+            mBufferedSignedData.writeTo(mSpillStream);
+            mBufferedSignedData = null;
+        }
+    }
+
+    /** Feeds the canonical text read by process() into the signature of the checker. */
+    void updateSignature(final MultiSignatureChecker signatureChecker) throws IOException {
+        writeSignedData(new OutputStream() {
+            @Override
+            public void write(int b) {
+                signatureChecker.updateSignatureData(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) {
+                signatureChecker.updateSignatureData(b, off, len);
+            }
+        });
+    }
+
+    @VisibleForTesting
+    void writeSignedData(OutputStream out) throws IOException {
+        if (mSpillFile == null) {
+            mBufferedSignedData.writeTo(out);
+            return;
+        }
+
+        InputStream in = new CipherInputStream(new FileInputStream(mSpillFile),
+                createSpillCipher(Cipher.DECRYPT_MODE));
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private Cipher createSpillCipher(int mode) throws IOException {
+        try {
+            if (mSpillKey == null) {
+                KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+                keyGenerator.init(128);
+                mSpillKey = keyGenerator.generateKey();
+                mSpillIv = new byte[16];
+                new SecureRandom().nextBytes(mSpillIv);
+            }
+            Cipher cipher = Cipher.getInstance(SPILL_CIPHER);
+            cipher.init(mode, mSpillKey, new IvParameterSpec(mSpillIv));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not set up encryption of temporary file", e);
+        }
+    }
+
+    @VisibleForTesting
+    File getSpillFile() {
+        return mSpillFile;
+    }
+
+    void close() {
+        if (mSpillStream != null) {
+            try {
+                mSpillStream.close();
+            } catch (IOException e) {
+                // ignore, the file is deleted anyways
+            }
+        }
+        if (mSpillFile != null && !mSpillFile.delete()) {
+            Log.e(Constants.TAG, "Could not delete temporary file " + mSpillFile);
+        }
+        // without the key, whatever is left of the file can't be decrypted
+        mSpillKey = null;
+    }
+
+    private static boolean isLineEnding(byte b) {
+        return b == '\r' || b == '\n';
+    }
+
+    private static boolean isWhiteSpace(byte b) {
+        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
+    }
+
+}
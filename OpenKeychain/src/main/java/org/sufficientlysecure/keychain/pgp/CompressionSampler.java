@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+
+/**
+ * Estimates whether data is worth compressing, by trial compressing a sample from its
+ * beginning. Data that is already compressed or encrypted, like images, archives or
+ * other OpenPGP messages, gains nothing from another round of deflate.
+ */
+class CompressionSampler {
+
+    /** Compression is skipped unless the sample shrinks to at most this percentage. */
+    static final int MAX_USEFUL_COMPRESSED_PERCENT = 90;
+
+    private CompressionSampler() {
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends.
+     *
+     * @return the number of bytes read into the buffer
+     */
+    static int readSample(InputStream in, byte[] buffer) throws IOException {
+        int sampleLength = 0;
+        while (sampleLength < buffer.length) {
+            int length = in.read(buffer, sampleLength, buffer.length - sampleLength);
+            if (length <= 0) {
+                break;
+            }
+            sampleLength += length;
+        }
+        return sampleLength;
+    }
+
+    /**
+     * Deflates the sample at the fastest level, which is a good enough estimate for higher levels.
+     *
+     * @return compressed size in percent of the sample size, 100 for an empty sample
+     */
+    static int estimateCompressedPercent(byte[] sample, int sampleLength) {
+        if (sampleLength == 0) {
+            return 100;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, sampleLength);
+            deflater.finish();
+
+            // output is discarded, we are only interested in its size
+            byte[] output = new byte[4096];
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+            }
+            return (int) (100 * deflater.getBytesWritten() / sampleLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static boolean isWorthCompressing(int compressedPercent) {
+        return compressedPercent <= MAX_USEFUL_COMPRESSED_PERCENT;
+    }
+
+}
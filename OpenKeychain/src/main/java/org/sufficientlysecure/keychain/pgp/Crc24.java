@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+/**
+ * The CRC-24 checksum of ASCII armor, see RFC 4880, Section 6.1.
+ * <p/>
+ * Unlike BouncyCastle's CRC24, which goes through every byte bit by bit, this looks up a whole
+ * byte at a time in a precomputed table, and takes whole buffers.
+ */
+class Crc24 {
+
+    private static final int CRC24_INIT = 0xb704ce;
+    private static final int CRC24_POLY = 0x1864cfb;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int crc = i << 16;
+            for (int bit = 0; bit < 8; bit++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0) {
+                    crc ^= CRC24_POLY;
+                }
+            }
+            TABLE[i] = crc & 0xffffff;
+        }
+    }
+
+    private int mCrc = CRC24_INIT;
+
+    void update(int b) {
+        mCrc = ((mCrc << 8) ^ TABLE[((mCrc >> 16) ^ b) & 0xff]) & 0xffffff;
+    }
+
+    void update(byte[] b, int off, int len) {
+        int crc = mCrc;
+        for (int i = off, end = off + len; i < end; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >> 16) ^ b[i]) & 0xff]) & 0xffffff;
+        }
+        mCrc = crc;
+    }
+
+    int getValue() {
+        return mCrc;
+    }
+
+    void reset() {
+        mCrc = CRC24_INIT;
+    }
+
+}
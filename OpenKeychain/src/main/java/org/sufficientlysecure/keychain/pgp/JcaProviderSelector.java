@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.DataDecryptorProviderSelector;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Selects the JCA provider for bulk operations, i.e. the symmetric cipher of the encrypted
+ * data and the digest of signature verification.
+ * <p/>
+ * BouncyCastle is installed at the first position for everything else, in particular parsing
+ * and handling of keys, but its pure Java implementations are considerably slower than the
+ * native ones Android ships. A provider from PREFERRED_PROVIDERS is used only if it is installed
+ * and supports the exact transformation BouncyCastle's operators will request, otherwise this
+ * falls back to BouncyCastle. Results are cached per algorithm.
+ */
+public class JcaProviderSelector {
+
+    /** Native providers, fastest first. These are OpenSSL based on Android. */
+    private static final String[] PREFERRED_PROVIDERS = { "AndroidOpenSSL", "Conscrypt" };
+
+    /** Selects the data decryptor provider of a CachingDataDecryptorFactory. */
+    public static final DataDecryptorProviderSelector DATA_DECRYPTOR_PROVIDER_SELECTOR =
+            new DataDecryptorProviderSelector() {
+                @Override
+                public String getProviderName(int encAlgorithm, boolean withIntegrityPacket) {
+                    return getDataCipherProvider(encAlgorithm, withIntegrityPacket);
+                }
+            };
+
+    private static List<String> sPreferredProviders = Arrays.asList(PREFERRED_PROVIDERS);
+    private static final HashMap<String, String> sSelectedProviders = new HashMap<>();
+
+    private JcaProviderSelector() {
+    }
+
+    /**
+     * Returns the name of the provider to use for the data cipher, as used by the data encryptor
+     * and decryptor operators.
+     */
+    public static String getDataCipherProvider(int symmetricAlgorithm, boolean withIntegrityPacket) {
+        String cipherName;
+        try {
+            cipherName = PGPUtil.getSymmetricCipherName(symmetricAlgorithm);
+        } catch (IllegalArgumentException e) {
+            cipherName = null;
+        }
+        if (cipherName == null) {
+            // unknown algorithm, leave the error handling to BouncyCastle
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+
+        // this is the transformation requested by BouncyCastle's OperatorHelper
+        final String transformation = cipherName + (withIntegrityPacket ? "/CFB/NoPadding" : "/OpenPGPCFB/NoPadding");
+
+        return selectProvider("Cipher." + transformation, new ProviderCheck() {
+            @Override
+            public void check(Provider provider) throws GeneralSecurityException {
+                Cipher.getInstance(transformation, provider);
+            }
+        });
+    }
+
+    /**
+     * Returns the name of the provider to use for verification of a signature, including its
+     * digest. Only RSA signatures are considered for native providers.
+     */
+    public static String getSignatureVerificationProvider(int keyAlgorithm, int hashAlgorithm) {
+        if (keyAlgorithm != PublicKeyAlgorithmTags.RSA_GENERAL && keyAlgorithm != PublicKeyAlgorithmTags.RSA_SIGN) {
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+
+        final String signatureName;
+        try {
+            signatureName = PGPUtil.getDigestName(hashAlgorithm) + "withRSA";
+        } catch (PGPException e) {
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+
+        return selectProvider("Signature." + signatureName, new ProviderCheck() {
+            @Override
+            public void check(Provider provider) throws GeneralSecurityException {
+                Signature.getInstance(signatureName, provider);
+                // the public key is converted with the same provider
+                KeyFactory.getInstance("RSA", provider);
+            }
+        });
+    }
+
+    private static synchronized String selectProvider(String cacheKey, ProviderCheck check) {
+        String selectedProvider = sSelectedProviders.get(cacheKey);
+        if (selectedProvider != null) {
+            return selectedProvider;
+        }
+
+        selectedProvider = Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        for (String providerName : sPreferredProviders) {
+            Provider provider = Security.getProvider(providerName);
+            if (provider == null) {
+                continue;
+            }
+            try {
+                check.check(provider);
+                selectedProvider = providerName;
+                break;
+            } catch (GeneralSecurityException e) {
+                // not supported by this provider, try the next one
+            }
+        }
+
+        Log.d(Constants.TAG, "Using provider " + selectedProvider + " for " + cacheKey);
+        sSelectedProviders.put(cacheKey, selectedProvider);
+        return selectedProvider;
+    }
+
+    @VisibleForTesting
+    static synchronized void setPreferredProviders(String... providerNames) {
+        sPreferredProviders = providerNames != null
+                ? Arrays.asList(providerNames) : Arrays.asList(PREFERRED_PROVIDERS);
+        sSelectedProviders.clear();
+    }
+
+    private interface ProviderCheck {
+        void check(Provider provider) throws GeneralSecurityException;
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.openpgp.PGPLiteralData;
+
+
+/**
+ * Passes through a stream of OpenPGP packets, and notes down the length of the first literal
+ * data packet on the way.
+ * <p/>
+ * BouncyCastle doesn't expose packet lengths, so the size of a literal data packet's content
+ * could otherwise only be found by reading all of it. This follows the packet headers
+ * as they are read, skipping the bodies. It gives up once the literal data packet is reached,
+ * or on any packet it can't find the end of without looking into it, i.e. one with a partial
+ * or indeterminate length.
+ */
+class LiteralDataLengthInputStream extends FilterInputStream {
+
+    // format, file name length, modification date
+    private static final int LITERAL_DATA_FIXED_HEADER_LENGTH = 1 + 1 + 4;
+
+    // tag and up to five length octets
+    private final byte[] mHeader = new byte[6];
+    private int mHeaderLength;
+    private long mBodyRemaining;
+    private boolean mDone;
+    private Long mLiteralDataBodyLength;
+
+    LiteralDataLengthInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Returns the length of the literal data's content, or null if its packet has no known
+     * length. The literal data must have been read from this stream.
+     */
+    Long getDataLength(PGPLiteralData literalData) {
+        if (mLiteralDataBodyLength == null) {
+            return null;
+        }
+        long dataLength = mLiteralDataBodyLength - LITERAL_DATA_FIXED_HEADER_LENGTH
+                - literalData.getRawFileName().length;
+        return dataLength >= 0 ? dataLength : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0 && !mDone) {
+            update(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0 && !mDone) {
+            update(b, off, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes must pass through the headers as well
+        byte[] buf = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void update(byte[] b, int off, int len) {
+        while (len > 0 && !mDone) {
+            if (mBodyRemaining > 0) {
+                int skip = (int) Math.min(mBodyRemaining, len);
+                mBodyRemaining -= skip;
+                off += skip;
+                len -= skip;
+                continue;
+            }
+            mHeader[mHeaderLength++] = b[off++];
+            len -= 1;
+            parseHeader();
+        }
+    }
+
+    /** Parses the packet header read so far, see RFC 4880, Section 4.2. */
+    private void parseHeader() {
+        int tagByte = mHeader[0] & 0xff;
+        if ((tagByte & 0x80) == 0) {
+            // not a packet header, leave this to BouncyCastle
+            mDone = true;
+            return;
+        }
+
+        int tag;
+        long bodyLength;
+        if ((tagByte & 0x40) != 0) {
+            // new format
+            tag = tagByte & 0x3f;
+            if (mHeaderLength < 2) {
+                return;
+            }
+            int firstOctet = mHeader[1] & 0xff;
+            if (firstOctet < 192) {
+                bodyLength = firstOctet;
+            } else if (firstOctet <= 223) {
+                if (mHeaderLength < 3) {
+                    return;
+                }
+                bodyLength = ((firstOctet - 192) << 8) + (mHeader[2] & 0xff) + 192;
+            } else if (firstOctet == 255) {
+                if (mHeaderLength < 6) {
+                    return;
+                }
+                bodyLength = readLength(2, 4);
+            } else {
+                // partial body length
+                mDone = true;
+                return;
+            }
+        } else {
+            // old format
+            tag = (tagByte & 0x3c) >> 2;
+            int lengthType = tagByte & 0x03;
+            if (lengthType == 3) {
+                // indeterminate length
+                mDone = true;
+                return;
+            }
+            int numLengthOctets = 1 << lengthType;
+            if (mHeaderLength < 1 + numLengthOctets) {
+                return;
+            }
+            bodyLength = readLength(1, numLengthOctets);
+        }
+
+        mHeaderLength = 0;
+        if (tag == PacketTags.LITERAL_DATA) {
+            mLiteralDataBodyLength = bodyLength;
+            mDone = true;
+        } else {
+            mBodyRemaining = bodyLength;
+        }
+    }
+
+    private long readLength(int off, int numOctets) {
+        long length = 0;
+        for (int i = 0; i < numOctets; i++) {
+            length = (length << 8) | (mHeader[off + i] & 0xff);
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPOnePassSignatureList;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.DecryptVerifySecurityProblem.DecryptVerifySecurityProblemBuilder;
+import org.sufficientlysecure.keychain.provider.KeyRepository;
+import org.sufficientlysecure.keychain.util.FutureUtil;
+
+
+/**
+ * Tracks the verification of the signatures of a message, as a group of PgpSignatureCheckers.
+ * <p/>
+ * By default, only the first signature with a known key is checked, like a single
+ * PgpSignatureChecker does. If all signatures are to be verified, the signing keys are looked
+ * up in a single query. Only if there are enough of them to be worth it, the signed data is fed
+ * to the signatures on separate threads, each of which takes a share of the signatures. These
+ * threads are stopped once the signatures are verified, and time out by themselves if
+ * verification is aborted before that.
+ */
+class MultiSignatureChecker {
+
+    private static final int MAX_PARALLEL_SIGNATURES = 4;
+    // hashing a few signatures is cheaper than handing each block of data to other threads
+    private static final int MIN_PARALLEL_SIGNATURES = 4;
+    private static final int MIN_PARALLEL_DATA_LENGTH = 8 * 1024;
+
+    private final KeyRepository mKeyRepository;
+    private final String mSenderAddress;
+    private final DecryptVerifySecurityProblemBuilder mSecurityProblemBuilder;
+    private final boolean mVerifyAllSignatures;
+
+    private final ArrayList<PgpSignatureChecker> mCheckers = new ArrayList<>();
+    // signatures with a known signing key, these take part in verification
+    private final ArrayList<PgpSignatureChecker> mInitializedCheckers = new ArrayList<>();
+
+    private ThreadPoolExecutor mExecutor;
+    // signatures are updated in groups, the first one by the caller and each other one by the pool
+    private final ArrayList<List<PgpSignatureChecker>> mCheckerGroups = new ArrayList<>();
+
+    MultiSignatureChecker(KeyRepository keyRepository, String senderAddress,
+            DecryptVerifySecurityProblemBuilder securityProblemBuilder, boolean verifyAllSignatures) {
+        mKeyRepository = keyRepository;
+        mSenderAddress = senderAddress;
+        mSecurityProblemBuilder = securityProblemBuilder;
+        mVerifyAllSignatures = verifyAllSignatures;
+    }
+
+    boolean initializeSignature(Object dataChunk, OperationLog log, int indent) throws PGPException {
+        if (!mVerifyAllSignatures || !(dataChunk instanceof PGPSignatureList)) {
+            PgpSignatureChecker checker = createChecker();
+            boolean isSignature = checker.initializeSignature(dataChunk, log, indent);
+            onCheckersInitialized();
+            return isSignature;
+        }
+
+        PGPSignatureList sigList = (PGPSignatureList) dataChunk;
+        long[] keyIds = new long[sigList.size()];
+        for (int i = 0; i < keyIds.length; i++) {
+            keyIds[i] = sigList.get(i).getKeyID();
+        }
+        HashMap<Long, CanonicalizedPublicKey> signingKeys = findSigningKeys(keyIds);
+
+        for (int i = 0; i < keyIds.length; i++) {
+            createChecker().initializeSignature(sigList, i, signingKeys.get(keyIds[i]), log, indent);
+        }
+        onCheckersInitialized();
+        return true;
+    }
+
+    boolean initializeOnePassSignature(Object dataChunk, OperationLog log, int indent) throws PGPException {
+        if (!mVerifyAllSignatures || !(dataChunk instanceof PGPOnePassSignatureList)) {
+            PgpSignatureChecker checker = createChecker();
+            boolean isSignature = checker.initializeOnePassSignature(dataChunk, log, indent);
+            onCheckersInitialized();
+            return isSignature;
+        }
+
+        log.add(LogType.MSG_DC_CLEAR_SIGNATURE, indent + 1);
+
+        PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
+        long[] keyIds = new long[sigList.size()];
+        for (int i = 0; i < keyIds.length; i++) {
+            keyIds[i] = sigList.get(i).getKeyID();
+        }
+        HashMap<Long, CanonicalizedPublicKey> signingKeys = findSigningKeys(keyIds);
+
+        for (int i = 0; i < keyIds.length; i++) {
+            createChecker().initializeOnePassSignature(sigList, i, signingKeys.get(keyIds[i]), log, indent);
+        }
+        onCheckersInitialized();
+        return true;
+    }
+
+    private PgpSignatureChecker createChecker() {
+        PgpSignatureChecker checker = new PgpSignatureChecker(mKeyRepository, mSenderAddress, mSecurityProblemBuilder);
+        mCheckers.add(checker);
+        return checker;
+    }
+
+    private HashMap<Long, CanonicalizedPublicKey> findSigningKeys(long[] keyIds) {
+        HashMap<Long, CanonicalizedPublicKey> signingKeys = new HashMap<>();
+        for (CanonicalizedPublicKeyRing keyRing : mKeyRepository.getCanonicalizedPublicKeyRingsBySubkeyIds(keyIds)) {
+            for (long keyId : keyIds) {
+                CanonicalizedPublicKey key = keyRing.getPublicKey(keyId);
+                if (key != null) {
+                    signingKeys.put(keyId, key);
+                }
+            }
+        }
+        return signingKeys;
+    }
+
+    private void onCheckersInitialized() {
+        for (PgpSignatureChecker checker : mCheckers) {
+            if (checker.isInitialized()) {
+                mInitializedCheckers.add(checker);
+            }
+        }
+
+        int numCheckers = mInitializedCheckers.size();
+        if (numCheckers < MIN_PARALLEL_SIGNATURES) {
+            return;
+        }
+        // the caller takes a share as well
+        int numThreads = Math.min(MAX_PARALLEL_SIGNATURES, Runtime.getRuntime().availableProcessors()) - 1;
+        if (numThreads <= 0) {
+            return;
+        }
+
+        int groupSize = (numCheckers + numThreads) / (numThreads + 1);
+        for (int start = 0; start < numCheckers; start += groupSize) {
+            mCheckerGroups.add(mInitializedCheckers.subList(start, Math.min(start + groupSize, numCheckers)));
+        }
+        mExecutor = new ThreadPoolExecutor(mCheckerGroups.size() - 1, mCheckerGroups.size() - 1,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    boolean isInitialized() {
+        return !mInitializedCheckers.isEmpty();
+    }
+
+    /** Updates all signatures with the data, returns when all of them are done with it. */
+    void updateSignatureData(final byte[] buf, final int off, final int len) {
+        if (mExecutor == null || len < MIN_PARALLEL_DATA_LENGTH) {
+            updateSignatureData(mInitializedCheckers, buf, off, len);
+            return;
+        }
+
+        // the first group of signatures is updated on this thread, all others in the pool
+        ArrayList<Future<?>> futures = new ArrayList<>(mCheckerGroups.size() - 1);
+        for (int i = 1; i < mCheckerGroups.size(); i++) {
+            final List<PgpSignatureChecker> checkers = mCheckerGroups.get(i);
+            futures.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    updateSignatureData(checkers, buf, off, len);
+                }
+            }));
+        }
+        updateSignatureData(mCheckerGroups.get(0), buf, off, len);
+
+        // the caller reuses the buffer, so wait until every signature has consumed it
+        for (Future<?> future : futures) {
+            FutureUtil.getUninterruptibly(future);
+        }
+    }
+
+    private static void updateSignatureData(List<PgpSignatureChecker> checkers, byte[] buf, int off, int len) {
+        for (PgpSignatureChecker checker : checkers) {
+            checker.updateSignatureData(buf, off, len);
+        }
+    }
+
+    void verifySignature(OperationLog log, int indent) throws PGPException {
+        shutdownExecutor();
+        for (PgpSignatureChecker checker : mInitializedCheckers) {
+            checker.verifySignature(log, indent);
+        }
+    }
+
+    boolean verifySignatureOnePass(Object o, OperationLog log, int indent) throws PGPException {
+        shutdownExecutor();
+        for (PgpSignatureChecker checker : mInitializedCheckers) {
+            if (!checker.verifySignatureOnePass(o, log, indent)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the result of the signature which best represents the message, which is the
+     * first valid one if any.
+     */
+    OpenPgpSignatureResult getSignatureResult() {
+        List<OpenPgpSignatureResult> signatureResults = getSignatureResults();
+        for (OpenPgpSignatureResult signatureResult : signatureResults) {
+            if (signatureResult.getResult() == OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED
+                    || signatureResult.getResult() == OpenPgpSignatureResult.RESULT_VALID_KEY_UNCONFIRMED) {
+                return signatureResult;
+            }
+        }
+        return signatureResults.get(0);
+    }
+
+    /** Returns the results of all signatures, in the order they appear in the message. */
+    List<OpenPgpSignatureResult> getSignatureResults() {
+        ArrayList<OpenPgpSignatureResult> signatureResults = new ArrayList<>(mCheckers.size());
+        for (PgpSignatureChecker checker : mCheckers) {
+            signatureResults.add(checker.getSignatureResult());
+        }
+        if (signatureResults.isEmpty()) {
+            signatureResults.add(createChecker().getSignatureResult());
+        }
+        return signatureResults;
+    }
+
+    private void shutdownExecutor() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+}
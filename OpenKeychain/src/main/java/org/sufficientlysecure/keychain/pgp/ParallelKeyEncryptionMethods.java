@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.bcpg.ContainedPacket;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+import org.sufficientlysecure.keychain.util.FutureUtil;
+
+
+/**
+ * Encrypts the session key of a message to all of its recipients at once.
+ * <p/>
+ * PGPEncryptedDataGenerator encrypts the session key for each method in turn while it writes
+ * out the packets. The methods are added to it wrapped, and the first one asked for its packet
+ * generates the packets of all methods, on several threads if there are enough of them. The
+ * packets are then handed out in the order the methods were added, so the output is the same
+ * as without this.
+ */
+class ParallelKeyEncryptionMethods {
+
+    /** Below this number of recipients, the threads aren't worth starting. */
+    static final int MIN_PARALLEL_METHODS = 8;
+    private static final int MAX_PARALLEL_METHODS = 4;
+
+    private static boolean sParallelEncryptionEnabled = true;
+
+    private final ArrayList<Method> mMethods = new ArrayList<>();
+
+    private int mEncAlgorithm;
+    private byte[] mSessionInfo;
+
+    void addMethod(PGPKeyEncryptionMethodGenerator methodGenerator) {
+        mMethods.add(new Method(methodGenerator));
+    }
+
+    boolean isEmpty() {
+        return mMethods.isEmpty();
+    }
+
+    /** Adds all methods to the generator, in the order they were added here. */
+    void addTo(PGPEncryptedDataGenerator encryptedDataGenerator) {
+        for (Method method : mMethods) {
+            encryptedDataGenerator.addMethod(method);
+        }
+    }
+
+    private synchronized ContainedPacket generate(Method method, int encAlgorithm, byte[] sessionInfo)
+            throws PGPException {
+        if (!method.mDone || encAlgorithm != mEncAlgorithm || sessionInfo != mSessionInfo) {
+            mEncAlgorithm = encAlgorithm;
+            mSessionInfo = sessionInfo;
+            generateAll();
+        }
+
+        ContainedPacket packet = method.mPacket;
+        PGPException error = method.mError;
+        method.reset();
+        if (method == mMethods.get(mMethods.size() - 1)) {
+            // don't hold on to the session key any longer than needed
+            mSessionInfo = null;
+        }
+
+        if (error != null) {
+            throw error;
+        }
+        return packet;
+    }
+
+    private void generateAll() {
+        int numWorkers = Math.min(MAX_PARALLEL_METHODS, Runtime.getRuntime().availableProcessors());
+        if (!sParallelEncryptionEnabled || numWorkers < 2 || mMethods.size() < MIN_PARALLEL_METHODS) {
+            runMethods(mMethods);
+            return;
+        }
+
+        // split into contiguous chunks, the first one is generated on this thread
+        ArrayList<List<Method>> chunks = new ArrayList<>(numWorkers);
+        int chunkSize = (mMethods.size() + numWorkers - 1) / numWorkers;
+        for (int start = 0; start < mMethods.size(); start += chunkSize) {
+            chunks.add(mMethods.subList(start, Math.min(start + chunkSize, mMethods.size())));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(chunks.size() - 1);
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>(chunks.size() - 1);
+            for (final List<Method> chunk : chunks.subList(1, chunks.size())) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        runMethods(chunk);
+                    }
+                }));
+            }
+            runMethods(chunks.get(0));
+
+            for (Future<?> future : futures) {
+                FutureUtil.getUninterruptibly(future);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runMethods(List<Method> methods) {
+        for (Method method : methods) {
+            method.run(mEncAlgorithm, mSessionInfo);
+        }
+    }
+
+    @VisibleForTesting
+    static void setParallelEncryptionEnabled(boolean enabled) {
+        sParallelEncryptionEnabled = enabled;
+    }
+
+    private class Method extends PGPKeyEncryptionMethodGenerator {
+        final PGPKeyEncryptionMethodGenerator mMethodGenerator;
+
+        boolean mDone;
+        ContainedPacket mPacket;
+        PGPException mError;
+
+        Method(PGPKeyEncryptionMethodGenerator methodGenerator) {
+            mMethodGenerator = methodGenerator;
+        }
+
+        @Override
+        public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo) throws PGPException {
+            return ParallelKeyEncryptionMethods.this.generate(this, encAlgorithm, sessionInfo);
+        }
+
+        void run(int encAlgorithm, byte[] sessionInfo) {
+            try {
+                mPacket = mMethodGenerator.generate(encAlgorithm, sessionInfo);
+            } catch (PGPException e) {
+                mError = e;
+            }
+            mDone = true;
+        }
+
+        void reset() {
+            mDone = false;
+            mPacket = null;
+            mError = null;
+        }
+    }
+
+}
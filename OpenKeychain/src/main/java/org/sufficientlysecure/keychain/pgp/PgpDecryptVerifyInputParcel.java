@@ -44,6 +44,10 @@ public abstract class PgpDecryptVerifyInputParcel implements Parcelable {
 
     abstract boolean isAllowSymmetricDecryption();
     abstract boolean isDecryptMetadataOnly();
+    /** Verify all signatures of a message in parallel, instead of only the first one with a known key. */
+    abstract boolean isVerifyAllSignatures();
+    /** Check all of the plaintext when guessing its charset, instead of samples of it. */
+    abstract boolean isStrictCharsetDetection();
 
     @Nullable
     abstract List<Long> getAllowedKeyIds();
@@ -58,7 +62,9 @@ public abstract class PgpDecryptVerifyInputParcel implements Parcelable {
     public static Builder builder() {
         return new AutoValue_PgpDecryptVerifyInputParcel.Builder()
                 .setAllowSymmetricDecryption(false)
-                .setDecryptMetadataOnly(false);
+                .setDecryptMetadataOnly(false)
+                .setVerifyAllSignatures(false)
+                .setStrictCharsetDetection(false);
     }
 
     @AutoValue.Builder
@@ -69,6 +75,8 @@ public abstract class PgpDecryptVerifyInputParcel implements Parcelable {
 
         public abstract Builder setAllowSymmetricDecryption(boolean allowSymmetricDecryption);
         public abstract Builder setDecryptMetadataOnly(boolean decryptMetadataOnly);
+        public abstract Builder setVerifyAllSignatures(boolean verifyAllSignatures);
+        public abstract Builder setStrictCharsetDetection(boolean strictCharsetDetection);
         public abstract Builder setDetachedSignature(byte[] detachedSignature);
         public abstract Builder setSenderAddress(String senderAddress);
 
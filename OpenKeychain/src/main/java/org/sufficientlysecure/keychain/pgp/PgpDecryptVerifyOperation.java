@@ -27,7 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.security.SignatureException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -47,14 +47,15 @@ import org.bouncycastle.openpgp.PGPEncryptedDataList;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPKeyValidationException;
 import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPOnePassSignatureList;
 import org.bouncycastle.openpgp.PGPPBEEncryptedData;
 import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.bouncycastle.openpgp.PGPSignatureList;
-import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.jcajce.JcaSkipMarkerPGPObjectFactory;
 import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.SessionKeyStore;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
 import org.bouncycastle.util.encoders.DecoderException;
@@ -84,6 +85,7 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.IoBufferPool;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -96,14 +98,50 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         super(context, keyRepository, progressable);
     }
 
-    /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
+    /**
+     * Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. If the
+     * input parcel has no output uri, the plaintext is returned as part of the result.
+     */
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput) {
-        InputData inputData;
+        if (input.getOutputUri() == null) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            DecryptVerifyResult result = execute(input, cryptoInput, outputStream);
+            result.setOutputBytes(outputStream.toByteArray());
+            return result;
+        }
+
         OutputStream outputStream;
+        try {
+            outputStream = mContext.getContentResolver().openOutputStream(input.getOutputUri());
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "Output URI could not be opened: " + input.getOutputUri(), e);
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_DC_ERROR_IO, 1);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        }
 
-        long startTime = System.currentTimeMillis();
+        try {
+            return execute(input, cryptoInput, outputStream);
+        } finally {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Error closing output stream", e);
+            }
+        }
+    }
 
+    /**
+     * Decrypts and/or verifies the input bytes or uri of the input parcel, streaming the
+     * plaintext to the given output stream while any signature is verified along the way.
+     * The plaintext is never held in memory as a whole. The output uri of the input parcel
+     * is ignored, and the output stream is not closed.
+     */
+    @NonNull
+    public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
+            OutputStream outputStream) {
+        InputData inputData;
         if (input.getInputBytes() != null) {
             byte[] inputBytes = input.getInputBytes();
             inputData = new InputData(new ByteArrayInputStream(inputBytes), inputBytes.length);
@@ -120,48 +158,38 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             }
         }
 
-        if (input.getOutputUri() == null) {
-            outputStream = new ByteArrayOutputStream();
-        } else {
-            try {
-                outputStream = mContext.getContentResolver().openOutputStream(input.getOutputUri());
-            } catch (FileNotFoundException e) {
-                Log.e(Constants.TAG, "Output URI could not be opened: " + input.getOutputUri(), e);
-                OperationLog log = new OperationLog();
-                log.add(LogType.MSG_DC_ERROR_IO, 1);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
-            }
-        }
+        return execute(input, cryptoInput, inputData, outputStream);
+    }
+
+    /**
+     * Decrypts and/or verifies data from a stream, like from a file descriptor passed in by
+     * a client of the remote api. The plaintext is streamed to the output stream, which may
+     * be null if only metadata or verification results are required.
+     */
+    @NonNull
+    public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
+            InputData inputData, OutputStream outputStream) {
+        long startTime = System.currentTimeMillis();
 
         DecryptVerifyResult result = executeInternal(input, cryptoInput, inputData, outputStream);
-        if (outputStream instanceof ByteArrayOutputStream) {
-            byte[] outputData = ((ByteArrayOutputStream) outputStream).toByteArray();
-            result.setOutputBytes(outputData);
-        }
 
         result.mOperationTime = System.currentTimeMillis() - startTime;
         Log.d(Constants.TAG, "total time taken: " + String.format("%.2f", result.mOperationTime / 1000.0) + "s");
         return result;
-
-    }
-
-    @NonNull
-    public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
-            InputData inputData, OutputStream outputStream) {
-        return executeInternal(input, cryptoInput, inputData, outputStream);
     }
 
     @NonNull
     private DecryptVerifyResult executeInternal(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
+        IoBufferPool.Lease bufferLease = IoBufferPool.lease();
         try {
             if (input.getDetachedSignature() != null) {
                 Log.d(Constants.TAG, "Detached signature present, verifying with this signature only");
 
-                return verifyDetachedSignature(input, inputData, outputStream, 0);
+                return verifyDetachedSignature(input, inputData, outputStream, bufferLease, 0);
             } else {
                 // automatically works with PGP ascii armor and PGP binary
-                InputStream inputStream = PGPUtil.getDecoderStream(inputData.getInputStream());
+                InputStream inputStream = BlockArmoredInputStream.getDecoderStream(inputData.getInputStream());
 
                 if (inputStream instanceof ArmoredInputStream) {
                     ArmoredInputStream aIn = (ArmoredInputStream) inputStream;
@@ -173,10 +201,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         return verifyCleartextSignature(input, aIn, outputStream, 0);
                     } else {
                         // else: ascii armored encryption! go on...
-                        return decryptVerify(input, cryptoInput, inputData, inputStream, outputStream, 0);
+                        return decryptVerify(input, cryptoInput, inputData, inputStream, outputStream, bufferLease, 0);
                     }
                 } else {
-                    return decryptVerify(input, cryptoInput, inputData, inputStream, outputStream, 0);
+                    return decryptVerify(input, cryptoInput, inputData, inputStream, outputStream, bufferLease, 0);
                 }
             }
         } catch (PGPException e) {
@@ -196,6 +224,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             OperationLog log = new OperationLog();
             log.add(LogType.MSG_DC_ERROR_IO, 1);
             return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        } finally {
+            bufferLease.release();
         }
     }
 
@@ -280,7 +310,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     @NonNull
     private DecryptVerifyResult decryptVerify(
             PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
-            InputData inputData, InputStream in, OutputStream out, int indent) throws IOException, PGPException {
+            InputData inputData, InputStream in, OutputStream out, IoBufferPool.Lease bufferLease, int indent)
+            throws IOException, PGPException {
 
         OperationLog log = new OperationLog();
 
@@ -299,6 +330,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OpenPgpDecryptionResultBuilder decryptionResultBuilder = new OpenPgpDecryptionResultBuilder();
 
+        // only needed to find the size of the data without reading it
+        LiteralDataLengthInputStream lengthIn = null;
+        if (input.isDecryptMetadataOnly()) {
+            in = lengthIn = new LiteralDataLengthInputStream(in);
+        }
+
         JcaSkipMarkerPGPObjectFactory plainFact;
         Object dataChunk;
         EncryptStreamResult esResult = null;
@@ -339,7 +376,11 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                     decryptionResultBuilder.setInsecure(true);
                 }
 
-                plainFact = new JcaSkipMarkerPGPObjectFactory(esResult.cleartextStream);
+                InputStream cleartextStream = esResult.cleartextStream;
+                if (lengthIn != null) {
+                    cleartextStream = lengthIn = new LiteralDataLengthInputStream(cleartextStream);
+                }
+                plainFact = new JcaSkipMarkerPGPObjectFactory(cleartextStream);
                 dataChunk = plainFact.nextObject();
 
             } else {
@@ -361,13 +402,22 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             log.add(LogType.MSG_DC_CLEAR_DECOMPRESS, indent + 1);
 
             PGPCompressedData compressedData = (PGPCompressedData) dataChunk;
-            plainFact = new JcaSkipMarkerPGPObjectFactory(compressedData.getDataStream());
+            InputStream decompressedStream = compressedData.getDataStream();
+            if (lengthIn != null) {
+                decompressedStream = lengthIn = new LiteralDataLengthInputStream(decompressedStream);
+            }
+            plainFact = new JcaSkipMarkerPGPObjectFactory(decompressedStream);
             dataChunk = plainFact.nextObject();
         }
 
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(
-                mKeyRepository, input.getSenderAddress(), securityProblemBuilder);
-        if (signatureChecker.initializeOnePassSignature(dataChunk, log, indent +1)) {
+        MultiSignatureChecker signatureChecker = new MultiSignatureChecker(mKeyRepository,
+                input.getSenderAddress(), securityProblemBuilder, input.isVerifyAllSignatures());
+        if (input.isDecryptMetadataOnly()) {
+            // signatures aren't verified for metadata, no need to look up their keys
+            if (dataChunk instanceof PGPOnePassSignatureList) {
+                dataChunk = plainFact.nextObject();
+            }
+        } else if (signatureChecker.initializeOnePassSignature(dataChunk, log, indent +1)) {
             dataChunk = plainFact.nextObject();
         }
 
@@ -424,8 +474,13 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             log.add(LogType.MSG_DC_CLEAR_META_MIME, indent + 1, mimeType);
 
-            // this operation skips the entire stream to find the data length!
-            Long originalSize = literalData.findDataLength();
+            // if the literal data packet has a definite length, the size is known from its header.
+            // partial lengths, as written for anything larger than the encryption buffer, don't
+            // tell the size. in that case, the data must be skipped to count it.
+            Long originalSize = lengthIn.getDataLength(literalData);
+            if (originalSize == null) {
+                originalSize = literalData.findDataLength();
+            }
 
             if (originalSize != null) {
                 log.add(LogType.MSG_DC_CLEAR_META_SIZE, indent + 1,
@@ -439,9 +494,15 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                     literalData.getModificationTime().getTime(),
                     originalSize == null ? 0 : originalSize, charset);
 
+            log.add(LogType.MSG_DC_CLEAR_META_BYTES_READ, indent + 1,
+                    Long.toString(inputData.getStreamPosition()));
+
             log.add(LogType.MSG_DC_OK_META_ONLY, indent);
             DecryptVerifyResult result =
                     new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
+            // the session key is passed on, so the following decryption doesn't need it again
+            result.setCachedCryptoInputParcel(cryptoInput);
+            result.setDecryptionResult(decryptionResultBuilder.build());
             result.setDecryptionMetadata(metadata);
             return result;
         }
@@ -454,9 +515,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long wholeSize = inputData.getSize() - inputData.getStreamPosition();
         boolean sizeIsKnown = inputData.getSize() != InputData.UNKNOWN_FILESIZE && wholeSize > 0;
         int length;
-        byte[] buffer = new byte[8192];
+        byte[] buffer = bufferLease.getBuffer();
         byte[] firstBytes = new byte[48];
-        CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, mimeType, charset);
+        CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, mimeType, charset,
+                !input.isStrictCharsetDetection());
 
         updateProgress(R.string.progress_decrypting, 1, 100);
 
@@ -553,6 +615,9 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setCachedCryptoInputParcel(cryptoInput);
         result.setSignatureResult(signatureChecker.getSignatureResult());
+        if (input.isVerifyAllSignatures()) {
+            result.setSignatureResults(signatureChecker.getSignatureResults());
+        }
         result.setDecryptionResult(decryptionResultBuilder.build());
         result.setSecurityProblemResult(securityProblemBuilder.build());
         result.setDecryptionMetadata(metadata);
@@ -577,9 +642,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         CanonicalizedSecretKey decryptionKey = null;
         CachingDataDecryptorFactory cachedKeyDecryptorFactory = new CachingDataDecryptorFactory(
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME, cryptoInput.getCryptoData());
-        ;
+        cachedKeyDecryptorFactory.setDataDecryptorProviderSelector(JcaProviderSelector.DATA_DECRYPTOR_PROVIDER_SELECTOR);
 
         Passphrase passphrase = null;
+        boolean isCachedPassphrase = false;
 
         Iterator<?> it = enc.getEncryptedDataObjects();
 
@@ -597,6 +663,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
                 decryptedSessionKeyAvailable = cachedKeyDecryptorFactory.hasCachedSessionData(encData);
                 if (decryptedSessionKeyAvailable) {
+                    // usually decrypted by a security token, remember it for the next time
+                    cachedKeyDecryptorFactory.setSessionKeyStore(getSessionKeyStore(subKeyId));
                     asymmetricPacketFound = true;
                     encryptedDataAsymmetric = encData;
                     break;
@@ -642,6 +710,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         continue;
                     }
 
+                    isCachedPassphrase = false;
                     if (secretKeyType == SecretKeyType.DIVERT_TO_CARD) {
                         passphrase = null;
                     } else if (secretKeyType == SecretKeyType.PASSPHRASE_EMPTY) {
@@ -653,6 +722,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         try {
                             // returns "" if key has no passphrase
                             passphrase = getCachedPassphrase(subKeyId);
+                            isCachedPassphrase = true;
                             log.add(LogType.MSG_DC_PASS_CACHED, indent + 1);
                         } catch (PassphraseCacheInterface.NoSecretKeyException e) {
                             log.add(LogType.MSG_DC_ERROR_NO_KEY, indent + 1);
@@ -661,6 +731,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
                         // if passphrase was not cached, return here indicating that a passphrase is missing!
                         if (passphrase == null) {
+                            UnlockedKeyCache.getInstance(mContext).invalidate(subKeyId);
                             log.add(LogType.MSG_DC_PENDING_PASSPHRASE, indent + 1);
                             return result.with(new DecryptVerifyResult(log,
                                     RequiredInputParcel.createRequiredDecryptPassphrase(masterKeyId, subKeyId),
@@ -775,13 +846,33 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             result.symmetricEncryptionAlgo = encryptedDataSymmetric.getSymmetricAlgorithm(decryptorFactory);
         } else if (asymmetricPacketFound) {
-            CachingDataDecryptorFactory decryptorFactory;
+            CachingDataDecryptorFactory decryptorFactory = null;
+            SessionKeyStore sessionKeyStore = null;
             if (decryptedSessionKeyAvailable) {
                 decryptorFactory = cachedKeyDecryptorFactory;
             } else {
+                sessionKeyStore = SessionKeyCache.getInstance(mContext).getSessionKeyStore(
+                        decryptionKey.getRing().getMasterKeyId(), decryptionKey.getKeyId());
+                // a passphrase that was entered just now must still be checked by unlocking the key
+                if (sessionKeyStore != null && !cryptoInput.hasPassphrase()) {
+                    ByteBuffer encryptedSessionKey = ByteBuffer.wrap(encryptedDataAsymmetric.getSessionKey()[0]);
+                    byte[] sessionData = sessionKeyStore.get(encryptedSessionKey);
+                    if (sessionData != null) {
+                        log.add(LogType.MSG_DC_SESSION_KEY_CACHED, indent + 1);
+                        decryptorFactory = new CachingDataDecryptorFactory(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                                Collections.singletonMap(encryptedSessionKey, sessionData));
+                        decryptorFactory.setDataDecryptorProviderSelector(
+                                JcaProviderSelector.DATA_DECRYPTOR_PROVIDER_SELECTOR);
+                    }
+                }
+            }
+            if (decryptorFactory == null) {
                 try {
                     log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                    if (!decryptionKey.unlock(passphrase)) {
+                    boolean unlocked = isCachedPassphrase
+                            ? UnlockedKeyCache.getInstance(mContext).unlockWithCachedPassphrase(decryptionKey, passphrase)
+                            : decryptionKey.unlock(passphrase);
+                    if (!unlocked) {
                         log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
                         return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
                     }
@@ -791,6 +882,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 }
 
                 decryptorFactory = decryptionKey.getCachingDecryptorFactory(cryptoInput);
+                decryptorFactory.setSessionKeyStore(sessionKeyStore);
 
                 // special case: if the decryptor does not have a session key cached for this encrypted
                 // data, and can't actually decrypt on its own, return a pending intent
@@ -845,6 +937,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
     }
 
+    /** Returns the SessionKeyCache store for a subkey, or null if it's disabled or the key is unknown. */
+    private SessionKeyStore getSessionKeyStore(long subKeyId) {
+        SessionKeyCache sessionKeyCache = SessionKeyCache.getInstance(mContext);
+        if (!sessionKeyCache.isEnabled()) {
+            return null;
+        }
+        try {
+            long masterKeyId = mKeyRepository.getCachedPublicKeyRing(
+                    KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)).getMasterKeyId();
+            return sessionKeyCache.getSessionKeyStore(masterKeyId, subKeyId);
+        } catch (PgpKeyNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * This method verifies cleartext signatures
      * as defined in http://tools.ietf.org/html/rfc4880#section-7
@@ -858,87 +965,64 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
-        { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
+        CleartextSignatureProcessor cleartextProcessor = new CleartextSignatureProcessor(mContext.getCacheDir());
+        try {
             updateProgress(R.string.progress_reading_data, 0, 100);
 
-            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-            int lookAhead = readInputLine(lineOut, aIn);
-            byte[] lineSep = getLineSeparator();
-
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+            // the text is written to the output right away, the signature only follows after it
+            long clearTextSize = cleartextProcessor.process(aIn, outputStream);
 
-            while (lookAhead != -1 && aIn.isClearText()) {
-                lookAhead = readInputLine(lineOut, lookAhead, aIn);
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
-                out.write(lineSep);
-            }
-
-            out.close();
-            clearText = out.toByteArray();
-        }
+            updateProgress(R.string.progress_processing_signature, 60, 100);
+            JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(aIn);
 
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
-        }
-
-        updateProgress(R.string.progress_processing_signature, 60, 100);
-        JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(aIn);
-
-        DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository, input.getSenderAddress(),
-                securityProblemBuilder);
+            DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
+            MultiSignatureChecker signatureChecker = new MultiSignatureChecker(mKeyRepository,
+                    input.getSenderAddress(), securityProblemBuilder, input.isVerifyAllSignatures());
 
-        Object o = pgpFact.nextObject();
-        if (!signatureChecker.initializeSignature(o, log, indent+1)) {
-            log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
-            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
-        }
+            Object o = pgpFact.nextObject();
+            if (!signatureChecker.initializeSignature(o, log, indent+1)) {
+                log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
+                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            }
 
-        if (signatureChecker.isInitialized()) {
-            try {
+            if (signatureChecker.isInitialized()) {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
 
-                signatureChecker.updateSignatureWithCleartext(clearText);
+                cleartextProcessor.updateSignature(signatureChecker);
                 signatureChecker.verifySignature(log, indent);
-
-            } catch (SignatureException e) {
-                Log.d(Constants.TAG, "SignatureException", e);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
             }
-        }
 
-        updateProgress(R.string.progress_done, 100, 100);
+            updateProgress(R.string.progress_done, 100, 100);
 
-        log.add(LogType.MSG_DC_OK, indent);
+            log.add(LogType.MSG_DC_OK, indent);
 
-        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.length, "utf-8");
+            OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearTextSize, "utf-8");
 
-        DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
-        result.setSignatureResult(signatureChecker.getSignatureResult());
-        result.setDecryptionResult(
-                new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
-        result.setSecurityProblemResult(securityProblemBuilder.build());
-        result.setDecryptionMetadata(metadata);
-        return result;
+            DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
+            result.setSignatureResult(signatureChecker.getSignatureResult());
+            if (input.isVerifyAllSignatures()) {
+                result.setSignatureResults(signatureChecker.getSignatureResults());
+            }
+            result.setDecryptionResult(
+                    new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
+            result.setSecurityProblemResult(securityProblemBuilder.build());
+            result.setDecryptionMetadata(metadata);
+            return result;
+        } finally {
+            cleartextProcessor.close();
+        }
     }
 
     @NonNull
     private DecryptVerifyResult verifyDetachedSignature(
-            PgpDecryptVerifyInputParcel input, InputData inputData, OutputStream out, int indent)
-            throws IOException, PGPException {
+            PgpDecryptVerifyInputParcel input, InputData inputData, OutputStream out,
+            IoBufferPool.Lease bufferLease, int indent) throws IOException, PGPException {
 
         OperationLog log = new OperationLog();
 
         updateProgress(R.string.progress_processing_signature, 0, 100);
         InputStream detachedSigIn = new ByteArrayInputStream(input.getDetachedSignature());
-        detachedSigIn = PGPUtil.getDecoderStream(detachedSigIn);
+        detachedSigIn = BlockArmoredInputStream.getDecoderStream(detachedSigIn);
 
         JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(detachedSigIn);
 
@@ -950,8 +1034,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
 
         DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository, input.getSenderAddress(),
-                securityProblemBuilder);
+        MultiSignatureChecker signatureChecker = new MultiSignatureChecker(mKeyRepository,
+                input.getSenderAddress(), securityProblemBuilder, input.isVerifyAllSignatures());
 
         if ( ! signatureChecker.initializeSignature(o, log, indent+1)) {
             log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
@@ -966,7 +1050,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             long alreadyWritten = 0;
             long wholeSize = inputData.getSize() - inputData.getStreamPosition();
             int length;
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = bufferLease.getBuffer();
             InputStream in = inputData.getInputStream();
             while ((length = in.read(buffer)) > 0) {
                 if (out != null) {
@@ -1002,82 +1086,15 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
+        if (input.isVerifyAllSignatures()) {
+            result.setSignatureResults(signatureChecker.getSignatureResults());
+        }
         result.setSecurityProblemResult(securityProblemBuilder.build());
         result.setDecryptionResult(
                 new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
         return result;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        }
-
-        return lookAhead;
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isLineEnding(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isLineEnding(byte b) {
-        return b == '\r' || b == '\n';
-    }
-
-    private static byte[] getLineSeparator() {
-        String nl = System.getProperty("line.separator");
-        return nl.getBytes();
-    }
-
     /// Convenience method - Trivially checks if a byte array matches the bytes of a plain text string
     // Assumes data.length >= needle.length()
     static boolean matchesPrefix(byte[] data, String needle) {
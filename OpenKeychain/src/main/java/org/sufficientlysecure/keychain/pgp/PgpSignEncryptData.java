@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import android.os.Parcelable;
 import android.support.annotation.Nullable;
@@ -53,6 +54,10 @@ public abstract class PgpSignEncryptData implements Parcelable {
     public abstract String getVersionHeader();
 
     public abstract int getCompressionAlgorithm();
+    /** Deflate level from 0 to 9 for ZIP and ZLIB, or Deflater.DEFAULT_COMPRESSION */
+    public abstract int getCompressionLevel();
+    /** If set, compression is skipped for data which doesn't compress well, based on a sample */
+    public abstract boolean isAdaptiveCompression();
     public abstract int getSignatureHashAlgorithm();
     public abstract int getSymmetricEncryptionAlgorithm();
 
@@ -72,6 +77,8 @@ public abstract class PgpSignEncryptData implements Parcelable {
                 .setAddBackupHeader(false)
                 .setHiddenRecipients(false)
                 .setCompressionAlgorithm(OpenKeychainCompressionAlgorithmTags.USE_DEFAULT)
+                .setCompressionLevel(Deflater.DEFAULT_COMPRESSION)
+                .setAdaptiveCompression(false)
                 .setSignatureHashAlgorithm(OpenKeychainHashAlgorithmTags.USE_DEFAULT)
                 .setSymmetricEncryptionAlgorithm(OpenKeychainSymmetricKeyAlgorithmTags.USE_DEFAULT);
     }
@@ -89,6 +96,8 @@ public abstract class PgpSignEncryptData implements Parcelable {
         public abstract Builder setVersionHeader(String versionHeader);
 
         public abstract Builder setCompressionAlgorithm(int compressionAlgorithm);
+        public abstract Builder setCompressionLevel(int compressionLevel);
+        public abstract Builder setAdaptiveCompression(boolean isAdaptiveCompression);
         public abstract Builder setSignatureHashAlgorithm(int signatureHashAlgorithm);
         public abstract Builder setSymmetricEncryptionAlgorithm(int symmetricEncryptionAlgorithm);
 
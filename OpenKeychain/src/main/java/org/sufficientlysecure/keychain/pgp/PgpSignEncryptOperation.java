@@ -21,7 +21,6 @@ package org.sufficientlysecure.keychain.pgp;
 
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -32,8 +31,10 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -68,12 +69,12 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeyRepository;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.IoBufferPool;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -168,11 +169,21 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         return executeInternal(data, cryptoInput, inputData, outputStream);
     }
 
+    private PgpSignEncryptResult executeInternal(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
+            InputData inputData, OutputStream outputStream) {
+        IoBufferPool.Lease bufferLease = IoBufferPool.lease();
+        try {
+            return executeInternal(data, cryptoInput, inputData, outputStream, bufferLease);
+        } finally {
+            bufferLease.release();
+        }
+    }
+
     /**
      * Signs and/or encrypts data based on parameters of class
      */
     private PgpSignEncryptResult executeInternal(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
-            InputData inputData, OutputStream outputStream) {
+            InputData inputData, OutputStream outputStream, IoBufferPool.Lease bufferLease) {
         int indent = 0;
         OperationLog log = new OperationLog();
 
@@ -193,7 +204,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         ArmoredOutputStream armorOut = null;
         OutputStream out;
         if (data.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            armorOut = new BlockArmoredOutputStream(bufferLease.bufferedOutputStream(outputStream));
             if (data.getVersionHeader() != null) {
                 armorOut.setHeader("Version", data.getVersionHeader());
             }
@@ -265,19 +276,25 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                     case PASSPHRASE: {
                         Passphrase localPassphrase = cryptoInput.getPassphrase();
+                        boolean isCachedPassphrase = false;
                         if (localPassphrase == null) {
                             try {
                                 localPassphrase = getCachedPassphrase(signingMasterKeyId, signingKey.getKeyId());
+                                isCachedPassphrase = true;
                             } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
                             }
                         }
                         if (localPassphrase == null) {
+                            UnlockedKeyCache.getInstance(mContext).invalidate(signingKey.getKeyId());
                             log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
                             return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
                                     signingMasterKeyId, signingKey.getKeyId(),
                                     cryptoInput.getSignatureTime()), cryptoInput);
                         }
-                        if (!signingKey.unlock(localPassphrase)) {
+                        boolean unlocked = isCachedPassphrase
+                                ? UnlockedKeyCache.getInstance(mContext).unlockWithCachedPassphrase(signingKey, localPassphrase)
+                                : signingKey.unlock(localPassphrase);
+                        if (!unlocked) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
@@ -315,7 +332,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             }
             JcePGPDataEncryptorBuilder encryptorBuilder =
                     new JcePGPDataEncryptorBuilder(symmetricEncryptionAlgorithm)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                            .setProvider(JcaProviderSelector.getDataCipherProvider(symmetricEncryptionAlgorithm, true))
                             .setWithIntegrityPacket(true);
 
             cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
@@ -330,21 +347,26 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             } else {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
-                // Asymmetric encryption
-                for (long encryptMasterKeyId : data.getEncryptionMasterKeyIds()) {
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, encryptMasterKeyId);
-                    if (!success) {
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                    }
-                }
-
+                // Asymmetric encryption, with all recipient keys loaded at once
+                long[] encryptMasterKeyIds = data.getEncryptionMasterKeyIds();
                 long additionalEncryptId = data.getAdditionalEncryptId();
                 if (additionalEncryptId != Constants.key.none) {
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, additionalEncryptId);
+                    encryptMasterKeyIds = Arrays.copyOf(encryptMasterKeyIds, encryptMasterKeyIds.length + 1);
+                    encryptMasterKeyIds[encryptMasterKeyIds.length - 1] = additionalEncryptId;
+                }
+                HashMap<Long, CanonicalizedPublicKeyRing> encryptKeyRings =
+                        mKeyRepository.getCanonicalizedPublicKeyRings(encryptMasterKeyIds);
+
+                // the session key is encrypted to all of them in parallel once the data generator is opened
+                ParallelKeyEncryptionMethods encryptionMethods = new ParallelKeyEncryptionMethods();
+                for (long encryptMasterKeyId : encryptMasterKeyIds) {
+                    boolean success = processEncryptionMasterKeyId(indent, log, data, encryptionMethods,
+                            encryptMasterKeyId, encryptKeyRings.get(encryptMasterKeyId));
                     if (!success) {
                         return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                     }
                 }
+                encryptionMethods.addTo(cPk);
             }
         }
 
@@ -394,12 +416,21 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                encryptionOut = cPk.open(out, bufferLease.getBuffer());
+
+                byte[] buffer = bufferLease.getBuffer();
+                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                int sampleLength = 0;
+                if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED && data.isAdaptiveCompression()) {
+                    sampleLength = CompressionSampler.readSample(in, buffer);
+                    compressionAlgorithm = checkCompressionWorthwhile(
+                            compressionAlgorithm, buffer, sampleLength, log, indent);
+                }
 
                 if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
 
-                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm);
+                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm, data.getCompressionLevel());
                     bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
                 } else {
                     bcpgOut = new BCPGOutputStream(encryptionOut);
@@ -417,13 +448,12 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                     literalDataFormatTag = PGPLiteralData.BINARY;
                 }
                 pOut = literalGen.open(bcpgOut, literalDataFormatTag,
-                        inputData.getOriginalFilename(), new Date(), new byte[1 << 16]);
+                        inputData.getOriginalFilename(), new Date(), bufferLease.getBuffer());
 
                 long alreadyWritten = 0;
-                int length;
-                byte[] buffer = new byte[1 << 16];
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
-                while ((length = in.read(buffer)) > 0) {
+                // the sample read for adaptive compression, if any, is the first block
+                int length = sampleLength > 0 ? sampleLength : in.read(buffer);
+                while (length > 0) {
                     pOut.write(buffer, 0, length);
 
                     // update signature buffer if signature is requested
@@ -436,6 +466,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                         long progress = 100 * alreadyWritten / inputData.getSize();
                         progressScaler.setProgress((int) progress, 100);
                     }
+
+                    length = in.read(buffer);
                 }
 
                 literalGen.close();
@@ -488,7 +520,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 detachedByteOut = new ByteArrayOutputStream();
                 OutputStream detachedOut = detachedByteOut;
                 if (data.isEnableAsciiArmorOutput()) {
-                    detachedArmorOut = new ArmoredOutputStream(new BufferedOutputStream(detachedOut, 1 << 16));
+                    detachedArmorOut = new BlockArmoredOutputStream(bufferLease.bufferedOutputStream(detachedOut));
                     if (data.getVersionHeader() != null) {
                         detachedArmorOut.setHeader("Version", data.getVersionHeader());
                     }
@@ -499,7 +531,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = bufferLease.getBuffer();
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
@@ -520,11 +552,18 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 log.add(LogType.MSG_PSE_SIGNING, indent);
 
                 InputStream in = new BufferedInputStream(inputData.getInputStream());
+                byte[] buffer = bufferLease.getBuffer();
+                int sampleLength = 0;
+                if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED && data.isAdaptiveCompression()) {
+                    sampleLength = CompressionSampler.readSample(in, buffer);
+                    compressionAlgorithm = checkCompressionWorthwhile(
+                            compressionAlgorithm, buffer, sampleLength, log, indent);
+                }
 
                 if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
 
-                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm);
+                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm, data.getCompressionLevel());
                     bcpgOut = new BCPGOutputStream(compressGen.open(out));
                 } else {
                     bcpgOut = new BCPGOutputStream(out);
@@ -535,12 +574,12 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
                 pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY,
                         inputData.getOriginalFilename(), new Date(),
-                        new byte[1 << 16]);
+                        bufferLease.getBuffer());
 
                 long alreadyWritten = 0;
-                int length;
-                byte[] buffer = new byte[1 << 16];
-                while ((length = in.read(buffer)) > 0) {
+                // the sample read for adaptive compression, if any, is the first block
+                int length = sampleLength > 0 ? sampleLength : in.read(buffer);
+                while (length > 0) {
                     pOut.write(buffer, 0, length);
 
                     signatureGenerator.update(buffer, 0, length);
@@ -550,6 +589,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                         long progress = 100 * alreadyWritten / inputData.getSize();
                         progressScaler.setProgress((int) progress, 100);
                     }
+
+                    length = in.read(buffer);
                 }
 
                 literalGen.close();
@@ -640,33 +681,47 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         return result;
     }
 
+    /**
+     * Checks a sample from the beginning of the data for adaptive compression.
+     *
+     * @return the compression algorithm to use, which is UNCOMPRESSED if compression won't pay off
+     */
+    private static int checkCompressionWorthwhile(int compressionAlgorithm, byte[] sample, int sampleLength,
+            OperationLog log, int indent) {
+        int compressedPercent = CompressionSampler.estimateCompressedPercent(sample, sampleLength);
+        if (!CompressionSampler.isWorthCompressing(compressedPercent)) {
+            log.add(LogType.MSG_PSE_COMPRESSION_SKIPPED, indent, Integer.toString(compressedPercent));
+            return CompressionAlgorithmTags.UNCOMPRESSED;
+        }
+        log.add(LogType.MSG_PSE_COMPRESSION_KEPT, indent, Integer.toString(compressedPercent));
+        return compressionAlgorithm;
+    }
+
     private boolean processEncryptionMasterKeyId(int indent, OperationLog log, PgpSignEncryptData data,
-            PGPEncryptedDataGenerator cPk, long encryptMasterKeyId) {
-        try {
-            CanonicalizedPublicKeyRing keyRing = mKeyRepository.getCanonicalizedPublicKeyRing(
-                    KeyRings.buildUnifiedKeyRingUri(encryptMasterKeyId));
-            Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
-            for (Long subKeyId : encryptSubKeyIds) {
-                CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
-                log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
-                        KeyFormattingUtils.convertKeyIdToHex(subKeyId));
-            }
-            if (encryptSubKeyIds.isEmpty()) {
-                log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
-                        KeyFormattingUtils.convertKeyIdToHex(encryptMasterKeyId));
-                return false;
-            }
-            // Make sure key is not expired or revoked
-            if (keyRing.isExpired() || keyRing.isRevoked()) {
-                log.add(LogType.MSG_PSE_ERROR_REVOKED_OR_EXPIRED, indent);
-                return false;
-            }
-        } catch (KeyWritableRepository.NotFoundException e) {
+            ParallelKeyEncryptionMethods encryptionMethods, long encryptMasterKeyId,
+            CanonicalizedPublicKeyRing keyRing) {
+        if (keyRing == null) {
             log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
                     KeyFormattingUtils.convertKeyIdToHex(encryptMasterKeyId));
             return false;
         }
+        Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
+        for (Long subKeyId : encryptSubKeyIds) {
+            CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
+            encryptionMethods.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
+            log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
+                    KeyFormattingUtils.convertKeyIdToHex(subKeyId));
+        }
+        if (encryptSubKeyIds.isEmpty()) {
+            log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
+                    KeyFormattingUtils.convertKeyIdToHex(encryptMasterKeyId));
+            return false;
+        }
+        // Make sure key is not expired or revoked
+        if (keyRing.isExpired() || keyRing.isRevoked()) {
+            log.add(LogType.MSG_PSE_ERROR_REVOKED_OR_EXPIRED, indent);
+            return false;
+        }
         return true;
     }
 
@@ -19,13 +19,6 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.security.SignatureException;
-
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPOnePassSignature;
 import org.bouncycastle.openpgp.PGPOnePassSignatureList;
@@ -80,6 +73,27 @@ class PgpSignatureChecker {
 
         PGPSignatureList sigList = (PGPSignatureList) dataChunk;
         findAvailableSignature(sigList);
+        initSignature(sigList, log, indent);
+
+        return true;
+
+    }
+
+    /**
+     * Initializes the checker for the signature at the given index, with a signing key that was
+     * already looked up by the caller. This is used to check several signatures of a message.
+     */
+    void initializeSignature(PGPSignatureList sigList, int index, CanonicalizedPublicKey keyCandidate,
+            OperationLog log, int indent) throws PGPException {
+        signatureIndex = index;
+        if (keyCandidate != null && keyCandidate.canSign()) {
+            signingKey = keyCandidate;
+            signature = sigList.get(index);
+        }
+        initSignature(sigList, log, indent);
+    }
+
+    private void initSignature(PGPSignatureList sigList, OperationLog log, int indent) throws PGPException {
 
         if (signingKey != null) {
 
@@ -88,7 +102,8 @@ class PgpSignatureChecker {
 
             JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
                     new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                            .setProvider(JcaProviderSelector.getSignatureVerificationProvider(
+                                    signingKey.getAlgorithm(), signature.getHashAlgorithm()));
             signature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
             checkKeySecurity(log, indent);
 
@@ -97,12 +112,10 @@ class PgpSignatureChecker {
 
             signatureResultBuilder.setSignatureAvailable(true);
             signatureResultBuilder.setKnownKey(false);
-            signatureResultBuilder.setKeyId(sigList.get(0).getKeyID());
+            signatureResultBuilder.setKeyId(sigList.get(signatureIndex).getKeyID());
 
         }
 
-        return true;
-
     }
 
     boolean initializeOnePassSignature(Object dataChunk, OperationLog log, int indent) throws PGPException {
@@ -115,6 +128,28 @@ class PgpSignatureChecker {
 
         PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
         findAvailableSignature(sigList);
+        initOnePassSignature(sigList, log, indent);
+
+        return true;
+
+    }
+
+    /**
+     * Initializes the checker for the one-pass signature at the given index, with a signing key
+     * that was already looked up by the caller. This is used to check several signatures of a message.
+     */
+    void initializeOnePassSignature(PGPOnePassSignatureList sigList, int index, CanonicalizedPublicKey keyCandidate,
+            OperationLog log, int indent) throws PGPException {
+        signatureIndex = index;
+        if (keyCandidate != null && keyCandidate.canSign()) {
+            signingKey = keyCandidate;
+            onePassSignature = sigList.get(index);
+        }
+        initOnePassSignature(sigList, log, indent);
+    }
+
+    private void initOnePassSignature(PGPOnePassSignatureList sigList, OperationLog log, int indent)
+            throws PGPException {
 
         if (signingKey != null) {
 
@@ -123,7 +158,8 @@ class PgpSignatureChecker {
 
             JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
                     new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                            .setProvider(JcaProviderSelector.getSignatureVerificationProvider(
+                                    signingKey.getAlgorithm(), onePassSignature.getHashAlgorithm()));
             onePassSignature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
 
             checkKeySecurity(log, indent);
@@ -132,12 +168,10 @@ class PgpSignatureChecker {
 
             signatureResultBuilder.setSignatureAvailable(true);
             signatureResultBuilder.setKnownKey(false);
-            signatureResultBuilder.setKeyId(sigList.get(0).getKeyID());
+            signatureResultBuilder.setKeyId(sigList.get(signatureIndex).getKeyID());
 
         }
 
-        return true;
-
     }
 
     private void checkKeySecurity(OperationLog log, int indent) {
@@ -201,27 +235,6 @@ class PgpSignatureChecker {
         }
     }
 
-    public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
-
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
-
-        int lookAhead = readInputLine(outputBuffer, sigIn);
-
-        processLine(signature, outputBuffer.toByteArray());
-
-        while (lookAhead != -1) {
-            lookAhead = readInputLine(outputBuffer, lookAhead, sigIn);
-
-            signature.update((byte) '\r');
-            signature.update((byte) '\n');
-
-            processLine(signature, outputBuffer.toByteArray());
-        }
-
-    }
-
     public void updateSignatureData(byte[] buf, int off, int len) {
         if (signature != null) {
             signature.update(buf, off, len);
@@ -304,81 +317,4 @@ class PgpSignatureChecker {
         return signatureResultBuilder.build();
     }
 
-    /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
-     */
-
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        }
-
-        return lookAhead;
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
-    }
-
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+
+
+/**
+ * Verifies the self-certifications of a key ring ahead of canonicalization.
+ * <p/>
+ * Canonicalization decides about each certificate in a fixed order, which has to stay serial.
+ * The signature checks it depends on are independent of each other though. They are queued
+ * with the add methods and run by verifyAll(), on several threads if there are enough of
+ * them, after which verify() returns the precomputed results.
+ * <p/>
+ * Key rings are canonicalized concurrently during import, so all of them share one small pool.
+ * The calling thread takes part in the work, and never waits for the pool to get to it.
+ */
+class SelfCertificationVerifier {
+
+    /** Below this number of certificates, the threads aren't worth starting. */
+    static final int MIN_PARALLEL_VERIFICATIONS = 16;
+    private static final int MAX_PARALLEL_VERIFICATIONS = 4;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_VERIFICATIONS - 1, MAX_PARALLEL_VERIFICATIONS - 1,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static boolean sParallelVerificationEnabled = true;
+
+    private final PGPPublicKey mMasterKey;
+    private final ArrayList<Verification> mVerifications = new ArrayList<>();
+    private final IdentityHashMap<PGPSignature, Verification> mVerificationsBySignature = new IdentityHashMap<>();
+
+    SelfCertificationVerifier(PGPPublicKey masterKey) {
+        mMasterKey = masterKey;
+    }
+
+    void addKeySignature(PGPSignature signature) {
+        add(new Verification(signature) {
+            @Override
+            boolean verifySignature(WrappedSignature cert) throws PgpGeneralException {
+                return cert.verifySignature(mMasterKey);
+            }
+        });
+    }
+
+    void addUserIdCertification(PGPSignature signature, final byte[] rawUserId) {
+        add(new Verification(signature) {
+            @Override
+            boolean verifySignature(WrappedSignature cert) throws PgpGeneralException {
+                return cert.verifySignature(mMasterKey, rawUserId);
+            }
+        });
+    }
+
+    void addUserAttributeCertification(PGPSignature signature, final PGPUserAttributeSubpacketVector attribute) {
+        add(new Verification(signature) {
+            @Override
+            boolean verifySignature(WrappedSignature cert) throws PgpGeneralException {
+                return cert.verifySignature(mMasterKey, attribute);
+            }
+        });
+    }
+
+    void addSubkeyCertification(PGPSignature signature, final PGPPublicKey subKey) {
+        add(new Verification(signature) {
+            @Override
+            boolean verifySignature(WrappedSignature cert) throws PgpGeneralException {
+                return cert.verifySignature(mMasterKey, subKey);
+            }
+        });
+    }
+
+    private void add(Verification verification) {
+        // the same signature object may show up more than once, e.g. for duplicate user ids
+        if (!mVerificationsBySignature.containsKey(verification.mSignature)) {
+            mVerificationsBySignature.put(verification.mSignature, verification);
+            mVerifications.add(verification);
+        }
+    }
+
+    /** Verifies all queued certificates, returns when all of them are done. */
+    void verifyAll() {
+        int numWorkers = Math.min(MAX_PARALLEL_VERIFICATIONS, Runtime.getRuntime().availableProcessors());
+        if (!sParallelVerificationEnabled || numWorkers < 2
+                || mVerifications.size() < MIN_PARALLEL_VERIFICATIONS) {
+            runVerifications(mVerifications);
+            return;
+        }
+
+        // split into contiguous chunks, which are taken in turn by this thread and the pool
+        final ArrayList<List<Verification>> chunks = new ArrayList<>(numWorkers);
+        int chunkSize = (mVerifications.size() + numWorkers - 1) / numWorkers;
+        for (int start = 0; start < mVerifications.size(); start += chunkSize) {
+            chunks.add(mVerifications.subList(start, Math.min(start + chunkSize, mVerifications.size())));
+        }
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final CountDownLatch chunksDone = new CountDownLatch(chunks.size());
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runChunks(chunks, nextChunk, chunksDone);
+                } catch (RuntimeException e) {
+                    // unfinished verifications are repeated by verify(), which throws on the calling thread
+                }
+            }
+        };
+        // if the pool is busy with other key rings, this thread verifies all chunks by itself
+        for (int i = 1; i < chunks.size(); i++) {
+            sExecutor.execute(worker);
+        }
+        runChunks(chunks, nextChunk, chunksDone);
+
+        // only chunks which were taken by the pool are left to wait for
+        awaitUninterruptibly(chunksDone);
+    }
+
+    private void runChunks(List<List<Verification>> chunks, AtomicInteger nextChunk, CountDownLatch chunksDone) {
+        int i;
+        while ((i = nextChunk.getAndIncrement()) < chunks.size()) {
+            try {
+                runVerifications(chunks.get(i));
+            } finally {
+                chunksDone.countDown();
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    latch.await();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns whether a queued certificate is valid. Certificates that weren't verified by
+     * verifyAll() yet are verified on the spot.
+     *
+     * @throws PgpGeneralException if the certificate couldn't be checked
+     */
+    boolean verify(PGPSignature signature) throws PgpGeneralException {
+        Verification verification = mVerificationsBySignature.get(signature);
+        if (verification == null) {
+            throw new IllegalArgumentException("certificate was not queued for verification!");
+        }
+        if (!verification.mDone) {
+            verification.run();
+        }
+        if (verification.mError != null) {
+            throw verification.mError;
+        }
+        return verification.mValid;
+    }
+
+    private void runVerifications(List<Verification> verifications) {
+        for (Verification verification : verifications) {
+            verification.run();
+        }
+    }
+
+    @VisibleForTesting
+    static void setParallelVerificationEnabled(boolean enabled) {
+        sParallelVerificationEnabled = enabled;
+    }
+
+    private abstract class Verification {
+        final PGPSignature mSignature;
+
+        boolean mDone;
+        boolean mValid;
+        PgpGeneralException mError;
+
+        Verification(PGPSignature signature) {
+            mSignature = signature;
+        }
+
+        abstract boolean verifySignature(WrappedSignature cert) throws PgpGeneralException;
+
+        void run() {
+            WrappedSignature cert = new WrappedSignature(mSignature);
+            try {
+                cert.init(mMasterKey);
+                mValid = verifySignature(cert);
+            } catch (PgpGeneralException e) {
+                mError = e;
+            }
+            mDone = true;
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.SessionKeyStore;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+
+/**
+ * In-memory cache of decrypted session keys, shared by all decrypt operations of a process.
+ * <p/>
+ * Reopening a message decrypts its session key again, which is a private key operation or
+ * even a security token tap. With this cache enabled in the preferences, session keys are
+ * kept by their encrypted session key packet for a short time. The cache is bounded, the least
+ * recently used entry is dropped when it's full, and session keys are overwritten when they are
+ * dropped. Like UnlockedKeyCache, entries are also dropped when the passphrase cache times out
+ * or clears the passphrase of their key.
+ */
+public class SessionKeyCache {
+
+    private static final int MAX_ENTRIES = 64;
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static SessionKeyCache sInstance;
+
+    private final Context mContext;
+    private final int mMaxEntries;
+    private final long mTtlMillis;
+    private final LinkedHashMap<ByteBuffer, CachedSessionKey> mSessionKeys;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public static synchronized SessionKeyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SessionKeyCache(context.getApplicationContext(), MAX_ENTRIES, TTL_MILLIS);
+            sInstance.registerReceiver();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SessionKeyCache(Context context, int maxEntries, long ttlMillis) {
+        mContext = context;
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+        // in access order, so the eldest entry is the least recently used one
+        mSessionKeys = new LinkedHashMap<ByteBuffer, CachedSessionKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedSessionKey> eldest) {
+                if (size() > mMaxEntries) {
+                    eldest.getValue().clear();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private void registerReceiver() {
+        IntentFilter filter = new IntentFilter(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasExtra(PassphraseCacheService.EXTRA_KEY_ID)) {
+                    invalidate(intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, 0L));
+                } else {
+                    invalidateAll();
+                }
+            }
+        }, filter);
+    }
+
+    /**
+     * Returns a store for the session keys of a decryption key, for use with
+     * CachingDataDecryptorFactory, or null if the cache is disabled.
+     */
+    public SessionKeyStore getSessionKeyStore(final long masterKeyId, final long subKeyId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        return new SessionKeyStore() {
+            @Override
+            public byte[] get(ByteBuffer encryptedSessionKey) {
+                return getSessionKey(encryptedSessionKey);
+            }
+
+            @Override
+            public void put(ByteBuffer encryptedSessionKey, byte[] sessionData) {
+                putSessionKey(masterKeyId, subKeyId, encryptedSessionKey, sessionData);
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        if (!Preferences.getPreferences(mContext).getPassphraseCacheSessionKeys()) {
+            // the cache may have been turned off since
+            if (size() > 0) {
+                invalidateAll();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** Returns a copy of the cached session key, or null if there is none. */
+    private byte[] getSessionKey(ByteBuffer encryptedSessionKey) {
+        synchronized (mSessionKeys) {
+            CachedSessionKey cachedSessionKey = mSessionKeys.get(encryptedSessionKey);
+            if (cachedSessionKey == null) {
+                return null;
+            }
+            if (cachedSessionKey.isExpired()) {
+                mSessionKeys.remove(encryptedSessionKey);
+                cachedSessionKey.clear();
+                return null;
+            }
+            mHitCount++;
+            return cachedSessionKey.mSessionData.clone();
+        }
+    }
+
+    /**
+     * Adds a session key, unless it is cached already. A session key is only added after it
+     * was recovered from its packet, so this counts as a cache miss.
+     */
+    private void putSessionKey(long masterKeyId, long subKeyId, ByteBuffer encryptedSessionKey, byte[] sessionData) {
+        synchronized (mSessionKeys) {
+            CachedSessionKey cachedSessionKey = mSessionKeys.get(encryptedSessionKey);
+            if (cachedSessionKey != null && !cachedSessionKey.isExpired()) {
+                return;
+            }
+            removeExpired();
+
+            // the caller keeps using its arrays, so copy both to clear them independently
+            ByteBuffer key = ByteBuffer.wrap(toByteArray(encryptedSessionKey));
+            mSessionKeys.put(key, new CachedSessionKey(masterKeyId, subKeyId, sessionData.clone(),
+                    SystemClock.elapsedRealtime() + mTtlMillis));
+            mMissCount++;
+        }
+    }
+
+    /**
+     * Drops all session keys cached for this key id. This may be either a subkey id or a master
+     * key id, depending on how passphrases are cached.
+     */
+    public void invalidate(long keyId) {
+        synchronized (mSessionKeys) {
+            Iterator<CachedSessionKey> it = mSessionKeys.values().iterator();
+            while (it.hasNext()) {
+                CachedSessionKey cachedSessionKey = it.next();
+                if (cachedSessionKey.mSubKeyId == keyId || cachedSessionKey.mMasterKeyId == keyId) {
+                    cachedSessionKey.clear();
+                    it.remove();
+                }
+            }
+        }
+        Log.d(Constants.TAG, "Dropped session keys for key id " + keyId);
+    }
+
+    public void invalidateAll() {
+        synchronized (mSessionKeys) {
+            for (CachedSessionKey cachedSessionKey : mSessionKeys.values()) {
+                cachedSessionKey.clear();
+            }
+            mSessionKeys.clear();
+        }
+        Log.d(Constants.TAG, "Dropped all session keys, hits: " + mHitCount + ", misses: " + mMissCount);
+    }
+
+    private void removeExpired() {
+        Iterator<CachedSessionKey> it = mSessionKeys.values().iterator();
+        while (it.hasNext()) {
+            CachedSessionKey cachedSessionKey = it.next();
+            if (cachedSessionKey.isExpired()) {
+                cachedSessionKey.clear();
+                it.remove();
+            }
+        }
+    }
+
+    /** Returns the number of session keys found in the cache. */
+    public long getHitCount() {
+        synchronized (mSessionKeys) {
+            return mHitCount;
+        }
+    }
+
+    /** Returns the number of session keys that had to be recovered and were added to the cache. */
+    public long getMissCount() {
+        synchronized (mSessionKeys) {
+            return mMissCount;
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (mSessionKeys) {
+            return mSessionKeys.size();
+        }
+    }
+
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static class CachedSessionKey {
+        final long mMasterKeyId;
+        final long mSubKeyId;
+        final byte[] mSessionData;
+        final long mExpiry;
+
+        CachedSessionKey(long masterKeyId, long subKeyId, byte[] sessionData, long expiry) {
+            mMasterKeyId = masterKeyId;
+            mSubKeyId = subKeyId;
+            mSessionData = sessionData;
+            mExpiry = expiry;
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() >= mExpiry;
+        }
+
+        void clear() {
+            Arrays.fill(mSessionData, (byte) 0);
+        }
+    }
+
+}
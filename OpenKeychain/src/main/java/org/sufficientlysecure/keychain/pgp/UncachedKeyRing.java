@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -27,13 +28,14 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 import android.support.annotation.VisibleForTesting;
 
@@ -54,7 +56,6 @@ import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
-import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
@@ -166,7 +167,11 @@ public class UncachedKeyRing {
 
     }
 
-    public static IteratorWithIOThrow<UncachedKeyRing> fromStream(final InputStream stream) {
+    public static IteratorWithIOThrow<UncachedKeyRing> fromStream(InputStream in) {
+
+        // every armored block is read from the same buffered stream, so nothing that was read
+        // ahead of the end of one block is lost for the next
+        final InputStream stream = in.markSupported() ? in : new BufferedInputStream(in);
 
         return new IteratorWithIOThrow<UncachedKeyRing>() {
 
@@ -182,7 +187,7 @@ public class UncachedKeyRing {
                     while (stream.available() > 0) {
                         // if there are no objects left from the last factory, create a new one
                         if (mObjectFactory == null) {
-                            InputStream in = PGPUtil.getDecoderStream(stream);
+                            InputStream in = BlockArmoredInputStream.getDecoderStream(stream);
                             mObjectFactory = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
                         }
 
@@ -231,7 +236,7 @@ public class UncachedKeyRing {
         public E next() throws IOException;
     }
     public void encodeArmored(OutputStream out, String version) throws IOException {
-        ArmoredOutputStream aos = new ArmoredOutputStream(out);
+        ArmoredOutputStream aos = new BlockArmoredOutputStream(out);
         if (version != null) {
             aos.setHeader("Version", version);
         }
@@ -323,6 +328,8 @@ public class UncachedKeyRing {
      *  - If the key is a secret key, remove all certificates by foreign keys
      *  - If no valid user id remains, log an error and return null
      *
+     * Self-certificates are verified up front, in parallel for keys which have many of them.
+     *
      * This operation writes an OperationLog which can be used as part of an OperationResultParcel.
      *
      * @param forExport if this is true, non-exportable signatures will be removed
@@ -359,6 +366,9 @@ public class UncachedKeyRing {
             return null;
         }
 
+        SelfCertificationVerifier selfCertVerifier = queueSelfCertifications(mRing, masterKey);
+        selfCertVerifier.verifyAll();
+
         {
             log.add(LogType.MSG_KC_MASTER,
                     indent, KeyFormattingUtils.convertKeyIdToHex(masterKey.getKeyID()));
@@ -400,8 +410,7 @@ public class UncachedKeyRing {
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
+                    if (!selfCertVerifier.verify(zert)) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
                         modified = PGPPublicKey.removeCertification(modified, zert);
                         badCerts += 1;
@@ -557,8 +566,7 @@ public class UncachedKeyRing {
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
+                            if (!selfCertVerifier.verify(zert)) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
@@ -722,8 +730,7 @@ public class UncachedKeyRing {
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
+                                if (!selfCertVerifier.verify(zert)) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
@@ -912,8 +919,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!selfCertVerifier.verify(zert)) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1009,8 +1015,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!selfCertVerifier.verify(zert)) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1090,6 +1095,124 @@ public class UncachedKeyRing {
                           : new CanonicalizedPublicKeyRing((PGPPublicKeyRing) ring, 0);
     }
 
+    /** Queues all certificates which canonicalize() may verify against the master key. */
+    private static SelfCertificationVerifier queueSelfCertifications(PGPKeyRing ring, PGPPublicKey masterKey) {
+        SelfCertificationVerifier verifier = new SelfCertificationVerifier(masterKey);
+        long masterKeyId = masterKey.getKeyID();
+
+        for (PGPSignature zert : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
+            int type = zert.getSignatureType();
+            if (type == PGPSignature.KEY_REVOCATION || type == PGPSignature.DIRECT_KEY) {
+                verifier.addKeySignature(zert);
+            }
+        }
+
+        for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForID(rawUserId);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() == masterKeyId && isCertificationType(zert.getSignatureType())) {
+                    verifier.addUserIdCertification(zert, rawUserId);
+                }
+            }
+        }
+
+        for (PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForUserAttribute(userAttribute);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() == masterKeyId && isCertificationType(zert.getSignatureType())) {
+                    verifier.addUserAttributeCertification(zert, userAttribute);
+                }
+            }
+        }
+
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                int type = zert.getSignatureType();
+                if (zert.getKeyID() == masterKeyId
+                        && (type == PGPSignature.SUBKEY_BINDING || type == PGPSignature.SUBKEY_REVOCATION)) {
+                    verifier.addSubkeyCertification(zert, key);
+                }
+            }
+        }
+
+        return verifier;
+    }
+
+    private static boolean isCertificationType(int type) {
+        return type == PGPSignature.DEFAULT_CERTIFICATION
+                || type == PGPSignature.NO_CERTIFICATION
+                || type == PGPSignature.CASUAL_CERTIFICATION
+                || type == PGPSignature.POSITIVE_CERTIFICATION
+                || type == PGPSignature.CERTIFICATION_REVOCATION;
+    }
+
+    /** Removes a set of certificates from the user ids and user attributes of a key.
+     *
+     * Removing certificates one by one copies the key every time, which is quadratic for many
+     * of them. Instead, each user id is removed and re-added with the certificates it keeps,
+     * in original order. User attributes are re-added after user ids.
+     */
+    private static PGPPublicKey removeCertifications(PGPPublicKey key, Set<PGPSignature> certs) {
+        ArrayList<byte[]> rawUserIds = new ArrayList<>();
+        ArrayList<List<PGPSignature>> userIdCerts = new ArrayList<>();
+        for (byte[] rawUserId : new IterableIterator<byte[]>(key.getRawUserIDs())) {
+            rawUserIds.add(rawUserId);
+            userIdCerts.add(keptCertifications(key.getSignaturesForID(rawUserId), certs));
+        }
+        ArrayList<PGPUserAttributeSubpacketVector> userAttributes = new ArrayList<>();
+        ArrayList<List<PGPSignature>> userAttributeCerts = new ArrayList<>();
+        for (PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(key.getUserAttributes())) {
+            userAttributes.add(userAttribute);
+            userAttributeCerts.add(keptCertifications(key.getSignaturesForUserAttribute(userAttribute), certs));
+        }
+
+        for (byte[] rawUserId : rawUserIds) {
+            key = PGPPublicKey.removeCertification(key, rawUserId);
+        }
+        for (PGPUserAttributeSubpacketVector userAttribute : userAttributes) {
+            key = PGPPublicKey.removeCertification(key, userAttribute);
+        }
+
+        for (int i = 0; i < rawUserIds.size(); i++) {
+            for (PGPSignature cert : userIdCerts.get(i)) {
+                key = PGPPublicKey.addCertification(key, rawUserIds.get(i), cert);
+            }
+        }
+        for (int i = 0; i < userAttributes.size(); i++) {
+            for (PGPSignature cert : userAttributeCerts.get(i)) {
+                key = PGPPublicKey.addCertification(key, userAttributes.get(i), cert);
+            }
+        }
+
+        return key;
+    }
+
+    private static List<PGPSignature> keptCertifications(Iterator<?> signaturesIt, Set<PGPSignature> removed) {
+        ArrayList<PGPSignature> kept = new ArrayList<>();
+        if (signaturesIt != null) {
+            while (signaturesIt.hasNext()) {
+                PGPSignature cert = (PGPSignature) signaturesIt.next();
+                if (!removed.contains(cert)) {
+                    kept.add(cert);
+                }
+            }
+        }
+        return kept;
+    }
+
     /** This operation merges information from a different keyring, returning a combined
      * UncachedKeyRing.
      *
@@ -1117,21 +1240,7 @@ public class UncachedKeyRing {
         }
 
         // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
+        Set<EncodedCert> certs = new HashSet<>();
 
         try {
             PGPKeyRing result = mRing;
@@ -1140,7 +1249,7 @@ public class UncachedKeyRing {
             // Pre-load all existing certificates
             for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
                 for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                    certs.add(cert.getEncoded());
+                    certs.add(new EncodedCert(cert));
                 }
             }
 
@@ -1173,12 +1282,10 @@ public class UncachedKeyRing {
                         continue;
                     }
 
-                    byte[] encoded = cert.getEncoded();
                     // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    if (!certs.add(new EncodedCert(cert))) {
                         continue;
                     }
-                    certs.add(encoded);
                     modified = PGPPublicKey.addCertification(modified, cert);
                     newCerts += 1;
                 }
@@ -1204,13 +1311,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(new EncodedCert(cert))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
                     }
                 }
@@ -1229,13 +1334,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(new EncodedCert(cert))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, vector, cert);
                     }
                 }
@@ -1263,6 +1366,129 @@ public class UncachedKeyRing {
 
     }
 
+    /** Returns the number of certificates on user ids and user attributes by foreign keys. */
+    public int getThirdPartyCertificationCount() {
+        int count = 0;
+        long masterKeyId = getMasterKeyId();
+        for (PGPSignature cert : new IterableIterator<PGPSignature>(mRing.getPublicKey().getSignatures())) {
+            if (cert.getKeyID() != masterKeyId && isCertificationType(cert.getSignatureType())) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /** Returns the distinct ids of all foreign keys which certified user ids or user attributes. */
+    public long[] getThirdPartyCertifierIds() {
+        Set<Long> certifierIds = new HashSet<>();
+        long masterKeyId = getMasterKeyId();
+        for (PGPSignature cert : new IterableIterator<PGPSignature>(mRing.getPublicKey().getSignatures())) {
+            if (cert.getKeyID() != masterKeyId && isCertificationType(cert.getSignatureType())) {
+                certifierIds.add(cert.getKeyID());
+            }
+        }
+
+        long[] result = new long[certifierIds.size()];
+        int i = 0;
+        for (long certifierId : certifierIds) {
+            result[i++] = certifierId;
+        }
+        return result;
+    }
+
+    /** Defers certificates by unknown keys beyond a budget to later updates of this keyring.
+     *
+     * Keys can carry any number of certificates by foreign keys, which all cost time on merge,
+     * canonicalization and save. Of the certificates on user ids and user attributes which are
+     * by foreign keys and not part of the existing keyring yet, this keeps the first maxNewCerts
+     * in keyring order, and all those by one of knownKeyIds. The others are left out of the
+     * returned keyring. Since they are not stored, they are new again on the next update of this
+     * keyring, and taken in then within the same budget. Certificates of the existing keyring
+     * are never deferred, so merging this afterwards loses none of them.
+     *
+     * @param existingRing the stored version of this keyring, or null if there is none
+     * @param knownKeyIds ids of keys whose certificates are never deferred
+     * @return this keyring, or a copy of it without the deferred certificates
+     */
+    public UncachedKeyRing deferThirdPartyCertifications(UncachedKeyRing existingRing, int maxNewCerts,
+            Set<Long> knownKeyIds, OperationLog log, int indent) {
+        if (isSecret()) {
+            return this;
+        }
+
+        long masterKeyId = getMasterKeyId();
+        PGPPublicKey masterKey = mRing.getPublicKey();
+
+        // existing certificates, and new ones we already counted
+        Set<EncodedCert> certs = new HashSet<>();
+        Set<PGPSignature> deferredCerts = Collections.newSetFromMap(new IdentityHashMap<PGPSignature, Boolean>());
+        int newCerts = 0;
+
+        try {
+            if (existingRing != null) {
+                for (PGPSignature cert :
+                        new IterableIterator<PGPSignature>(existingRing.mRing.getPublicKey().getSignatures())) {
+                    certs.add(new EncodedCert(cert));
+                }
+            }
+
+            for (PGPSignature cert : new IterableIterator<PGPSignature>(masterKey.getSignatures())) {
+                long certId = cert.getKeyID();
+                if (certId == masterKeyId || knownKeyIds.contains(certId)
+                        || !isCertificationType(cert.getSignatureType())) {
+                    continue;
+                }
+                // existing cert or a duplicate, merge takes care of these
+                if (!certs.add(new EncodedCert(cert))) {
+                    continue;
+                }
+                if (newCerts < maxNewCerts) {
+                    newCerts += 1;
+                } else {
+                    deferredCerts.add(cert);
+                }
+            }
+        } catch (IOException e) {
+            // leave it to merge to report this
+            return this;
+        }
+
+        if (deferredCerts.isEmpty()) {
+            return this;
+        }
+
+        log.add(LogType.MSG_MG_FOREIGN_DEFERRED, indent,
+                Integer.toString(deferredCerts.size()), Integer.toString(newCerts));
+        return new UncachedKeyRing(replacePublicKey(mRing, removeCertifications(masterKey, deferredCerts)));
+    }
+
+    /** A certificate in encoded form, as element of a hash set.
+     *
+     * Equality is decided on the full encoding, the hash code only speeds up lookups. It is
+     * computed once, where a sorted set would compare the (mostly shared) prefixes of
+     * encodings over and over.
+     */
+    private static final class EncodedCert {
+        private final byte[] mEncoded;
+        private final int mHashCode;
+
+        EncodedCert(PGPSignature cert) throws IOException {
+            mEncoded = cert.getEncoded();
+            mHashCode = Arrays.hashCode(mEncoded);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof EncodedCert && mHashCode == ((EncodedCert) other).mHashCode
+                    && Arrays.equals(mEncoded, ((EncodedCert) other).mEncoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
     public UncachedKeyRing extractPublicKeyRing() throws IOException {
         if(!isSecret()) {
             throw new RuntimeException("Tried to extract public keyring from non-secret keyring. " +
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
+
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+
+/**
+ * In-memory cache of unlocked private keys, for passphrases obtained from the
+ * {@link PassphraseCacheService}.
+ * <p/>
+ * Unlocking a secret key runs the S2K derivation and decrypts the key material, which is
+ * expensive. With this cache enabled in the preferences, keys are unlocked only once as long as
+ * their passphrase stays in the passphrase cache. An entry only matches the exact passphrase and
+ * secret key it was unlocked from, and is only ever used after its passphrase was successfully
+ * retrieved from the passphrase cache, so it can't outlive the passphrase. Entries are also
+ * dropped immediately when the passphrase cache times out or clears the passphrase, which it
+ * announces by broadcast since it runs in a different process.
+ */
+public class UnlockedKeyCache {
+
+    private static UnlockedKeyCache sInstance;
+
+    private final Context mContext;
+    private final byte[] mSalt;
+    private final LongSparseArray<CachedKey> mCachedKeys = new LongSparseArray<>();
+
+    public static synchronized UnlockedKeyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UnlockedKeyCache(context.getApplicationContext());
+            sInstance.registerReceiver();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    UnlockedKeyCache(Context context) {
+        mContext = context;
+        mSalt = new byte[32];
+        new SecureRandom().nextBytes(mSalt);
+    }
+
+    private void registerReceiver() {
+        IntentFilter filter = new IntentFilter(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasExtra(PassphraseCacheService.EXTRA_KEY_ID)) {
+                    invalidate(intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, 0L));
+                } else {
+                    invalidateAll();
+                }
+            }
+        }, filter);
+    }
+
+    /**
+     * Unlocks a secret key with a passphrase that was obtained from the passphrase cache,
+     * reusing a previously unlocked private key if possible. Passphrases from any other
+     * source must be used with {@link CanonicalizedSecretKey#unlock} directly.
+     *
+     * @return true on right passphrase
+     */
+    public boolean unlockWithCachedPassphrase(CanonicalizedSecretKey secretKey, Passphrase passphrase)
+            throws PgpGeneralException {
+        if (!Preferences.getPreferences(mContext).getPassphraseCacheUnlockedKeys()) {
+            // the cache may have been turned off since
+            if (size() > 0) {
+                invalidateAll();
+            }
+            return secretKey.unlock(passphrase);
+        }
+
+        long keyId = secretKey.getKeyId();
+        byte[] digest = digestSecretKeyAndPassphrase(secretKey, passphrase);
+        synchronized (mCachedKeys) {
+            CachedKey cachedKey = mCachedKeys.get(keyId);
+            if (cachedKey != null && MessageDigest.isEqual(cachedKey.mDigest, digest)) {
+                secretKey.setUnlockedPrivateKey(cachedKey.mPrivateKey);
+                return true;
+            }
+        }
+
+        if (!secretKey.unlock(passphrase)) {
+            return false;
+        }
+
+        PGPPrivateKey privateKey = secretKey.getUnlockedPrivateKey();
+        if (privateKey != null) {
+            long masterKeyId = secretKey.getRing().getMasterKeyId();
+            synchronized (mCachedKeys) {
+                mCachedKeys.put(keyId, new CachedKey(masterKeyId, privateKey, digest));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops all keys cached under this key id. This may be either a subkey id or a master key
+     * id, depending on how passphrases are cached.
+     */
+    public void invalidate(long keyId) {
+        synchronized (mCachedKeys) {
+            for (int i = mCachedKeys.size() - 1; i >= 0; i--) {
+                if (mCachedKeys.keyAt(i) == keyId || mCachedKeys.valueAt(i).mMasterKeyId == keyId) {
+                    mCachedKeys.removeAt(i);
+                }
+            }
+        }
+        Log.d(Constants.TAG, "Dropped unlocked keys for key id " + keyId);
+    }
+
+    public void invalidateAll() {
+        synchronized (mCachedKeys) {
+            mCachedKeys.clear();
+        }
+        Log.d(Constants.TAG, "Dropped all unlocked keys");
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (mCachedKeys) {
+            return mCachedKeys.size();
+        }
+    }
+
+    /**
+     * Salted digest identifying a combination of secret key and passphrase. The iv changes
+     * whenever the key is encrypted anew, e.g. on a change of passphrase.
+     */
+    private byte[] digestSecretKeyAndPassphrase(CanonicalizedSecretKey secretKey, Passphrase passphrase) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(mSalt);
+            digest.update(ByteBuffer.allocate(8).putLong(secretKey.getKeyId()).array());
+            byte[] iv = secretKey.getIv();
+            if (iv != null) {
+                digest.update(iv);
+            }
+            ByteBuffer passphraseBytes = Charset.forName("UTF-8").encode(CharBuffer.wrap(passphrase.getCharArray()));
+            digest.update(passphraseBytes);
+            // don't leave a copy of the passphrase lying around
+            if (passphraseBytes.hasArray()) {
+                Arrays.fill(passphraseBytes.array(), (byte) 0);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 must be available!");
+        }
+    }
+
+    private static class CachedKey {
+        final long mMasterKeyId;
+        final PGPPrivateKey mPrivateKey;
+        final byte[] mDigest;
+
+        CachedKey(long masterKeyId, PGPPrivateKey privateKey, byte[] digest) {
+            mMasterKeyId = masterKeyId;
+            mPrivateKey = privateKey;
+            mDigest = digest;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * A process-wide cache of parsed keyrings, keyed by master key id.
+ * <p>
+ * Both public and secret keyrings are held in least-recently-used order, and evicted once the
+ * total size of their encoded blobs exceeds a fixed budget. Entries are invalidated directly by
+ * KeyWritableRepository when a keyring is saved or deleted, and through a ContentObserver for
+ * changes made by other processes.
+ */
+public class CanonicalizedKeyRingCache {
+    private static final int MAX_PUBLIC_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_SECRET_CACHE_BYTES = 512 * 1024;
+
+    private static CanonicalizedKeyRingCache sInstance;
+
+    private final ByteSizedLruCache<CanonicalizedPublicKeyRing> mPublicKeyRings =
+            new ByteSizedLruCache<>(MAX_PUBLIC_CACHE_BYTES);
+    private final ByteSizedLruCache<CanonicalizedSecretKeyRing> mSecretKeyRings =
+            new ByteSizedLruCache<>(MAX_SECRET_CACHE_BYTES);
+
+    private long mHitCount;
+    private long mMissCount;
+    // incremented on every invalidation, to keep concurrent readers from caching stale data
+    private long mGeneration;
+
+    public static synchronized CanonicalizedKeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CanonicalizedKeyRingCache();
+            sInstance.registerObserver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CanonicalizedKeyRingCache() {
+    }
+
+    private void registerObserver(Context context) {
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        // no uri available before api level 16, play it safe
+                        invalidateAll();
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        invalidateByUri(uri);
+                    }
+                });
+    }
+
+    synchronized CanonicalizedPublicKeyRing getPublicKeyRing(long masterKeyId, int verified) {
+        return countHitOrMiss(mPublicKeyRings.get(masterKeyId, verified));
+    }
+
+    synchronized CanonicalizedSecretKeyRing getSecretKeyRing(long masterKeyId, int verified) {
+        return countHitOrMiss(mSecretKeyRings.get(masterKeyId, verified));
+    }
+
+    /**
+     * Returns the current generation of the cache. This must be obtained before reading a keyring
+     * from the database, and passed back when putting it into the cache.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void putPublicKeyRing(CanonicalizedPublicKeyRing keyRing, int encodedSize, long generation) {
+        if (generation == mGeneration) {
+            mPublicKeyRings.put(keyRing.getMasterKeyId(), keyRing, encodedSize);
+        }
+    }
+
+    synchronized void putSecretKeyRing(CanonicalizedSecretKeyRing keyRing, int encodedSize, long generation) {
+        if (generation == mGeneration) {
+            mSecretKeyRings.put(keyRing.getMasterKeyId(), keyRing, encodedSize);
+        }
+    }
+
+    /** Drops both the public and secret keyring for this master key id, if cached. */
+    synchronized void invalidate(long masterKeyId) {
+        mGeneration += 1;
+        mPublicKeyRings.remove(masterKeyId);
+        mSecretKeyRings.remove(masterKeyId);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration += 1;
+        mPublicKeyRings.clear();
+        mSecretKeyRings.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private void invalidateByUri(Uri uri) {
+        // notifications for a specific keyring are of the form key_rings/<master_key_id>[/...]
+        List<String> pathSegments = uri != null ? uri.getPathSegments() : null;
+        if (pathSegments != null && pathSegments.size() >= 2) {
+            try {
+                invalidate(Long.parseLong(pathSegments.get(1)));
+                return;
+            } catch (NumberFormatException e) {
+                // not a specific keyring, fall through
+            }
+        }
+        invalidateAll();
+    }
+
+    private <T> T countHitOrMiss(T result) {
+        if (result != null) {
+            mHitCount += 1;
+        } else {
+            mMissCount += 1;
+        }
+        if (Constants.DEBUG && ((mHitCount + mMissCount) % 100) == 0) {
+            Log.d(Constants.TAG, "keyring cache: " + mHitCount + " hits, " + mMissCount + " misses");
+        }
+        return result;
+    }
+
+    /** A map in access order which evicts its eldest entries once a total byte size is exceeded. */
+    private static class ByteSizedLruCache<T extends CanonicalizedKeyRing> {
+        private final LinkedHashMap<Long, CacheEntry<T>> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int mMaxBytes;
+        private int mTotalBytes;
+
+        ByteSizedLruCache(int maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        T get(long masterKeyId, int verified) {
+            CacheEntry<T> entry = mEntries.get(masterKeyId);
+            if (entry == null) {
+                return null;
+            }
+            // the verification status is stored in the keyring object, but not in its blob
+            if (entry.mKeyRing.getVerified() != verified) {
+                remove(masterKeyId);
+                return null;
+            }
+            return entry.mKeyRing;
+        }
+
+        void put(long masterKeyId, T keyRing, int size) {
+            remove(masterKeyId);
+            // don't let a single huge keyring flush the entire cache
+            if (size > mMaxBytes / 4) {
+                return;
+            }
+            mEntries.put(masterKeyId, new CacheEntry<>(keyRing, size));
+            mTotalBytes += size;
+
+            Iterator<Entry<Long, CacheEntry<T>>> it = mEntries.entrySet().iterator();
+            while (mTotalBytes > mMaxBytes && it.hasNext()) {
+                mTotalBytes -= it.next().getValue().mSize;
+                it.remove();
+            }
+        }
+
+        void remove(long masterKeyId) {
+            CacheEntry<T> entry = mEntries.remove(masterKeyId);
+            if (entry != null) {
+                mTotalBytes -= entry.mSize;
+            }
+        }
+
+        void clear() {
+            mEntries.clear();
+            mTotalBytes = 0;
+        }
+    }
+
+    private static class CacheEntry<T> {
+        final T mKeyRing;
+        final int mSize;
+
+        CacheEntry(T keyRing, int size) {
+            mKeyRing = keyRing;
+            mSize = size;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import android.content.ContentResolver;
 import android.content.Context;
@@ -39,24 +40,28 @@ public class KeyRepository {
 
     final ContentResolver mContentResolver;
     final LocalPublicKeyStorage mLocalPublicKeyStorage;
+    final CanonicalizedKeyRingCache mKeyRingCache;
     OperationLog mLog;
     int mIndent;
 
     public static KeyRepository createDatabaseInteractor(Context context) {
         ContentResolver contentResolver = context.getContentResolver();
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
+        CanonicalizedKeyRingCache keyRingCache = CanonicalizedKeyRingCache.getInstance(context);
 
-        return new KeyRepository(contentResolver, localPublicKeyStorage);
+        return new KeyRepository(contentResolver, localPublicKeyStorage, keyRingCache);
     }
 
-    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage) {
-        this(contentResolver, localPublicKeyStorage, new OperationLog(), 0);
+    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
+            CanonicalizedKeyRingCache keyRingCache) {
+        this(contentResolver, localPublicKeyStorage, keyRingCache, new OperationLog(), 0);
     }
 
     KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
-            OperationLog log, int indent) {
+            CanonicalizedKeyRingCache keyRingCache, OperationLog log, int indent) {
         mContentResolver = contentResolver;
         mLocalPublicKeyStorage = localPublicKeyStorage;
+        mKeyRingCache = keyRingCache;
         mIndent = indent;
         mLog = log;
     }
@@ -168,15 +173,12 @@ public class KeyRepository {
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
+        long cacheGeneration = mKeyRingCache.getGeneration();
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED }, null, null, null);
         try {
             if (cursor != null && cursor.moveToFirst()) {
-                long masterKeyId = cursor.getLong(0);
-                int verified = cursor.getInt(1);
-
-                byte[] publicKeyData = loadPublicKeyRingData(masterKeyId);
-                return new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                return loadCanonicalizedPublicKeyRing(cursor.getLong(0), cursor.getInt(1), cacheGeneration);
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -187,11 +189,136 @@ public class KeyRepository {
         }
     }
 
+    /**
+     * Returns the key rings containing any of the given subkeys, looked up in a single query.
+     * Subkeys without a key ring in the database are skipped.
+     */
+    public List<CanonicalizedPublicKeyRing> getCanonicalizedPublicKeyRingsBySubkeyIds(long[] subKeyIds) {
+        ArrayList<CanonicalizedPublicKeyRing> keyRings = new ArrayList<>();
+        if (subKeyIds.length == 0) {
+            return keyRings;
+        }
+
+        long cacheGeneration = mKeyRingCache.getGeneration();
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsFindBySubkeysUri(subKeyIds),
+                new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED }, null, null, null);
+        if (cursor == null) {
+            return keyRings;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                try {
+                    keyRings.add(loadCanonicalizedPublicKeyRing(cursor.getLong(0), cursor.getInt(1), cacheGeneration));
+                } catch (NotFoundException e) {
+                    Log.e(Constants.TAG, "Key ring data missing for indexed key!", e);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return keyRings;
+    }
+
+    /**
+     * Returns the key rings with the given master key ids by master key id, looked up in a single
+     * query. Key ring data that isn't cached is loaded in one more query. Key rings which aren't
+     * in the database are left out.
+     */
+    public HashMap<Long, CanonicalizedPublicKeyRing> getCanonicalizedPublicKeyRings(long[] masterKeyIds) {
+        HashMap<Long, CanonicalizedPublicKeyRing> keyRings = new HashMap<>();
+        if (masterKeyIds.length == 0) {
+            return keyRings;
+        }
+
+        long cacheGeneration = mKeyRingCache.getGeneration();
+        HashMap<Long, Integer> uncachedVerified = new HashMap<>();
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED },
+                KeyRings.MASTER_KEY_ID + " IN (" + joinKeyIds(masterKeyIds) + ")", null, null);
+        if (cursor == null) {
+            return keyRings;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                int verified = cursor.getInt(1);
+                CanonicalizedPublicKeyRing keyRing = mKeyRingCache.getPublicKeyRing(masterKeyId, verified);
+                if (keyRing != null) {
+                    keyRings.put(masterKeyId, keyRing);
+                } else {
+                    uncachedVerified.put(masterKeyId, verified);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (uncachedVerified.isEmpty()) {
+            return keyRings;
+        }
+
+        long[] uncachedMasterKeyIds = new long[uncachedVerified.size()];
+        int i = 0;
+        for (long masterKeyId : uncachedVerified.keySet()) {
+            uncachedMasterKeyIds[i++] = masterKeyId;
+        }
+        cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                new String[] { KeyRingData.MASTER_KEY_ID, KeyRingData.KEY_RING_DATA },
+                KeyRingData.MASTER_KEY_ID + " IN (" + joinKeyIds(uncachedMasterKeyIds) + ")", null, null);
+        if (cursor == null) {
+            return keyRings;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                int verified = uncachedVerified.get(masterKeyId);
+                try {
+                    byte[] publicKeyData = cursor.isNull(1) ? null : cursor.getBlob(1);
+                    if (publicKeyData == null) {
+                        // large key rings are kept in local storage instead
+                        publicKeyData = loadPublicKeyRingData(masterKeyId);
+                    }
+                    CanonicalizedPublicKeyRing keyRing = new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                    mKeyRingCache.putPublicKeyRing(keyRing, publicKeyData.length, cacheGeneration);
+                    keyRings.put(masterKeyId, keyRing);
+                } catch (NotFoundException e) {
+                    Log.e(Constants.TAG, "Key ring data missing for indexed key!", e);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return keyRings;
+    }
+
+    static String joinKeyIds(long[] keyIds) {
+        StringBuilder keyIdList = new StringBuilder();
+        for (long keyId : keyIds) {
+            if (keyIdList.length() > 0) {
+                keyIdList.append(", ");
+            }
+            keyIdList.append(keyId);
+        }
+        return keyIdList.toString();
+    }
+
+    private CanonicalizedPublicKeyRing loadCanonicalizedPublicKeyRing(long masterKeyId, int verified,
+            long cacheGeneration) throws NotFoundException {
+        CanonicalizedPublicKeyRing keyRing = mKeyRingCache.getPublicKeyRing(masterKeyId, verified);
+        if (keyRing == null) {
+            byte[] publicKeyData = loadPublicKeyRingData(masterKeyId);
+            keyRing = new CanonicalizedPublicKeyRing(publicKeyData, verified);
+            mKeyRingCache.putPublicKeyRing(keyRing, publicKeyData.length, cacheGeneration);
+        }
+        return keyRing;
+    }
+
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long id) throws NotFoundException {
         return getCanonicalizedSecretKeyRing(KeyRings.buildUnifiedKeyRingUri(id));
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(Uri queryUri) throws NotFoundException {
+        long cacheGeneration = mKeyRingCache.getGeneration();
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED, KeyRings.HAS_ANY_SECRET }, null, null, null);
         try {
@@ -203,8 +330,13 @@ public class KeyRepository {
                     throw new NotFoundException("No secret key available or unknown public key!");
                 }
 
-                byte[] secretKeyData = loadSecretKeyRingData(masterKeyId);
-                return new CanonicalizedSecretKeyRing(secretKeyData, verified);
+                CanonicalizedSecretKeyRing keyRing = mKeyRingCache.getSecretKeyRing(masterKeyId, verified);
+                if (keyRing == null) {
+                    byte[] secretKeyData = loadSecretKeyRingData(masterKeyId);
+                    keyRing = new CanonicalizedSecretKeyRing(secretKeyData, verified);
+                    mKeyRingCache.putSecretKeyRing(keyRing, secretKeyData.length, cacheGeneration);
+                }
+                return keyRing;
             } else {
                 throw new NotFoundException("Key not found!");
             }
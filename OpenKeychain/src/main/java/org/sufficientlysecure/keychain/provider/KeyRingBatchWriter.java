@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Collects the database operations of many keyrings, and writes them from a single thread in
+ * transactions of a configurable number of keyrings each.
+ * <p>
+ * Keyrings are queued by KeyWritableRepository in batch mode, while merging and canonicalization
+ * of the next keyrings can continue on any number of threads. If a transaction fails, its keyrings
+ * are retried one by one, so a single broken keyring does not take down the rest of its batch.
+ * Master key ids that could not be written are returned by {@link #finish()}. Work outside of the
+ * database which depends on a keyring being written, like storing it in local storage, is passed
+ * along as a {@link PostWriteAction}, and done only once its transaction is committed.
+ * <p>
+ * Before reading the existing state of a keyring from the database, callers must make sure it is
+ * not still waiting to be written, using {@link #awaitWritten(long)}.
+ */
+public class KeyRingBatchWriter {
+    // number of submitted batches waiting for the writer, before producers are blocked
+    private static final int MAX_PENDING_BATCHES = 2;
+
+    interface PostWriteAction {
+        /** Called on the writer thread, after the operations of the keyring were committed. */
+        void run() throws IOException;
+    }
+
+    private final ContentResolver mContentResolver;
+    private final CanonicalizedKeyRingCache mKeyRingCache;
+    private final int mKeyRingsPerTransaction;
+    private final ExecutorService mWriterExecutor = Executors.newSingleThreadExecutor();
+
+    private ArrayList<QueuedKeyRing> mQueuedKeyRings = new ArrayList<>();
+    // number of queued or submitted, but not yet written, entries per master key id
+    private final HashMap<Long, Integer> mPendingMasterKeyIds = new HashMap<>();
+    // a keyring and its last updated time are queued separately, but must count as one failure
+    private final LinkedHashSet<Long> mFailedMasterKeyIds = new LinkedHashSet<>();
+    private int mPendingBatches;
+    private boolean mFinished;
+
+    KeyRingBatchWriter(ContentResolver contentResolver, CanonicalizedKeyRingCache keyRingCache,
+            int keyRingsPerTransaction) {
+        if (keyRingsPerTransaction < 1) {
+            throw new IllegalArgumentException("at least one keyring per transaction is required!");
+        }
+        mContentResolver = contentResolver;
+        mKeyRingCache = keyRingCache;
+        mKeyRingsPerTransaction = keyRingsPerTransaction;
+    }
+
+    /**
+     * Queues the operations of a single keyring. These are applied in order, and in the same
+     * transaction, after all previously queued operations.
+     */
+    void add(long masterKeyId, ArrayList<ContentProviderOperation> operations) {
+        add(masterKeyId, operations, new ArrayList<PostWriteAction>());
+    }
+
+    /**
+     * Same as add(long, ArrayList), and the given actions are run once the operations are written.
+     * If they are not, or if any action fails, the keyring counts as failed.
+     */
+    synchronized void add(long masterKeyId, ArrayList<ContentProviderOperation> operations,
+            List<PostWriteAction> postWriteActions) {
+        if (mFinished) {
+            throw new IllegalStateException("batch writer is already finished!");
+        }
+        mQueuedKeyRings.add(new QueuedKeyRing(masterKeyId, operations, postWriteActions));
+        Integer pending = mPendingMasterKeyIds.get(masterKeyId);
+        mPendingMasterKeyIds.put(masterKeyId, pending == null ? 1 : pending + 1);
+
+        if (mQueuedKeyRings.size() >= mKeyRingsPerTransaction) {
+            submitQueuedKeyRings();
+        }
+    }
+
+    /** Blocks until all operations queued so far for this master key id are written. */
+    public synchronized void awaitWritten(long masterKeyId) {
+        if (!mPendingMasterKeyIds.containsKey(masterKeyId)) {
+            return;
+        }
+        submitQueuedKeyRings();
+        boolean interrupted = false;
+        while (mPendingMasterKeyIds.containsKey(masterKeyId)) {
+            interrupted |= waitUninterruptibly();
+        }
+        restoreInterrupt(interrupted);
+    }
+
+    /** Blocks until all operations queued so far are written. */
+    public synchronized void flush() {
+        submitQueuedKeyRings();
+        boolean interrupted = false;
+        while (mPendingBatches > 0) {
+            interrupted |= waitUninterruptibly();
+        }
+        restoreInterrupt(interrupted);
+    }
+
+    /**
+     * Writes all remaining operations and stops the writer thread.
+     *
+     * @return master key ids of all keyrings which could not be written, each only once.
+     */
+    public synchronized List<Long> finish() {
+        flush();
+        mFinished = true;
+        mWriterExecutor.shutdown();
+        return new ArrayList<>(mFailedMasterKeyIds);
+    }
+
+    private void submitQueuedKeyRings() {
+        if (mQueuedKeyRings.isEmpty()) {
+            return;
+        }
+        // don't let producers run too far ahead of the database
+        boolean interrupted = false;
+        while (mPendingBatches >= MAX_PENDING_BATCHES) {
+            interrupted |= waitUninterruptibly();
+        }
+        restoreInterrupt(interrupted);
+
+        final ArrayList<QueuedKeyRing> batch = mQueuedKeyRings;
+        mQueuedKeyRings = new ArrayList<>();
+        mPendingBatches += 1;
+        mWriterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Long> failedMasterKeyIds = new ArrayList<>();
+                boolean done = false;
+                try {
+                    writeBatch(batch, failedMasterKeyIds);
+                    runPostWriteActions(batch, failedMasterKeyIds);
+                    done = true;
+                } finally {
+                    // waiting callers must be released no matter what happened to the batch
+                    if (!done) {
+                        for (QueuedKeyRing queuedKeyRing : batch) {
+                            failedMasterKeyIds.add(queuedKeyRing.mMasterKeyId);
+                        }
+                    }
+                    onBatchWritten(batch, failedMasterKeyIds);
+                }
+            }
+        });
+    }
+
+    private void writeBatch(ArrayList<QueuedKeyRing> batch, List<Long> failedMasterKeyIds) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (QueuedKeyRing queuedKeyRing : batch) {
+            operations.addAll(queuedKeyRing.mOperations);
+        }
+
+        try {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            return;
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.e(Constants.TAG, "batch of " + batch.size() + " keyrings failed, retrying one by one", e);
+        }
+
+        for (QueuedKeyRing queuedKeyRing : batch) {
+            try {
+                mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, queuedKeyRing.mOperations);
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                Log.e(Constants.TAG, "error writing keyring, skipping", e);
+                failedMasterKeyIds.add(queuedKeyRing.mMasterKeyId);
+            }
+        }
+    }
+
+    private void runPostWriteActions(ArrayList<QueuedKeyRing> batch, List<Long> failedMasterKeyIds) {
+        for (QueuedKeyRing queuedKeyRing : batch) {
+            if (failedMasterKeyIds.contains(queuedKeyRing.mMasterKeyId)) {
+                continue;
+            }
+            try {
+                for (PostWriteAction action : queuedKeyRing.mPostWriteActions) {
+                    action.run();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(Constants.TAG, "error after writing keyring", e);
+                failedMasterKeyIds.add(queuedKeyRing.mMasterKeyId);
+            }
+        }
+    }
+
+    private synchronized void onBatchWritten(ArrayList<QueuedKeyRing> batch, List<Long> failedMasterKeyIds) {
+        for (QueuedKeyRing queuedKeyRing : batch) {
+            long masterKeyId = queuedKeyRing.mMasterKeyId;
+            // someone may have read the keyring between queueing and writing
+            mKeyRingCache.invalidate(masterKeyId);
+
+            int pending = mPendingMasterKeyIds.get(masterKeyId);
+            if (pending > 1) {
+                mPendingMasterKeyIds.put(masterKeyId, pending - 1);
+            } else {
+                mPendingMasterKeyIds.remove(masterKeyId);
+            }
+        }
+        mFailedMasterKeyIds.addAll(failedMasterKeyIds);
+        mPendingBatches -= 1;
+        notifyAll();
+    }
+
+    /** Returns true if the wait was interrupted. */
+    private boolean waitUninterruptibly() {
+        try {
+            wait();
+            return false;
+        } catch (InterruptedException e) {
+            // the writer will always finish its batch, so just keep waiting for it
+            return true;
+        }
+    }
+
+    private static void restoreInterrupt(boolean interrupted) {
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class QueuedKeyRing {
+        final long mMasterKeyId;
+        final ArrayList<ContentProviderOperation> mOperations;
+        final List<PostWriteAction> mPostWriteActions;
+
+        QueuedKeyRing(long masterKeyId, ArrayList<ContentProviderOperation> operations,
+                List<PostWriteAction> postWriteActions) {
+            mMasterKeyId = masterKeyId;
+            mOperations = operations;
+            mPostWriteActions = postWriteActions;
+        }
+    }
+}
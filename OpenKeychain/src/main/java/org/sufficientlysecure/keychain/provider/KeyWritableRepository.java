@@ -20,13 +20,21 @@ package org.sufficientlysecure.keychain.provider;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
@@ -62,12 +70,14 @@ import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.KeyRingBatchWriter.PostWriteAction;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.IteratorWithSize;
@@ -88,9 +98,38 @@ import org.sufficientlysecure.keychain.util.Utf8Util;
  * method is called to start a new one specifically.
  */
 public class KeyWritableRepository extends KeyRepository {
-    private static final int MAX_CACHED_KEY_SIZE = 1024 * 50;
+    static final int MAX_CACHED_KEY_SIZE = 1024 * 50;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // shared by all instances, see getTrustedMasterKeys()
+    private static LongSparseArray<CanonicalizedPublicKey> sTrustedMasterKeys;
+    private static long sTrustedMasterKeysGeneration;
+
+    // number of key ids looked up per query, keeps statements well below sqlite's length limit
+    private static final int KEY_IDS_PER_QUERY = 500;
+
+    // columns of the rows built for each table, and those identifying a row within its keyring.
+    // columns not built here, like has_secret, are left alone by differential updates.
+    private static final String[] KEYS_ROW_COLUMNS = new String[] {
+            Keys.MASTER_KEY_ID, Keys.RANK, Keys.KEY_ID, Keys.KEY_SIZE, Keys.KEY_CURVE_OID, Keys.ALGORITHM,
+            Keys.FINGERPRINT, Keys.CAN_CERTIFY, Keys.CAN_ENCRYPT, Keys.CAN_SIGN, Keys.CAN_AUTHENTICATE,
+            Keys.IS_REVOKED, Keys.IS_SECURE, Keys.CREATION, Keys.EXPIRY
+    };
+    private static final String[] KEYS_ROW_KEY = new String[] { Keys.RANK };
+    private static final String[] USER_PACKETS_ROW_COLUMNS = new String[] {
+            UserPackets.MASTER_KEY_ID, UserPackets.TYPE, UserPackets.USER_ID, UserPackets.NAME,
+            UserPackets.EMAIL, UserPackets.EMAIL_NORMALIZED, UserPackets.COMMENT, UserPackets.ATTRIBUTE_DATA,
+            UserPackets.IS_PRIMARY, UserPackets.IS_REVOKED, UserPackets.RANK
+    };
+    private static final String[] USER_PACKETS_ROW_KEY = new String[] { UserPackets.RANK };
+    private static final String[] CERTS_ROW_COLUMNS = new String[] {
+            Certs.MASTER_KEY_ID, Certs.RANK, Certs.KEY_ID_CERTIFIER, Certs.TYPE, Certs.CREATION,
+            Certs.VERIFIED, Certs.DATA
+    };
+    private static final String[] CERTS_ROW_KEY = new String[] { Certs.RANK, Certs.KEY_ID_CERTIFIER };
 
     private final Context mContext;
+    private int mMaxNewThirdPartyCerts;
 
     public static KeyWritableRepository createDatabaseReadWriteInteractor(Context context) {
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
@@ -100,17 +139,51 @@ public class KeyWritableRepository extends KeyRepository {
 
     @VisibleForTesting
     KeyWritableRepository(Context context, LocalPublicKeyStorage localPublicKeyStorage) {
-        this(context, localPublicKeyStorage, new OperationLog(), 0);
+        this(context, localPublicKeyStorage, CanonicalizedKeyRingCache.getInstance(context), new OperationLog(), 0);
     }
 
-    private KeyWritableRepository(
-            Context context, LocalPublicKeyStorage localPublicKeyStorage, OperationLog log, int indent) {
-        super(context.getContentResolver(), localPublicKeyStorage, log, indent);
+    private KeyWritableRepository(Context context, LocalPublicKeyStorage localPublicKeyStorage,
+            CanonicalizedKeyRingCache keyRingCache, OperationLog log, int indent) {
+        super(context.getContentResolver(), localPublicKeyStorage, keyRingCache, log, indent);
 
         mContext = context;
     }
 
+    /**
+     * Creates a writer for bulk imports, which writes keyrings saved in batch mode in transactions
+     * of keyRingsPerTransaction keyrings each. The caller must call finish() on it when done.
+     */
+    public KeyRingBatchWriter createBatchWriter(int keyRingsPerTransaction) {
+        return new KeyRingBatchWriter(mContentResolver, mKeyRingCache, keyRingsPerTransaction);
+    }
+
+    /**
+     * Limits the number of new certificates by unknown keys which are taken from each public
+     * keyring on save, for imports from untrusted sources. Further ones are deferred to later
+     * saves of the same keyring, see UncachedKeyRing.deferThirdPartyCertifications. Zero, the
+     * default, means no limit.
+     */
+    public void setMaxNewThirdPartyCertifications(int maxNewCerts) {
+        mMaxNewThirdPartyCerts = maxNewCerts;
+    }
+
+    /**
+     * Returns the public keys of all secret keyrings, which are used to verify third-party
+     * certificates on save. Parsing these is expensive, so they are kept across saves until a
+     * secret keyring is written or deleted, or the set of secret keyrings changes in another
+     * process.
+     */
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        long generation;
+        synchronized (KeyWritableRepository.class) {
+            generation = sTrustedMasterKeysGeneration;
+        }
+
+        LongSparseArray<CanonicalizedPublicKey> cached = getCachedTrustedMasterKeys(generation);
+        if (cached != null) {
+            return cached;
+        }
+
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[] {
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
@@ -137,6 +210,11 @@ public class KeyWritableRepository extends KeyRepository {
                 }
             }
 
+            synchronized (KeyWritableRepository.class) {
+                if (generation == sTrustedMasterKeysGeneration) {
+                    sTrustedMasterKeys = result;
+                }
+            }
             return result;
         } finally {
             if (cursor != null) {
@@ -146,6 +224,86 @@ public class KeyWritableRepository extends KeyRepository {
 
     }
 
+    private LongSparseArray<CanonicalizedPublicKey> getCachedTrustedMasterKeys(long generation) {
+        LongSparseArray<CanonicalizedPublicKey> cached;
+        synchronized (KeyWritableRepository.class) {
+            cached = generation == sTrustedMasterKeysGeneration ? sTrustedMasterKeys : null;
+        }
+        if (cached == null) {
+            return null;
+        }
+
+        // secret keyrings may have been added or removed by another process. this is a lot
+        // cheaper to check than the unified query above, since it doesn't need any joins.
+        Cursor cursor = mContentResolver.query(KeyRingData.buildSecretKeyRingUri(),
+                new String[] { KeyRingData.MASTER_KEY_ID }, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (cursor.getCount() != cached.size()) {
+                return null;
+            }
+            while (cursor.moveToNext()) {
+                if (cached.indexOfKey(cursor.getLong(0)) < 0) {
+                    return null;
+                }
+            }
+            return cached;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Returns those of the given key ids which are master key ids of stored keyrings. */
+    private Set<Long> getKnownMasterKeyIds(long[] keyIds) {
+        Set<Long> knownIds = new HashSet<>();
+        for (int off = 0; off < keyIds.length; off += KEY_IDS_PER_QUERY) {
+            long[] chunk = Arrays.copyOfRange(keyIds, off, Math.min(off + KEY_IDS_PER_QUERY, keyIds.length));
+            Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                    new String[] { KeyRingData.MASTER_KEY_ID },
+                    KeyRingData.MASTER_KEY_ID + " IN (" + joinKeyIds(chunk) + ")", null, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    knownIds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return knownIds;
+    }
+
+    /**
+     * Defers new certificates by unknown keys beyond the limit set with
+     * setMaxNewThirdPartyCertifications. Certificates by stored keys, which includes our own, are
+     * always taken in.
+     */
+    private UncachedKeyRing deferThirdPartyCertifications(UncachedKeyRing publicRing, UncachedKeyRing oldPublicRing) {
+        // the known keys are only looked up for keyrings which may exceed the limit
+        if (mMaxNewThirdPartyCerts <= 0 || publicRing.getThirdPartyCertificationCount() <= mMaxNewThirdPartyCerts) {
+            return publicRing;
+        }
+        Set<Long> knownKeyIds = getKnownMasterKeyIds(publicRing.getThirdPartyCertifierIds());
+        return publicRing.deferThirdPartyCertifications(oldPublicRing, mMaxNewThirdPartyCerts, knownKeyIds,
+                mLog, mIndent);
+    }
+
+    static synchronized void invalidateTrustedMasterKeys() {
+        sTrustedMasterKeysGeneration += 1;
+        sTrustedMasterKeys = null;
+    }
+
+    /** Invalidates the trusted master keys only if they may contain the given one. */
+    private static synchronized void invalidateTrustedMasterKey(long masterKeyId) {
+        if (sTrustedMasterKeys == null || sTrustedMasterKeys.indexOfKey(masterKeyId) >= 0) {
+            invalidateTrustedMasterKeys();
+        }
+    }
+
     // bits, in order: CESA. make SURE these are correct, we will get bad log entries otherwise!!
     private static final LogType LOG_TYPES_FLAG_MASTER[] = new LogType[]{
             LogType.MSG_IP_MASTER_FLAGS_XXXX, LogType.MSG_IP_MASTER_FLAGS_CXXX,
@@ -173,12 +331,16 @@ public class KeyWritableRepository extends KeyRepository {
     /**
      * Saves an UncachedKeyRing of the public variant into the db.
      * <p/>
-     * This method will not delete all previous data for this masterKeyId from the database prior
-     * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
-     * and need to be saved externally to be preserved past the operation.
+     * The rows for keys, user ids and certificates are built from the keyring, and compared with
+     * those stored for a previous version of it. Only rows which actually changed are written,
+     * see appendKeyRingUpdateOperations. Secret keyrings are left untouched.
+     * <p/>
+     * If a batchWriter is given, the operations are queued there instead of being applied
+     * directly.
      */
     @SuppressWarnings("unchecked")
-    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted) {
+    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted,
+            KeyRingBatchWriter batchWriter) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
@@ -186,18 +348,18 @@ public class KeyWritableRepository extends KeyRepository {
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
+        byte[] encodedKey;
+        ArrayList<ContentValues> keysValues = new ArrayList<>();
+        ArrayList<ContentValues> userPacketsValues = new ArrayList<>();
+        ArrayList<ContentValues> certsValues = new ArrayList<>();
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
-            // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
-
             log(LogType.MSG_IP_INSERT_KEYRING);
             try {
-                writePublicKeyRing(keyRing, masterKeyId, operations);
+                encodedKey = keyRing.getEncoded();
             } catch (IOException e) {
                 log(LogType.MSG_IP_ENCODE_FAIL);
                 return SaveKeyringResult.RESULT_ERROR;
@@ -206,7 +368,6 @@ public class KeyWritableRepository extends KeyRepository {
             log(LogType.MSG_IP_INSERT_SUBKEYS);
             mIndent += 1;
             { // insert subkeys
-                Uri uri = Keys.buildKeysUri(masterKeyId);
                 int rank = 0;
                 for (CanonicalizedPublicKey key : keyRing.publicKeyIterator()) {
                     long keyId = key.getKeyId();
@@ -264,7 +425,7 @@ public class KeyWritableRepository extends KeyRepository {
                         }
                     }
 
-                    operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                    keysValues.add(values);
                     ++rank;
                     mIndent -= 1;
                 }
@@ -479,10 +640,10 @@ public class KeyWritableRepository extends KeyRepository {
             // iterate and put into db
             for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
                 UserPacketItem item = uids.get(userIdRank);
-                operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
+                userPacketsValues.add(buildUserIdValues(masterKeyId, item, userIdRank));
 
                 if (item.selfRevocation != null) {
-                    operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
+                    certsValues.add(buildCertValues(masterKeyId, userIdRank, item.selfRevocation,
                             Certs.VERIFIED_SELF));
                     // don't bother with trusted certs if the uid is revoked, anyways
                     continue;
@@ -492,7 +653,7 @@ public class KeyWritableRepository extends KeyRepository {
                     throw new AssertionError("User ids MUST be self-certified at this point!!");
                 }
 
-                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
+                certsValues.add(buildCertValues(masterKeyId, userIdRank, item.selfCert,
                         selfCertsAreTrusted ? Certs.VERIFIED_SECRET : Certs.VERIFIED_SELF));
 
                 // iterate over signatures
@@ -504,7 +665,7 @@ public class KeyWritableRepository extends KeyRepository {
                         continue;
                     }
                     // otherwise, build database operation
-                    operations.add(buildCertOperations(
+                    certsValues.add(buildCertValues(
                             masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
                 }
             }
@@ -517,28 +678,51 @@ public class KeyWritableRepository extends KeyRepository {
             mIndent -= 1;
         }
 
-        ContentProviderOperation lastUpdateReinsertOp = getLastUpdatedReinsertOperationByMasterKeyId(masterKeyId);
-        if (lastUpdateReinsertOp != null) {
-            operations.add(lastUpdateReinsertOp);
-        }
+        // the cached parsed keyrings are stale from here on, whatever happens below
+        mKeyRingCache.invalidate(masterKeyId);
 
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        ArrayList<PostWriteAction> postWriteActions = new ArrayList<>();
         try {
-            // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
+            boolean alreadyExists = appendKeyRingUpdateOperations(operations, postWriteActions,
+                    masterKeyId, encodedKey, keysValues, userPacketsValues, certsValues);
+            if (alreadyExists) {
                 result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
+        } catch (IOException e) {
+            log(LogType.MSG_IP_ERROR_IO_EXC);
+            Log.e(Constants.TAG, "IOException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
+        if (operations.isEmpty()) {
+            log(LogType.MSG_IP_DIFF_UNCHANGED);
+            log(LogType.MSG_IP_SUCCESS);
+            return result;
+        }
+
+        if (batchWriter != null) {
+            log(LogType.MSG_IP_QUEUE_BATCH);
+            batchWriter.add(masterKeyId, operations, postWriteActions);
+
+            log(LogType.MSG_IP_SUCCESS);
+            return result;
+        }
 
+        try {
             log(LogType.MSG_IP_APPLY_BATCH);
             mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            for (PostWriteAction action : postWriteActions) {
+                action.run();
+            }
 
             log(LogType.MSG_IP_SUCCESS);
             return result;
 
+        } catch (IOException e) {
+            log(LogType.MSG_IP_ERROR_IO_EXC);
+            Log.e(Constants.TAG, "IOException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
         } catch (RemoteException e) {
             log(LogType.MSG_IP_ERROR_REMOTE_EX);
             Log.e(Constants.TAG, "RemoteException during import", e);
@@ -551,36 +735,303 @@ public class KeyWritableRepository extends KeyRepository {
 
     }
 
-    private ContentProviderOperation getLastUpdatedReinsertOperationByMasterKeyId(long masterKeyId) {
-        Long lastUpdateTime = getLastUpdateTime(masterKeyId);
-        if (lastUpdateTime == null) {
-            return null;
+    /**
+     * Appends the operations which bring the stored rows of a public keyring up to date.
+     * <p/>
+     * Along with the keyring itself, a digest of its rows in each table is stored. Tables whose
+     * digest did not change are left alone. In all others, the stored rows are compared with the
+     * new ones, and only rows which were added, changed or removed are inserted, updated or
+     * deleted, see appendRowUpdateOperations. Unlike deleting the whole keyring, this leaves
+     * secret keyring and last updated time in place. No operations are appended if nothing
+     * changed at all.
+     * <p/>
+     * Keyrings too large for the database are kept in local storage instead. Changes to that are
+     * appended to postWriteActions, and must only be done once the operations are committed.
+     *
+     * @return true if a previous version of this keyring was stored.
+     */
+    private boolean appendKeyRingUpdateOperations(ArrayList<ContentProviderOperation> operations,
+            ArrayList<PostWriteAction> postWriteActions, long masterKeyId, byte[] encodedKey, ArrayList<ContentValues> keysValues,
+            ArrayList<ContentValues> userPacketsValues, ArrayList<ContentValues> certsValues)
+            throws IOException {
+        byte[] keyRingData = encodedKey.length < MAX_CACHED_KEY_SIZE ? encodedKey : null;
+        byte[] keysDigest = digestRows(keysValues);
+        byte[] userPacketsDigest = digestRows(userPacketsValues);
+        byte[] certsDigest = digestRows(certsValues);
+
+        ContentValues keyRingValues = new ContentValues();
+        keyRingValues.put(KeyRingData.KEY_RING_DATA, keyRingData);
+        keyRingValues.put(KeyRingData.KEYS_DIGEST, keysDigest);
+        keyRingValues.put(KeyRingData.USER_PACKETS_DIGEST, userPacketsDigest);
+        keyRingValues.put(KeyRingData.CERTS_DIGEST, certsDigest);
+
+        Uri keyRingUri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
+        Uri keysUri = Keys.buildKeysUri(masterKeyId);
+        Uri userPacketsUri = UserPackets.buildUserIdsUri(masterKeyId);
+        Uri certsUri = Certs.buildCertsUri(masterKeyId);
+        Uri keysRowsUri = KeyRingData.buildKeyRingRowsUri(masterKeyId, Tables.KEYS);
+        Uri userPacketsRowsUri = KeyRingData.buildKeyRingRowsUri(masterKeyId, Tables.USER_PACKETS);
+        Uri certsRowsUri = KeyRingData.buildKeyRingRowsUri(masterKeyId, Tables.CERTS);
+
+        Cursor cursor = mContentResolver.query(keyRingUri, new String[] {
+                KeyRingData.KEY_RING_DATA, KeyRingData.KEYS_DIGEST,
+                KeyRingData.USER_PACKETS_DIGEST, KeyRingData.CERTS_DIGEST
+        }, null, null, null);
+        try {
+            if (cursor == null || !cursor.moveToFirst()) {
+                log(LogType.MSG_IP_DIFF_NEW);
+                if (keyRingData == null) {
+                    postWriteActions.add(buildLocalStorageWriteAction(masterKeyId, encodedKey));
+                }
+
+                keyRingValues.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+                operations.add(ContentProviderOperation.newInsert(keyRingUri).withValues(keyRingValues).build());
+                addInsertOperations(operations, keysUri, keysValues);
+                addInsertOperations(operations, userPacketsUri, userPacketsValues);
+                addInsertOperations(operations, certsUri, certsValues);
+                operations.add(buildSummaryUpdateOperation(masterKeyId));
+                return false;
+            }
+
+            byte[] oldKeyRingData = cursor.getBlob(0);
+            boolean keyRingChanged;
+            if (oldKeyRingData != null || keyRingData != null) {
+                keyRingChanged = !Arrays.equals(oldKeyRingData, keyRingData);
+            } else {
+                // too large to be kept in the database, compare with the stored file instead
+                keyRingChanged = !Arrays.equals(mLocalPublicKeyStorage.readPublicKey(masterKeyId), encodedKey);
+            }
+            boolean keysChanged = !Arrays.equals(cursor.getBlob(1), keysDigest);
+            boolean userPacketsChanged = !Arrays.equals(cursor.getBlob(2), userPacketsDigest);
+            boolean certsChanged = !Arrays.equals(cursor.getBlob(3), certsDigest);
+
+            if (!keyRingChanged && !keysChanged && !userPacketsChanged && !certsChanged) {
+                return true;
+            }
+
+            // only keyrings too large for the database go to local storage
+            if (keyRingChanged && keyRingData == null) {
+                postWriteActions.add(buildLocalStorageWriteAction(masterKeyId, encodedKey));
+            } else if (keyRingChanged && oldKeyRingData == null) {
+                postWriteActions.add(buildLocalStorageWriteAction(masterKeyId, null));
+            }
+            operations.add(ContentProviderOperation.newUpdate(keyRingUri).withValues(keyRingValues).build());
+
+            // all deletes go first, and user packets are written before the certificates which
+            // reference them. certificates of deleted user packets are deleted on cascade.
+            ArrayList<ContentProviderOperation> deletes = new ArrayList<>();
+            ArrayList<ContentProviderOperation> writes = new ArrayList<>();
+            if (userPacketsChanged) {
+                log(LogType.MSG_IP_DIFF_USER_PACKETS);
+                appendRowUpdateOperations(deletes, writes, userPacketsRowsUri, userPacketsUri,
+                        USER_PACKETS_ROW_COLUMNS, USER_PACKETS_ROW_KEY, userPacketsValues);
+            }
+            if (certsChanged) {
+                log(LogType.MSG_IP_DIFF_CERTS);
+                appendRowUpdateOperations(deletes, writes, certsRowsUri, certsUri,
+                        CERTS_ROW_COLUMNS, CERTS_ROW_KEY, certsValues);
+            }
+            if (keysChanged) {
+                log(LogType.MSG_IP_DIFF_KEYS);
+                appendRowUpdateOperations(deletes, writes, keysRowsUri, keysUri,
+                        KEYS_ROW_COLUMNS, KEYS_ROW_KEY, keysValues);
+            }
+            operations.addAll(deletes);
+            operations.addAll(writes);
+
+            if (keysChanged || userPacketsChanged || certsChanged) {
+                operations.add(buildSummaryUpdateOperation(masterKeyId));
+            }
+            return true;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
+    }
 
-        ContentValues lastUpdatedEntry = new ContentValues(2);
-        lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
-        lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED, lastUpdateTime);
-        return ContentProviderOperation
-                .newInsert(UpdatedKeys.CONTENT_URI)
-                .withValues(lastUpdatedEntry)
-                .build();
+    /** Writes the encoded keyring to local storage, or deletes it from there if null. */
+    private PostWriteAction buildLocalStorageWriteAction(final long masterKeyId, final byte[] encodedKey) {
+        return new PostWriteAction() {
+            @Override
+            public void run() throws IOException {
+                if (encodedKey != null) {
+                    mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKey);
+                } else {
+                    mLocalPublicKeyStorage.deletePublicKey(masterKeyId);
+                }
+            }
+        };
     }
 
-    private void writePublicKeyRing(CanonicalizedPublicKeyRing keyRing, long masterKeyId,
-            ArrayList<ContentProviderOperation> operations) throws IOException {
-        byte[] encodedKey = keyRing.getEncoded();
-        mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKey);
+    private static ContentProviderOperation buildSummaryUpdateOperation(long masterKeyId) {
+        return ContentProviderOperation.newInsert(KeyRings.buildKeyRingSummaryUri(masterKeyId))
+                .withValues(new ContentValues()).build();
+    }
+
+    private static void addInsertOperations(ArrayList<ContentProviderOperation> operations, Uri uri,
+            ArrayList<ContentValues> rows) {
+        for (ContentValues values : rows) {
+            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        }
+    }
+
+    /**
+     * Appends the operations which turn the stored rows of a keyring in one table into the given
+     * rows. Rows are matched by the columns in keyColumns. Matched rows are updated in place if
+     * any of their rowColumns differ, unmatched stored rows are deleted, and unmatched new rows
+     * are inserted through insertUri.
+     */
+    private void appendRowUpdateOperations(ArrayList<ContentProviderOperation> deletes,
+            ArrayList<ContentProviderOperation> writes, Uri rowsUri, Uri insertUri, String[] rowColumns,
+            String[] keyColumns, ArrayList<ContentValues> rows) {
+        // like the replacing inserts, a later row replaces an earlier one with the same key
+        LinkedHashMap<String, ContentValues> newRows = new LinkedHashMap<>();
+        for (ContentValues values : rows) {
+            newRows.put(buildRowKey(values, keyColumns), values);
+        }
 
+        StringBuilder keySelection = new StringBuilder();
+        for (String column : keyColumns) {
+            if (keySelection.length() > 0) {
+                keySelection.append(" AND ");
+            }
+            keySelection.append(column).append(" = ?");
+        }
+
+        Cursor cursor = mContentResolver.query(rowsUri, rowColumns, null, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                ContentValues oldValues = readRow(cursor, rowColumns);
+                String[] keyArgs = new String[keyColumns.length];
+                for (int i = 0; i < keyColumns.length; i++) {
+                    keyArgs[i] = String.valueOf(normalizeRowValue(oldValues.get(keyColumns[i])));
+                }
+
+                ContentValues newValues = newRows.remove(buildRowKey(oldValues, keyColumns));
+                if (newValues == null) {
+                    deletes.add(ContentProviderOperation.newDelete(rowsUri)
+                            .withSelection(keySelection.toString(), keyArgs).build());
+                    continue;
+                }
+
+                boolean changed = false;
+                ContentValues updateValues = new ContentValues();
+                for (String column : rowColumns) {
+                    Object value = newValues.get(column);
+                    if (!rowValueEquals(oldValues.get(column), value)) {
+                        changed = true;
+                    }
+                    // columns which are not set are null, e.g. expiry
+                    if (value == null) {
+                        updateValues.putNull(column);
+                    }
+                }
+                if (!changed) {
+                    continue;
+                }
+                updateValues.putAll(newValues);
+                updateValues.remove(KeyRings.MASTER_KEY_ID);
+                for (String column : keyColumns) {
+                    updateValues.remove(column);
+                }
+                writes.add(ContentProviderOperation.newUpdate(rowsUri).withValues(updateValues)
+                        .withSelection(keySelection.toString(), keyArgs).build());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        addInsertOperations(writes, insertUri, new ArrayList<>(newRows.values()));
+    }
+
+    private static ContentValues readRow(Cursor cursor, String[] columns) {
         ContentValues values = new ContentValues();
-        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-        if (encodedKey.length < MAX_CACHED_KEY_SIZE) {
-            values.put(KeyRingData.KEY_RING_DATA, encodedKey);
-        } else {
-            values.put(KeyRingData.KEY_RING_DATA, (byte[]) null);
+        for (int i = 0; i < columns.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values.putNull(columns[i]);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(columns[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values.put(columns[i], cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values.put(columns[i], cursor.getBlob(i));
+                    break;
+                default:
+                    values.put(columns[i], cursor.getString(i));
+            }
+        }
+        return values;
+    }
+
+    private static String buildRowKey(ContentValues values, String[] keyColumns) {
+        StringBuilder key = new StringBuilder();
+        for (String column : keyColumns) {
+            key.append(normalizeRowValue(values.get(column))).append('/');
+        }
+        return key.toString();
+    }
+
+    /** Booleans and all integer types are stored as integers by sqlite, compare them as such. */
+    private static Object normalizeRowValue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1L : 0L;
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        return value;
+    }
+
+    private static boolean rowValueEquals(Object a, Object b) {
+        a = normalizeRowValue(a);
+        b = normalizeRowValue(b);
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Digest over all columns of the given rows, independent of the order of columns in each row. */
+    private static byte[] digestRows(ArrayList<ContentValues> rows) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 must always be available!");
         }
 
-        Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
-        operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        for (ContentValues values : rows) {
+            for (String column : new TreeSet<>(values.keySet())) {
+                Object value = values.get(column);
+                byte[] encoded;
+                if (value instanceof byte[]) {
+                    encoded = (byte[]) value;
+                } else if (value != null) {
+                    encoded = value.toString().getBytes(UTF8);
+                } else {
+                    encoded = null;
+                }
+
+                digest.update(column.getBytes(UTF8));
+                lengthBuffer.clear();
+                lengthBuffer.putInt(encoded != null ? encoded.length : -1);
+                digest.update(lengthBuffer.array());
+                if (encoded != null) {
+                    digest.update(encoded);
+                }
+            }
+            // separate rows, so shifting columns between them changes the digest
+            digest.update((byte) 0);
+        }
+        return digest.digest();
     }
 
     private Uri writeSecretKeyRing(CanonicalizedSecretKeyRing keyRing, long masterKeyId) throws IOException {
@@ -592,10 +1043,14 @@ public class KeyWritableRepository extends KeyRepository {
 
         // insert new version of this keyRing
         Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
+        mKeyRingCache.invalidate(masterKeyId);
+        invalidateTrustedMasterKeys();
         return mContentResolver.insert(uri, values);
     }
 
     public boolean deleteKeyRing(long masterKeyId) {
+        mKeyRingCache.invalidate(masterKeyId);
+        invalidateTrustedMasterKey(masterKeyId);
         try {
             mLocalPublicKeyStorage.deletePublicKey(masterKeyId);
         } catch (IOException e) {
@@ -724,6 +1179,9 @@ public class KeyWritableRepository extends KeyRepository {
                 // with has_secret = 1
             }
 
+            // secret keyring and capabilities changed, so recompute the summary
+            mContentResolver.insert(KeyRings.buildKeyRingSummaryUri(masterKeyId), new ContentValues());
+
             log(LogType.MSG_IS_SUCCESS);
             return result;
 
@@ -745,12 +1203,38 @@ public class KeyWritableRepository extends KeyRepository {
                                                byte[] expectedFingerprint,
                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
                                                boolean skipSave) {
+        return savePublicKeyRing(publicRing, expectedFingerprint, canKeyRings, skipSave, null);
+    }
+
+    /**
+     * Save a public keyring in batch mode, as part of a bulk import.
+     * <p>
+     * Merging and canonicalization happen immediately, but the resulting database operations are
+     * queued in the batchWriter. Keyrings which have a secret part are written directly.
+     */
+    public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing,
+                                               byte[] expectedFingerprint,
+                                               ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                               @NonNull KeyRingBatchWriter batchWriter) {
+        return savePublicKeyRing(publicRing, expectedFingerprint, canKeyRings, false, batchWriter);
+    }
+
+    private SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing,
+                                                byte[] expectedFingerprint,
+                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                                boolean skipSave,
+                                                KeyRingBatchWriter batchWriter) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
             log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
             mIndent += 1;
 
+            if (batchWriter != null) {
+                // the old keyring must be read only after any queued version of it is written
+                batchWriter.awaitWritten(masterKeyId);
+            }
+
             if (publicRing.isSecret()) {
                 log(LogType.MSG_IP_BAD_TYPE_SECRET);
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
@@ -763,6 +1247,7 @@ public class KeyWritableRepository extends KeyRepository {
             try {
                 UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
                 alreadyExists = true;
+                publicRing = deferThirdPartyCertifications(publicRing, oldPublicRing);
 
                 // Merge data from new public ring into the old one
                 log(LogType.MSG_IP_MERGE_PUBLIC);
@@ -781,13 +1266,13 @@ public class KeyWritableRepository extends KeyRepository {
                 if (canKeyRings != null) canKeyRings.add(canPublicRing);
 
                 // Early breakout if nothing changed
-                if (Arrays.hashCode(publicRing.getEncoded())
-                        == Arrays.hashCode(oldPublicRing.getEncoded())) {
+                if (Arrays.equals(publicRing.getEncoded(), oldPublicRing.getEncoded())) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
                     return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
+                publicRing = deferThirdPartyCertifications(publicRing, null);
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
@@ -836,8 +1321,11 @@ public class KeyWritableRepository extends KeyRepository {
                 // skip save method, set fixed result
                 result = SaveKeyringResult.SAVED_PUBLIC
                         | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
+            } else if (batchWriter != null && canSecretRing == null) {
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, false, batchWriter);
             } else {
-                result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null);
+                // the secret keyring is inserted right after, so write this one directly
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null, null);
             }
 
             // Save the saved keyring (if any)
@@ -972,7 +1460,7 @@ public class KeyWritableRepository extends KeyRepository {
                 // skip save method, set fixed result
                 publicResult = SaveKeyringResult.SAVED_PUBLIC;
             } else {
-                publicResult = saveCanonicalizedPublicKeyRing(canPublicRing, true);
+                publicResult = saveCanonicalizedPublicKeyRing(canPublicRing, true, null);
             }
 
             if ((publicResult & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
@@ -1204,6 +1692,8 @@ public class KeyWritableRepository extends KeyRepository {
 
             log.add(LogType.MSG_CON_DB_CLEAR, indent);
             mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            mKeyRingCache.invalidateAll();
+            invalidateTrustedMasterKeys();
 
             ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
 
@@ -1307,10 +1797,10 @@ public class KeyWritableRepository extends KeyRepository {
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentValues to add a certificate to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, int verified)
+    private ContentValues
+    buildCertValues(long masterKeyId, int rank, WrappedSignature cert, int verified)
             throws IOException {
         ContentValues values = new ContentValues();
         values.put(Certs.MASTER_KEY_ID, masterKeyId);
@@ -1321,31 +1811,45 @@ public class KeyWritableRepository extends KeyRepository {
         values.put(Certs.VERIFIED, verified);
         values.put(Certs.DATA, cert.getEncoded());
 
-        Uri uri = Certs.buildCertsUri(masterKeyId);
+        return values;
+    }
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    /**
+     * Lower-cases ascii characters only, which matches sqlite's lower() used for queried
+     * addresses, see KeychainExternalProvider.
+     */
+    private static String normalizeEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        char[] chars = email.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
     }
 
     /**
-     * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
+     * Build ContentValues to add PublicUserIds to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildUserIdOperations(long masterKeyId, UserPacketItem item, int rank) {
+    private ContentValues
+    buildUserIdValues(long masterKeyId, UserPacketItem item, int rank) {
         ContentValues values = new ContentValues();
         values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
         values.put(UserPackets.TYPE, item.type);
         values.put(UserPackets.USER_ID, item.userId);
         values.put(UserPackets.NAME, item.name);
         values.put(UserPackets.EMAIL, item.email);
+        values.put(UserPackets.EMAIL_NORMALIZED, normalizeEmail(item.email));
         values.put(UserPackets.COMMENT, item.comment);
         values.put(UserPackets.ATTRIBUTE_DATA, item.attributeData);
         values.put(UserPackets.IS_PRIMARY, item.isPrimary);
         values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
         values.put(UserPackets.RANK, rank);
 
-        Uri uri = UserPackets.buildUserIdsUri(masterKeyId);
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     public Uri renewKeyLastUpdatedTime(long masterKeyId) {
@@ -1356,4 +1860,15 @@ public class KeyWritableRepository extends KeyRepository {
         return mContentResolver.insert(UpdatedKeys.CONTENT_URI, values);
     }
 
+    /** Same as renewKeyLastUpdatedTime, but queued in the batchWriter after the keyring itself. */
+    public void renewKeyLastUpdatedTime(long masterKeyId, @NonNull KeyRingBatchWriter batchWriter) {
+        ContentValues values = new ContentValues();
+        values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
+        values.put(UpdatedKeys.LAST_UPDATED, GregorianCalendar.getInstance().getTimeInMillis() / 1000);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(UpdatedKeys.CONTENT_URI).withValues(values).build());
+        batchWriter.add(masterKeyId, operations);
+    }
+
 }
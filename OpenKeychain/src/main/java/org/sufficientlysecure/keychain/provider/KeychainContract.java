@@ -28,6 +28,11 @@ public class KeychainContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+
+        // public keyrings only, digests of the rows written for the keyring in each table
+        String KEYS_DIGEST = "keys_digest";
+        String USER_PACKETS_DIGEST = "user_packets_digest";
+        String CERTS_DIGEST = "certs_digest";
     }
 
     interface KeysColumns {
@@ -52,6 +57,23 @@ public class KeychainContract {
         String EXPIRY = "expiry";
     }
 
+    // denormalized per keyring data for the unified query, in addition to the columns of its
+    // master key and primary user id
+    interface KeyRingSummaryColumns {
+        String HAS_ANY_SECRET = "has_any_secret";
+        String VERIFIED = "verified";
+
+        // the usable subkey for each capability which expires last, and its expiry
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String ENCRYPT_EXPIRY = "encrypt_expiry";
+        String SIGN_KEY_ID = "sign_key_id";
+        String SIGN_EXPIRY = "sign_expiry";
+        String CERTIFY_KEY_ID = "certify_key_id";
+        String CERTIFY_EXPIRY = "certify_expiry";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
+        String AUTHENTICATE_EXPIRY = "authenticate_expiry";
+    }
+
     interface UpdatedKeysColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String LAST_UPDATED = "last_updated"; // time since epoch in seconds
@@ -63,6 +85,7 @@ public class KeychainContract {
         String USER_ID = "user_id"; // not a database id
         String NAME = "name";
         String EMAIL = "email";
+        String EMAIL_NORMALIZED = "email_normalized"; // lower-cased email, for lookup by address
         String COMMENT = "comment";
         String ATTRIBUTE_DATA = "attribute_data"; // not a database id
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
@@ -116,6 +139,8 @@ public class KeychainContract {
     public static final String PATH_LINKED_IDS = "linked_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_ROWS = "rows";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ALLOWED_KEYS = "allowed_keys";
@@ -167,6 +192,12 @@ public class KeychainContract {
                     .appendPath(PATH_UNIFIED).build();
         }
 
+        /** Inserting into this uri recomputes the summary of a keyring, from its stored rows. */
+        public static Uri buildKeyRingSummaryUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindByEmailUri(String email) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
@@ -182,6 +213,19 @@ public class KeychainContract {
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
         }
 
+        /** Finds all key rings containing any of the given subkeys, in a single query. */
+        public static Uri buildUnifiedKeyRingsFindBySubkeysUri(long[] subkeys) {
+            StringBuilder subkeyList = new StringBuilder();
+            for (long subkey : subkeys) {
+                if (subkeyList.length() > 0) {
+                    subkeyList.append(',');
+                }
+                subkeyList.append(subkey);
+            }
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_SUBKEY).appendPath(subkeyList.toString()).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -193,6 +237,12 @@ public class KeychainContract {
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.key_ring_data";
 
+        /** Raw rows of a keyring in the keys, user_packets or certs table, for differential updates. */
+        public static Uri buildKeyRingRowsUri(long masterKeyId, String table) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_ROWS).appendPath(table).build();
+        }
+
         public static Uri buildPublicKeyRingUri() {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).build();
         }
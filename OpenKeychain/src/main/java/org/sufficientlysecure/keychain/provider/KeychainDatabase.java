@@ -33,7 +33,9 @@ import android.provider.BaseColumns;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.OverriddenWarnings;
@@ -52,7 +54,7 @@ import org.sufficientlysecure.keychain.util.Log;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 21;
+    private static final int DATABASE_VERSION = 27;
     private Context mContext;
 
     public interface Tables {
@@ -61,7 +63,10 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String UPDATED_KEYS = "updated_keys";
         String USER_PACKETS = "user_packets";
+        String USER_PACKETS_FTS = "user_packets_fts";
+        String USER_PACKETS_FTS_DOCS = "user_packets_fts_docs";
         String CERTS = "certs";
+        String KEY_RINGS_SUMMARY = "keyring_summary";
         String API_APPS = "api_apps";
         String API_ALLOWED_KEYS = "api_allowed_keys";
         String OVERRIDDEN_WARNINGS = "overridden_warnings";
@@ -70,7 +75,10 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.KEYS_DIGEST + " BLOB,"
+                + KeyRingsColumns.USER_PACKETS_DIGEST + " BLOB,"
+                + KeyRingsColumns.CERTS_DIGEST + " BLOB"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
@@ -115,6 +123,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.USER_ID + " TEXT, "
                 + UserPacketsColumns.NAME + " TEXT, "
                 + UserPacketsColumns.EMAIL + " TEXT, "
+                + UserPacketsColumns.EMAIL_NORMALIZED + " TEXT, "
                 + UserPacketsColumns.COMMENT + " TEXT, "
                 + UserPacketsColumns.ATTRIBUTE_DATA + " BLOB, "
 
@@ -147,6 +156,128 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.USER_PACKETS + "(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + ") ON DELETE CASCADE"
             + ")";
 
+    // docids of the full text index, by user packet. the implicit rowid of user_packets would do
+    // as well, but it isn't stable: it may change on vacuum, since the table has no integer key
+    private static final String CREATE_USER_PACKETS_FTS_DOCS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.USER_PACKETS_FTS_DOCS + " ("
+                + "docid INTEGER PRIMARY KEY, "
+                + UserPacketsColumns.MASTER_KEY_ID + " INTEGER, "
+                + UserPacketsColumns.RANK + " INTEGER, "
+                + "UNIQUE(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + ")"
+            + ")";
+
+    // full text index over user ids, see USER_PACKETS_FTS_DOCS for the docid of each row
+    private static final String CREATE_USER_PACKETS_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.USER_PACKETS_FTS + " USING fts4("
+                + UserPacketsColumns.NAME + ", "
+                + UserPacketsColumns.EMAIL + ", "
+                + UserPacketsColumns.COMMENT
+            + ")";
+
+    private static final String USER_PACKETS_FTS_INSERT_STATEMENTS =
+            " INSERT INTO " + Tables.USER_PACKETS_FTS_DOCS + " (" + UserPacketsColumns.MASTER_KEY_ID + ", "
+                + UserPacketsColumns.RANK + ")"
+                + " VALUES (new." + UserPacketsColumns.MASTER_KEY_ID + ", new." + UserPacketsColumns.RANK + ");"
+            + " INSERT INTO " + Tables.USER_PACKETS_FTS + " (docid, " + UserPacketsColumns.NAME + ", "
+                + UserPacketsColumns.EMAIL + ", " + UserPacketsColumns.COMMENT + ")"
+                + " VALUES ((SELECT docid FROM " + Tables.USER_PACKETS_FTS_DOCS + " WHERE "
+                    + UserPacketsColumns.MASTER_KEY_ID + " = new." + UserPacketsColumns.MASTER_KEY_ID
+                    + " AND " + UserPacketsColumns.RANK + " = new." + UserPacketsColumns.RANK + "), "
+                + "new." + UserPacketsColumns.NAME + ", new." + UserPacketsColumns.EMAIL
+                + ", new." + UserPacketsColumns.COMMENT + ");";
+    private static final String USER_PACKETS_FTS_DELETE_STATEMENTS =
+            " DELETE FROM " + Tables.USER_PACKETS_FTS + " WHERE docid = (SELECT docid FROM "
+                + Tables.USER_PACKETS_FTS_DOCS + " WHERE "
+                    + UserPacketsColumns.MASTER_KEY_ID + " = old." + UserPacketsColumns.MASTER_KEY_ID
+                    + " AND " + UserPacketsColumns.RANK + " = old." + UserPacketsColumns.RANK + ");"
+            + " DELETE FROM " + Tables.USER_PACKETS_FTS_DOCS + " WHERE "
+                    + UserPacketsColumns.MASTER_KEY_ID + " = old." + UserPacketsColumns.MASTER_KEY_ID
+                    + " AND " + UserPacketsColumns.RANK + " = old." + UserPacketsColumns.RANK + ";";
+
+    // keep the full text index in sync with user_packets, this includes deletes on cascade
+    private static final String CREATE_USER_PACKETS_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_packets_fts_insert AFTER INSERT ON " + Tables.USER_PACKETS
+            + " BEGIN" + USER_PACKETS_FTS_INSERT_STATEMENTS + " END";
+    private static final String CREATE_USER_PACKETS_FTS_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_packets_fts_update AFTER UPDATE ON " + Tables.USER_PACKETS
+            + " BEGIN" + USER_PACKETS_FTS_DELETE_STATEMENTS + USER_PACKETS_FTS_INSERT_STATEMENTS + " END";
+    private static final String CREATE_USER_PACKETS_FTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_packets_fts_delete AFTER DELETE ON " + Tables.USER_PACKETS
+            + " BEGIN" + USER_PACKETS_FTS_DELETE_STATEMENTS + " END";
+
+    private static final String CREATE_KEY_RINGS_SUMMARY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RINGS_SUMMARY + " ("
+                + KeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+
+                // master key
+                + KeysColumns.KEY_ID + " INTEGER, "
+                + KeysColumns.KEY_SIZE + " INTEGER, "
+                + KeysColumns.KEY_CURVE_OID + " TEXT, "
+                + KeysColumns.ALGORITHM + " INTEGER, "
+                + KeysColumns.FINGERPRINT + " BLOB, "
+                + KeysColumns.CAN_CERTIFY + " INTEGER, "
+                + KeysColumns.CAN_SIGN + " INTEGER, "
+                + KeysColumns.CAN_ENCRYPT + " INTEGER, "
+                + KeysColumns.CAN_AUTHENTICATE + " INTEGER, "
+                + KeysColumns.IS_REVOKED + " INTEGER, "
+                + KeysColumns.HAS_SECRET + " INTEGER, "
+                + KeysColumns.IS_SECURE + " INTEGER, "
+                + KeysColumns.CREATION + " INTEGER, "
+                + KeysColumns.EXPIRY + " INTEGER, "
+
+                // primary user id
+                + UserPacketsColumns.USER_ID + " TEXT, "
+                + UserPacketsColumns.NAME + " TEXT, "
+                + UserPacketsColumns.EMAIL + " TEXT, "
+                + UserPacketsColumns.COMMENT + " TEXT, "
+
+                + KeyRingSummaryColumns.HAS_ANY_SECRET + " INTEGER, "
+                + KeyRingSummaryColumns.VERIFIED + " INTEGER, "
+                + KeyRingSummaryColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeyRingSummaryColumns.ENCRYPT_EXPIRY + " INTEGER, "
+                + KeyRingSummaryColumns.SIGN_KEY_ID + " INTEGER, "
+                + KeyRingSummaryColumns.SIGN_EXPIRY + " INTEGER, "
+                + KeyRingSummaryColumns.CERTIFY_KEY_ID + " INTEGER, "
+                + KeyRingSummaryColumns.CERTIFY_EXPIRY + " INTEGER, "
+                + KeyRingSummaryColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + KeyRingSummaryColumns.AUTHENTICATE_EXPIRY + " INTEGER, "
+
+                + "FOREIGN KEY(" + KeysColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    // columns of the summary table, in the order buildKeyRingSummarySelect selects them
+    private static final String KEY_RINGS_SUMMARY_COLUMNS =
+            KeysColumns.MASTER_KEY_ID + ", "
+                + KeysColumns.KEY_ID + ", "
+                + KeysColumns.KEY_SIZE + ", "
+                + KeysColumns.KEY_CURVE_OID + ", "
+                + KeysColumns.ALGORITHM + ", "
+                + KeysColumns.FINGERPRINT + ", "
+                + KeysColumns.CAN_CERTIFY + ", "
+                + KeysColumns.CAN_SIGN + ", "
+                + KeysColumns.CAN_ENCRYPT + ", "
+                + KeysColumns.CAN_AUTHENTICATE + ", "
+                + KeysColumns.IS_REVOKED + ", "
+                + KeysColumns.HAS_SECRET + ", "
+                + KeysColumns.IS_SECURE + ", "
+                + KeysColumns.CREATION + ", "
+                + KeysColumns.EXPIRY + ", "
+                + UserPacketsColumns.USER_ID + ", "
+                + UserPacketsColumns.NAME + ", "
+                + UserPacketsColumns.EMAIL + ", "
+                + UserPacketsColumns.COMMENT + ", "
+                + KeyRingSummaryColumns.HAS_ANY_SECRET + ", "
+                + KeyRingSummaryColumns.VERIFIED + ", "
+                + KeyRingSummaryColumns.ENCRYPT_KEY_ID + ", "
+                + KeyRingSummaryColumns.ENCRYPT_EXPIRY + ", "
+                + KeyRingSummaryColumns.SIGN_KEY_ID + ", "
+                + KeyRingSummaryColumns.SIGN_EXPIRY + ", "
+                + KeyRingSummaryColumns.CERTIFY_KEY_ID + ", "
+                + KeyRingSummaryColumns.CERTIFY_EXPIRY + ", "
+                + KeyRingSummaryColumns.AUTHENTICATE_KEY_ID + ", "
+                + KeyRingSummaryColumns.AUTHENTICATE_EXPIRY;
+
     private static final String CREATE_UPDATE_KEYS =
             "CREATE TABLE IF NOT EXISTS " + Tables.UPDATED_KEYS + " ("
                     + UpdatedKeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
@@ -193,16 +324,27 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_PACKETS);
+        db.execSQL(CREATE_USER_PACKETS_FTS_DOCS);
+        db.execSQL(CREATE_USER_PACKETS_FTS);
+        db.execSQL(CREATE_USER_PACKETS_FTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_USER_PACKETS_FTS_UPDATE_TRIGGER);
+        db.execSQL(CREATE_USER_PACKETS_FTS_DELETE_TRIGGER);
         db.execSQL(CREATE_CERTS);
+        db.execSQL(CREATE_KEY_RINGS_SUMMARY);
         db.execSQL(CREATE_UPDATE_KEYS);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
 
         db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ");");
+        db.execSQL("CREATE INDEX keys_by_key_id ON keys (" + KeysColumns.KEY_ID + ");");
         db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL("CREATE INDEX summary_by_name_email ON " + Tables.KEY_RINGS_SUMMARY + " ("
+                + UserPacketsColumns.NAME + " COLLATE NOCASE, " + UserPacketsColumns.EMAIL + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX uids_by_email_normalized ON user_packets ("
+                + UserPacketsColumns.EMAIL_NORMALIZED + ");");
 
     }
 
@@ -308,7 +450,57 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             */
             case 20:
                 db.execSQL(CREATE_OVERRIDDEN_WARNINGS);
-                if (oldVersion == 18 || oldVersion == 19 || oldVersion == 20) {
+            case 21:
+                // index for subkey lookups, see KEY_RINGS_FIND_BY_SUBKEY
+                db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_key_id ON keys (" + KeysColumns.KEY_ID + ");");
+            case 22:
+                // digests for differential keyring updates. null digests just mean the next update
+                // of a keyring rewrites all of its rows.
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN " + KeyRingsColumns.KEYS_DIGEST + " BLOB;");
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN " + KeyRingsColumns.USER_PACKETS_DIGEST + " BLOB;");
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN " + KeyRingsColumns.CERTS_DIGEST + " BLOB;");
+            case 23:
+                // full text index for user id search, superseded by the one created for version 27
+            case 24:
+                // materialized summary for the unified query, see updateKeyRingSummary
+                db.execSQL(CREATE_KEY_RINGS_SUMMARY);
+                db.execSQL("CREATE INDEX IF NOT EXISTS summary_by_name_email ON " + Tables.KEY_RINGS_SUMMARY + " ("
+                        + UserPacketsColumns.NAME + " COLLATE NOCASE, " + UserPacketsColumns.EMAIL + " COLLATE NOCASE);");
+                db.execSQL("INSERT INTO " + Tables.KEY_RINGS_SUMMARY + " (" + KEY_RINGS_SUMMARY_COLUMNS + ") "
+                        + buildKeyRingSummarySelect(null));
+            case 25:
+                // indexed lookup by address, see KeychainExternalProvider. sqlite's lower() only
+                // folds ascii, same as KeyWritableRepository.normalizeEmail
+                db.execSQL("ALTER TABLE user_packets ADD COLUMN " + UserPacketsColumns.EMAIL_NORMALIZED + " TEXT;");
+                db.execSQL("UPDATE user_packets SET " + UserPacketsColumns.EMAIL_NORMALIZED
+                        + " = lower(" + UserPacketsColumns.EMAIL + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_email_normalized ON user_packets ("
+                        + UserPacketsColumns.EMAIL_NORMALIZED + ");");
+            case 26:
+                // full text index for user id search, see KEY_RINGS_FIND_BY_USER_ID. the one of
+                // version 24 used the rowids of user_packets as docids, which aren't stable
+                db.execSQL("DROP TRIGGER IF EXISTS user_packets_fts_insert;");
+                db.execSQL("DROP TRIGGER IF EXISTS user_packets_fts_update;");
+                db.execSQL("DROP TRIGGER IF EXISTS user_packets_fts_delete;");
+                db.execSQL("DROP TABLE IF EXISTS " + Tables.USER_PACKETS_FTS + ";");
+                db.execSQL(CREATE_USER_PACKETS_FTS_DOCS);
+                db.execSQL(CREATE_USER_PACKETS_FTS);
+                db.execSQL(CREATE_USER_PACKETS_FTS_INSERT_TRIGGER);
+                db.execSQL(CREATE_USER_PACKETS_FTS_UPDATE_TRIGGER);
+                db.execSQL(CREATE_USER_PACKETS_FTS_DELETE_TRIGGER);
+                db.execSQL("INSERT INTO " + Tables.USER_PACKETS_FTS_DOCS + " (" + UserPacketsColumns.MASTER_KEY_ID
+                        + ", " + UserPacketsColumns.RANK + ") SELECT " + UserPacketsColumns.MASTER_KEY_ID + ", "
+                        + UserPacketsColumns.RANK + " FROM " + Tables.USER_PACKETS);
+                db.execSQL("INSERT INTO " + Tables.USER_PACKETS_FTS + " (docid, " + UserPacketsColumns.NAME + ", "
+                        + UserPacketsColumns.EMAIL + ", " + UserPacketsColumns.COMMENT + ")"
+                        + " SELECT docs.docid, up." + UserPacketsColumns.NAME + ", up." + UserPacketsColumns.EMAIL
+                        + ", up." + UserPacketsColumns.COMMENT + " FROM " + Tables.USER_PACKETS + " AS up"
+                        + " JOIN " + Tables.USER_PACKETS_FTS_DOCS + " AS docs"
+                        + " ON (docs." + UserPacketsColumns.MASTER_KEY_ID + " = up." + UserPacketsColumns.MASTER_KEY_ID
+                        + " AND docs." + UserPacketsColumns.RANK + " = up." + UserPacketsColumns.RANK + ")");
+                if (oldVersion == 18 || oldVersion == 19 || oldVersion == 20 || oldVersion == 21
+                        || oldVersion == 22 || oldVersion == 23 || oldVersion == 24 || oldVersion == 25
+                        || oldVersion == 26) {
                     // no consolidate for now, often crashes!
                     return;
                 }
@@ -322,6 +514,73 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    /**
+     * Recomputes the summary row of a keyring from its keys, user ids, certificates and secret
+     * keyring. This must be done whenever any of those change, except on deletion of the whole
+     * keyring, which also deletes its summary on cascade.
+     */
+    static void updateKeyRingSummary(SQLiteDatabase db, long masterKeyId) {
+        db.delete(Tables.KEY_RINGS_SUMMARY, KeysColumns.MASTER_KEY_ID + " = " + masterKeyId, null);
+        db.execSQL("INSERT INTO " + Tables.KEY_RINGS_SUMMARY + " (" + KEY_RINGS_SUMMARY_COLUMNS + ") "
+                + buildKeyRingSummarySelect(masterKeyId));
+    }
+
+    private static String buildKeyRingSummarySelect(Long masterKeyId) {
+        return "SELECT "
+                + "k." + KeysColumns.MASTER_KEY_ID + ", "
+                + "k." + KeysColumns.KEY_ID + ", "
+                + "k." + KeysColumns.KEY_SIZE + ", "
+                + "k." + KeysColumns.KEY_CURVE_OID + ", "
+                + "k." + KeysColumns.ALGORITHM + ", "
+                + "k." + KeysColumns.FINGERPRINT + ", "
+                + "k." + KeysColumns.CAN_CERTIFY + ", "
+                + "k." + KeysColumns.CAN_SIGN + ", "
+                + "k." + KeysColumns.CAN_ENCRYPT + ", "
+                + "k." + KeysColumns.CAN_AUTHENTICATE + ", "
+                + "k." + KeysColumns.IS_REVOKED + ", "
+                + "k." + KeysColumns.HAS_SECRET + ", "
+                + "k." + KeysColumns.IS_SECURE + ", "
+                + "k." + KeysColumns.CREATION + ", "
+                + "k." + KeysColumns.EXPIRY + ", "
+                + "u." + UserPacketsColumns.USER_ID + ", "
+                + "u." + UserPacketsColumns.NAME + ", "
+                + "u." + UserPacketsColumns.EMAIL + ", "
+                + "u." + UserPacketsColumns.COMMENT + ", "
+                + "EXISTS (SELECT 1 FROM " + Tables.KEY_RINGS_SECRET + " s"
+                    + " WHERE s." + KeyRingsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID + "), "
+                + "(SELECT c." + CertsColumns.VERIFIED + " FROM " + Tables.CERTS + " c"
+                    + " WHERE c." + CertsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                    + " AND c." + CertsColumns.VERIFIED + " = " + Certs.VERIFIED_SECRET + " LIMIT 1), "
+                + buildCapableSubkeySelect(KeysColumns.CAN_ENCRYPT, false) + ", "
+                + buildCapableSubkeySelect(KeysColumns.CAN_SIGN, true) + ", "
+                + buildCapableSubkeySelect(KeysColumns.CAN_CERTIFY, true) + ", "
+                + buildCapableSubkeySelect(KeysColumns.CAN_AUTHENTICATE, true)
+            + " FROM " + Tables.KEYS + " k"
+                // we KNOW that the rank zero user packet is a user id!
+                + " INNER JOIN " + Tables.USER_PACKETS + " u ON ("
+                    + "u." + UserPacketsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                    + " AND u." + UserPacketsColumns.RANK + " = 0)"
+            + " WHERE k." + KeysColumns.RANK + " = 0"
+                + (masterKeyId != null ? " AND k." + KeysColumns.MASTER_KEY_ID + " = " + masterKeyId : "");
+    }
+
+    /**
+     * Selects key id and expiry of the subkey with the given capability which stays valid the
+     * longest. Whether it is expired is decided at query time, see KeychainProvider.
+     */
+    private static String buildCapableSubkeySelect(String capability, boolean needsSecret) {
+        String subkeyWhere = " FROM " + Tables.KEYS + " sub"
+                + " WHERE sub." + KeysColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                + " AND sub." + KeysColumns.IS_REVOKED + " = 0"
+                + " AND sub." + KeysColumns.IS_SECURE + " = 1"
+                + " AND sub." + capability + " = 1"
+                + (needsSecret ? " AND sub." + KeysColumns.HAS_SECRET + " > 1" : "")
+                + " ORDER BY sub." + KeysColumns.EXPIRY + " IS NULL DESC, sub." + KeysColumns.EXPIRY + " DESC"
+                + " LIMIT 1";
+        return "(SELECT sub." + KeysColumns.KEY_ID + subkeyWhere + "), "
+                + "(SELECT sub." + KeysColumns.EXPIRY + subkeyWhere + ")";
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // Downgrade is ok for the debug version, makes it easier to work with branches
@@ -375,6 +634,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
 
     // DANGEROUS, use in test code ONLY!
     public void clearDatabase() {
+        CanonicalizedKeyRingCache.getInstance(mContext).invalidateAll();
+        KeyWritableRepository.invalidateTrustedMasterKeys();
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -29,6 +32,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -37,6 +41,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
@@ -45,10 +50,10 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColu
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
 
@@ -66,6 +71,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
+    private static final int KEY_RING_SUMMARY = 209;
+    private static final int KEY_RING_ROWS = 210;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -143,6 +150,8 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/summary
+         * key_rings/_/rows/_
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -173,6 +182,12 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SUMMARY,
+                KEY_RING_SUMMARY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_ROWS + "/*",
+                KEY_RING_ROWS);
 
         /**
          * API apps
@@ -275,148 +290,107 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RINGS_FIND_BY_EMAIL:
             case KEY_RINGS_FIND_BY_SUBKEY:
             case KEY_RINGS_FIND_BY_USER_ID: {
+                // served from the materialized summary, see KeychainDatabase.updateKeyRingSummary
+                long now = new Date().getTime() / 1000;
                 HashMap<String, String> projectionMap = new HashMap<>();
-                projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
-                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
-                projectionMap.put(KeyRings.KEY_ID, Tables.KEYS + "." + Keys.KEY_ID);
-                projectionMap.put(KeyRings.KEY_SIZE, Tables.KEYS + "." + Keys.KEY_SIZE);
-                projectionMap.put(KeyRings.KEY_CURVE_OID, Tables.KEYS + "." + Keys.KEY_CURVE_OID);
-                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
-                projectionMap.put(KeyRings.IS_SECURE, Tables.KEYS + "." + Keys.IS_SECURE);
-                projectionMap.put(KeyRings.CAN_CERTIFY, Tables.KEYS + "." + Keys.CAN_CERTIFY);
-                projectionMap.put(KeyRings.CAN_ENCRYPT, Tables.KEYS + "." + Keys.CAN_ENCRYPT);
-                projectionMap.put(KeyRings.CAN_SIGN, Tables.KEYS + "." + Keys.CAN_SIGN);
-                projectionMap.put(KeyRings.CAN_AUTHENTICATE, Tables.KEYS + "." + Keys.CAN_AUTHENTICATE);
-                projectionMap.put(KeyRings.CREATION, Tables.KEYS + "." + Keys.CREATION);
-                projectionMap.put(KeyRings.EXPIRY, Tables.KEYS + "." + Keys.EXPIRY);
-                projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
-                projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
-                projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
-                projectionMap.put(KeyRings.NAME, Tables.USER_PACKETS + "." + UserPackets.NAME);
-                projectionMap.put(KeyRings.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
-                projectionMap.put(KeyRings.COMMENT, Tables.USER_PACKETS + "." + UserPackets.COMMENT);
+                projectionMap.put(KeyRings._ID, Tables.KEY_RINGS_SUMMARY + ".oid AS _id");
+                for (String column : new String[] {
+                        KeyRings.MASTER_KEY_ID, KeyRings.KEY_ID, KeyRings.KEY_SIZE, KeyRings.KEY_CURVE_OID,
+                        KeyRings.IS_REVOKED, KeyRings.IS_SECURE, KeyRings.CAN_CERTIFY, KeyRings.CAN_ENCRYPT,
+                        KeyRings.CAN_SIGN, KeyRings.CAN_AUTHENTICATE, KeyRings.CREATION, KeyRings.EXPIRY,
+                        KeyRings.ALGORITHM, KeyRings.FINGERPRINT, KeyRings.USER_ID, KeyRings.NAME,
+                        KeyRings.EMAIL, KeyRings.COMMENT, KeyRings.VERIFIED, KeyRings.HAS_SECRET,
+                        KeyRings.HAS_ANY_SECRET
+                }) {
+                    projectionMap.put(column, Tables.KEY_RINGS_SUMMARY + "." + column);
+                }
                 projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
-                            "(EXISTS (SELECT * FROM " + Tables.USER_PACKETS + " AS dups"
-                                + " WHERE dups." + UserPackets.MASTER_KEY_ID
-                                    + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND dups." + UserPackets.RANK + " = 0"
-                                + " AND dups." + UserPackets.NAME
-                                    + " = " + Tables.USER_PACKETS + "." + UserPackets.NAME + " COLLATE NOCASE"
-                                + " AND dups." + UserPackets.EMAIL
-                                    + " = " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " COLLATE NOCASE"
+                            "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SUMMARY + " AS dups"
+                                + " WHERE dups." + KeyRings.MASTER_KEY_ID
+                                    + " != " + Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID
+                                + " AND dups." + KeyRings.NAME
+                                    + " = " + Tables.KEY_RINGS_SUMMARY + "." + KeyRings.NAME + " COLLATE NOCASE"
+                                + " AND dups." + KeyRings.EMAIL
+                                    + " = " + Tables.KEY_RINGS_SUMMARY + "." + KeyRings.EMAIL + " COLLATE NOCASE"
                                 + ")) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, Tables.CERTS + "." + Certs.VERIFIED);
-                projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
-                projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                        "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET + " WHERE "
-                                + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = "
-                                + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                                + ")) AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
-                projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
+                projectionMap.put(KeyRings.HAS_ENCRYPT, buildValidSubkeyColumn(KeyRings.HAS_ENCRYPT,
+                        KeyRingSummaryColumns.ENCRYPT_KEY_ID, KeyRingSummaryColumns.ENCRYPT_EXPIRY, now));
+                projectionMap.put(KeyRings.HAS_SIGN, buildValidSubkeyColumn(KeyRings.HAS_SIGN,
+                        KeyRingSummaryColumns.SIGN_KEY_ID, KeyRingSummaryColumns.SIGN_EXPIRY, now));
+                projectionMap.put(KeyRings.HAS_CERTIFY, buildValidSubkeyColumn(KeyRings.HAS_CERTIFY,
+                        KeyRingSummaryColumns.CERTIFY_KEY_ID, KeyRingSummaryColumns.CERTIFY_EXPIRY, now));
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE, buildValidSubkeyColumn(KeyRings.HAS_AUTHENTICATE,
+                        KeyRingSummaryColumns.AUTHENTICATE_KEY_ID, KeyRingSummaryColumns.AUTHENTICATE_EXPIRY, now));
                 projectionMap.put(KeyRings.IS_EXPIRED,
-                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                        "(" + Tables.KEY_RINGS_SUMMARY + "." + KeyRings.EXPIRY + " IS NOT NULL AND "
+                                + Tables.KEY_RINGS_SUMMARY + "." + KeyRings.EXPIRY
+                                + " < " + now + ") AS " + KeyRings.IS_EXPIRED);
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
                     throw new IllegalArgumentException("Please provide a projection!");
                 }
 
-                // Need this as list so we can search in it
-                List<String> plist = Arrays.asList(projection);
-
-                qb.setTables(
-                    Tables.KEYS
-                        + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
-                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                                    + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
-                            // we KNOW that the rank zero user packet is a user id!
-                            + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
-                        + ")"
-                        // fairly expensive joins following, only do when requested
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.IS_SECURE + " = 1"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.IS_SECURE + " = 1"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.IS_SECURE + " = 1"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.IS_SECURE + " = 1"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")" : "")
-                    );
-                qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
+                qb.setTables(Tables.KEY_RINGS_SUMMARY);
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
-                        qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = ");
+                        qb.appendWhere(Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID + " = ");
                         qb.appendWhereEscapeString(uri.getPathSegments().get(1));
                         break;
                     }
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
-                            String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // a comma separated list of subkeys may be given, to look them up at once
+                            StringBuilder subkeys = new StringBuilder();
+                            for (String subkey : uri.getLastPathSegment().split(",")) {
+                                if (subkeys.length() > 0) {
+                                    subkeys.append(", ");
+                                }
+                                subkeys.append(Long.valueOf(subkey).toString());
+                            }
+                            // uncorrelated subquery, so the keys_by_key_id index resolves the
+                            // master key id once instead of probing for each keyring
+                            qb.appendWhere(Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " IN (" + subkeys + ")"
                                     + ")");
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
-                            qb.appendWhere(" AND 0");
+                            qb.appendWhere("0");
                         }
                         break;
                     }
-                    case KEY_RINGS_FIND_BY_EMAIL:
                     case KEY_RINGS_FIND_BY_USER_ID: {
+                        String chunks[] = uri.getLastPathSegment().split(" *, *");
+                        // any of the comma separated chunks may match
+                        String ftsSelect = "";
+                        for (String chunk : chunks) {
+                            String ftsQuery = buildFtsPrefixQuery(chunk);
+                            if (ftsQuery == null) {
+                                continue;
+                            }
+                            if (!ftsSelect.isEmpty()) {
+                                ftsSelect += " UNION ";
+                            }
+                            ftsSelect += "SELECT docid FROM " + Tables.USER_PACKETS_FTS
+                                    + " WHERE " + Tables.USER_PACKETS_FTS + " MATCH "
+                                    + DatabaseUtils.sqlEscapeString(ftsQuery);
+                        }
+                        if (!ftsSelect.isEmpty()) {
+                            // uncorrelated subqueries, so the full text index is consulted only once
+                            qb.appendWhere(Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserPackets.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_PACKETS_FTS_DOCS + " AS tmp"
+                                    + " WHERE tmp.docid IN (" + ftsSelect + ")"
+                                + ")");
+                        } else {
+                            Log.e(Constants.TAG, "Malformed find by user id query!");
+                            qb.appendWhere("0");
+                        }
+                        break;
+                    }
+                    case KEY_RINGS_FIND_BY_EMAIL: {
                         String chunks[] = uri.getLastPathSegment().split(" *, *");
                         boolean gotCondition = false;
                         String emailWhere = "";
@@ -428,33 +402,28 @@ public class KeychainProvider extends ContentProvider {
                             if (i != 0) {
                                 emailWhere += " OR ";
                             }
-                            if (match == KEY_RINGS_FIND_BY_EMAIL) {
-                                emailWhere += "tmp." + UserPackets.EMAIL + " LIKE "
-                                        + DatabaseUtils.sqlEscapeString(chunks[i]);
-                            } else {
-                                emailWhere += "tmp." + UserPackets.USER_ID + " LIKE "
-                                        + DatabaseUtils.sqlEscapeString("%" + chunks[i] + "%");
-                            }
+                            emailWhere += "tmp." + UserPackets.EMAIL + " LIKE "
+                                    + DatabaseUtils.sqlEscapeString(chunks[i]);
                             gotCondition = true;
                         }
                         if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
+                            qb.appendWhere("EXISTS ("
                                 + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
                                     + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                            + " = " + Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID
                                         + " AND (" + emailWhere + ")"
                                 + ")");
                         } else {
                             // TODO better way to do this?
                             Log.e(Constants.TAG, "Malformed find by email query!");
-                            qb.appendWhere(" AND 0");
+                            qb.appendWhere("0");
                         }
                         break;
                     }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC";
+                    sortOrder = Tables.KEY_RINGS_SUMMARY + "." + KeyRings.USER_ID + " ASC";
                 }
 
                 // uri to watch is all /key_rings/
@@ -463,6 +432,14 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RING_ROWS: {
+                // used for differential updates, plain rows without any projection map
+                qb.setTables(getKeyRingRowsTable(uri));
+                qb.appendWhere(KeyRings.MASTER_KEY_ID + " = ");
+                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                break;
+            }
+
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -549,6 +526,9 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.KEYS_DIGEST, KeyRingData.KEYS_DIGEST);
+                projectionMap.put(KeyRingData.USER_PACKETS_DIGEST, KeyRingData.USER_PACKETS_DIGEST);
+                projectionMap.put(KeyRingData.CERTS_DIGEST, KeyRingData.CERTS_DIGEST);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
@@ -748,7 +728,8 @@ public class KeychainProvider extends ContentProvider {
                     break;
                 }
                 case KEY_RING_SECRET: {
-                    db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
+                    // the public keyring may be updated in place, keeping the old secret one around
+                    db.replaceOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
                     break;
                 }
@@ -779,6 +760,12 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_SUMMARY: {
+                    // values are ignored, the summary is computed from the stored rows
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    KeychainDatabase.updateKeyRingSummary(db, keyId);
+                    break;
+                }
                 case UPDATED_KEYS: {
                     long updatedKeyId = db.replace(Tables.UPDATED_KEYS, null, values);
                     rowUri = UpdatedKeys.CONTENT_URI.buildUpon().appendPath("" + updatedKeyId)
@@ -857,6 +844,19 @@ public class KeychainProvider extends ContentProvider {
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
+            // used for differential updates of a keyring
+            case KEY_RING_ROWS: {
+                // make sure we get a long value here
+                Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                String selection = KeyRings.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                // certs are deleted along with their user packets by ON DELETE CASCADE
+                count = db.delete(getKeyRingRowsTable(uri), selection, selectionArgs);
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
 
             case API_APPS_BY_PACKAGE_NAME: {
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
@@ -906,6 +906,40 @@ public class KeychainProvider extends ContentProvider {
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
                     break;
                 }
+                case KEY_RING_PUBLIC: {
+                    for (String key : values.keySet()) {
+                        if (!KeyRingData.KEY_RING_DATA.equals(key) && !KeyRingData.KEYS_DIGEST.equals(key)
+                                && !KeyRingData.USER_PACKETS_DIGEST.equals(key)
+                                && !KeyRingData.CERTS_DIGEST.equals(key)) {
+                            throw new UnsupportedOperationException(
+                                    "Only keyring data and digests may be updated!");
+                        }
+                    }
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    String actualSelection = KeyRingData.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                    if (!TextUtils.isEmpty(selection)) {
+                        actualSelection += " AND (" + selection + ")";
+                    }
+                    count = db.update(Tables.KEY_RINGS_PUBLIC, values, actualSelection, selectionArgs);
+                    uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                    break;
+                }
+                // used for differential updates of a keyring
+                case KEY_RING_ROWS: {
+                    if (values.containsKey(KeyRings.MASTER_KEY_ID)) {
+                        throw new UnsupportedOperationException("Rows may not be moved to another keyring!");
+                    }
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    String actualSelection = KeyRings.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                    if (!TextUtils.isEmpty(selection)) {
+                        actualSelection += " AND (" + selection + ")";
+                    }
+                    count = db.update(getKeyRingRowsTable(uri), values, actualSelection, selectionArgs);
+                    uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                    break;
+                }
                 case API_APPS_BY_PACKAGE_NAME: {
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
@@ -926,6 +960,25 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations of a batch in a single transaction. Besides making a batch atomic,
+     * this saves one journal sync per operation, which matters a lot for bulk imports.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
@@ -945,6 +998,57 @@ public class KeychainProvider extends ContentProvider {
         return ApiApps.PACKAGE_NAME + "=" + packageName + andSelection;
     }
 
+    /** Only the tables holding the rows of a public keyring may be accessed through KEY_RING_ROWS. */
+    private static String getKeyRingRowsTable(Uri uri) {
+        String table = uri.getLastPathSegment();
+        if (!Tables.KEYS.equals(table) && !Tables.USER_PACKETS.equals(table) && !Tables.CERTS.equals(table)) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        return table;
+    }
+
+    /**
+     * A subkey is only usable for its capability until it expires, which must be checked at query
+     * time rather than when the summary is computed.
+     */
+    private static String buildValidSubkeyColumn(String alias, String keyIdColumn, String expiryColumn, long now) {
+        return "(CASE WHEN " + Tables.KEY_RINGS_SUMMARY + "." + expiryColumn + " IS NULL"
+                + " OR " + Tables.KEY_RINGS_SUMMARY + "." + expiryColumn + " >= " + now
+                + " THEN " + Tables.KEY_RINGS_SUMMARY + "." + keyIdColumn + " END) AS " + alias;
+    }
+
+    /**
+     * Builds a full text query which matches user ids containing words starting with each of the
+     * words in the given search string.
+     * <p>
+     * Words are split the same way as by the simple tokenizer of the full text index, which treats
+     * all ascii characters except letters and digits as separators, and folds only ascii letters
+     * to lower case. Since the remaining characters have no special meaning in a query, no further
+     * escaping is necessary.
+     *
+     * @return the query, or null if the search string contains no words.
+     */
+    @VisibleForTesting
+    static String buildFtsPrefixQuery(String search) {
+        StringBuilder query = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= search.length(); i++) {
+            char c = i < search.length() ? search.charAt(i) : ' ';
+            if (c >= 0x80 || Character.isLetterOrDigit(c)) {
+                word.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+                continue;
+            }
+            if (word.length() > 0) {
+                if (query.length() > 0) {
+                    query.append(' ');
+                }
+                query.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
     private String buildDefaultApiAllowedKeysSelection(Uri uri, String selection) {
         String packageName = DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1));
 
@@ -1,88 +1,426 @@
 package org.sufficientlysecure.keychain.provider;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 import android.content.Context;
+import android.support.annotation.VisibleForTesting;
 
 import okhttp3.internal.Util;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
 
 
+/**
+ * Stores public keyrings too large for the database in a single packed file.
+ * <p>
+ * Keyrings are appended as records of master key id, length, checksum and data, and located
+ * through an in-memory index of offsets, which is built by scanning only the record headers.
+ * Overwritten and deleted keyrings leave garbage behind, which is removed by compacting the live
+ * records into a new file in the background once there is more garbage than live data.
+ * <p>
+ * The file is shared between processes, which coordinate through a lock file. It holds a
+ * generation number that is incremented whenever the packed file is replaced by compaction, so
+ * other processes know to reopen it and rebuild their index. Records appended by other processes
+ * are picked up by scanning from the end of the last indexed record.
+ * <p>
+ * Previous versions stored one file per keyring. These are migrated into the packed file once.
+ */
 class LocalPublicKeyStorage {
-    private static final String FORMAT_STR_PUBLIC_KEY = "0x%016x.pub";
     private static final String PUBLIC_KEYS_DIR_NAME = "public_keys";
+    private static final String PACK_FILE_NAME = "public_keys.pack";
+    private static final String PACK_TMP_FILE_NAME = "public_keys.pack.tmp";
+    private static final String LOCK_FILE_NAME = "public_keys.lock";
+    private static final Pattern LEGACY_FILE_PATTERN = Pattern.compile("0x([0-9a-f]{16})\\.pub");
 
+    private static final int RECORD_MAGIC = 0x4f4b5052;
+    // magic, master key id, length, crc32
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int TOMBSTONE_LENGTH = -1;
 
-    private final File localPublicKeysDir;
+    private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
 
+    private static LocalPublicKeyStorage sInstance;
 
-    public static LocalPublicKeyStorage getInstance(Context context) {
+    private final File mPublicKeysDir;
+    private final int mMinMigratedSize;
+
+    private FileChannel mLockChannel;
+    private FileChannel mPackChannel;
+    private long mGeneration = -1;
+
+    private final HashMap<Long, Record> mIndex = new HashMap<>();
+    private long mIndexedSize;
+    private long mLiveBytes;
+    private long mGarbageBytes;
+    private boolean mCompactionScheduled;
+
+    public static synchronized LocalPublicKeyStorage getInstance(Context context) {
         File localPublicKeysDir = new File(context.getFilesDir(), PUBLIC_KEYS_DIR_NAME);
-        return new LocalPublicKeyStorage(localPublicKeysDir);
+        if (sInstance == null || !sInstance.mPublicKeysDir.equals(localPublicKeysDir)) {
+            // smaller keyrings are always stored in the database as well, see KeyWritableRepository
+            sInstance = new LocalPublicKeyStorage(localPublicKeysDir, KeyWritableRepository.MAX_CACHED_KEY_SIZE);
+        }
+        return sInstance;
     }
 
-    private LocalPublicKeyStorage(File localPublicKeysDir) {
-        this.localPublicKeysDir = localPublicKeysDir;
+    @VisibleForTesting
+    LocalPublicKeyStorage(File localPublicKeysDir, int minMigratedSize) {
+        mPublicKeysDir = localPublicKeysDir;
+        mMinMigratedSize = minMigratedSize;
     }
 
-    private File getPublicKeyFile(long masterKeyId) throws IOException {
-        if (!localPublicKeysDir.exists()) {
-            localPublicKeysDir.mkdir();
+    synchronized void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
+        FileLock lock = lock(false);
+        try {
+            appendRecord(masterKeyId, encoded);
+        } finally {
+            lock.release();
         }
-        if (!localPublicKeysDir.isDirectory()) {
-            throw new IOException("Failed creating public key directory!");
+        scheduleCompactionIfNecessary();
+    }
+
+    synchronized byte[] readPublicKey(long masterKeyId) throws IOException {
+        FileLock lock = lock(true);
+        try {
+            Record record = mIndex.get(masterKeyId);
+            if (record == null) {
+                return null;
+            }
+            return readRecordData(record);
+        } finally {
+            lock.release();
         }
+    }
 
-        String keyFilename = String.format(FORMAT_STR_PUBLIC_KEY, masterKeyId);
-        return new File(localPublicKeysDir, keyFilename);
+    synchronized void deletePublicKey(long masterKeyId) throws IOException {
+        FileLock lock = lock(false);
+        try {
+            if (mIndex.containsKey(masterKeyId)) {
+                appendRecord(masterKeyId, null);
+            }
+        } finally {
+            lock.release();
+        }
+        scheduleCompactionIfNecessary();
     }
 
-    void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    /** Copies all live records into a new packed file, which then replaces the current one. */
+    @VisibleForTesting
+    synchronized void compact() throws IOException {
+        mCompactionScheduled = false;
 
-        FileOutputStream fileOutputStream = new FileOutputStream(publicKeyFile);
+        FileLock lock = lock(false);
         try {
-            fileOutputStream.write(encoded);
+            ArrayList<Record> records = new ArrayList<>(mIndex.values());
+            // keep the order of the original file, so the copy is sequential
+            Collections.sort(records, new Comparator<Record>() {
+                @Override
+                public int compare(Record lhs, Record rhs) {
+                    return lhs.mOffset < rhs.mOffset ? -1 : (lhs.mOffset == rhs.mOffset ? 0 : 1);
+                }
+            });
+
+            File tmpFile = new File(mPublicKeysDir, PACK_TMP_FILE_NAME);
+            HashMap<Long, Record> newIndex = new HashMap<>();
+            long newSize = 0;
+            RandomAccessFile tmpRandomAccessFile = new RandomAccessFile(tmpFile, "rw");
+            try {
+                FileChannel tmpChannel = tmpRandomAccessFile.getChannel();
+                tmpChannel.truncate(0);
+                for (Record record : records) {
+                    long recordSize = record.getRecordSize();
+                    long transferred = 0;
+                    while (transferred < recordSize) {
+                        transferred += mPackChannel.transferTo(
+                                record.mOffset + transferred, recordSize - transferred, tmpChannel);
+                    }
+                    newIndex.put(record.mMasterKeyId, new Record(record.mMasterKeyId, newSize, record.mLength));
+                    newSize += recordSize;
+                }
+                tmpChannel.force(true);
+            } finally {
+                Util.closeQuietly(tmpRandomAccessFile);
+            }
+
+            if (!tmpFile.renameTo(new File(mPublicKeysDir, PACK_FILE_NAME))) {
+                throw new IOException("Could not replace packed public keys file!");
+            }
+            mGeneration += 1;
+            writeGeneration(mGeneration);
+
+            Log.d(Constants.TAG, "compacted public keys from " + mIndexedSize + " to " + newSize + " bytes");
+
+            openPackFile();
+            mIndex.clear();
+            mIndex.putAll(newIndex);
+            mIndexedSize = newSize;
+            mGarbageBytes = 0;
         } finally {
-            Util.closeQuietly(fileOutputStream);
+            lock.release();
         }
     }
 
-    byte[] readPublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    private void scheduleCompactionIfNecessary() {
+        if (mCompactionScheduled || mGarbageBytes < MIN_COMPACTION_GARBAGE || mGarbageBytes < mLiveBytes) {
+            return;
+        }
+        mCompactionScheduled = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Error compacting public keys!", e);
+                }
+            }
+        }, "public key compaction").start();
+    }
+
+    /**
+     * Takes the lock shared between processes, and brings the index up to date with changes
+     * made by other processes. All access happens with the monitor of this object held, which
+     * makes sure this process never holds more than one lock on the file at a time.
+     */
+    private FileLock lock(boolean shared) throws IOException {
+        if (mLockChannel == null) {
+            open();
+        }
+
+        FileLock lock = mLockChannel.lock(0, Long.MAX_VALUE, shared);
+        try {
+            long generation = readGeneration();
+            if (generation != mGeneration) {
+                openPackFile();
+                mIndex.clear();
+                mIndexedSize = 0;
+                mLiveBytes = 0;
+                mGarbageBytes = 0;
+                mGeneration = generation;
+            }
+            scanRecords();
+            return lock;
+        } catch (IOException | RuntimeException e) {
+            lock.release();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        if (!mPublicKeysDir.exists()) {
+            mPublicKeysDir.mkdir();
+        }
+        if (!mPublicKeysDir.isDirectory()) {
+            throw new IOException("Failed creating public key directory!");
+        }
 
+        mLockChannel = new RandomAccessFile(new File(mPublicKeysDir, LOCK_FILE_NAME), "rw").getChannel();
+
+        FileLock lock = lock(false);
         try {
-            FileInputStream fileInputStream = new FileInputStream(publicKeyFile);
-            return readIntoByteArray(fileInputStream);
-        } catch (FileNotFoundException e) {
-            return null;
+            migrateLegacyFiles();
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void openPackFile() throws IOException {
+        if (mPackChannel != null) {
+            Util.closeQuietly(mPackChannel);
+        }
+        mPackChannel = new RandomAccessFile(new File(mPublicKeysDir, PACK_FILE_NAME), "rw").getChannel();
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        readFully(mLockChannel, buf, 0);
+        if (buf.hasRemaining()) {
+            // lock file was just created
+            return 0;
         }
+        buf.flip();
+        return buf.getLong();
     }
 
-    private static byte[] readIntoByteArray(FileInputStream fileInputStream) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private void writeGeneration(long generation) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putLong(generation);
+        buf.flip();
+        writeFully(mLockChannel, buf, 0);
+        mLockChannel.force(false);
+    }
+
+    /** Indexes all complete records after the ones already indexed. */
+    private void scanRecords() throws IOException {
+        long size = mPackChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (mIndexedSize + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(mPackChannel, header, mIndexedSize);
+            header.flip();
+            if (header.getInt() != RECORD_MAGIC) {
+                Log.e(Constants.TAG, "Bad record in packed public keys, ignoring rest of file!");
+                break;
+            }
+            long masterKeyId = header.getLong();
+            int length = header.getInt();
+            if (length != TOMBSTONE_LENGTH && mIndexedSize + RECORD_HEADER_SIZE + length > size) {
+                // incomplete write, which is either still in progress or was interrupted
+                break;
+            }
+            indexRecord(new Record(masterKeyId, mIndexedSize, length));
+        }
+    }
 
-        byte[] buf = new byte[128];
-        int bytesRead;
-        while ((bytesRead = fileInputStream.read(buf)) != -1) {
-            baos.write(buf, 0, bytesRead);
+    private void indexRecord(Record record) {
+        Record oldRecord = record.isTombstone()
+                ? mIndex.remove(record.mMasterKeyId) : mIndex.put(record.mMasterKeyId, record);
+        if (oldRecord != null) {
+            mLiveBytes -= oldRecord.getRecordSize();
+            mGarbageBytes += oldRecord.getRecordSize();
         }
+        if (record.isTombstone()) {
+            mGarbageBytes += record.getRecordSize();
+        } else {
+            mLiveBytes += record.getRecordSize();
+        }
+        mIndexedSize += record.getRecordSize();
+    }
+
+    /** Appends a record, or a tombstone if data is null. The exclusive lock must be held. */
+    private void appendRecord(long masterKeyId, byte[] data) throws IOException {
+        // anything after the indexed records is left over from an interrupted write
+        if (mPackChannel.size() > mIndexedSize) {
+            mPackChannel.truncate(mIndexedSize);
+        }
+
+        int length = data != null ? data.length : TOMBSTONE_LENGTH;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC);
+        header.putLong(masterKeyId);
+        header.putInt(length);
+        header.putInt(data != null ? checksum(data) : 0);
+        header.flip();
 
-        return baos.toByteArray();
+        writeFully(mPackChannel, header, mIndexedSize);
+        if (data != null) {
+            writeFully(mPackChannel, ByteBuffer.wrap(data), mIndexedSize + RECORD_HEADER_SIZE);
+        }
+        indexRecord(new Record(masterKeyId, mIndexedSize, length));
     }
 
-    void deletePublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
-        if (publicKeyFile.exists()) {
-            boolean deleteSuccess = publicKeyFile.delete();
-            if (!deleteSuccess) {
-                throw new IOException("File exists, but could not be deleted!");
+    private byte[] readRecordData(Record record) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(mPackChannel, header, record.mOffset);
+        byte[] data = new byte[record.mLength];
+        ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+        readFully(mPackChannel, dataBuffer, record.mOffset + RECORD_HEADER_SIZE);
+        if (dataBuffer.hasRemaining()) {
+            throw new IOException("Packed public keys file is truncated!");
+        }
+
+        header.flip();
+        if (header.getInt(RECORD_HEADER_SIZE - 4) != checksum(data)) {
+            throw new IOException("Checksum mismatch in packed public keys file!");
+        }
+        return data;
+    }
+
+    private void migrateLegacyFiles() throws IOException {
+        File[] files = mPublicKeysDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        int migrated = 0;
+        for (File file : files) {
+            Matcher matcher = LEGACY_FILE_PATTERN.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            // small keyrings are always stored in the database as well, no need to keep them
+            if (file.length() >= mMinMigratedSize) {
+                long masterKeyId = new BigInteger(matcher.group(1), 16).longValue();
+                appendRecord(masterKeyId, readFile(file));
+                migrated += 1;
+            }
+            if (!file.delete()) {
+                throw new IOException("Could not delete migrated public key file!");
             }
         }
+
+        if (migrated > 0) {
+            Log.d(Constants.TAG, "migrated " + migrated + " public key files into packed file");
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = fileInputStream.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            readFully(channel, buf, 0);
+            return buf.array();
+        } finally {
+            Util.closeQuietly(fileInputStream);
+        }
+    }
+
+    /** Reads until the buffer is full, or the end of the channel is reached. */
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                return;
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static class Record {
+        final long mMasterKeyId;
+        final long mOffset;
+        final int mLength;
+
+        Record(long masterKeyId, long offset, int length) {
+            mMasterKeyId = masterKeyId;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        boolean isTombstone() {
+            return mLength == TOMBSTONE_LENGTH;
+        }
+
+        long getRecordSize() {
+            return RECORD_HEADER_SIZE + (isTombstone() ? 0 : mLength);
+        }
     }
 }
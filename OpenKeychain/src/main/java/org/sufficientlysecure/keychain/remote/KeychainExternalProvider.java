@@ -27,11 +27,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.BuildConfig;
@@ -55,8 +57,11 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
 
-    public static final String TEMP_TABLE_QUERIED_ADDRESSES = "queried_addresses";
-    public static final String TEMP_TABLE_COLUMN_ADDRES = "address";
+    public static final String QUERIED_ADDRESSES = "queried_addresses";
+    public static final String QUERIED_ADDRESSES_COLUMN_ADDRESS = "address";
+
+    // sqlite allows at most 500 terms in a compound select
+    private static final int QUERIED_ADDRESSES_CHUNK_SIZE = 400;
 
 
     private UriMatcher mUriMatcher;
@@ -154,17 +159,10 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                     throw new AccessControlException("An application must register before use of KeychainExternalProvider!");
                 }
 
-                db.execSQL("CREATE TEMPORARY TABLE " + TEMP_TABLE_QUERIED_ADDRESSES + " (" + TEMP_TABLE_COLUMN_ADDRES + " TEXT);");
-                ContentValues cv = new ContentValues();
-                for (String address : selectionArgs) {
-                    cv.put(TEMP_TABLE_COLUMN_ADDRES, address);
-                    db.insert(TEMP_TABLE_QUERIED_ADDRESSES, null, cv);
-                }
-
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(EmailStatus._ID, "email AS _id");
                 projectionMap.put(EmailStatus.EMAIL_ADDRESS, // this is actually the queried address
-                        TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES + " AS " + EmailStatus.EMAIL_ADDRESS);
+                        QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS + " AS " + EmailStatus.EMAIL_ADDRESS);
                 projectionMap.put(EmailStatus.USER_ID,
                         Tables.USER_PACKETS + "." + UserPackets.USER_ID + " AS " + EmailStatus.USER_ID);
                 // we take the minimum (>0) here, where "1" is "verified by known secret key", "2" is "self-certified"
@@ -183,11 +181,14 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                     throw new IllegalArgumentException("Please provide a projection!");
                 }
 
+                // the addresses are joined as an inline list, matching them by the indexed
+                // normalized email column
                 qb.setTables(
-                        TEMP_TABLE_QUERIED_ADDRESSES
+                        buildQueriedAddressesTable(selectionArgs)
                                 + " LEFT JOIN " + Tables.USER_PACKETS + " ON ("
                                 + Tables.USER_PACKETS + "." + UserPackets.USER_ID + " IS NOT NULL"
-                                + " AND " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " LIKE " + TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES
+                                + " AND " + Tables.USER_PACKETS + "." + UserPackets.EMAIL_NORMALIZED
+                                + " = lower(" + QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS + ")"
                                 + ")"
                                 + " LEFT JOIN " + Tables.CERTS + " ON ("
                                 + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " = " + Tables.CERTS + "." + Certs.MASTER_KEY_ID
@@ -195,7 +196,7 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                                 + ")"
                 );
                 // in case there are multiple verifying certificates
-                groupBy = TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES;
+                groupBy = QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS;
                 List<String> plist = Arrays.asList(projection);
                 if (plist.contains(EmailStatus.USER_ID)) {
                     groupBy += ", " + Tables.USER_PACKETS + "." + UserPackets.USER_ID;
@@ -252,6 +253,38 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
         return cursor;
     }
 
+    /**
+     * Builds a subquery with one row per queried address, as a compound select of escaped
+     * literals. Longer lists are split into nested chunks to stay below sqlite's limit on
+     * compound select terms.
+     */
+    @VisibleForTesting
+    static String buildQueriedAddressesTable(String[] addresses) {
+        if (addresses == null || addresses.length == 0) {
+            // no rows at all
+            return "(SELECT NULL AS " + QUERIED_ADDRESSES_COLUMN_ADDRESS + " WHERE 0) AS " + QUERIED_ADDRESSES;
+        }
+
+        StringBuilder builder = new StringBuilder("(");
+        for (int chunkStart = 0; chunkStart < addresses.length; chunkStart += QUERIED_ADDRESSES_CHUNK_SIZE) {
+            if (chunkStart > 0) {
+                builder.append(" UNION ALL ");
+            }
+            builder.append("SELECT * FROM (");
+            int chunkEnd = Math.min(chunkStart + QUERIED_ADDRESSES_CHUNK_SIZE, addresses.length);
+            for (int i = chunkStart; i < chunkEnd; i++) {
+                builder.append(i == chunkStart ? "SELECT " : " UNION ALL SELECT ");
+                DatabaseUtils.appendEscapedSQLString(builder, addresses[i]);
+                if (i == chunkStart) {
+                    builder.append(" AS ").append(QUERIED_ADDRESSES_COLUMN_ADDRESS);
+                }
+            }
+            builder.append(")");
+        }
+        builder.append(") AS ").append(QUERIED_ADDRESSES);
+        return builder.toString();
+    }
+
     private void checkIfPackageBelongsToCaller(Context context, String requestedPackageName) {
         int callerUid = Binder.getCallingUid();
         String[] callerPackageNames = context.getPackageManager().getPackagesForUid(callerUid);
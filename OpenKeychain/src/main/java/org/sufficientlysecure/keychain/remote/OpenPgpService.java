@@ -40,7 +40,6 @@ import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpDecryptionResult;
 import org.openintents.openpgp.OpenPgpError;
@@ -53,6 +52,7 @@ import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.ExportResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.BlockArmoredOutputStream;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.DecryptVerifySecurityProblem;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -83,6 +83,11 @@ public class OpenPgpService extends Service {
     public static final int API_VERSION_WITH_DECRYPTION_RESULT = 8;
     public static final int API_VERSION_WITH_RESULT_NO_SIGNATURE = 8;
 
+    // not part of OpenPgpApi yet. if set, all signatures of a message are verified, and their
+    // results are returned as an ArrayList of OpenPgpSignatureResult in RESULT_SIGNATURES.
+    public static final String EXTRA_VERIFY_ALL_SIGNATURES = "verify_all_signatures";
+    public static final String RESULT_SIGNATURES = "signatures";
+
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(7, 8, 9, 10, 11));
 
@@ -360,6 +365,7 @@ public class OpenPgpService extends Service {
 
             byte[] detachedSignature = data.getByteArrayExtra(OpenPgpApi.EXTRA_DETACHED_SIGNATURE);
             String senderAddress = data.getStringExtra(OpenPgpApi.EXTRA_SENDER_ADDRESS);
+            boolean verifyAllSignatures = data.getBooleanExtra(EXTRA_VERIFY_ALL_SIGNATURES, false);
 
             PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mKeyRepository, progressable);
 
@@ -374,6 +380,7 @@ public class OpenPgpService extends Service {
                     .setDecryptMetadataOnly(decryptMetadataOnly)
                     .setDetachedSignature(detachedSignature)
                     .setSenderAddress(senderAddress)
+                    .setVerifyAllSignatures(verifyAllSignatures)
                     .build();
 
             DecryptVerifyResult pgpResult = op.execute(input, cryptoInput, inputData, outputStream);
@@ -394,7 +401,10 @@ public class OpenPgpService extends Service {
 
                 processDecryptionResultForResultIntent(targetApiVersion, result, pgpResult.getDecryptionResult());
                 processMetadataForResultIntent(result, pgpResult.getDecryptionMetadata());
-                processSignatureResultForResultIntent(targetApiVersion, data, result, pgpResult);
+                // signatures aren't verified if only metadata was requested
+                if (!decryptMetadataOnly) {
+                    processSignatureResultForResultIntent(targetApiVersion, data, result, pgpResult);
+                }
                 processSecurityProblemsPendingIntent(data, result, pgpResult);
 
                 result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
@@ -529,6 +539,11 @@ public class OpenPgpService extends Service {
         }
 
         result.putExtra(OpenPgpApi.RESULT_SIGNATURE, signatureResult);
+
+        List<OpenPgpSignatureResult> signatureResults = pgpResult.getSignatureResults();
+        if (signatureResults != null) {
+            result.putParcelableArrayListExtra(RESULT_SIGNATURES, new ArrayList<>(signatureResults));
+        }
     }
 
     private Intent getKeyImpl(Intent data, OutputStream outputStream) {
@@ -550,7 +565,7 @@ public class OpenPgpService extends Service {
 
                     try {
                         if (requestAsciiArmor) {
-                            outputStream = new ArmoredOutputStream(outputStream);
+                            outputStream = new BlockArmoredOutputStream(outputStream);
                         }
                         keyRing.encode(outputStream);
                     } finally {
@@ -196,7 +196,7 @@ public class SelectPublicKeyFragment extends RecyclerFragment<SelectEncryptKeyAd
 
         String inMasterKeyList = null;
         if (mSelectedMasterKeyIds != null && mSelectedMasterKeyIds.length > 0) {
-            inMasterKeyList = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN (";
+            inMasterKeyList = Tables.KEY_RINGS_SUMMARY + "." + KeyRings.MASTER_KEY_ID + " IN (";
             for (int i = 0; i < mSelectedMasterKeyIds.length; ++i) {
                 if (i != 0) {
                     inMasterKeyList += ", ";
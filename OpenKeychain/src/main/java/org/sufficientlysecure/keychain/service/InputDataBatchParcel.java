@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.net.Uri;
+import android.os.Parcelable;
+import android.support.annotation.Nullable;
+
+import com.google.auto.value.AutoValue;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+
+
+/**
+ * Input for processing multiple inputs at once, each of them as with an
+ * {@link InputDataParcel}, using the same decrypt parameters for all of them.
+ */
+@AutoValue
+public abstract class InputDataBatchParcel implements Parcelable {
+    public abstract List<Uri> getInputUris();
+    @Nullable
+    public abstract PgpDecryptVerifyInputParcel getDecryptInput();
+
+    public static InputDataBatchParcel createInputDataBatchParcel(List<Uri> inputUris,
+            PgpDecryptVerifyInputParcel decryptInput) {
+        if (inputUris.isEmpty()) {
+            throw new IllegalArgumentException("batch must contain at least one input!");
+        }
+        return new AutoValue_InputDataBatchParcel(
+                Collections.unmodifiableList(new ArrayList<>(inputUris)), decryptInput);
+    }
+
+    public InputDataParcel getInputDataParcel(int index) {
+        return InputDataParcel.createInputDataParcel(getInputUris().get(index), getDecryptInput());
+    }
+}
@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.service;
 
 import android.app.Service;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
@@ -37,12 +38,14 @@ import org.sufficientlysecure.keychain.operations.EditKeyOperation;
 import org.sufficientlysecure.keychain.operations.BackupOperation;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.KeybaseVerificationOperation;
+import org.sufficientlysecure.keychain.operations.InputDataBatchOperation;
 import org.sufficientlysecure.keychain.operations.InputDataOperation;
 import org.sufficientlysecure.keychain.operations.ChangeUnlockOperation;
 import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
 import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.UploadOperation;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -73,7 +76,8 @@ public class KeychainService extends Service implements Progressable {
     // this attribute can possibly merged with the one above? not sure...
     private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
 
-    ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
+    // inheritable, so operations can report progress from worker threads they spawn
+    ThreadLocal<Messenger> mMessenger = new InheritableThreadLocal<>();
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -141,6 +145,16 @@ public class KeychainService extends Service implements Progressable {
                     op = new KeybaseVerificationOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof InputDataParcel) {
                     op = new InputDataOperation(outerThis, databaseInteractor, outerThis);
+                } else if (inputParcel instanceof InputDataBatchParcel) {
+                    InputDataBatchOperation batchOp =
+                            new InputDataBatchOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    batchOp.setResultListener(new InputDataBatchOperation.ResultListener() {
+                        @Override
+                        public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                            sendPartialResultToHandler(inputUri, result);
+                        }
+                    });
+                    op = batchOp;
                 } else if (inputParcel instanceof BenchmarkInputParcel) {
                     op = new BenchmarkOperation(outerThis, databaseInteractor, outerThis);
                 } else {
@@ -187,6 +201,13 @@ public class KeychainService extends Service implements Progressable {
         sendMessageToHandler(status, null, bundle);
     }
 
+    private void sendPartialResultToHandler(Uri inputUri, OperationResult data) {
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(ServiceProgressHandler.DATA_INPUT_URI, inputUri);
+        bundle.putParcelable(OperationResult.EXTRA_RESULT, data);
+        sendMessageToHandler(MessageStatus.PARTIAL_RESULT, null, bundle);
+    }
+
     private void sendMessageToHandler(MessageStatus status) {
         sendMessageToHandler(status, null, null);
     }
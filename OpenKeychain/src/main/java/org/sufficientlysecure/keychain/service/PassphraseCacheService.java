@@ -85,6 +85,9 @@ public class PassphraseCacheService extends Service {
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
+    // sent when passphrases are removed from the cache, with EXTRA_KEY_ID unless all were removed
+    public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED = Constants.INTENT_PREFIX
+            + "PASSPHRASE_CACHE_CLEARED";
 
     public static final String EXTRA_TTL = "ttl";
     public static final String EXTRA_KEY_ID = "key_id";
@@ -424,6 +427,7 @@ public class PassphraseCacheService extends Service {
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
                     mPassphraseCache.delete(referenceKeyId);
+                    sendClearedBroadcast(referenceKeyId);
 
                 } else {
 
@@ -435,6 +439,7 @@ public class PassphraseCacheService extends Service {
                         }
                     }
                     mPassphraseCache.clear();
+                    sendClearedBroadcast(null);
 
                 }
                 break;
@@ -450,6 +455,19 @@ public class PassphraseCacheService extends Service {
         return START_STICKY;
     }
 
+    /**
+     * Tells other processes that passphrases were removed, so they can drop anything derived
+     * from them, see UnlockedKeyCache.
+     */
+    private void sendClearedBroadcast(Long keyId) {
+        Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_CLEARED);
+        intent.setPackage(getPackageName());
+        if (keyId != null) {
+            intent.putExtra(EXTRA_KEY_ID, (long) keyId);
+        }
+        sendBroadcast(intent);
+    }
+
     /** Called when one specific passphrase for keyId timed out. */
     private void removeTimeoutedPassphrase(long keyId) {
 
@@ -461,6 +479,7 @@ public class PassphraseCacheService extends Service {
             }
             // remove passphrase object
             mPassphraseCache.remove(keyId);
+            sendClearedBroadcast(keyId);
         }
 
         Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
@@ -474,6 +493,7 @@ public class PassphraseCacheService extends Service {
             CachedPassphrase cPass = mPassphraseCache.valueAt(i);
             if (cPass.mTimeoutMode == TimeoutMode.LOCK) {
                 // remove passphrase object
+                sendClearedBroadcast(mPassphraseCache.keyAt(i));
                 mPassphraseCache.removeAt(i);
                 continue;
             }
@@ -39,7 +39,8 @@ public class ServiceProgressHandler extends Handler {
         OKAY,
         EXCEPTION,
         UPDATE_PROGRESS,
-        PREVENT_CANCEL;
+        PREVENT_CANCEL,
+        PARTIAL_RESULT;
 
         private static final MessageStatus[] values = values();
 
@@ -55,6 +56,7 @@ public class ServiceProgressHandler extends Handler {
     // possible data keys for messages
     public static final String DATA_ERROR = "error";
     public static final String DATA_PROGRESS = "progress";
+    public static final String DATA_INPUT_URI = "input_uri";
     public static final String DATA_PROGRESS_MAX = "max";
     public static final String DATA_MESSAGE = "message";
     public static final String DATA_MESSAGE_ID = "message_id";
@@ -143,6 +145,10 @@ public class ServiceProgressHandler extends Handler {
                 setPreventCancel(true);
                 break;
 
+            case PARTIAL_RESULT:
+                // results of finished parts of a batch operation, handled by subclasses
+                break;
+
             default:
                 Log.e(Constants.TAG, "unknown handler message!");
                 break;
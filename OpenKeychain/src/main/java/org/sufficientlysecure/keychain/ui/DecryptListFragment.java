@@ -76,12 +76,15 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.InputDataBatchResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
-import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.InputDataBatchParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
+import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper.PartialResultCallback;
 import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 // this import NEEDS to be above the ViewModel AND SubViewHolder one, or it won't compile! (as of 16.09.15)
 import org.sufficientlysecure.keychain.ui.keyview.ViewKeyActivity;
@@ -105,20 +108,22 @@ import org.sufficientlysecure.keychain.util.Preferences;
  * <p/>
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mCancelledInputUris, mCurrentInputUris, or a key in mInputDataResults.
  * <p/>
  * Processing of URIs happens using a looping approach:
- * - There is always exactly one method running which works on mCurrentInputUri
- * - Processing starts in cryptoOperation(), which pops a new mCurrentInputUri
- * from the list of mPendingInputUris.
- * - Once a mCurrentInputUri is finished processing, it should be set to null and
- * control handed back to cryptoOperation()
+ * - There is always at most one batch operation running, which works on mCurrentInputUris
+ * - Processing starts in cryptoOperation(), which moves all of mPendingInputUris
+ * to mCurrentInputUris.
+ * - Each URI is removed from mCurrentInputUris as its result comes in. Once the
+ * operation is finished, control is handed back to cryptoOperation()
+ * - If the operation requires input, it is repeated for the URIs which are still
+ * in mCurrentInputUris only.
  * - Control flow can move through asynchronous calls, and resume in callbacks
  * like onActivityResult() or onPermissionRequestResult().
  */
 public class DecryptListFragment
-        extends QueueingCryptoOperationFragment<InputDataParcel, InputDataResult>
-        implements OnMenuItemClickListener {
+        extends QueueingCryptoOperationFragment<InputDataBatchParcel, InputDataBatchResult>
+        implements OnMenuItemClickListener, PartialResultCallback {
 
     public static final String ARG_INPUT_URIS = "input_uris";
     public static final String ARG_OUTPUT_URIS = "output_uris";
@@ -134,7 +139,7 @@ public class DecryptListFragment
     private ArrayList<Uri> mPendingInputUris;
     private ArrayList<Uri> mCancelledInputUris;
 
-    private Uri mCurrentInputUri;
+    private ArrayList<Uri> mCurrentInputUris;
     private boolean mCanDelete;
 
     private DecryptFilesAdapter mAdapter;
@@ -206,7 +211,7 @@ public class DecryptListFragment
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putBoolean(ARG_CAN_DELETE, mCanDelete);
 
-        // this does not save mCurrentInputUri - if anything is being
+        // this does not save mCurrentInputUris - if anything is being
         // processed at fragment recreation time, the operation in
         // progress will be lost!
     }
@@ -234,7 +239,7 @@ public class DecryptListFragment
             HashMap<Uri, InputDataResult> results) {
 
         mInputUris = inputUris;
-        mCurrentInputUri = null;
+        mCurrentInputUris = new ArrayList<>();
         mInputDataResults = results != null ? results : new HashMap<Uri, InputDataResult>(inputUris.size());
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<Uri>();
 
@@ -270,7 +275,6 @@ public class DecryptListFragment
                 if (resultCode == Activity.RESULT_OK && data != null) {
                     Uri saveUri = data.getData();
                     saveFile(saveUri);
-                    mCurrentInputUri = null;
                 }
                 return;
             }
@@ -308,7 +312,6 @@ public class DecryptListFragment
         }
 
         Uri decryptedFileUri = mCurrentSaveFileUri;
-        mCurrentInputUri = null;
 
         hideKeyboard();
 
@@ -328,34 +331,41 @@ public class DecryptListFragment
 
     @Override
     public boolean onCryptoSetProgress(String msg, int progress, int max) {
-        mAdapter.setProgress(mCurrentInputUri, progress, max, msg);
+        // progress is for the whole batch
+        for (Uri uri : mCurrentInputUris) {
+            mAdapter.setProgress(uri, progress, max, msg);
+        }
         return true;
     }
 
     @Override
-    public void onQueuedOperationError(InputDataResult result) {
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
+    public void onCryptoOperationPartialResult(Uri inputUri, OperationResult operationResult) {
+        if (!mCurrentInputUris.remove(inputUri)) {
+            return;
+        }
+        InputDataResult result = (InputDataResult) operationResult;
+        if (result.success()) {
+            onInputSuccess(inputUri, result);
+        } else {
+            onInputError(inputUri, result);
+        }
+    }
 
+    private void onInputError(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
         if (activity != null && "com.fsck.k9.attachmentprovider".equals(uri.getHost())) {
             Toast.makeText(getActivity(), R.string.error_reading_k9, Toast.LENGTH_LONG).show();
         }
 
         mAdapter.addResult(uri, result);
-
-        cryptoOperation();
     }
 
-    @Override
-    public void onQueuedOperationSuccess(InputDataResult result) {
-        Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
+    private void onInputSuccess(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
 
-        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty();
-        if (isSingleInput) {
+        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty()
+                && mCurrentInputUris.isEmpty();
+        if (isSingleInput && activity != null) {
 
             // there is always at least one mMetadata object, so we know this is >= 1 already
             boolean isSingleMetadata = result.mMetadata.size() == 1;
@@ -377,7 +387,18 @@ public class DecryptListFragment
 
         mInputDataResults.put(uri, result);
         processResult(uri);
+    }
+
+    @Override
+    public void onQueuedOperationError(InputDataBatchResult result) {
+        // the result of every input has been handled already
+        cancelCurrentInputUris();
+        cryptoOperation();
+    }
 
+    @Override
+    public void onQueuedOperationSuccess(InputDataBatchResult result) {
+        cancelCurrentInputUris();
         cryptoOperation();
     }
 
@@ -385,16 +406,20 @@ public class DecryptListFragment
     public void onCryptoOperationCancelled() {
         super.onCryptoOperationCancelled();
 
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
-        mCancelledInputUris.add(uri);
-        mAdapter.setCancelled(uri, true);
-
+        cancelCurrentInputUris();
         cryptoOperation();
 
     }
 
+    /** Marks all inputs of the finished operation which didn't get a result as cancelled. */
+    private void cancelCurrentInputUris() {
+        for (Uri uri : mCurrentInputUris) {
+            mCancelledInputUris.add(uri);
+            mAdapter.setCancelled(uri, true);
+        }
+        mCurrentInputUris.clear();
+    }
+
     HashMap<Uri, Drawable> mIconCache = new HashMap<>();
 
     private void processResult(final Uri uri) {
@@ -473,7 +498,7 @@ public class DecryptListFragment
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (!mCurrentInputUris.isEmpty()) {
             return;
         }
 
@@ -615,31 +640,36 @@ public class DecryptListFragment
     }
 
     @Override
-    public InputDataParcel createOperationInput() {
+    public InputDataBatchParcel createOperationInput() {
 
         Activity activity = getActivity();
         if (activity == null) {
             return null;
         }
 
-        if (mCurrentInputUri == null) {
+        // if the last operation required input, this repeats it for the inputs without a result only
+        if (mCurrentInputUris.isEmpty()) {
             if (mPendingInputUris.isEmpty()) {
                 // nothing left to do
                 return null;
             }
 
-            mCurrentInputUri = mPendingInputUris.remove(0);
+            mCurrentInputUris.addAll(mPendingInputUris);
+            mPendingInputUris.clear();
         }
 
-        Log.d(Constants.TAG, "mCurrentInputUri=" + mCurrentInputUri);
+        Log.d(Constants.TAG, "mCurrentInputUris=" + mCurrentInputUris);
 
-        if (!checkAndRequestReadPermission(activity, mCurrentInputUri)) {
-            return null;
+        for (Uri uri : mCurrentInputUris) {
+            if (!checkAndRequestReadPermission(activity, uri)) {
+                return null;
+            }
         }
 
         PgpDecryptVerifyInputParcel.Builder decryptInput = PgpDecryptVerifyInputParcel.builder()
                 .setAllowSymmetricDecryption(true);
-        return InputDataParcel.createInputDataParcel(mCurrentInputUri, decryptInput.build());
+        return InputDataBatchParcel.createInputDataBatchParcel(
+                new ArrayList<>(mCurrentInputUris), decryptInput.build());
 
     }
 
@@ -648,7 +678,7 @@ public class DecryptListFragment
      * <p/>
      * This method returns true on Android < 6, or if permission is already granted. It
      * requests the permission and returns false otherwise, taking over responsibility
-     * for mCurrentInputUri.
+     * for mCurrentInputUris.
      * <p/>
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
@@ -704,12 +734,19 @@ public class DecryptListFragment
 
         } else {
 
-            // permission denied -> cancel current, and all pending file uris
-            mCancelledInputUris.add(mCurrentInputUri);
-            mAdapter.setCancelled(mCurrentInputUri, true);
+            // permission denied -> cancel all current and pending file uris
+            Iterator<Uri> it = mCurrentInputUris.iterator();
+            while (it.hasNext()) {
+                Uri uri = it.next();
+                if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+                    continue;
+                }
+                it.remove();
+                mCancelledInputUris.add(uri);
+                mAdapter.setCancelled(uri, true);
+            }
 
-            mCurrentInputUri = null;
-            Iterator<Uri> it = mPendingInputUris.iterator();
+            it = mPendingInputUris.iterator();
             while (it.hasNext()) {
                 Uri uri = it.next();
                 if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
@@ -734,7 +771,7 @@ public class DecryptListFragment
         }
 
         // don't process menu items until all items are done!
-        if (!mPendingInputUris.isEmpty()) {
+        if (!mPendingInputUris.isEmpty() || !mCurrentInputUris.isEmpty()) {
             return true;
         }
 
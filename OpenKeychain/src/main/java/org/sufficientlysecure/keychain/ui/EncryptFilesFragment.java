@@ -623,7 +623,10 @@ public class EncryptFilesFragment
         // fill values for this action
         PgpSignEncryptData.Builder data = PgpSignEncryptData.builder();
 
-        if (!mUseCompression) {
+        if (mUseCompression) {
+            // files are often already compressed, e.g. images or archives
+            data.setAdaptiveCompression(true);
+        } else {
             data.setCompressionAlgorithm(PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
         }
         data.setHiddenRecipients(mHiddenRecipients);
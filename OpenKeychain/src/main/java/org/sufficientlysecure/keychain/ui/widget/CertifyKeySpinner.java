@@ -64,7 +64,7 @@ public class CertifyKeySpinner extends KeySpinner {
         });
 
         String where = KeychainContract.KeyRings.HAS_ANY_SECRET + " = 1 AND "
-                + KeychainDatabase.Tables.KEYS + "." + KeychainContract.KeyRings.MASTER_KEY_ID
+                + KeychainDatabase.Tables.KEY_RINGS_SUMMARY + "." + KeychainContract.KeyRings.MASTER_KEY_ID
                 + " != " + mHiddenMasterKeyId;
 
         // Now create and return a CursorLoader that will take care of
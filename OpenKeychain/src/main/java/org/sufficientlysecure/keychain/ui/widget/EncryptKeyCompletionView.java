@@ -116,8 +116,12 @@ public class EncryptKeyCompletionView extends TokenCompleteTextView<KeyItem>
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        String query = args.getString(ARG_QUERY);
+        mAdapter.setSearchQuery(query);
+
         // These are the rows that we will retrieve.
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
+        Uri baseUri = TextUtils.isEmpty(query) ? KeyRings.buildUnifiedKeyRingsUri()
+                : KeyRings.buildUnifiedKeyRingsFindByUserIdUri(query);
 
         String[] projection = KeyAdapter.getProjectionWith(new String[]{
                 KeychainContract.KeyRings.HAS_ENCRYPT,
@@ -125,15 +129,9 @@ public class EncryptKeyCompletionView extends TokenCompleteTextView<KeyItem>
 
         String where = KeyRings.HAS_ENCRYPT + " NOT NULL AND "
                 + KeyRings.IS_EXPIRED + " = 0 AND "
-                + Tables.KEYS + "." + KeyRings.IS_REVOKED + " = 0";
-
-        String query = args.getString(ARG_QUERY);
-        mAdapter.setSearchQuery(query);
-
-        where += " AND " + KeyRings.USER_ID + " LIKE ?";
+                + Tables.KEY_RINGS_SUMMARY + "." + KeyRings.IS_REVOKED + " = 0";
 
-        return new CursorLoader(getContext(), baseUri, projection, where,
-                new String[]{"%" + query + "%"}, null);
+        return new CursorLoader(getContext(), baseUri, projection, where, null, null);
 
     }
 
@@ -18,7 +18,6 @@
 package org.sufficientlysecure.keychain.util;
 
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
@@ -291,25 +290,28 @@ public class FileHelper {
     }
 
     public static void copyUriData(Context context, Uri fromUri, Uri toUri) throws IOException {
-        BufferedInputStream bis = null;
-        BufferedOutputStream bos = null;
+        InputStream is = null;
+        OutputStream os = null;
+        IoBufferPool.Lease bufferLease = IoBufferPool.lease();
 
         try {
             ContentResolver resolver = context.getContentResolver();
-            bis = new BufferedInputStream(resolver.openInputStream(fromUri));
-            bos = new BufferedOutputStream(resolver.openOutputStream(toUri));
-            byte[] buf = new byte[1024];
+            is = resolver.openInputStream(fromUri);
+            os = resolver.openOutputStream(toUri);
+            // copying in large chunks, there is no need for buffered streams
+            byte[] buf = bufferLease.getBuffer();
             int len;
-            while ( (len = bis.read(buf)) > 0) {
-                bos.write(buf, 0, len);
+            while ( (len = is.read(buf)) > 0) {
+                os.write(buf, 0, len);
             }
         } finally {
+            bufferLease.release();
             try {
-                if (bis != null) {
-                    bis.close();
+                if (is != null) {
+                    is.close();
                 }
-                if (bos != null) {
-                    bos.close();
+                if (os != null) {
+                    os.close();
                 }
             } catch (IOException e) {
                 // ignore, it's just stream closin'
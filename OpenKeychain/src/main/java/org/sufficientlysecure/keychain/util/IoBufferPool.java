@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.support.annotation.VisibleForTesting;
+
+
+/**
+ * A small pool of fixed size buffers for the copy loops and stream stages of OpenPGP
+ * operations, which would otherwise allocate several large buffers per operation.
+ * <p/>
+ * Buffers are obtained through a Lease, which returns all of its buffers to the pool at once
+ * when released. Buffers are cleared when returned, since they usually held plaintext. A buffer
+ * that is never returned is simply garbage collected, so an operation which returns early
+ * without releasing its lease does no harm.
+ */
+public class IoBufferPool {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+    // enough for a couple of concurrent operations with a few stream stages each
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ArrayDeque<byte[]> sPool = new ArrayDeque<>();
+    private static boolean sPoolingEnabled = true;
+    private static long sAllocatedBuffers;
+
+    public static Lease lease() {
+        return new Lease();
+    }
+
+    private static byte[] acquire() {
+        synchronized (sPool) {
+            byte[] buffer = sPool.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+            sAllocatedBuffers += 1;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void release(byte[] buffer) {
+        Arrays.fill(buffer, (byte) 0);
+        synchronized (sPool) {
+            if (sPoolingEnabled && sPool.size() < MAX_POOLED_BUFFERS) {
+                sPool.addFirst(buffer);
+            }
+        }
+    }
+
+    /** Number of buffers allocated since startup, as opposed to reused from the pool. */
+    @VisibleForTesting
+    static long getAllocatedBufferCount() {
+        synchronized (sPool) {
+            return sAllocatedBuffers;
+        }
+    }
+
+    @VisibleForTesting
+    static void setPoolingEnabled(boolean poolingEnabled) {
+        synchronized (sPool) {
+            sPoolingEnabled = poolingEnabled;
+            sPool.clear();
+        }
+    }
+
+    /**
+     * Buffers used by a single operation. A lease must only be used by one thread, and none
+     * of its buffers or streams may be used after it has been released.
+     */
+    public static class Lease {
+        private final ArrayList<byte[]> mBuffers = new ArrayList<>(4);
+
+        private Lease() {
+        }
+
+        /** Returns a buffer of BUFFER_SIZE bytes. */
+        public byte[] getBuffer() {
+            byte[] buffer = acquire();
+            mBuffers.add(buffer);
+            return buffer;
+        }
+
+        /**
+         * Returns a BufferedOutputStream using a buffer from this lease. Note that releasing the
+         * lease doesn't flush the stream, that must be done by closing or flushing it before.
+         */
+        public BufferedOutputStream bufferedOutputStream(OutputStream out) {
+            return new LeasedBufferedOutputStream(out, getBuffer());
+        }
+
+        public void release() {
+            for (byte[] buffer : mBuffers) {
+                IoBufferPool.release(buffer);
+            }
+            mBuffers.clear();
+        }
+    }
+
+    private static class LeasedBufferedOutputStream extends BufferedOutputStream {
+        LeasedBufferedOutputStream(OutputStream out, byte[] buffer) {
+            super(out, 1);
+            buf = buffer;
+        }
+    }
+
+}
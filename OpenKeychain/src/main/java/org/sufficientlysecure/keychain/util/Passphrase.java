@@ -100,7 +100,7 @@ public class Passphrase implements Parcelable {
     }
 
     /** @return A cached session key, or null if none exists for the given parameters. */
-    public byte[] getCachedSessionKeyForParameters(int keyEncryptionAlgorithm, S2K s2k) {
+    public synchronized byte[] getCachedSessionKeyForParameters(int keyEncryptionAlgorithm, S2K s2k) {
         if (mCachedSessionKeys == null) {
             return null;
         }
@@ -112,7 +112,7 @@ public class Passphrase implements Parcelable {
      * of an S2K operation applied to exactly the passphrase stored by this object
      * with the given parameters.
      */
-    public void addCachedSessionKeyForParameters(int keyEncryptionAlgorithm, S2K s2k, byte[] sessionKey) {
+    public synchronized void addCachedSessionKeyForParameters(int keyEncryptionAlgorithm, S2K s2k, byte[] sessionKey) {
         if (mCachedSessionKeys == null) {
             mCachedSessionKeys = new HashMap<>();
         }
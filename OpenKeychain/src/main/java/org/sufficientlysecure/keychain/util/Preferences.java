@@ -104,6 +104,14 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_SUBS, false);
     }
 
+    public boolean getPassphraseCacheUnlockedKeys() {
+        return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, false);
+    }
+
+    public boolean getPassphraseCacheSessionKeys() {
+        return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_SESSION_KEYS, false);
+    }
+
     public boolean getCachedConsolidate() {
         return mSharedPreferences.getBoolean(Pref.CACHED_CONSOLIDATE, false);
     }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.pgp.Progressable;
+
+/**
+ * Combines the progress of a number of equally weighted parts, which may run concurrently,
+ * into a single progress value on a wrapped Progressable. Unlike with a ProgressScaler per
+ * part, progress moves forward steadily as long as any of the parts make progress.
+ */
+public class ProgressAggregator {
+
+    final Progressable mWrapped;
+    final int mFrom, mTo, mMax;
+    // progress of each part, in percent
+    final int[] mPartProgress;
+    int mTotalProgress;
+
+    public ProgressAggregator(Progressable wrapped, int parts, int from, int to, int max) {
+        mWrapped = wrapped;
+        mPartProgress = new int[parts];
+        mFrom = from;
+        mTo = to;
+        mMax = max;
+    }
+
+    public Progressable getPart(final int part) {
+        return new Progressable() {
+            @Override
+            public void setProgress(String message, int current, int total) {
+                int progress = update(part, current, total);
+                if (mWrapped != null) {
+                    mWrapped.setProgress(message, progress, mMax);
+                }
+            }
+
+            @Override
+            public void setProgress(int resourceId, int current, int total) {
+                int progress = update(part, current, total);
+                if (mWrapped != null) {
+                    mWrapped.setProgress(resourceId, progress, mMax);
+                }
+            }
+
+            @Override
+            public void setProgress(int current, int total) {
+                int progress = update(part, current, total);
+                if (mWrapped != null) {
+                    mWrapped.setProgress(progress, mMax);
+                }
+            }
+
+            @Override
+            public void setPreventCancel() {
+                if (mWrapped != null) {
+                    mWrapped.setPreventCancel();
+                }
+            }
+        };
+    }
+
+    private synchronized int update(int part, int current, int total) {
+        int percent = total > 0 ? Math.max(0, Math.min(100, (int) (100L * current / total))) : 0;
+        mTotalProgress += percent - mPartProgress[part];
+        mPartProgress[part] = percent;
+        return mFrom + (int) ((long) mTotalProgress * (mTo - mFrom) / (100L * mPartProgress.length));
+    }
+}
@@ -1,21 +1,42 @@
 package org.sufficientlysecure.keychain;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
 
 import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.pgp.BlockArmoredInputStream;
+import org.sufficientlysecure.keychain.pgp.BlockArmoredOutputStream;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyringTest;
 import org.sufficientlysecure.keychain.support.TestDataUtil;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 @RunWith(KeychainTestRunner.class)
 public class ArmoredInputStreamTest {
 
+    // sizes around the line length of 48 bytes, and the decoder's buffer size
+    private static final int[] DATA_SIZES = { 1, 2, 3, 4, 47, 48, 49, 96, 97, 6143, 6144, 6145, 100000 };
+    private static final int[] WRITE_SIZES = { 1, 7, 4096, 100000 };
+
     @Test
     public void armoredInputStream__withDifferentLineEndings() throws Exception {
         // these are generated by GPG4USB, see https://github.com/gpg4usb/gpg4usb/issues/25
@@ -40,4 +61,238 @@ public class ArmoredInputStreamTest {
         assertArrayEquals(data1, data3);
     }
 
+    @Test
+    public void blockArmoredInputStream__withDifferentLineEndings() throws Exception {
+        byte[] expected = TestDataUtil.readFully(
+                new ArmoredInputStream(ArmoredInputStreamTest.class.getResourceAsStream("/armored_lf.asc")));
+
+        for (String resource : new String[] { "/armored_crcrlf.asc", "/armored_crlf.asc", "/armored_lf.asc" }) {
+            InputStream stream = BlockArmoredInputStream.getDecoderStream(
+                    ArmoredInputStreamTest.class.getResourceAsStream(resource));
+            assertTrue(stream instanceof BlockArmoredInputStream);
+
+            BlockArmoredInputStream aIn = (BlockArmoredInputStream) stream;
+            assertEquals(1, aIn.getArmorHeaders().length);
+            assertEquals("Comment: comment content", aIn.getArmorHeaders()[0]);
+            assertArrayEquals(expected, TestDataUtil.readFully(aIn));
+        }
+    }
+
+    @Test
+    public void blockArmoredOutputStream__sameAsArmoredOutputStream() throws Exception {
+        Random random = new Random(42);
+        // public key, secret key, signature, and some other packet
+        int[] firstBytes = { 0x99, 0x95, 0x89, 0x8c };
+
+        for (int size : DATA_SIZES) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            data[0] = (byte) firstBytes[size % firstBytes.length];
+
+            for (int writeSize : WRITE_SIZES) {
+                // most callers leave the default headers as they are
+                for (boolean setHeaders : new boolean[] { false, true }) {
+                    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                    ArmoredOutputStream aOut = new ArmoredOutputStream(expected);
+                    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                    ArmoredOutputStream blockOut = new BlockArmoredOutputStream(actual);
+                    if (setHeaders) {
+                        for (ArmoredOutputStream out : new ArmoredOutputStream[] { aOut, blockOut }) {
+                            out.setHeader("Version", "OpenKeychain v1.0");
+                            out.setHeader("Comment", "comment content");
+                        }
+                    }
+
+                    writeInChunks(aOut, data, writeSize);
+                    aOut.close();
+                    writeInChunks(blockOut, data, writeSize);
+                    blockOut.close();
+
+                    assertEquals("output must match for " + size + " bytes written " + writeSize + " at a time"
+                                    + (setHeaders ? ", with headers" : ""),
+                            expected.toString("US-ASCII"), actual.toString("US-ASCII"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void blockArmoredOutputStream__cleartextSameAsArmoredOutputStream() throws Exception {
+        byte[] text = "- dash escaped\nsecond line\n".getBytes("UTF-8");
+        byte[] signature = new byte[200];
+        new Random(42).nextBytes(signature);
+        signature[0] = (byte) 0x89;
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ArmoredOutputStream aOut = new ArmoredOutputStream(expected);
+        aOut.beginClearText(HashAlgorithmTags.SHA256);
+        aOut.write(text);
+        aOut.endClearText();
+        aOut.write(signature);
+        aOut.close();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        ArmoredOutputStream blockOut = new BlockArmoredOutputStream(actual);
+        blockOut.beginClearText(HashAlgorithmTags.SHA256);
+        blockOut.write(text);
+        blockOut.endClearText();
+        blockOut.write(signature);
+        blockOut.close();
+
+        assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+    }
+
+    @Test
+    public void blockArmoredInputStream__sameAsArmoredInputStream() throws Exception {
+        Random random = new Random(42);
+
+        for (int size : DATA_SIZES) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            data[0] = (byte) 0x8c;
+
+            ByteArrayOutputStream armored = new ByteArrayOutputStream();
+            ArmoredOutputStream aOut = new ArmoredOutputStream(armored);
+            aOut.write(data);
+            aOut.close();
+
+            byte[] expected = TestDataUtil.readFully(
+                    new ArmoredInputStream(new ByteArrayInputStream(armored.toByteArray())));
+            assertArrayEquals(data, expected);
+
+            for (int readSize : WRITE_SIZES) {
+                InputStream in = BlockArmoredInputStream.getDecoderStream(
+                        new ByteArrayInputStream(armored.toByteArray()));
+                assertTrue(in instanceof BlockArmoredInputStream);
+                assertArrayEquals("decoded data must match for " + size + " bytes read " + readSize + " at a time",
+                        expected, readInChunks(in, readSize));
+            }
+        }
+    }
+
+    @Test
+    public void blockArmoredInputStream__stopsAfterArmorTail() throws Exception {
+        byte[] data1 = { (byte) 0x99, 1, 2, 3, 4, 5 };
+        byte[] data2 = { (byte) 0x99, 6, 7, 8 };
+
+        ByteArrayOutputStream armored = new ByteArrayOutputStream();
+        armored.write("some text before the armor\n".getBytes("US-ASCII"));
+        for (byte[] data : new byte[][] { data1, data2 }) {
+            ArmoredOutputStream aOut = new BlockArmoredOutputStream(armored);
+            aOut.write(data);
+            aOut.close();
+        }
+
+        InputStream stream = new BufferedInputStream(new ByteArrayInputStream(armored.toByteArray()));
+        assertArrayEquals(data1, TestDataUtil.readFully(BlockArmoredInputStream.getDecoderStream(stream)));
+        assertArrayEquals(data2, TestDataUtil.readFully(BlockArmoredInputStream.getDecoderStream(stream)));
+    }
+
+    @Test
+    public void blockArmoredInputStream__failsOnBadChecksum() throws Exception {
+        ByteArrayOutputStream armored = new ByteArrayOutputStream();
+        ArmoredOutputStream aOut = new BlockArmoredOutputStream(armored);
+        aOut.write(new byte[] { (byte) 0x99, 1, 2, 3, 4, 5 });
+        aOut.close();
+
+        String corrupted = armored.toString("US-ASCII").replace("mQECAwQF", "mQECAwQG");
+        InputStream in = BlockArmoredInputStream.getDecoderStream(
+                new ByteArrayInputStream(corrupted.getBytes("US-ASCII")));
+        try {
+            readInChunks(in, 4096);
+            fail("corrupted armor must not be decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void benchmarkArmor() throws Exception {
+        // only run on request, e.g. sizes up to 1 GB with -DarmorBenchmarkMaxSize=1073741824
+        Assume.assumeTrue(System.getProperty("armorBenchmarkMaxSize") != null);
+        long maxSize = Long.getLong("armorBenchmarkMaxSize", 32 * 1024 * 1024);
+
+        for (long size = 1024 * 1024; size <= maxSize; size *= 32) {
+            File armoredFile = File.createTempFile("armor-benchmark", ".asc");
+            try {
+                long start = System.nanoTime();
+                encode(new ArmoredOutputStream(new NullOutputStream()), size);
+                long legacyEncodeTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                encode(new BlockArmoredOutputStream(new NullOutputStream()), size);
+                long blockEncodeTime = System.nanoTime() - start;
+
+                encode(new BlockArmoredOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(armoredFile))), size);
+
+                start = System.nanoTime();
+                decode(new ArmoredInputStream(new BufferedInputStream(new FileInputStream(armoredFile))), size);
+                long legacyDecodeTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                decode(BlockArmoredInputStream.getDecoderStream(new FileInputStream(armoredFile)), size);
+                long blockDecodeTime = System.nanoTime() - start;
+
+                double megabytes = size / (1024.0 * 1024.0);
+                System.out.println(String.format(
+                        "armor %d MB: encode legacy %.1f MB/s, block %.1f MB/s; decode legacy %.1f MB/s, block %.1f MB/s",
+                        size / (1024 * 1024),
+                        megabytes / (legacyEncodeTime / 1e9), megabytes / (blockEncodeTime / 1e9),
+                        megabytes / (legacyDecodeTime / 1e9), megabytes / (blockDecodeTime / 1e9)));
+            } finally {
+                // noinspection ResultOfMethodCallIgnored
+                armoredFile.delete();
+            }
+        }
+    }
+
+    private static void encode(ArmoredOutputStream aOut, long size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        new Random(42).nextBytes(buffer);
+        buffer[0] = (byte) 0x8c;
+
+        for (long written = 0; written < size; written += buffer.length) {
+            aOut.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+        }
+        aOut.close();
+    }
+
+    private static void decode(InputStream in, long expectedSize) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long size = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            size += read;
+        }
+        in.close();
+        assertEquals(expectedSize, size);
+    }
+
+    private static void writeInChunks(OutputStream out, byte[] data, int chunkSize) throws IOException {
+        for (int off = 0; off < data.length; off += chunkSize) {
+            out.write(data, off, Math.min(chunkSize, data.length - off));
+        }
+    }
+
+    private static byte[] readInChunks(InputStream in, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunkSize];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class CleartextSignatureProcessorTest {
+
+    static final String SIGNATURE_BLOCK = "-----BEGIN PGP SIGNATURE-----\n" +
+            "\n" +
+            "iQEcBAEBCAAGBQJYAAAAAAoJEAAAAAAAAAAAAAA=\n" +
+            "-----END PGP SIGNATURE-----\n";
+
+    @Test
+    public void testLineEndingsAndWhitespace() throws Exception {
+        String text = "first line\n" +
+                "trailing whitespace  \t\r\n" +
+                "- -----dash escaped\r" +
+                "\n" +
+                "\r\n" +
+                "last line\n";
+
+        assertMatchesLegacy(text, null);
+    }
+
+    @Test
+    public void testLongLines() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append('x');
+        }
+        text.append(" \n").append(text).append("\r\n");
+
+        assertMatchesLegacy(text.toString(), null);
+    }
+
+    @Test
+    public void testSpilledToFile() throws Exception {
+        String text = generateText(CleartextSignatureProcessor.MAX_BUFFERED_SIGNED_DATA * 2);
+
+        CleartextSignatureProcessor processor = assertMatchesLegacy(text, RuntimeEnvironment.application.getCacheDir());
+        File spillFile = processor.getSpillFile();
+        Assert.assertNotNull("signed data above the threshold should be kept in a file", spillFile);
+
+        String longLine = null;
+        for (String line : text.split("\n")) {
+            if (line.trim().length() >= 40) {
+                longLine = line.trim();
+                break;
+            }
+        }
+        Assert.assertNotNull(longLine);
+        Assert.assertFalse("signed data must not be kept in the clear",
+                new String(readFile(spillFile), "ISO-8859-1").contains(longLine));
+
+        processor.close();
+        Assert.assertFalse("temporary file should be deleted", spillFile.exists());
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkProcess() throws Exception {
+        byte[] message = wrapCleartext(generateText(1024 * 1024 * 4));
+        int rounds = 5;
+
+        long legacyTime = 0, streamingTime = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(message));
+            legacyProcess(aIn, new ByteArrayOutputStream());
+            legacyTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            aIn = new ArmoredInputStream(new ByteArrayInputStream(message));
+            CleartextSignatureProcessor processor =
+                    new CleartextSignatureProcessor(RuntimeEnvironment.application.getCacheDir());
+            processor.process(aIn, new ByteArrayOutputStream());
+            processor.writeSignedData(new ByteArrayOutputStream());
+            processor.close();
+            streamingTime += System.nanoTime() - start;
+        }
+
+        double megabytes = rounds * message.length / (1024.0 * 1024.0);
+        System.out.println(String.format("cleartext processing: legacy %.1f MB/s, streaming %.1f MB/s",
+                megabytes / (legacyTime / 1e9), megabytes / (streamingTime / 1e9)));
+    }
+
+    private CleartextSignatureProcessor assertMatchesLegacy(String text, File spillDir) throws IOException {
+        byte[] message = wrapCleartext(text);
+
+        ByteArrayOutputStream legacyOutput = new ByteArrayOutputStream();
+        byte[] legacySignedData = legacyProcess(
+                new ArmoredInputStream(new ByteArrayInputStream(message)), legacyOutput);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream signedData = new ByteArrayOutputStream();
+        ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(message));
+        CleartextSignatureProcessor processor = new CleartextSignatureProcessor(spillDir);
+        long outputSize = processor.process(aIn, output);
+        processor.writeSignedData(signedData);
+
+        Assert.assertArrayEquals("output must match", legacyOutput.toByteArray(), output.toByteArray());
+        Assert.assertEquals("output size must match", output.size(), outputSize);
+        Assert.assertArrayEquals("signed data must match", legacySignedData, signedData.toByteArray());
+        Assert.assertFalse("signature must follow the text", aIn.isClearText());
+
+        return processor;
+    }
+
+    private static byte[] wrapCleartext(String text) {
+        return ("-----BEGIN PGP SIGNED MESSAGE-----\n" +
+                "Hash: SHA256\n" +
+                "\n" +
+                text +
+                SIGNATURE_BLOCK).getBytes();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static String generateText(int size) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            int lineLength = random.nextInt(100);
+            for (int i = 0; i < lineLength; i++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            text.append(random.nextBoolean() ? " \n" : "\r\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * The previous implementation from PgpDecryptVerifyOperation and PgpSignatureChecker,
+     * which returns the signed data instead of updating a signature.
+     */
+    private static byte[] legacyProcess(ArmoredInputStream aIn, ByteArrayOutputStream outputStream)
+            throws IOException {
+        byte[] clearText;
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
+            int lookAhead = readInputLine(lineOut, aIn);
+            byte[] lineSep = System.getProperty("line.separator").getBytes();
+
+            byte[] line = lineOut.toByteArray();
+            out.write(line, 0, getLengthWithoutSeparator(line));
+            out.write(lineSep);
+
+            while (lookAhead != -1 && aIn.isClearText()) {
+                lookAhead = readInputLine(lineOut, lookAhead, aIn);
+                line = lineOut.toByteArray();
+                out.write(line, 0, getLengthWithoutSeparator(line));
+                out.write(lineSep);
+            }
+
+            out.close();
+            clearText = out.toByteArray();
+        }
+
+        outputStream.write(clearText);
+
+        ByteArrayOutputStream signedData = new ByteArrayOutputStream();
+        InputStream sigIn = new ByteArrayInputStream(clearText);
+        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
+
+        int lookAhead = readInputLine(outputBuffer, sigIn);
+        processLine(signedData, outputBuffer.toByteArray());
+        while (lookAhead != -1) {
+            lookAhead = readInputLine(outputBuffer, lookAhead, sigIn);
+            signedData.write('\r');
+            signedData.write('\n');
+            processLine(signedData, outputBuffer.toByteArray());
+        }
+
+        return signedData.toByteArray();
+    }
+
+    private static void processLine(ByteArrayOutputStream signedData, byte[] line) {
+        int end = line.length - 1;
+        while (end >= 0 && (line[end] == '\r' || line[end] == '\n' || line[end] == '\t' || line[end] == ' ')) {
+            end--;
+        }
+        signedData.write(line, 0, end + 1);
+    }
+
+    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn) throws IOException {
+        bOut.reset();
+
+        int lookAhead = -1;
+        int ch;
+
+        while ((ch = fIn.read()) >= 0) {
+            bOut.write(ch);
+            if (ch == '\r' || ch == '\n') {
+                lookAhead = readPastEOL(bOut, ch, fIn);
+                break;
+            }
+        }
+
+        return lookAhead;
+    }
+
+    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
+            throws IOException {
+        bOut.reset();
+
+        int ch = lookAhead;
+
+        do {
+            bOut.write(ch);
+            if (ch == '\r' || ch == '\n') {
+                lookAhead = readPastEOL(bOut, ch, fIn);
+                break;
+            }
+        } while ((ch = fIn.read()) >= 0);
+
+        if (ch < 0) {
+            lookAhead = -1;
+        }
+
+        return lookAhead;
+    }
+
+    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn) throws IOException {
+        int lookAhead = fIn.read();
+
+        if (lastCh == '\r' && lookAhead == '\n') {
+            bOut.write(lookAhead);
+            lookAhead = fIn.read();
+        }
+
+        return lookAhead;
+    }
+
+    private static int getLengthWithoutSeparator(byte[] line) {
+        int end = line.length - 1;
+
+        while (end >= 0 && (line[end] == '\r' || line[end] == '\n')) {
+            end--;
+        }
+
+        return end + 1;
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.InputDataBatchOperation;
+import org.sufficientlysecure.keychain.operations.results.InputDataBatchResult;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.InputDataBatchParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class InputDataBatchOperationTest {
+
+    static final int NUM_INPUTS = 10;
+    static final Uri MISSING_INPUT_URI = Uri.parse("content://fake/missing");
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        ArrayList<Uri> inputUris = new ArrayList<>();
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            inputUris.add(Uri.parse("content://fake/" + i));
+        }
+
+        final List<Uri> reportedUris = Collections.synchronizedList(new ArrayList<Uri>());
+        final Map<Uri, InputDataResult> reportedResults = new ConcurrentHashMap<>();
+        InputDataBatchOperation op = createOperation();
+        op.setResultListener(new InputDataBatchOperation.ResultListener() {
+            @Override
+            public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                reportedUris.add(inputUri);
+                reportedResults.put(inputUri, result);
+            }
+        });
+
+        InputDataBatchResult result = op.execute(
+                InputDataBatchParcel.createInputDataBatchParcel(inputUris, null),
+                CryptoInputParcel.createCryptoInputParcel());
+
+        Assert.assertEquals(OperationResult.RESULT_OK, result.getResult());
+        Assert.assertTrue(result.getLog().containsType(LogType.MSG_DATA_BATCH_OK));
+        Assert.assertFalse("results of single inputs should not be part of the batch result",
+                result.getLog().containsType(LogType.MSG_DATA));
+
+        Assert.assertEquals("every input should be reported once", NUM_INPUTS, reportedUris.size());
+        for (Uri inputUri : inputUris) {
+            InputDataResult inputResult = reportedResults.get(inputUri);
+            Assert.assertTrue(inputResult.success());
+            Assert.assertEquals("output uri should simply be passed-through input uri",
+                    inputUri, inputResult.getOutputUris().get(0));
+        }
+    }
+
+    @Test
+    public void testBatchWithFailedInput() throws Exception {
+        ArrayList<Uri> inputUris = new ArrayList<>();
+        inputUris.add(Uri.parse("content://fake/0"));
+        inputUris.add(MISSING_INPUT_URI);
+        inputUris.add(Uri.parse("content://fake/2"));
+
+        final Map<Uri, InputDataResult> reportedResults = new ConcurrentHashMap<>();
+        InputDataBatchOperation op = createOperation();
+        op.setResultListener(new InputDataBatchOperation.ResultListener() {
+            @Override
+            public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                reportedResults.put(inputUri, result);
+            }
+        });
+
+        InputDataBatchResult result = op.execute(
+                InputDataBatchParcel.createInputDataBatchParcel(inputUris, null),
+                CryptoInputParcel.createCryptoInputParcel());
+
+        Assert.assertTrue("failed input should not fail the whole batch", result.success());
+        Assert.assertTrue(result.getLog().containsType(LogType.MSG_DATA_BATCH_PARTIAL));
+        Assert.assertEquals(3, reportedResults.size());
+        Assert.assertTrue(reportedResults.get(inputUris.get(0)).success());
+        Assert.assertFalse(reportedResults.get(MISSING_INPUT_URI).success());
+        Assert.assertTrue(reportedResults.get(inputUris.get(2)).success());
+    }
+
+    private InputDataBatchOperation createOperation() throws FileNotFoundException {
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.openInputStream(any(Uri.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Uri uri = (Uri) invocation.getArguments()[0];
+                if (MISSING_INPUT_URI.equals(uri)) {
+                    throw new FileNotFoundException();
+                }
+                String content = "Some-Header: dummy\n\nmessage text for " + uri + "\n";
+                return new ByteArrayInputStream(content.getBytes());
+            }
+        });
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        return new InputDataBatchOperation(spyApplication,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null, null);
+    }
+
+}
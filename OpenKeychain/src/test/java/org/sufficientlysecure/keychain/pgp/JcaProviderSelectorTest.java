@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(KeychainTestRunner.class)
+public class JcaProviderSelectorTest {
+
+    // the default JCE provider of the JVM stands in for a native provider
+    static final String JVM_PROVIDER = "SunJCE";
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @After
+    public void tearDown() {
+        JcaProviderSelector.setPreferredProviders((String[]) null);
+    }
+
+    @Test
+    public void testFallbackForMissingProvider() {
+        JcaProviderSelector.setPreferredProviders("MissingProvider");
+
+        Assert.assertEquals(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                JcaProviderSelector.getDataCipherProvider(SymmetricKeyAlgorithmTags.AES_256, true));
+        Assert.assertEquals(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                JcaProviderSelector.getSignatureVerificationProvider(
+                        PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA512));
+    }
+
+    @Test
+    public void testSelectionBySupportedAlgorithm() {
+        JcaProviderSelector.setPreferredProviders(JVM_PROVIDER);
+
+        Assert.assertEquals(JVM_PROVIDER,
+                JcaProviderSelector.getDataCipherProvider(SymmetricKeyAlgorithmTags.AES_256, true));
+        Assert.assertEquals("unsupported cipher should fall back", Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                JcaProviderSelector.getDataCipherProvider(SymmetricKeyAlgorithmTags.TWOFISH, true));
+        Assert.assertEquals("unsupported mode should fall back", Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                JcaProviderSelector.getDataCipherProvider(SymmetricKeyAlgorithmTags.AES_256, false));
+        Assert.assertEquals("non-RSA signatures should stay on BouncyCastle", Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                JcaProviderSelector.getSignatureVerificationProvider(
+                        PublicKeyAlgorithmTags.ECDSA, HashAlgorithmTags.SHA512));
+    }
+
+    @Test
+    public void testEncryptWithSelectedProvider() {
+        JcaProviderSelector.setPreferredProviders(JVM_PROVIDER);
+
+        Passphrase passphrase = new Passphrase("passphrase");
+        byte[] plaintext = new byte[100 * 1024];
+        new Random(42).nextBytes(plaintext);
+        byte[] ciphertext;
+
+        { // encrypt using the selected provider
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setSymmetricPassphrase(passphrase);
+            pgpData.setSymmetricEncryptionAlgorithm(SymmetricKeyAlgorithmTags.AES_256);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(new Date()), new InputData(in, in.available()), out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decryption with BouncyCastle must yield the same plaintext
+            JcaProviderSelector.setPreferredProviders();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setAllowSymmetricDecryption(true)
+                    .build();
+            DecryptVerifyResult result = op.execute(input,
+                    CryptoInputParcel.createCryptoInputParcel(passphrase), new InputData(in, in.available()), out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext", plaintext, out.toByteArray());
+        }
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkProviders() throws Exception {
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random(42).nextBytes(data);
+        byte[] output = new byte[data.length];
+        int rounds = 5;
+
+        for (Provider provider : Security.getProviders()) {
+            Cipher cipher;
+            try {
+                cipher = Cipher.getInstance("AES/CFB/NoPadding", provider);
+            } catch (GeneralSecurityException e) {
+                cipher = null;
+            }
+            if (cipher != null) {
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[32], "AES"),
+                        new IvParameterSpec(new byte[16]));
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    cipher.update(data, 0, data.length, output);
+                }
+                printThroughput(provider, "AES-256/CFB", rounds * data.length, System.nanoTime() - start);
+            }
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-512", provider);
+            } catch (NoSuchAlgorithmException e) {
+                digest = null;
+            }
+            if (digest != null) {
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    digest.update(data);
+                }
+                digest.digest();
+                printThroughput(provider, "SHA-512", rounds * data.length, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static void printThroughput(Provider provider, String algorithm, long bytes, long nanos) {
+        System.out.println(String.format("%s %s: %.1f MB/s",
+                provider.getName(), algorithm, bytes / (1024.0 * 1024.0) / (nanos / 1e9)));
+    }
+
+}
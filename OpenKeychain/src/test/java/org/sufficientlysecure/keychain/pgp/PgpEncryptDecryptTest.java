@@ -26,6 +26,7 @@ import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.apache.tools.ant.util.StringUtils;
 import org.bouncycastle.bcpg.BCPGInputStream;
@@ -62,6 +63,7 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.Require
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
 import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.IoBufferPool;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
@@ -221,6 +223,26 @@ public class PgpEncryptDecryptTest {
                     out.toByteArray().length, metadata.getOriginalSize());
         }
 
+        { // decryption of input bytes can stream into a given output stream
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setInputBytes(ciphertext)
+                    .setAllowSymmetricDecryption(true)
+                    .build();
+            DecryptVerifyResult result = op.execute(
+                    input, CryptoInputParcel.createCryptoInputParcel(mSymmetricPassphrase), out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+            Assert.assertNull("plaintext must not be part of the result when streamed",
+                    result.getOutputBytes());
+        }
+
         { // decryption with a bad passphrase should fail
 
             ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -288,6 +310,70 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAdaptiveCompression() {
+
+        byte[] randomData = new byte[100 * 1024];
+        new Random(42).nextBytes(randomData);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 4000; i++) {
+            text.append("dies ist ein plaintext\n");
+        }
+        byte[] textData = text.toString().getBytes();
+
+        for (byte[] plaintext : new byte[][] { randomData, textData }) {
+            boolean isCompressible = plaintext == textData;
+            byte[] ciphertext;
+
+            { // encrypt with adaptive compression
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+                PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                        KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+                InputData data = new InputData(in, in.available());
+
+                PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+                pgpData.setSymmetricPassphrase(mSymmetricPassphrase);
+                pgpData.setCompressionAlgorithm(PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.ZIP);
+                pgpData.setAdaptiveCompression(true);
+
+                PgpSignEncryptResult result = op.execute(pgpData.build(),
+                        CryptoInputParcel.createCryptoInputParcel(new Date()), data, out);
+
+                Assert.assertTrue("encryption must succeed", result.success());
+                Assert.assertEquals("decision should be logged", isCompressible,
+                        result.getLog().containsType(LogType.MSG_PSE_COMPRESSION_KEPT));
+                Assert.assertEquals("decision should be logged", !isCompressible,
+                        result.getLog().containsType(LogType.MSG_PSE_COMPRESSION_SKIPPED));
+                Assert.assertEquals("only compressible data should be compressed", isCompressible,
+                        result.getLog().containsType(LogType.MSG_PSE_COMPRESSING));
+
+                ciphertext = out.toByteArray();
+            }
+
+            { // the sampled block must not be lost, for either decision
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                        KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+                PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                        .setAllowSymmetricDecryption(true)
+                        .build();
+                DecryptVerifyResult result = op.execute(
+                        input, CryptoInputParcel.createCryptoInputParcel(mSymmetricPassphrase), data, out);
+
+                Assert.assertTrue("decryption must succeed", result.success());
+                Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                        plaintext, out.toByteArray());
+            }
+        }
+
+    }
+
     @Test
     public void testAsymmetricSignLiteral() {
 
@@ -461,6 +547,219 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testVerifyAllSignatures() throws Exception {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+
+        // two concatenated detached signatures make up one signature list
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        signatures.write(signDetached(plaintext, mStaticRing1, mKeyPhrase1));
+        signatures.write(signDetached(plaintext, mStaticRing2, mKeyPhrase2));
+
+        { // by default, only the first signature is verified
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setDetachedSignature(signatures.toByteArray())
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(),
+                    data, new ByteArrayOutputStream());
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, result.getSignatureResult().getResult());
+            Assert.assertNull("there should be no combined results", result.getSignatureResults());
+        }
+
+        { // with verifyAllSignatures, both signatures are verified
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setDetachedSignature(signatures.toByteArray())
+                    .setVerifyAllSignatures(true)
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(),
+                    data, new ByteArrayOutputStream());
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("there should be one result per signature",
+                    2, result.getSignatureResults().size());
+            Assert.assertEquals("first result should be from the first key",
+                    mStaticRing1.getMasterKeyId(), result.getSignatureResults().get(0).getKeyId());
+            Assert.assertEquals("second result should be from the second key",
+                    mStaticRing2.getMasterKeyId(), result.getSignatureResults().get(1).getKeyId());
+            for (OpenPgpSignatureResult signatureResult : result.getSignatureResults()) {
+                Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                        OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, signatureResult.getResult());
+            }
+        }
+
+        { // a modified text must fail verification for both signatures
+            byte[] modified = (plaintext + "!").getBytes();
+            ByteArrayInputStream in = new ByteArrayInputStream(modified);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setDetachedSignature(signatures.toByteArray())
+                    .setVerifyAllSignatures(true)
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(),
+                    data, new ByteArrayOutputStream());
+
+            Assert.assertEquals("there should be one result per signature",
+                    2, result.getSignatureResults().size());
+            for (OpenPgpSignatureResult signatureResult : result.getSignatureResults()) {
+                Assert.assertEquals("signatureResult should be RESULT_INVALID_SIGNATURE",
+                        OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, signatureResult.getResult());
+            }
+        }
+
+    }
+
+    @Test
+    public void testVerifyAllSignaturesInParallel() throws Exception {
+
+        // enough data and signatures to be verified on several threads
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 4 * IoBufferPool.BUFFER_SIZE) {
+            builder.append("dies ist ein plaintext ☭").append(TestingUtils.genPassphrase(true));
+        }
+        String plaintext = builder.toString();
+
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            signatures.write(signDetached(plaintext, mStaticRing1, mKeyPhrase1));
+            signatures.write(signDetached(plaintext, mStaticRing2, mKeyPhrase2));
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+        InputData data = new InputData(in, in.available());
+
+        PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+        PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                .setDetachedSignature(signatures.toByteArray())
+                .setVerifyAllSignatures(true)
+                .build();
+        DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(),
+                data, new ByteArrayOutputStream());
+
+        Assert.assertTrue("verification must succeed", result.success());
+        Assert.assertEquals("there should be one result per signature",
+                6, result.getSignatureResults().size());
+        for (int i = 0; i < 6; i++) {
+            OpenPgpSignatureResult signatureResult = result.getSignatureResults().get(i);
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, signatureResult.getResult());
+            Assert.assertEquals("results should be in the order of the signatures",
+                    (i % 2 == 0 ? mStaticRing1 : mStaticRing2).getMasterKeyId(), signatureResult.getKeyId());
+        }
+
+    }
+
+    private byte[] signDetached(String plaintext, UncachedKeyRing ring, Passphrase passphrase) {
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSignatureMasterKeyId(ring.getMasterKeyId());
+        pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(ring, 1));
+        pgpData.setDetachedSignature(true);
+
+        PgpSignEncryptResult result = op.execute(pgpData.build(),
+                CryptoInputParcel.createCryptoInputParcel(passphrase), new InputData(in, in.available()),
+                new ByteArrayOutputStream());
+        Assert.assertTrue("signing must succeed", result.success());
+
+        return result.getDetachedSignature();
+    }
+
+    @Test
+    public void testDecryptMetadataOnly() {
+
+        byte[] plaintext = "dies ist ein plaintext ☭".getBytes();
+        byte[] ciphertext = signEncrypt(plaintext, "plaintext.txt");
+
+        { // metadata should be read from the literal data header
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setDecryptMetadataOnly(true)
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+
+            Assert.assertTrue("decryption of metadata must succeed", result.success());
+            Assert.assertEquals("no data should be written", 0, out.size());
+            Assert.assertNull("signature should not be verified", result.getSignatureResult());
+            Assert.assertTrue(result.getLog().containsType(LogType.MSG_DC_CLEAR_META_BYTES_READ));
+
+            OpenPgpMetadata metadata = result.getDecryptionMetadata();
+            Assert.assertEquals("plaintext.txt", metadata.getFilename());
+            Assert.assertEquals("filesize must be correct", plaintext.length, metadata.getOriginalSize());
+
+            CryptoInputParcel cryptoInput = result.getCachedCryptoInputParcel();
+            Assert.assertEquals("must have one cached session key",
+                    1, cryptoInput.getCryptoData().size());
+        }
+
+        // large enough to be written in partial length chunks
+        plaintext = new byte[4 * IoBufferPool.BUFFER_SIZE];
+        new Random(42).nextBytes(plaintext);
+        ciphertext = signEncrypt(plaintext, "random.bin");
+
+        { // the size isn't known from the header, it must be found by skipping the data
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setDecryptMetadataOnly(true)
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+
+            Assert.assertTrue("decryption of metadata must succeed", result.success());
+            Assert.assertEquals("no data should be written", 0, out.size());
+            OpenPgpMetadata metadata = result.getDecryptionMetadata();
+            Assert.assertEquals("random.bin", metadata.getFilename());
+            Assert.assertEquals("filesize must be correct", plaintext.length, metadata.getOriginalSize());
+        }
+
+    }
+
+    private byte[] signEncrypt(byte[] plaintext, String filename) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+        InputData data = new InputData(in, in.available(), filename);
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+        pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+        pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+        pgpData.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        PgpSignEncryptResult result = op.execute(pgpData.build(),
+                CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+        Assert.assertTrue("signing and encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
     @Test
     public void testAsymmetricEncryptDecrypt() {
 
@@ -724,6 +1023,77 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testManyRecipientsEncryptDecrypt() throws Exception {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        long[] recipients = new long[12];
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = i % 2 == 0 ? mStaticRing1.getMasterKeyId() : mStaticRing2.getMasterKeyId();
+        }
+
+        byte[] ciphertext = encryptToRecipients(plaintext, recipients);
+        ArrayList<Long> sessionKeyIds = getSessionKeyIds(ciphertext);
+        Assert.assertTrue("there should be enough recipients for parallel encryption",
+                sessionKeyIds.size() >= ParallelKeyEncryptionMethods.MIN_PARALLEL_METHODS);
+
+        ParallelKeyEncryptionMethods.setParallelEncryptionEnabled(false);
+        try {
+            Assert.assertEquals("session key packets must be in the same order as without parallel encryption",
+                    getSessionKeyIds(encryptToRecipients(plaintext, recipients)), sessionKeyIds);
+        } finally {
+            ParallelKeyEncryptionMethods.setParallelEncryptionEnabled(true);
+        }
+
+        { // decryption should succeed for the second key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase2, mStaticRing2.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext.getBytes(), out.toByteArray());
+        }
+
+    }
+
+    private byte[] encryptToRecipients(String plaintext, long[] recipients) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setEncryptionMasterKeyIds(recipients);
+        pgpData.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        PgpSignEncryptResult result = op.execute(pgpData.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date()), new InputData(in, in.available()), out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+    private static ArrayList<Long> getSessionKeyIds(byte[] ciphertext) throws Exception {
+        ArrayList<Long> sessionKeyIds = new ArrayList<>();
+        Iterator<RawPacket> packets = KeyringTestingHelper.parseKeyring(ciphertext);
+        while (packets.hasNext()) {
+            RawPacket packet = packets.next();
+            if (packet.tag == PacketTags.PUBLIC_KEY_ENC_SESSION) {
+                Packet p = new BCPGInputStream(new ByteArrayInputStream(packet.buf)).readPacket();
+                sessionKeyIds.add(((PublicKeyEncSessionPacket) p).getKeyID());
+            }
+        }
+        return sessionKeyIds;
+    }
+
     @Test
     public void testMultiAsymmetricEncryptDecrypt() {
 
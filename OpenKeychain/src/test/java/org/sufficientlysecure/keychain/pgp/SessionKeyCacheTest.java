@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.SessionKeyStore;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.Constants.Pref;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SessionKeyCacheTest {
+
+    static final long MASTER_KEY_ID = 0x1111L, SUB_KEY_ID = 0x2222L;
+
+    SessionKeyCache sessionKeyCache;
+
+    @Before
+    public void setUp() throws Exception {
+        sessionKeyCache = new SessionKeyCache(RuntimeEnvironment.application, 2, 60 * 1000);
+        setCacheEnabled(true);
+    }
+
+    @Test
+    public void testSessionKeyIsCached() throws Exception {
+        SessionKeyStore store = sessionKeyCache.getSessionKeyStore(MASTER_KEY_ID, SUB_KEY_ID);
+        Assert.assertNull(store.get(encryptedSessionKey(1)));
+
+        byte[] sessionData = new byte[] { 9, 8, 7 };
+        store.put(encryptedSessionKey(1), sessionData);
+        sessionData[0] = 0;
+
+        byte[] cachedSessionData = store.get(encryptedSessionKey(1));
+        Assert.assertArrayEquals("session key should be cached as a copy", new byte[] { 9, 8, 7 }, cachedSessionData);
+        Assert.assertNull(store.get(encryptedSessionKey(2)));
+
+        // the caller may clear what it gets without affecting the cache
+        cachedSessionData[0] = 0;
+        Assert.assertArrayEquals(new byte[] { 9, 8, 7 }, store.get(encryptedSessionKey(1)));
+
+        Assert.assertEquals(2, sessionKeyCache.getHitCount());
+        Assert.assertEquals(1, sessionKeyCache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        SessionKeyStore store = sessionKeyCache.getSessionKeyStore(MASTER_KEY_ID, SUB_KEY_ID);
+        store.put(encryptedSessionKey(1), new byte[] { 1 });
+        store.put(encryptedSessionKey(2), new byte[] { 2 });
+        Assert.assertNotNull(store.get(encryptedSessionKey(1)));
+
+        store.put(encryptedSessionKey(3), new byte[] { 3 });
+        Assert.assertEquals("cache should be bounded", 2, sessionKeyCache.size());
+        Assert.assertNotNull(store.get(encryptedSessionKey(1)));
+        Assert.assertNull("least recently used entry should be evicted", store.get(encryptedSessionKey(2)));
+        Assert.assertNotNull(store.get(encryptedSessionKey(3)));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        sessionKeyCache = new SessionKeyCache(RuntimeEnvironment.application, 2, 0);
+        SessionKeyStore store = sessionKeyCache.getSessionKeyStore(MASTER_KEY_ID, SUB_KEY_ID);
+        store.put(encryptedSessionKey(1), new byte[] { 1 });
+
+        Assert.assertNull("expired session key must not be used", store.get(encryptedSessionKey(1)));
+        Assert.assertEquals(0, sessionKeyCache.size());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        SessionKeyStore store = sessionKeyCache.getSessionKeyStore(MASTER_KEY_ID, SUB_KEY_ID);
+        store.put(encryptedSessionKey(1), new byte[] { 1 });
+        sessionKeyCache.invalidate(SUB_KEY_ID);
+        Assert.assertEquals("session keys should be dropped by subkey id", 0, sessionKeyCache.size());
+
+        store.put(encryptedSessionKey(1), new byte[] { 1 });
+        sessionKeyCache.invalidate(0x3333L);
+        Assert.assertEquals(1, sessionKeyCache.size());
+        sessionKeyCache.invalidate(MASTER_KEY_ID);
+        Assert.assertEquals("session keys should be dropped by master key id", 0, sessionKeyCache.size());
+
+        store.put(encryptedSessionKey(1), new byte[] { 1 });
+        sessionKeyCache.invalidateAll();
+        Assert.assertEquals(0, sessionKeyCache.size());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        sessionKeyCache.getSessionKeyStore(MASTER_KEY_ID, SUB_KEY_ID).put(encryptedSessionKey(1), new byte[] { 1 });
+        setCacheEnabled(false);
+
+        Assert.assertNull(sessionKeyCache.getSessionKeyStore(MASTER_KEY_ID, SUB_KEY_ID));
+        Assert.assertEquals("cache should be emptied if disabled", 0, sessionKeyCache.size());
+    }
+
+    private static ByteBuffer encryptedSessionKey(int i) {
+        return ByteBuffer.wrap(new byte[] { 0, 8, (byte) i });
+    }
+
+    private void setCacheEnabled(boolean enabled) {
+        RuntimeEnvironment.application.getSharedPreferences("APG.main", Context.MODE_MULTI_PROCESS).edit()
+                .putBoolean(Pref.PASSPHRASE_CACHE_SESSION_KEYS, enabled).commit();
+    }
+
+}
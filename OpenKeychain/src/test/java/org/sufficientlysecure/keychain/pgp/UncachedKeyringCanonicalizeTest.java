@@ -47,6 +47,7 @@ import org.bouncycastle.util.Strings;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.shadows.ShadowLog;
@@ -66,9 +67,13 @@ import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 
@@ -585,6 +590,192 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test public void testDeferThirdPartyCerts() throws Exception {
+
+        // a public key with lots of distinct third-party certificates on its first user id
+        PGPSecretKey foreignKey = createForeignSecretKey();
+        ByteArrayOutputStream foreignCerts = new ByteArrayOutputStream();
+        for (int i = 0; i < 150; i++) {
+            subHashedPacketsGen.setSignatureCreationTime(false, new Date(new Date().getTime() - i * 1000));
+            foreignCerts.write(forgeSignature(foreignKey, PGPSignature.DEFAULT_CERTIFICATION,
+                    subHashedPacketsGen, "twi", secretKey.getPublicKey()).getEncoded());
+        }
+        UncachedKeyRing pubRing = ring.extractPublicKeyRing();
+        UncachedKeyRing flooded = KeyringTestingHelper.injectPacket(pubRing, foreignCerts.toByteArray(), 3);
+        Assert.assertEquals("flooded key should have all third-party certs", 150,
+                flooded.getThirdPartyCertificationCount());
+
+        UncachedKeyRing firstImport;
+        { // only as many new certificates as the budget allows are taken
+            OperationLog log = new OperationLog();
+            firstImport = flooded.deferThirdPartyCertifications(null, 100, Collections.<Long>emptySet(), log, 0);
+            Assert.assertTrue("log should contain foreign_deferred event",
+                    log.containsType(LogType.MSG_MG_FOREIGN_DEFERRED));
+
+            UncachedPublicKey masterKey = firstImport.getPublicKey();
+            Assert.assertEquals("self cert and budgeted third-party certs should be kept", 101,
+                    KeyringTestingHelper.itToList(masterKey.getSignaturesForRawId(Strings.toUTF8ByteArray("twi"))).size());
+            Assert.assertEquals("user ids must keep their order",
+                    Arrays.asList("twi", "pink"), masterKey.getUnorderedUserIds());
+            Assert.assertEquals("user attribute must be kept",
+                    1, masterKey.getUnorderedUserAttributes().size());
+
+            Assert.assertArrayEquals("deferring must be deterministic", firstImport.getEncoded(),
+                    flooded.deferThirdPartyCertifications(null, 100, Collections.<Long>emptySet(), log, 0).getEncoded());
+        }
+
+        { // stored certificates don't count, the deferred ones are taken on the next import
+            OperationLog log = new OperationLog();
+            UncachedKeyRing secondImport =
+                    flooded.deferThirdPartyCertifications(firstImport, 100, Collections.<Long>emptySet(), log, 0);
+            Assert.assertArrayEquals("no certificates should be deferred on the second import",
+                    flooded.getEncoded(), secondImport.getEncoded());
+
+            UncachedKeyRing merged = firstImport.merge(secondImport, log, 0);
+            Assert.assertEquals("all third-party certs should be stored after the second import", 150,
+                    merged.getThirdPartyCertificationCount());
+        }
+
+        { // certificates by known keys are never deferred
+            OperationLog log = new OperationLog();
+            UncachedKeyRing imported = flooded.deferThirdPartyCertifications(null, 100,
+                    Collections.singleton(foreignKey.getKeyID()), log, 0);
+            Assert.assertArrayEquals("certificates by known keys should all be kept",
+                    flooded.getEncoded(), imported.getEncoded());
+            Assert.assertFalse("log should not contain foreign_deferred event",
+                    log.containsType(LogType.MSG_MG_FOREIGN_DEFERRED));
+        }
+
+        { // within budget, third-party certificates are left alone, and canonicalize keeps them all
+            OperationLog log = new OperationLog();
+            UncachedKeyRing imported = flooded.deferThirdPartyCertifications(null, 1000,
+                    Collections.<Long>emptySet(), log, 0);
+            Assert.assertArrayEquals("flooded key within budget should not change",
+                    flooded.getEncoded(), imported.getEncoded());
+
+            CanonicalizedKeyRing canonicalized = flooded.canonicalize(log, 0);
+            Assert.assertArrayEquals("canonicalize must not drop third-party certificates",
+                    flooded.getEncoded(), canonicalized.getEncoded());
+        }
+
+    }
+
+    @Test public void testParallelSelfCertVerification() throws Exception {
+
+        // enough redundant and broken self certs to be verified in parallel
+        subHashedPacketsGen.setSignatureCreationTime(false, new Date(new Date().getTime() -1000*1000));
+        byte[] redundant = forgeSignature(secretKey, PGPSignature.POSITIVE_CERTIFICATION,
+                subHashedPacketsGen, "twi", secretKey.getPublicKey()).getEncoded();
+        byte[] broken = forgeSignature(secretKey, PGPSignature.POSITIVE_CERTIFICATION,
+                subHashedPacketsGen, "pink", secretKey.getPublicKey()).getEncoded();
+        broken[broken.length -10] += 1;
+
+        int copies = SelfCertificationVerifier.MIN_PARALLEL_VERIFICATIONS;
+        UncachedKeyRing modified = KeyringTestingHelper.injectPacketCopies(ring, redundant, copies, 3);
+        modified = KeyringTestingHelper.injectPacketCopies(modified, broken, copies, 4 + copies);
+
+        try {
+            for (boolean parallel : new boolean[] { true, false }) {
+                SelfCertificationVerifier.setParallelVerificationEnabled(parallel);
+
+                OperationLog log = new OperationLog();
+                CanonicalizedKeyRing canonicalized = modified.canonicalize(log, 0);
+                Assert.assertArrayEquals("injected certificates must be gone after canonicalization",
+                        ring.getEncoded(), canonicalized.getEncoded());
+                Assert.assertTrue("log should contain uid_bad event", log.containsType(LogType.MSG_KC_UID_BAD)
+                        || log.containsType(LogType.MSG_KC_UID_BAD_ERR));
+                Assert.assertTrue("log should contain uid_cert_dup event",
+                        log.containsType(LogType.MSG_KC_UID_CERT_DUP));
+            }
+        } finally {
+            SelfCertificationVerifier.setParallelVerificationEnabled(true);
+        }
+
+    }
+
+    @Test public void testConcurrentSelfCertVerification() throws Exception {
+
+        // concurrent imports share the verification threads
+        subHashedPacketsGen.setSignatureCreationTime(false, new Date(new Date().getTime() -1000*1000));
+        byte[] redundant = forgeSignature(secretKey, PGPSignature.POSITIVE_CERTIFICATION,
+                subHashedPacketsGen, "twi", secretKey.getPublicKey()).getEncoded();
+
+        int copies = 4 * SelfCertificationVerifier.MIN_PARALLEL_VERIFICATIONS;
+        UncachedKeyRing modified = KeyringTestingHelper.injectPacketCopies(ring, redundant, copies, 3);
+
+        final byte[][] results = new byte[4][];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            final UncachedKeyRing copy = UncachedKeyRing.decodeFromData(modified.getEncoded());
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = copy.canonicalize(new OperationLog(), 0).getEncoded();
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (byte[] result : results) {
+            Assert.assertArrayEquals("injected certificates must be gone after canonicalization",
+                    ring.getEncoded(), result);
+        }
+
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test public void benchmarkFloodedKey() throws Exception {
+
+        PGPSignature foreignCert = forgeSignature(createForeignSecretKey(),
+                PGPSignature.DEFAULT_CERTIFICATION, subHashedPacketsGen, "twi", secretKey.getPublicKey());
+        subHashedPacketsGen.setSignatureCreationTime(false, new Date(new Date().getTime() -1000*1000));
+        byte[] redundant = forgeSignature(secretKey, PGPSignature.POSITIVE_CERTIFICATION,
+                subHashedPacketsGen, "twi", secretKey.getPublicKey()).getEncoded();
+
+        UncachedKeyRing flooded = KeyringTestingHelper.injectPacketCopies(
+                ring.extractPublicKeyRing(), foreignCert.getEncoded(), 20000, 3);
+        flooded = KeyringTestingHelper.injectPacketCopies(flooded, redundant, 200, 3);
+
+        try {
+            for (boolean parallel : new boolean[] { false, true }) {
+                SelfCertificationVerifier.setParallelVerificationEnabled(parallel);
+
+                long start = System.nanoTime();
+                CanonicalizedKeyRing canonicalized = flooded.canonicalize(new OperationLog(), 0);
+                long time = System.nanoTime() - start;
+                Assert.assertNotNull("canonicalization of flooded key must succeed", canonicalized);
+
+                System.out.println(String.format("%s verification: %.1f ms, %d KB before, %d KB after",
+                        parallel ? "parallel" : "serial", time / 1e6,
+                        flooded.getEncoded().length / 1024, canonicalized.getEncoded().length / 1024));
+            }
+        } finally {
+            SelfCertificationVerifier.setParallelVerificationEnabled(true);
+        }
+
+    }
+
+    private static PGPSecretKey createForeignSecretKey() throws Exception {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addUserId("trix");
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        UncachedKeyRing foreign = op.createSecretKeyRing(builder.build()).getRing();
+        Assert.assertNotNull("initial test key creation must succeed", foreign);
+
+        return new PGPSecretKeyRing(foreign.getEncoded(), new JcaKeyFingerprintCalculator()).getSecretKey();
+    }
+
     private static final int[] sigtypes_direct = new int[] {
         PGPSignature.KEY_REVOCATION,
         PGPSignature.DIRECT_KEY,
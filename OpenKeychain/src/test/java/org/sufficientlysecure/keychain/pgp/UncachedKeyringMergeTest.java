@@ -20,11 +20,18 @@ package org.sufficientlysecure.keychain.pgp;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.bouncycastle.bcpg.BCPGInputStream;
 import org.bouncycastle.bcpg.PacketTags;
@@ -36,6 +43,7 @@ import org.bouncycastle.util.Strings;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.shadows.ShadowLog;
@@ -395,6 +403,101 @@ public class UncachedKeyringMergeTest {
 
     }
 
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkMergeLargeKey() throws Exception {
+
+        UncachedKeyRing publicRing = ringA.extractPublicKeyRing();
+
+        // distinct certificates for the first user id, made by varying the signature value of its self cert
+        byte[] selfCert = KeyringTestingHelper.getNth(KeyringTestingHelper.parseKeyring(publicRing.getEncoded()), 2).buf;
+        int certCount = 10000, newCertCount = 100;
+
+        UncachedKeyRing versionA = KeyringTestingHelper.injectPacket(publicRing,
+                generateCertVariants(selfCert, 0, certCount), 3);
+        UncachedKeyRing versionB = KeyringTestingHelper.injectPacket(publicRing,
+                generateCertVariants(selfCert, 0, certCount + newCertCount), 3);
+
+        { // merging with the same version must not change anything
+            UncachedKeyRing merged = versionA.merge(UncachedKeyRing.decodeFromData(versionA.getEncoded()), log, 0);
+            Assert.assertArrayEquals("keyring merged with itself must be identical",
+                    versionA.getEncoded(), merged.getEncoded());
+        }
+
+        int rounds = 5;
+        UncachedKeyRing merged = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            merged = versionA.merge(versionB, new OperationLog(), 0);
+        }
+        long time = System.nanoTime() - start;
+
+        Assert.assertNotNull("merge must succeed", merged);
+        Assert.assertEquals("merged key must contain all certificates exactly once", certCount + newCertCount + 1,
+                KeyringTestingHelper.itToList(merged.getPublicKey()
+                        .getSignaturesForRawId(Strings.toUTF8ByteArray("twi"))).size());
+
+        System.out.println(String.format("merge of %d into %d certificates: %.1f ms",
+                certCount + newCertCount, certCount, time / rounds / 1e6));
+
+        // deduplication as merge did it before, with a TreeSet of encodings, against a hash set
+        ArrayList<byte[]> encodings = new ArrayList<>();
+        for (UncachedKeyRing ring : new UncachedKeyRing[] { versionA, versionB }) {
+            Iterator<WrappedSignature> it =
+                    ring.getPublicKey().getSignaturesForRawId(Strings.toUTF8ByteArray("twi"));
+            while (it.hasNext()) {
+                encodings.add(it.next().getEncoded());
+            }
+        }
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
+                public int compare(byte[] left, byte[] right) {
+                    if (left.length != right.length) {
+                        return left.length - right.length;
+                    }
+                    for (int j = 0; j < left.length; j++) {
+                        if (left[j] != right[j]) {
+                            return (left[j] & 0xff) - (right[j] & 0xff);
+                        }
+                    }
+                    return 0;
+                }
+            });
+            certs.addAll(encodings);
+        }
+        long treeSetTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Set<ByteBuffer> certs = new HashSet<>();
+            for (byte[] encoded : encodings) {
+                certs.add(ByteBuffer.wrap(encoded));
+            }
+        }
+        long hashSetTime = System.nanoTime() - start;
+
+        System.out.println(String.format(
+                "deduplication of %d certificates: TreeSet %.1f ms, hash set %.1f ms, %.1fx faster",
+                encodings.size(), treeSetTime / rounds / 1e6, hashSetTime / rounds / 1e6,
+                (double) treeSetTime / hashSetTime));
+
+    }
+
+    /** Copies of an encoded certificate, distinct from it and each other in their signature value. */
+    private static byte[] generateCertVariants(byte[] cert, int from, int to) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(cert.length * (to - from));
+        for (int i = from; i < to; i++) {
+            byte[] variant = Arrays.copyOf(cert, cert.length);
+            variant[variant.length - 3] ^= 1;
+            variant[variant.length - 2] = (byte) (i >> 8);
+            variant[variant.length - 1] = (byte) i;
+            out.write(variant, 0, variant.length);
+        }
+        return out.toByteArray();
+    }
+
     private UncachedKeyRing mergeWithChecks(UncachedKeyRing a, UncachedKeyRing b)
             throws Exception {
         return mergeWithChecks(a, b, a);
@@ -38,7 +38,9 @@ import org.sufficientlysecure.keychain.util.Passphrase;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.Security;
 import java.util.Iterator;
 import java.util.Random;
@@ -139,6 +141,30 @@ public class UncachedKeyringTest {
         UncachedKeyRing.decodeFromData(out.toByteArray());
     }
 
+    @Test
+    public void testDecodeMultiWithoutMark() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ring.encodeArmored(out, "OpenKeychain");
+        pubRing.encodeArmored(out, "OpenKeychain");
+
+        // a stream which doesn't support mark, like those of a ContentResolver
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(out.toByteArray())) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+
+        IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(in);
+        Assert.assertTrue("there should be two rings in the stream", it.hasNext());
+        Assert.assertArrayEquals("first ring should be the first we put in",
+                ring.getEncoded(), it.next().getEncoded());
+        Assert.assertTrue("there should be two rings in the stream", it.hasNext());
+        Assert.assertArrayEquals("second ring should be the second we put in",
+                pubRing.getEncoded(), it.next().getEncoded());
+        Assert.assertFalse("there should be two rings in the stream", it.hasNext());
+    }
+
     @Test(expected = RuntimeException.class)
     public void testPublicExtractPublic() throws Exception {
         // can't do this, either!
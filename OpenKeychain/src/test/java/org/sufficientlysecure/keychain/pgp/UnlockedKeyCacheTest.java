@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.Security;
+
+import android.content.Context;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.Constants.Pref;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(KeychainTestRunner.class)
+public class UnlockedKeyCacheTest {
+
+    static UncachedKeyRing staticRing;
+
+    UnlockedKeyCache unlockedKeyCache;
+    CanonicalizedSecretKeyRing secretKeyRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        staticRing = KeyringTestingHelper.readRingFromResource("/test-keys/encrypt_decrypt_key_2.sec");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        unlockedKeyCache = new UnlockedKeyCache(RuntimeEnvironment.application);
+        secretKeyRing = new CanonicalizedSecretKeyRing(staticRing.getEncoded(), 0);
+        setCacheEnabled(true);
+    }
+
+    @Test
+    public void testUnlockIsCached() throws Exception {
+        CanonicalizedSecretKey key = secretKeyRing.getSecretKey();
+        Assert.assertTrue(unlockedKeyCache.unlockWithCachedPassphrase(key, new Passphrase("x")));
+        Assert.assertEquals("unlocked key should be cached", 1, unlockedKeyCache.size());
+
+        CanonicalizedSecretKey sameKey = secretKeyRing.getSecretKey();
+        Assert.assertTrue(unlockedKeyCache.unlockWithCachedPassphrase(sameKey, new Passphrase("x")));
+        Assert.assertSame("cached private key should be reused",
+                key.getUnlockedPrivateKey(), sameKey.getUnlockedPrivateKey());
+    }
+
+    @Test
+    public void testWrongPassphraseIsNotCached() throws Exception {
+        Assert.assertTrue(unlockedKeyCache.unlockWithCachedPassphrase(
+                secretKeyRing.getSecretKey(), new Passphrase("x")));
+
+        CanonicalizedSecretKey key = secretKeyRing.getSecretKey();
+        Assert.assertFalse("cached key must not be used for a different passphrase",
+                unlockedKeyCache.unlockWithCachedPassphrase(key, new Passphrase("y")));
+        Assert.assertNull(key.getUnlockedPrivateKey());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        Assert.assertTrue(unlockedKeyCache.unlockWithCachedPassphrase(
+                secretKeyRing.getSecretKey(), new Passphrase("x")));
+
+        unlockedKeyCache.invalidate(secretKeyRing.getMasterKeyId());
+        Assert.assertEquals("cached keys should be dropped by master key id", 0, unlockedKeyCache.size());
+
+        Assert.assertTrue(unlockedKeyCache.unlockWithCachedPassphrase(
+                secretKeyRing.getSecretKey(), new Passphrase("x")));
+        unlockedKeyCache.invalidateAll();
+        Assert.assertEquals(0, unlockedKeyCache.size());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        setCacheEnabled(false);
+
+        CanonicalizedSecretKey key = secretKeyRing.getSecretKey();
+        Assert.assertTrue(unlockedKeyCache.unlockWithCachedPassphrase(key, new Passphrase("x")));
+        Assert.assertNotNull(key.getUnlockedPrivateKey());
+        Assert.assertEquals("nothing should be cached if disabled", 0, unlockedKeyCache.size());
+    }
+
+    private void setCacheEnabled(boolean enabled) {
+        RuntimeEnvironment.application.getSharedPreferences("APG.main", Context.MODE_MULTI_PROCESS).edit()
+                .putBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, enabled).commit();
+    }
+
+}
@@ -18,26 +18,47 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
 import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
 import org.junit.BeforeClass;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeyRingBatchWriter.PostWriteAction;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 
 @RunWith(KeychainTestRunner.class)
@@ -48,6 +69,7 @@ public class KeyRepositorySaveTest {
 
     @BeforeClass
     public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
         ShadowLog.stream = System.out;
     }
 
@@ -246,8 +268,223 @@ public class KeyRepositorySaveTest {
 
     }
 
+    @Test public void testKeyRingCacheInvalidation() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long keyId = pub.getMasterKeyId();
+
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("import of keyring should succeed", result.success());
+
+        CanonicalizedKeyRingCache cache = CanonicalizedKeyRingCache.getInstance(RuntimeEnvironment.application);
+        long hits = cache.getHitCount();
+
+        CanonicalizedPublicKeyRing first = mDatabaseInteractor.getCanonicalizedPublicKeyRing(keyId);
+        CanonicalizedPublicKeyRing second = mDatabaseInteractor.getCanonicalizedPublicKeyRing(keyId);
+        Assert.assertSame("second lookup should be served from cache", first, second);
+        Assert.assertEquals("second lookup should count as a hit", hits + 1, cache.getHitCount());
+
+        mDatabaseInteractor.deleteKeyRing(keyId);
+        result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("re-import of keyring should succeed", result.success());
+
+        CanonicalizedPublicKeyRing third = mDatabaseInteractor.getCanonicalizedPublicKeyRing(keyId);
+        Assert.assertNotSame("lookup after save must not return a stale entry", first, third);
+        Assert.assertArrayEquals("reparsed keyring should be equal to the cached one",
+                first.getEncoded(), third.getEncoded());
+
+    }
+
+    @Test public void testBatchedSave() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing third = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+
+        KeyRingBatchWriter batchWriter = mDatabaseInteractor.createBatchWriter(2);
+
+        SaveKeyringResult result;
+        result = mDatabaseInteractor.savePublicKeyRing(first, null, null, batchWriter);
+        Assert.assertTrue("queueing first keyring should succeed", result.success());
+        Assert.assertFalse("first keyring should be new", result.updated());
+        result = mDatabaseInteractor.savePublicKeyRing(second, null, null, batchWriter);
+        Assert.assertTrue("queueing second keyring should succeed", result.success());
+        result = mDatabaseInteractor.savePublicKeyRing(third, null, null, batchWriter);
+        Assert.assertTrue("queueing third keyring should succeed", result.success());
+
+        // the first keyring must be read only after it was written
+        result = mDatabaseInteractor.savePublicKeyRing(first, null, null, batchWriter);
+        Assert.assertTrue("queueing first keyring again should succeed", result.success());
+        Assert.assertTrue("first keyring should be updated", result.updated());
+
+        Assert.assertTrue("all keyrings should be written", batchWriter.finish().isEmpty());
+
+        for (UncachedKeyRing ring : new UncachedKeyRing[] { first, second, third }) {
+            CanonicalizedPublicKeyRing pubRing =
+                    mDatabaseInteractor.getCanonicalizedPublicKeyRing(ring.getMasterKeyId());
+            Assert.assertEquals("keyring should be saved in database",
+                    ring.getMasterKeyId(), pubRing.getMasterKeyId());
+        }
+
+    }
+
+    @Test public void testBatchedSaveFailureCountedOnce() throws Exception {
+
+        KeyRingBatchWriter batchWriter = mDatabaseInteractor.createBatchWriter(1);
+
+        // like a keyring and its last updated time, two entries for the same master key id
+        long masterKeyId = 0x1234L;
+        for (int i = 0; i < 2; i++) {
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            // there is no such keyring, so this always fails
+            operations.add(ContentProviderOperation.newDelete(KeyRingData.buildPublicKeyRingUri(masterKeyId))
+                    .withExpectedCount(1).build());
+            batchWriter.add(masterKeyId, operations);
+        }
+
+        Assert.assertEquals("failed keyring should be returned once",
+                Collections.singletonList(masterKeyId), batchWriter.finish());
+
+    }
+
+    @Test public void testBatchedSaveFailingPostWriteAction() throws Exception {
+
+        KeyRingBatchWriter batchWriter = mDatabaseInteractor.createBatchWriter(1);
+
+        long masterKeyId = 0x1234L;
+        PostWriteAction failingAction = new PostWriteAction() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("post write action failed");
+            }
+        };
+        batchWriter.add(masterKeyId, new ArrayList<ContentProviderOperation>(),
+                Collections.singletonList(failingAction));
+
+        // must neither hang nor take down the writer thread
+        Assert.assertEquals("keyring with failed post write action should be returned",
+                Collections.singletonList(masterKeyId), batchWriter.finish());
+
+    }
+
+    @Test public void testDifferentialUpdate() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        SaveKeyringResult result;
+        result = mDatabaseInteractor.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Assert.assertNotNull("last updated time should be set",
+                mDatabaseInteractor.renewKeyLastUpdatedTime(masterKeyId));
+        Long lastUpdated = mDatabaseInteractor.getLastUpdateTime(masterKeyId);
+        ArrayList<Long> userIdRowIds = queryRowIds(UserPackets.buildUserIdsUri(masterKeyId));
+        ArrayList<Long> certRowIds = queryRowIds(Certs.buildCertsUri(masterKeyId));
+        Assert.assertFalse("keyring should have certificates", certRowIds.isEmpty());
+
+        // self certs become trusted, so only certificates are rewritten
+        result = mDatabaseInteractor.saveSecretKeyRing(seckey);
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+        Assert.assertTrue("keyring should be updated", result.updated());
+        Assert.assertEquals("last updated time should be kept across differential updates",
+                lastUpdated, mDatabaseInteractor.getLastUpdateTime(masterKeyId));
+        Assert.assertEquals("user ids should not be rewritten",
+                userIdRowIds, queryRowIds(UserPackets.buildUserIdsUri(masterKeyId)));
+        Assert.assertEquals("certificates should be updated in place",
+                certRowIds, queryRowIds(Certs.buildCertsUri(masterKeyId)));
+
+        CanonicalizedSecretKeyRing secRing = mDatabaseInteractor.getCanonicalizedSecretKeyRing(masterKeyId);
+        Assert.assertEquals("secret keyring should be saved", masterKeyId, secRing.getMasterKeyId());
+        Assert.assertTrue("secret keyring should be marked in key rows",
+                mDatabaseInteractor.getCachedPublicKeyRing(masterKeyId).hasAnySecret());
+
+        // saving the same keyring again must not touch the secret keyring
+        result = mDatabaseInteractor.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        Assert.assertTrue("keyring should be updated", result.updated());
+        Assert.assertTrue("secret keyring should still be marked in key rows",
+                mDatabaseInteractor.getCachedPublicKeyRing(masterKeyId).hasAnySecret());
+
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test public void benchmarkSaveWithSecretKeys() throws Exception {
+
+        UncachedKeyRing[] publicRings = new UncachedKeyRing[] {
+                readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc"),
+                readRingFromResource("/test-keys/symantec_public.asc"),
+                readRingFromResource("/test-keys/bad_user_id_encoding.asc"),
+                readRingFromResource("/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc")
+        };
+
+        ArrayList<UncachedKeyRing> secretRings = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            secretRings.add(createSecretKeyRing("bench " + i));
+        }
+
+        // don't log verbosely here, it would dominate the measurement
+        ShadowLog.stream = null;
+        try {
+            for (int numSecretKeys : new int[] { 1, 10, 50 }) {
+                new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+                for (int i = 0; i < numSecretKeys; i++) {
+                    SaveKeyringResult result = mDatabaseInteractor.saveSecretKeyRing(secretRings.get(i));
+                    Assert.assertTrue("import of secret keyring should succeed", result.success());
+                }
+
+                int rounds = 10;
+                long start = System.currentTimeMillis();
+                for (int round = 0; round < rounds; round++) {
+                    for (UncachedKeyRing ring : publicRings) {
+                        // make sure every save is a full write, not an identical update
+                        mDatabaseInteractor.deleteKeyRing(ring.getMasterKeyId());
+                        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(ring);
+                        Assert.assertTrue("import of keyring should succeed", result.success());
+                    }
+                }
+                long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+                int numSaves = rounds * publicRings.length;
+                System.out.println("saved " + numSaves + " keyrings with " + numSecretKeys + " secret keys in "
+                        + elapsed + "ms, " + (numSaves * 1000L / elapsed) + " keys/s");
+            }
+        } finally {
+            ShadowLog.stream = System.out;
+        }
+
+    }
+
+    UncachedKeyRing createSecretKeyRing(String userId) throws Exception {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addUserId(userId);
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase("x")));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("test key creation must succeed", result.success());
+        return result.getRing();
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(KeyRepositorySaveTest.class.getResourceAsStream(name)).next();
     }
 
+    /** Row ids change when rows are deleted and reinserted, but not when they are updated. */
+    ArrayList<Long> queryRowIds(Uri uri) {
+        ArrayList<Long> rowIds = new ArrayList<>();
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                uri, new String[] { BaseColumns._ID }, null, null, BaseColumns._ID);
+        Assert.assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                rowIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rowIds;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.util.OpenPgpUtils.UserId;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeychainProviderTest {
+
+    private KeyWritableRepository mDatabaseInteractor;
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        mDatabaseInteractor = KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void testBuildFtsPrefixQuery() throws Exception {
+        Assert.assertEquals("alice* example* com*", KeychainProvider.buildFtsPrefixQuery("Alice@Example.com"));
+        Assert.assertEquals("bob* builder*", KeychainProvider.buildFtsPrefixQuery("  \"bob\" -(BUILDER)"));
+        Assert.assertEquals("müller*", KeychainProvider.buildFtsPrefixQuery("Müller"));
+        Assert.assertEquals("or* near*", KeychainProvider.buildFtsPrefixQuery("OR NEAR*"));
+        Assert.assertNull(KeychainProvider.buildFtsPrefixQuery(" @*- "));
+    }
+
+    @Test
+    public void testFindByUserId() throws Exception {
+        UncachedKeyRing ring = UncachedKeyRing.fromStream(
+                KeychainProviderTest.class.getResourceAsStream("/test-keys/mailvelope_07_no_key_flags.asc")).next();
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(ring);
+        Assert.assertTrue("import of keyring should succeed", result.success());
+
+        UserId userId = KeyRing.splitUserId(ring.getPublicKey().getPrimaryUserIdWithFallback());
+        String name = userId.name;
+        Assert.assertNotNull("test key must have a name", name);
+
+        Assert.assertEquals("full name should match", 1, countFindByUserId(name));
+        Assert.assertEquals("prefix of name should match", 1, countFindByUserId(name.substring(0, 2)));
+        Assert.assertEquals("any of the chunks should match", 1, countFindByUserId("nonexistent, " + name));
+        Assert.assertEquals("unknown name should not match", 0, countFindByUserId("nonexistent"));
+        Assert.assertEquals("separators only should not match", 0, countFindByUserId("@ ,"));
+
+        mDatabaseInteractor.deleteKeyRing(ring.getMasterKeyId());
+        Assert.assertEquals("deleted keyring should not match", 0, countFindByUserId(name));
+    }
+
+    @Test
+    public void testUnifiedQuerySummary() throws Exception {
+        UncachedKeyRing pubkey = UncachedKeyRing.fromStream(
+                KeychainProviderTest.class.getResourceAsStream("/test-keys/symantec_public.asc")).next();
+        UncachedKeyRing seckey = UncachedKeyRing.fromStream(
+                KeychainProviderTest.class.getResourceAsStream("/test-keys/symantec_secret.asc")).next();
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        Assert.assertTrue(mDatabaseInteractor.savePublicKeyRing(pubkey).success());
+        Cursor cursor = queryUnified(masterKeyId);
+        try {
+            Assert.assertTrue("summary should exist after saving public keyring", cursor.moveToFirst());
+            Assert.assertEquals(masterKeyId, cursor.getLong(0));
+            Assert.assertEquals("public keyring should not have a secret", 0, cursor.getInt(1));
+            Assert.assertTrue("public keyring can't sign without secret", cursor.isNull(2));
+        } finally {
+            cursor.close();
+        }
+
+        Assert.assertTrue(mDatabaseInteractor.saveSecretKeyRing(seckey).success());
+        cursor = queryUnified(masterKeyId);
+        try {
+            Assert.assertTrue("summary should exist after saving secret keyring", cursor.moveToFirst());
+            Assert.assertEquals("secret keyring should be reflected in summary", 1, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+
+        mDatabaseInteractor.deleteKeyRing(masterKeyId);
+        cursor = queryUnified(masterKeyId);
+        try {
+            Assert.assertFalse("summary should be deleted along with the keyring", cursor.moveToFirst());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkFindByUserId() throws Exception {
+        int numKeyRings = 25000;
+        int userIdsPerKeyRing = 4;
+        insertSyntheticKeyRings(1, numKeyRings, userIdsPerKeyRing);
+
+        int rounds = 50;
+        long start = System.currentTimeMillis();
+        for (int round = 0; round < rounds; round++) {
+            Assert.assertEquals("exactly one keyring should match", 1, countFindByUserId("user" + (round * 397 + 1) + "x"));
+        }
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+        System.out.println("searched " + (numKeyRings * userIdsPerKeyRing) + " user ids " + rounds + " times in "
+                + elapsed + "ms, " + (elapsed / rounds) + "ms per search");
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkUnifiedQuery() throws Exception {
+        String[] projection = new String[] {
+                KeyRings.MASTER_KEY_ID, KeyRings.USER_ID, KeyRings.IS_REVOKED, KeyRings.IS_EXPIRED,
+                KeyRings.VERIFIED, KeyRings.HAS_ANY_SECRET, KeyRings.HAS_DUPLICATE_USER_ID,
+                KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN, KeyRings.HAS_CERTIFY, KeyRings.CREATION
+        };
+
+        int inserted = 0;
+        for (int numKeyRings : new int[] { 1000, 5000, 25000 }) {
+            insertSyntheticKeyRings(inserted + 1, numKeyRings - inserted, 1);
+            inserted = numKeyRings;
+
+            int rounds = 5;
+            long start = System.currentTimeMillis();
+            for (int round = 0; round < rounds; round++) {
+                // a page of the key list, as the ui loads it
+                Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), projection,
+                        null, null, KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.USER_ID + " ASC LIMIT 100");
+                Assert.assertNotNull(cursor);
+                try {
+                    Assert.assertEquals(100, cursor.getCount());
+                } finally {
+                    cursor.close();
+                }
+            }
+            long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+            System.out.println("loaded key list page from " + numKeyRings + " keyrings in "
+                    + (elapsed / rounds) + "ms per query");
+        }
+    }
+
+    private void insertSyntheticKeyRings(long firstMasterKeyId, int numKeyRings, int userIdsPerKeyRing) {
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insertKeyRing = db.compileStatement(
+                    "INSERT INTO " + Tables.KEY_RINGS_PUBLIC + " (master_key_id) VALUES (?)");
+            SQLiteStatement insertKey = db.compileStatement("INSERT INTO " + Tables.KEYS
+                    + " (master_key_id, rank, key_id, can_encrypt, has_secret, is_revoked, is_secure)"
+                    + " VALUES (?, 0, ?, 1, 0, 0, 1)");
+            SQLiteStatement insertUserId = db.compileStatement("INSERT INTO " + Tables.USER_PACKETS
+                    + " (master_key_id, rank, user_id, name, email, is_primary, is_revoked)"
+                    + " VALUES (?, ?, ?, ?, ?, 0, 0)");
+            for (long i = firstMasterKeyId; i < firstMasterKeyId + numKeyRings; i++) {
+                insertKeyRing.bindLong(1, i);
+                insertKeyRing.executeInsert();
+                insertKey.bindLong(1, i);
+                insertKey.bindLong(2, i);
+                insertKey.executeInsert();
+                for (int rank = 0; rank < userIdsPerKeyRing; rank++) {
+                    String name = "user" + i + "x rank" + rank;
+                    String email = "user" + i + "x." + rank + "@example.com";
+                    insertUserId.bindLong(1, i);
+                    insertUserId.bindLong(2, rank);
+                    insertUserId.bindString(3, name + " <" + email + ">");
+                    insertUserId.bindString(4, name);
+                    insertUserId.bindString(5, email);
+                    insertUserId.executeInsert();
+                }
+                KeychainDatabase.updateKeyRingSummary(db, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private Cursor queryUnified(long masterKeyId) {
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingUri(masterKeyId), new String[] {
+                KeyRings.MASTER_KEY_ID, KeyRings.HAS_ANY_SECRET, KeyRings.HAS_SIGN
+        }, null, null, null);
+        Assert.assertNotNull(cursor);
+        return cursor;
+    }
+
+    private int countFindByUserId(String query) {
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsFindByUserIdUri(query),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class LocalPublicKeyStorageTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(RuntimeEnvironment.application.getFilesDir(), "public_keys_test");
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+    }
+
+    @Test
+    public void testWriteReadDelete() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDir, 0);
+        byte[] first = randomBytes(1, 1000);
+        byte[] second = randomBytes(2, 2000);
+
+        Assert.assertNull("unknown key should not be found", storage.readPublicKey(1L));
+
+        storage.writePublicKey(1L, first);
+        storage.writePublicKey(2L, second);
+        Assert.assertArrayEquals(first, storage.readPublicKey(1L));
+        Assert.assertArrayEquals(second, storage.readPublicKey(2L));
+
+        storage.writePublicKey(1L, second);
+        Assert.assertArrayEquals("overwritten key should be read", second, storage.readPublicKey(1L));
+
+        storage.deletePublicKey(2L);
+        Assert.assertNull("deleted key should not be found", storage.readPublicKey(2L));
+
+        LocalPublicKeyStorage reopened = new LocalPublicKeyStorage(mDir, 0);
+        Assert.assertArrayEquals("index should be rebuilt from file", second, reopened.readPublicKey(1L));
+        Assert.assertNull("tombstone should be respected", reopened.readPublicKey(2L));
+    }
+
+    @Test
+    public void testAppendsFromOtherInstanceAreSeen() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDir, 0);
+        LocalPublicKeyStorage other = new LocalPublicKeyStorage(mDir, 0);
+        byte[] data = randomBytes(3, 500);
+
+        Assert.assertNull(storage.readPublicKey(3L));
+        other.writePublicKey(3L, data);
+        Assert.assertArrayEquals(data, storage.readPublicKey(3L));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDir, 0);
+        LocalPublicKeyStorage other = new LocalPublicKeyStorage(mDir, 0);
+        byte[] live = randomBytes(4, 3000);
+
+        for (int i = 0; i < 10; i++) {
+            storage.writePublicKey(4L, randomBytes(i, 3000));
+            storage.writePublicKey(5L, randomBytes(i, 3000));
+        }
+        storage.writePublicKey(4L, live);
+        storage.deletePublicKey(5L);
+        Assert.assertArrayEquals(live, other.readPublicKey(4L));
+
+        File packFile = new File(mDir, "public_keys.pack");
+        long sizeBefore = packFile.length();
+        storage.compact();
+        Assert.assertTrue("compaction should shrink file", packFile.length() < sizeBefore);
+
+        Assert.assertArrayEquals(live, storage.readPublicKey(4L));
+        Assert.assertNull(storage.readPublicKey(5L));
+        Assert.assertArrayEquals("other instance should reopen compacted file", live, other.readPublicKey(4L));
+        Assert.assertNull(other.readPublicKey(5L));
+    }
+
+    @Test
+    public void testTornWriteIsIgnored() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDir, 0);
+        byte[] data = randomBytes(6, 1000);
+        storage.writePublicKey(6L, data);
+
+        FileOutputStream out = new FileOutputStream(new File(mDir, "public_keys.pack"), true);
+        out.write(new byte[] { 0x4f, 0x4b, 0x50 });
+        out.close();
+
+        LocalPublicKeyStorage reopened = new LocalPublicKeyStorage(mDir, 0);
+        Assert.assertArrayEquals(data, reopened.readPublicKey(6L));
+        reopened.writePublicKey(7L, data);
+        Assert.assertArrayEquals("write after torn record should be readable",
+                data, new LocalPublicKeyStorage(mDir, 0).readPublicKey(7L));
+    }
+
+    @Test
+    public void testMigrateLegacyFiles() throws Exception {
+        Assert.assertTrue(mDir.mkdirs() || mDir.isDirectory());
+        byte[] large = randomBytes(8, 2000);
+        byte[] small = randomBytes(9, 100);
+        writeFile(new File(mDir, "0x8000000000000008.pub"), large);
+        writeFile(new File(mDir, "0x0000000000000009.pub"), small);
+
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDir, 1000);
+        Assert.assertArrayEquals(large, storage.readPublicKey(0x8000000000000008L));
+        Assert.assertNull("small keyrings are kept in the database only", storage.readPublicKey(9L));
+
+        Assert.assertFalse(new File(mDir, "0x8000000000000008.pub").exists());
+        Assert.assertFalse(new File(mDir, "0x0000000000000009.pub").exists());
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void writeFile(File file, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+}
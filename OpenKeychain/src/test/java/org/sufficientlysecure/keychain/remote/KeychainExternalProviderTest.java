@@ -3,13 +3,17 @@ package org.sufficientlysecure.keychain.remote;
 
 import java.security.AccessControlException;
 import java.util.Collections;
+import java.util.Locale;
 
 import android.content.ContentResolver;
 import android.content.pm.PackageInfo;
 import android.content.pm.Signature;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
@@ -21,6 +25,8 @@ import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract.EmailStatus;
 import org.sufficientlysecure.keychain.provider.KeyRepositorySaveTest;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
@@ -193,6 +199,106 @@ public class KeychainExternalProviderTest {
         assertFalse(cursor.moveToNext());
     }
 
+    @Test
+    public void testQuery__caseInsensitive() throws Exception {
+        insertPublicKeyringFrom("/test-keys/testring.pub");
+
+        Cursor cursor = contentResolver.query(
+                EmailStatus.CONTENT_URI, new String[] {
+                        EmailStatus.EMAIL_ADDRESS, EmailStatus.USER_ID_STATUS, EmailStatus.USER_ID },
+                null, new String [] { "Twi@OpenKeychain.org" }, null
+        );
+
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("queried address should be returned as given", "Twi@OpenKeychain.org", cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        assertEquals(USER_ID_1, cursor.getString(2));
+        assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void testQuery__manyAddresses() throws Exception {
+        insertPublicKeyringFrom("/test-keys/testring.pub");
+
+        String[] addresses = new String[1000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "it's " + i + "@example.com";
+        }
+        addresses[700] = MAIL_ADDRESS_1;
+
+        Cursor cursor = contentResolver.query(
+                EmailStatus.CONTENT_URI, new String[] {
+                        EmailStatus.EMAIL_ADDRESS, EmailStatus.USER_ID_STATUS, EmailStatus.USER_ID },
+                null, addresses, null
+        );
+
+        assertNotNull(cursor);
+        assertEquals("there should be one row per address", addresses.length, cursor.getCount());
+        int found = 0;
+        while (cursor.moveToNext()) {
+            if (!cursor.isNull(2)) {
+                assertEquals(MAIL_ADDRESS_1, cursor.getString(0));
+                found += 1;
+            }
+        }
+        assertEquals(1, found);
+        cursor.close();
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkQuery() throws Exception {
+        int numKeyRings = 50000;
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insertKeyRing = db.compileStatement(
+                    "INSERT INTO " + Tables.KEY_RINGS_PUBLIC + " (master_key_id) VALUES (?)");
+            SQLiteStatement insertUserId = db.compileStatement("INSERT INTO " + Tables.USER_PACKETS
+                    + " (master_key_id, rank, user_id, email, email_normalized) VALUES (?, 0, ?, ?, ?)");
+            for (long i = 1; i <= numKeyRings; i++) {
+                String email = "User" + i + "@example.com";
+                insertKeyRing.bindLong(1, i);
+                insertKeyRing.executeInsert();
+                insertUserId.bindLong(1, i);
+                insertUserId.bindString(2, "user " + i + " <" + email + ">");
+                insertUserId.bindString(3, email);
+                insertUserId.bindString(4, email.toLowerCase(Locale.ENGLISH));
+                insertUserId.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // half of the addresses are known
+        String[] addresses = new String[100];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = (i % 2 == 0 ? "user" + (i * 487 + 1) : "unknown" + i) + "@example.com";
+        }
+
+        int rounds = 20;
+        long start = System.currentTimeMillis();
+        for (int round = 0; round < rounds; round++) {
+            Cursor cursor = contentResolver.query(
+                    EmailStatus.CONTENT_URI, new String[] {
+                            EmailStatus.EMAIL_ADDRESS, EmailStatus.USER_ID_STATUS, EmailStatus.MASTER_KEY_ID },
+                    null, addresses, null
+            );
+            assertNotNull(cursor);
+            try {
+                assertEquals(addresses.length, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+        System.out.println("resolved " + addresses.length + " addresses against " + numKeyRings + " keys in "
+                + (elapsed / rounds) + "ms per query");
+    }
+
     private void certifyKey(long secretMasterKeyId, long publicMasterKeyId, String userId) {
         CertifyActionsParcel.Builder certifyActionsParcel = CertifyActionsParcel.builder(secretMasterKeyId);
         certifyActionsParcel.addAction(
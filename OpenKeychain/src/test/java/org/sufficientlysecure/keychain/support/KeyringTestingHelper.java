@@ -129,6 +129,16 @@ public class KeyringTestingHelper {
 
     }
 
+    /** Injects many copies of a packet at a position, like the certificates on a flooded key. */
+    public static UncachedKeyRing injectPacketCopies(UncachedKeyRing ring, byte[] inject, int count, int position)
+            throws IOException, PgpGeneralException {
+        ByteArrayOutputStream copies = new ByteArrayOutputStream(inject.length * count);
+        for (int i = 0; i < count; i++) {
+            copies.write(inject);
+        }
+        return injectPacket(ring, copies.toByteArray(), position);
+    }
+
     /** This class contains a single pgp packet, together with information about its position
      * in the keyring and its packet tag.
      */
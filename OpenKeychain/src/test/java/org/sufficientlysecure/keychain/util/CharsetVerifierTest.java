@@ -1,6 +1,10 @@
 package org.sufficientlysecure.keychain.util;
 
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
@@ -138,4 +142,109 @@ public class CharsetVerifierTest {
         assertEquals("maybe-faulty charset should be utf-8", "utf-8", charsetVerifier.getMaybeFaultyCharset());
     }
 
+    @Test
+    public void testCharactersSplitAcrossBuffers() throws Exception {
+        byte[] bytes = generateText(100 * 1024);
+
+        for (boolean sampling : new boolean[] { false, true }) {
+            // an odd buffer size, so characters are split between buffers
+            CharsetVerifier charsetVerifier = verifyInChunks(bytes, 1021, sampling);
+
+            assertFalse("characters split between buffers must not be faulty", charsetVerifier.isCharsetFaulty());
+            assertEquals("guessed charset is utf-8", "utf-8", charsetVerifier.getCharset());
+        }
+    }
+
+    @Test
+    public void testStrictCharacterSplitAtBufferBoundary() throws Exception {
+        // the three bytes of ☭ are split 2:1 between the two buffers
+        byte[] bytes = "ab☭".getBytes("utf-8");
+
+        CharsetVerifier charsetVerifier = verifyInChunks(bytes, 4, false);
+
+        // this used to be reported as faulty, since the first two bytes were dropped
+        assertFalse("a character split between buffers must not be faulty", charsetVerifier.isCharsetFaulty());
+        assertFalse("text should not be marked as binary", charsetVerifier.isDefinitelyBinary());
+        assertEquals("guessed charset is utf-8", "utf-8", charsetVerifier.getCharset());
+    }
+
+    @Test
+    public void testStrictIncompleteCharacterAtEnd() throws Exception {
+        byte[] bytes = "ab☭".getBytes("utf-8");
+        bytes = Arrays.copyOf(bytes, bytes.length - 1);
+
+        CharsetVerifier charsetVerifier = verifyInChunks(bytes, 3, false);
+
+        assertTrue("data ending within a character is faulty", charsetVerifier.isCharsetFaulty());
+        assertTrue("guessed charset was faulty, so this is binary", charsetVerifier.isDefinitelyBinary());
+    }
+
+    @Test
+    public void testSamplingChecksSamplesAfterTheFirst() throws Exception {
+        byte[] bytes = generateText(4 * 1024 * 1024);
+        bytes[2 * 1024 * 1024 + 100] = (byte) 0xc3;
+        bytes[2 * 1024 * 1024 + 101] = (byte) 0x28;
+
+        CharsetVerifier charsetVerifier = verifyInChunks(bytes, 64 * 1024, true);
+
+        assertTrue("faulty bytes within a sample must be found", charsetVerifier.isCharsetFaulty());
+        assertTrue("guessed charset was faulty, so this is binary", charsetVerifier.isDefinitelyBinary());
+    }
+
+    @Test
+    public void testSamplingStopsAfterLastSample() throws Exception {
+        byte[] bytes = generateText(10 * 1024 * 1024);
+        bytes[9 * 1024 * 1024] = (byte) 0xc3;
+        bytes[9 * 1024 * 1024 + 1] = (byte) 0x28;
+
+        CharsetVerifier strictVerifier = verifyInChunks(bytes, 64 * 1024, false);
+        assertTrue("strict mode checks all data", strictVerifier.isCharsetFaulty());
+
+        CharsetVerifier samplingVerifier = verifyInChunks(bytes, 64 * 1024, true);
+        assertFalse("data after the last sample is not checked", samplingVerifier.isCharsetFaulty());
+        assertEquals("guessed charset is utf-8", "utf-8", samplingVerifier.getCharset());
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkSampling() throws Exception {
+        byte[] bytes = generateText(32 * 1024 * 1024);
+        int rounds = 3;
+
+        long strictTime = 0, samplingTime = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            verifyInChunks(bytes, 64 * 1024, false).isCharsetFaulty();
+            strictTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            verifyInChunks(bytes, 64 * 1024, true).isCharsetFaulty();
+            samplingTime += System.nanoTime() - start;
+        }
+
+        double megabytes = rounds * bytes.length / (1024.0 * 1024.0);
+        System.out.println(String.format("charset detection: strict %.1f MB/s, sampling %.1f MB/s",
+                megabytes / (strictTime / 1e9), megabytes / (samplingTime / 1e9)));
+    }
+
+    private static CharsetVerifier verifyInChunks(byte[] bytes, int bufferSize, boolean sampling) {
+        byte[] buffer = new byte[bufferSize];
+        CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, "application/octet-stream", null, sampling);
+        for (int off = 0; off < bytes.length; off += bufferSize) {
+            int length = Math.min(bufferSize, bytes.length - off);
+            System.arraycopy(bytes, off, buffer, 0, length);
+            charsetVerifier.readBytesFromBuffer(0, length);
+        }
+        return charsetVerifier;
+    }
+
+    private static byte[] generateText(int size) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        byte[] line = "bla bluh ☭ äöü 𝄞\n".getBytes("utf-8");
+        while (out.size() < size) {
+            out.write(line);
+        }
+        return out.toByteArray();
+    }
+
 }
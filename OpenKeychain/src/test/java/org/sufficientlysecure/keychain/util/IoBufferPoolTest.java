@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.Security;
+import java.util.Date;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+
+
+@RunWith(KeychainTestRunner.class)
+public class IoBufferPoolTest {
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @After
+    public void tearDown() {
+        IoBufferPool.setPoolingEnabled(true);
+    }
+
+    @Test
+    public void testBuffersAreReused() {
+        IoBufferPool.Lease lease = IoBufferPool.lease();
+        byte[] first = lease.getBuffer();
+        byte[] second = lease.getBuffer();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(IoBufferPool.BUFFER_SIZE, first.length);
+        lease.release();
+
+        long allocatedBuffers = IoBufferPool.getAllocatedBufferCount();
+        lease = IoBufferPool.lease();
+        lease.getBuffer();
+        lease.getBuffer();
+        lease.release();
+
+        Assert.assertEquals("released buffers should be reused",
+                allocatedBuffers, IoBufferPool.getAllocatedBufferCount());
+    }
+
+    @Test
+    public void testBuffersAreCleared() throws Exception {
+        IoBufferPool.Lease lease = IoBufferPool.lease();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedOutputStream bufferedOut = lease.bufferedOutputStream(out);
+        byte[] secret = "secret plaintext".getBytes();
+        bufferedOut.write(secret);
+        bufferedOut.close();
+        Assert.assertArrayEquals("buffered stream should write through", secret, out.toByteArray());
+        lease.release();
+
+        lease = IoBufferPool.lease();
+        byte[] buffer = lease.getBuffer();
+        for (byte b : buffer) {
+            Assert.assertEquals("pooled buffer must not contain previous data", 0, b);
+        }
+        lease.release();
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkAllocationRate() throws Exception {
+        Passphrase passphrase = new Passphrase("benchmark");
+        byte[] plaintext = new byte[4 * 1024];
+        int rounds = 200;
+
+        // warm up, so class loading doesn't count against either run
+        encryptRounds(passphrase, plaintext, 20);
+
+        IoBufferPool.setPoolingEnabled(false);
+        long unpooledBuffers = IoBufferPool.getAllocatedBufferCount();
+        long unpooledBytes = getAllocatedBytes();
+        long unpooledTime = encryptRounds(passphrase, plaintext, rounds);
+        unpooledBytes = getAllocatedBytes() - unpooledBytes;
+        unpooledBuffers = IoBufferPool.getAllocatedBufferCount() - unpooledBuffers;
+
+        IoBufferPool.setPoolingEnabled(true);
+        long pooledBuffers = IoBufferPool.getAllocatedBufferCount();
+        long pooledBytes = getAllocatedBytes();
+        long pooledTime = encryptRounds(passphrase, plaintext, rounds);
+        pooledBytes = getAllocatedBytes() - pooledBytes;
+        pooledBuffers = IoBufferPool.getAllocatedBufferCount() - pooledBuffers;
+
+        Assert.assertTrue("pooling should allocate fewer buffers", pooledBuffers < unpooledBuffers);
+
+        System.out.println(String.format("unpooled: %d buffers, %d KB/op, %.2f ms/op",
+                unpooledBuffers, unpooledBytes / rounds / 1024, unpooledTime / rounds / 1e6));
+        System.out.println(String.format("pooled: %d buffers, %d KB/op, %.2f ms/op",
+                pooledBuffers, pooledBytes / rounds / 1024, pooledTime / rounds / 1e6));
+    }
+
+    private static long encryptRounds(Passphrase passphrase, byte[] plaintext, int rounds) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSymmetricPassphrase(passphrase);
+        pgpData.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+        PgpSignEncryptData data = pgpData.build();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+            PgpSignEncryptResult result = op.execute(data, CryptoInputParcel.createCryptoInputParcel(new Date()),
+                    new InputData(in, plaintext.length), new ByteArrayOutputStream());
+            Assert.assertTrue("encryption must succeed", result.success());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Bytes allocated by the current thread, or 0 where the JVM can't tell. */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+}
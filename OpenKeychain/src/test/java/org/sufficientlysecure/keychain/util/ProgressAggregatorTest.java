@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ProgressAggregatorTest {
+
+    int lastProgress;
+    int lastMax;
+
+    Progressable recorder = new Progressable() {
+        @Override
+        public void setProgress(String message, int current, int total) {
+            setProgress(current, total);
+        }
+
+        @Override
+        public void setProgress(int resourceId, int current, int total) {
+            setProgress(current, total);
+        }
+
+        @Override
+        public void setProgress(int current, int total) {
+            lastProgress = current;
+            lastMax = total;
+        }
+
+        @Override
+        public void setPreventCancel() {
+        }
+    };
+
+    @Test
+    public void testAggregateParts() {
+        ProgressAggregator aggregator = new ProgressAggregator(recorder, 4, 0, 100, 100);
+        Progressable first = aggregator.getPart(0);
+        Progressable second = aggregator.getPart(1);
+
+        first.setProgress(50, 100);
+        Assert.assertEquals(12, lastProgress);
+        Assert.assertEquals(100, lastMax);
+
+        second.setProgress(1, 1);
+        Assert.assertEquals("parts should add up", 37, lastProgress);
+
+        first.setProgress(100, 100);
+        Assert.assertEquals("progress of a part should replace its previous progress", 50, lastProgress);
+
+        aggregator.getPart(2).setProgress(100, 100);
+        aggregator.getPart(3).setProgress(200, 100);
+        Assert.assertEquals("progress should be clamped per part", 100, lastProgress);
+    }
+
+    @Test
+    public void testRange() {
+        ProgressAggregator aggregator = new ProgressAggregator(recorder, 2, 20, 60, 100);
+        aggregator.getPart(0).setProgress(0, 100);
+        Assert.assertEquals(20, lastProgress);
+        aggregator.getPart(1).setProgress(100, 100);
+        Assert.assertEquals(40, lastProgress);
+    }
+
+}
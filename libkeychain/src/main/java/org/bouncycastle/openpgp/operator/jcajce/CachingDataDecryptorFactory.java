@@ -22,9 +22,14 @@ import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactory
 {
     private final PublicKeyDataDecryptorFactory mWrappedDecryptor;
-    private final HashMap<ByteBuffer, byte[]> mSessionKeyCache;
+    private Map<ByteBuffer, byte[]> mSessionKeyCache;
+    // the passed map is only copied once something is added to it
+    private boolean mSessionKeyCacheCopied;
+    private SessionKeyStore mSessionKeyStore;
 
     private OperatorHelper mOperatorHelper;
+    private DataDecryptorProviderSelector mDataDecryptorProviderSelector;
+    private final HashMap<String, OperatorHelper> mDataDecryptorHelpers = new HashMap<>();
 
     public CachingDataDecryptorFactory(String providerName, Map<ByteBuffer, byte[]> sessionKeyCache)
     {
@@ -36,18 +41,33 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
     public CachingDataDecryptorFactory(PublicKeyDataDecryptorFactory wrapped,
             Map<ByteBuffer, byte[]> sessionKeyCache)
     {
-        mSessionKeyCache = new HashMap<>();
-        if (sessionKeyCache != null)
-        {
-            mSessionKeyCache.putAll(sessionKeyCache);
-        }
+        mSessionKeyCache = sessionKeyCache != null
+                ? sessionKeyCache : Collections.<ByteBuffer, byte[]>emptyMap();
 
         mWrappedDecryptor = wrapped;
     }
 
+    /**
+     * Sets a selector for the provider of the data decryptor, which may differ from the one
+     * used to decrypt the session key. If none is set, the session key's provider is used.
+     */
+    public void setDataDecryptorProviderSelector(DataDecryptorProviderSelector dataDecryptorProviderSelector)
+    {
+        mDataDecryptorProviderSelector = dataDecryptorProviderSelector;
+    }
+
+    /**
+     * Sets a store of session keys which outlives this factory. Session keys are looked up there
+     * if they aren't passed in, and recovered session keys are added to it.
+     */
+    public void setSessionKeyStore(SessionKeyStore sessionKeyStore)
+    {
+        mSessionKeyStore = sessionKeyStore;
+    }
+
     public boolean hasCachedSessionData(PGPPublicKeyEncryptedData encData) throws PGPException {
         ByteBuffer bi = ByteBuffer.wrap(encData.getSessionKey()[0]);
-        return mSessionKeyCache.containsKey(bi);
+        return mSessionKeyCache.containsKey(bi) || getStoredSessionData(bi) != null;
     }
 
     public Map<ByteBuffer, byte[]> getCachedSessionKeys() {
@@ -62,25 +82,74 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
     public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) throws PGPException {
         ByteBuffer bi = ByteBuffer.wrap(secKeyData[0]);  // encoded MPI
         if (mSessionKeyCache.containsKey(bi)) {
-            return mSessionKeyCache.get(bi);
+            byte[] sessionData = mSessionKeyCache.get(bi);
+            // may have been passed in from a decryption by security token, remember it as well
+            if (mSessionKeyStore != null) {
+                mSessionKeyStore.put(bi, sessionData);
+            }
+            return sessionData;
+        }
+
+        byte[] sessionData = getStoredSessionData(bi);
+        if (sessionData != null) {
+            putSessionData(bi, sessionData);
+            return sessionData;
         }
 
         if (mWrappedDecryptor == null) {
             throw new IllegalStateException("tried to decrypt without wrapped decryptor, this is a bug!");
         }
 
-        byte[] sessionData = mWrappedDecryptor.recoverSessionData(keyAlgorithm, secKeyData);
-        mSessionKeyCache.put(bi, sessionData);
+        sessionData = mWrappedDecryptor.recoverSessionData(keyAlgorithm, secKeyData);
+        putSessionData(bi, sessionData);
+        if (mSessionKeyStore != null) {
+            mSessionKeyStore.put(bi, sessionData);
+        }
         return sessionData;
     }
 
+    private byte[] getStoredSessionData(ByteBuffer bi) {
+        return mSessionKeyStore != null ? mSessionKeyStore.get(bi) : null;
+    }
+
+    private void putSessionData(ByteBuffer bi, byte[] sessionData) {
+        if (!mSessionKeyCacheCopied) {
+            mSessionKeyCache = new HashMap<>(mSessionKeyCache);
+            mSessionKeyCacheCopied = true;
+        }
+        mSessionKeyCache.put(bi, sessionData);
+    }
+
     @Override
     public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm, byte[] key)
             throws PGPException {
+        if (mDataDecryptorProviderSelector != null) {
+            String providerName = mDataDecryptorProviderSelector.getProviderName(encAlgorithm, withIntegrityPacket);
+            OperatorHelper operatorHelper = mDataDecryptorHelpers.get(providerName);
+            if (operatorHelper == null) {
+                operatorHelper = new OperatorHelper(new NamedJcaJceHelper(providerName));
+                mDataDecryptorHelpers.put(providerName, operatorHelper);
+            }
+            return operatorHelper.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+        }
         if (mWrappedDecryptor != null) {
             return mWrappedDecryptor.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
         }
         return mOperatorHelper.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
     }
 
+    public interface DataDecryptorProviderSelector
+    {
+        String getProviderName(int encAlgorithm, boolean withIntegrityPacket);
+    }
+
+    /** A store of decrypted session keys, by their encoded encrypted session key MPI. */
+    public interface SessionKeyStore
+    {
+        /** Returns the decrypted session data, or null if it isn't stored. */
+        byte[] get(ByteBuffer encryptedSessionKey);
+
+        void put(ByteBuffer encryptedSessionKey, byte[] sessionData);
+    }
+
 }
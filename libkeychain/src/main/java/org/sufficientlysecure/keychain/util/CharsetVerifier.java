@@ -36,13 +36,34 @@ import android.support.annotation.Nullable;
  * be filled with data, then processed with {@link #readBytesFromBuffer}. This can
  * be done any number of times. Once all data has been read, a final status can be
  * read using the getter methods.
+ *
+ * By default, all data is checked. In sampling mode, only the first SAMPLE_LENGTH
+ * bytes and a few more samples at every SAMPLE_STRIDE bytes are checked, and data
+ * after the last sample is only counted.
+ *
+ * In either mode, a character split between two buffers is decoded as a whole, so the
+ * result doesn't depend on where the buffers end.
  */
 public class CharsetVerifier {
 
+    private static final int SAMPLE_LENGTH = 64 * 1024;
+    private static final int SAMPLE_STRIDE = 1024 * 1024;
+    private static final int MAX_SAMPLES = 8;
+
+    // a sample may start in the middle of a character, this many bytes are skipped at most
+    private static final int MAX_CHARACTER_LENGTH = 4;
+    private static final int PROBE_LENGTH = 16;
+
     private final ByteBuffer bufWrap;
     private final CharBuffer dummyOutput;
 
     private final CharsetDecoder charsetDecoder;
+    private final boolean isSampling;
+    private long streamPosition;
+
+    // an incomplete character at the end of the last buffer
+    private final byte[] carry = new byte[PROBE_LENGTH];
+    private int carryLength;
 
     private boolean isFinished;
     private boolean isFaulty;
@@ -53,8 +74,14 @@ public class CharsetVerifier {
     private String mimeType;
 
     public CharsetVerifier(@NonNull  byte[] buf, @NonNull String mimeType, @Nullable String charset) {
+        this(buf, mimeType, charset, false);
+    }
+
+    public CharsetVerifier(@NonNull byte[] buf, @NonNull String mimeType, @Nullable String charset,
+            boolean sampling) {
 
         this.mimeType = mimeType;
+        this.isSampling = sampling;
         isTextMimeType = ClipDescription.compareMimeTypes(mimeType, "text/*");
         isPossibleTextMimeType = isTextMimeType
                 || ClipDescription.compareMimeTypes(mimeType, "application/octet-stream")
@@ -91,11 +118,118 @@ public class CharsetVerifier {
         if (isFaulty || bufWrap == null) {
             return;
         }
-        bufWrap.rewind();
+        if (!isSampling) {
+            decodeRange(pos, len);
+            return;
+        }
+
+        while (pos < len && !isFaulty) {
+            long sampleIndex = streamPosition / SAMPLE_STRIDE;
+            if (sampleIndex >= MAX_SAMPLES) {
+                streamPosition += len - pos;
+                return;
+            }
+
+            long offsetInStride = streamPosition - sampleIndex * SAMPLE_STRIDE;
+            if (offsetInStride >= SAMPLE_LENGTH) {
+                int skip = (int) Math.min(len - pos, SAMPLE_STRIDE - offsetInStride);
+                pos += skip;
+                streamPosition += skip;
+                continue;
+            }
+
+            int end = (int) Math.min(len, pos + SAMPLE_LENGTH - offsetInStride);
+            int start = pos;
+            if (offsetInStride == 0 && sampleIndex > 0) {
+                start = findCharacterStart(pos, end);
+            }
+            decodeRange(start, end);
+            streamPosition += end - pos;
+            pos = end;
+
+            if (streamPosition - sampleIndex * SAMPLE_STRIDE == SAMPLE_LENGTH) {
+                // the sample may end in the middle of a character, and the next starts fresh
+                carryLength = 0;
+                charsetDecoder.reset();
+            }
+        }
+    }
+
+    private void decodeRange(int pos, int end) {
+        if (carryLength > 0) {
+            pos = decodeCarry(pos, end);
+            if (isFaulty || pos == end) {
+                return;
+            }
+        }
+
+        bufWrap.clear();
+        bufWrap.limit(end);
         bufWrap.position(pos);
-        bufWrap.limit(len);
-        dummyOutput.rewind();
-        CoderResult result = charsetDecoder.decode(bufWrap, dummyOutput, false);
+        decode(bufWrap);
+
+        // an incomplete character is completed with the next buffer
+        if (!isFaulty && bufWrap.hasRemaining()) {
+            saveCarry(bufWrap);
+        }
+    }
+
+    /** Decodes the incomplete character left from the last buffer, returns where to go on from. */
+    private int decodeCarry(int pos, int end) {
+        int lookahead = Math.min(end - pos, MAX_CHARACTER_LENGTH);
+        ByteBuffer input = ByteBuffer.allocate(carryLength + lookahead);
+        input.put(carry, 0, carryLength);
+        input.put(bufWrap.array(), pos, lookahead);
+        input.flip();
+
+        int previousCarryLength = carryLength;
+        carryLength = 0;
+        decode(input);
+        if (isFaulty) {
+            return end;
+        }
+
+        int consumed = input.position() - previousCarryLength;
+        if (consumed < 0) {
+            // still incomplete, this can only happen if there was very little new data
+            saveCarry(input);
+            return pos + lookahead;
+        }
+        return pos + consumed;
+    }
+
+    private void saveCarry(ByteBuffer input) {
+        if (input.remaining() > carry.length) {
+            isFaulty = true;
+            return;
+        }
+        carryLength = input.remaining();
+        input.get(carry, 0, carryLength);
+    }
+
+    /** Finds the first offset from which decoding works, since a sample may start within a character. */
+    private int findCharacterStart(int pos, int end) {
+        for (int skip = 0; skip < MAX_CHARACTER_LENGTH && pos + skip < end; skip++) {
+            charsetDecoder.reset();
+            ByteBuffer probe = ByteBuffer.wrap(bufWrap.array(), pos + skip,
+                    Math.min(PROBE_LENGTH, end - pos - skip));
+            dummyOutput.clear();
+            if (!charsetDecoder.decode(probe, dummyOutput, false).isError()) {
+                charsetDecoder.reset();
+                return pos + skip;
+            }
+        }
+        // no luck, let the decoder report the error
+        charsetDecoder.reset();
+        return pos;
+    }
+
+    private void decode(ByteBuffer input) {
+        CoderResult result;
+        do {
+            dummyOutput.clear();
+            result = charsetDecoder.decode(input, dummyOutput, false);
+        } while (result.isOverflow());
         if (result.isError()) {
             isFaulty = true;
         }
@@ -106,9 +240,14 @@ public class CharsetVerifier {
             return;
         }
         isFinished = true;
-        bufWrap.rewind();
+        if (carryLength > 0) {
+            // the data ended in the middle of a character
+            isFaulty = true;
+            return;
+        }
+        bufWrap.clear();
         bufWrap.limit(0);
-        dummyOutput.rewind();
+        dummyOutput.clear();
         CoderResult result = charsetDecoder.decode(bufWrap, dummyOutput, true);
         if (result.isError()) {
             isFaulty = true;